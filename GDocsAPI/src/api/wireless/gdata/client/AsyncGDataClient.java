@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import api.wireless.gdata.client.http.RequestContext;
+import api.wireless.gdata.serializer.GDataSerializer;
+import api.wireless.gdata.util.ContentType;
+
+/**
+ * Non-blocking counterpart of {@link GDataClient}. Every call is executed on
+ * an {@link ExecutorService} and returns a {@link Future} for its result;
+ * overloads taking a {@link GDataCallback} additionally notify the callback on
+ * completion.
+ *
+ * <p>The caller is responsible for calling {@link InputStream#close()} on the
+ * streams returned through the futures.
+ */
+public class AsyncGDataClient {
+
+	/** Number of threads of the default executor. */
+	public static final int DEFAULT_THREAD_COUNT = 4;
+
+	private final GDataClient client;
+	private final ExecutorService executor;
+	private final boolean ownsExecutor;
+
+	/**
+	 * Creates an asynchronous client running on a default executor of
+	 * {@link #DEFAULT_THREAD_COUNT} daemon threads.
+	 */
+	public AsyncGDataClient(GDataClient client) {
+		this(client, newDefaultExecutor(), true);
+	}
+
+	/**
+	 * Creates an asynchronous client running on the given executor. The
+	 * executor is not shut down by {@link #close()}.
+	 */
+	public AsyncGDataClient(GDataClient client, ExecutorService executor) {
+		this(client, executor, false);
+	}
+
+	private AsyncGDataClient(GDataClient client, ExecutorService executor,
+			boolean ownsExecutor) {
+		if (client == null) {
+			throw new NullPointerException("Must supply client");
+		}
+		if (executor == null) {
+			throw new NullPointerException("Must supply executor");
+		}
+		this.client = client;
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+	}
+
+	/**
+	 * Creates the executor used when none is supplied: a fixed pool of
+	 * {@link #DEFAULT_THREAD_COUNT} daemon threads. Blocking on the network is
+	 * cheap for these threads since the transport bounds the number of
+	 * connections anyway.
+	 */
+	public static ExecutorService newDefaultExecutor() {
+		return newDefaultExecutor(DEFAULT_THREAD_COUNT);
+	}
+
+	/**
+	 * Creates a fixed pool of daemon threads, e.g. as many as the transport
+	 * allows connections.
+	 */
+	public static ExecutorService newDefaultExecutor(int threads) {
+		return Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "GData-async-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Submits a task to an executor, notifying the callback (if any) once the
+	 * task completes.
+	 */
+	public static <T> Future<T> submit(ExecutorService executor,
+			Callable<T> task, final GDataCallback<T> callback) {
+		FutureTask<T> future = new FutureTask<T>(RequestContext.propagate(task)) {
+			@Override
+			protected void done() {
+				if (callback == null || isCancelled()) {
+					return;
+				}
+				T result;
+				try {
+					result = get();
+				} catch (ExecutionException e) {
+					callback.onFailure(e.getCause());
+					return;
+				} catch (InterruptedException e) {
+					callback.onFailure(e);
+					return;
+				}
+				callback.onSuccess(result);
+			}
+		};
+		executor.execute(future);
+		return future;
+	}
+
+	public GDataClient getClient() {
+		return client;
+	}
+
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Shuts down the executor if it was created by this client.
+	 */
+	public void close() {
+		if (ownsExecutor) {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * @see GDataClient#getFeedAsStream(URL, String)
+	 */
+	public Future<InputStream> getFeedAsStream(URL feedUrl, String eTag) {
+		return getFeedAsStream(feedUrl, eTag, null);
+	}
+
+	public Future<InputStream> getFeedAsStream(final URL feedUrl,
+			final String eTag, GDataCallback<InputStream> callback) {
+		return submit(executor, new Callable<InputStream>() {
+			public InputStream call() throws Exception {
+				return client.getFeedAsStream(feedUrl, eTag);
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see GDataClient#getMediaEntryAsStream(URL, String, ContentType)
+	 */
+	public Future<InputStream> getMediaEntryAsStream(URL mediaEntryUrl,
+			String eTag, ContentType ct) {
+		return getMediaEntryAsStream(mediaEntryUrl, eTag, ct, null);
+	}
+
+	public Future<InputStream> getMediaEntryAsStream(final URL mediaEntryUrl,
+			final String eTag, final ContentType ct,
+			GDataCallback<InputStream> callback) {
+		return submit(executor, new Callable<InputStream>() {
+			public InputStream call() throws Exception {
+				return client.getMediaEntryAsStream(mediaEntryUrl, eTag, ct);
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see GDataClient#createEntry(URL, GDataSerializer)
+	 */
+	public Future<InputStream> createEntry(URL feedUrl, GDataSerializer entry) {
+		return createEntry(feedUrl, entry, null);
+	}
+
+	public Future<InputStream> createEntry(final URL feedUrl,
+			final GDataSerializer entry, GDataCallback<InputStream> callback) {
+		return submit(executor, new Callable<InputStream>() {
+			public InputStream call() throws Exception {
+				return client.createEntry(feedUrl, entry);
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see GDataClient#updateEntry(URL, String, GDataSerializer)
+	 */
+	public Future<InputStream> updateEntry(URL editUri, String eTag,
+			GDataSerializer entry) {
+		return updateEntry(editUri, eTag, entry, null);
+	}
+
+	public Future<InputStream> updateEntry(final URL editUri,
+			final String eTag, final GDataSerializer entry,
+			GDataCallback<InputStream> callback) {
+		return submit(executor, new Callable<InputStream>() {
+			public InputStream call() throws Exception {
+				return client.updateEntry(editUri, eTag, entry);
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see GDataClient#updateMediaEntry(URL, String, InputStream, ContentType)
+	 */
+	public Future<InputStream> updateMediaEntry(URL editUri, String eTag,
+			InputStream mediaEntryInputStream, ContentType contentType) {
+		return updateMediaEntry(editUri, eTag, mediaEntryInputStream,
+				contentType, null);
+	}
+
+	public Future<InputStream> updateMediaEntry(final URL editUri,
+			final String eTag, final InputStream mediaEntryInputStream,
+			final ContentType contentType, GDataCallback<InputStream> callback) {
+		return submit(executor, new Callable<InputStream>() {
+			public InputStream call() throws Exception {
+				return client.updateMediaEntry(editUri, eTag,
+						mediaEntryInputStream, contentType);
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see GDataClient#deleteEntry(URL, String)
+	 */
+	public Future<Void> deleteEntry(URL editUri, String eTag) {
+		return deleteEntry(editUri, eTag, null);
+	}
+
+	public Future<Void> deleteEntry(final URL editUri, final String eTag,
+			GDataCallback<Void> callback) {
+		return submit(executor, new Callable<Void>() {
+			public Void call() throws Exception {
+				client.deleteEntry(editUri, eTag);
+				return null;
+			}
+		}, callback);
+	}
+}
@@ -0,0 +1,400 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import api.wireless.gdata.client.TokenFactory.ClientLoginAccountType;
+import api.wireless.gdata.client.http.CircuitBreakerRegistry;
+import api.wireless.gdata.client.http.Deadline;
+import api.wireless.gdata.client.http.DeadlineExceededException;
+import api.wireless.gdata.client.http.HttpTransport;
+import api.wireless.gdata.client.http.PooledHttpTransport;
+import api.wireless.gdata.client.http.RateLimiter;
+import api.wireless.gdata.client.http.RequestScheduler;
+import api.wireless.gdata.util.AuthenticationException;
+import api.wireless.gdata.util.ServiceException;
+
+/**
+ * Holds authenticated clients for a number of accounts and spreads calls
+ * across them.
+ *
+ * <p>A call either names the account it must be made for, or is routed to
+ * the account with the fewest calls in flight. At most
+ * {@link #getMaxInFlight()} calls run per account at a time; further calls
+ * wait for one of them to finish, or for the deadline of the calling thread
+ * to expire. The number of calls in flight, made and failed is tracked per
+ * account.
+ *
+ * <p>All clients of a pool share one transport, and with it one connection
+ * pool, as well as the circuit breakers of the hosts they contact and, if
+ * set, a rate limiter and a request scheduler. A rate limiter applies its
+ * limits per account. Clients are created by a {@link ClientFactory}, which
+ * should hand the same parser factory to all of them.
+ *
+ * <p>A pool is thread-safe.
+ *
+ * @param <C> the type of the clients.
+ */
+public class ClientPool<C extends GDataServiceClient> {
+
+	/** Default number of calls per account running at the same time. */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+	/**
+	 * Creates the clients of a pool, e.g. a {@link
+	 * api.wireless.gdata.docs.client.DocsClient} with its token factory.
+	 */
+	public interface ClientFactory<C extends GDataServiceClient> {
+
+		C createClient();
+	}
+
+	/**
+	 * A call made with one of the clients of a pool.
+	 */
+	public interface Call<C, T> {
+
+		T call(C client) throws IOException, ServiceException;
+	}
+
+	private static class Member<C> {
+
+		final String account;
+		final C client;
+		int inFlight;
+		long calls;
+		long failures;
+
+		Member(String account, C client) {
+			this.account = account;
+			this.client = client;
+		}
+	}
+
+	private final ClientFactory<C> factory;
+	private final HttpTransport transport;
+	private final CircuitBreakerRegistry circuitBreakers = new CircuitBreakerRegistry();
+	private final List<Member<C>> members = new ArrayList<Member<C>>();
+	private final Map<String, Member<C>> accounts = new HashMap<String, Member<C>>();
+
+	private RateLimiter rateLimiter;
+	private RequestScheduler scheduler;
+	private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+	/** Index of the member the search for the least loaded one starts at. */
+	private int next;
+
+	/**
+	 * Creates a pool whose clients share a new {@link PooledHttpTransport}.
+	 */
+	public ClientPool(ClientFactory<C> factory) {
+		this(factory, new PooledHttpTransport());
+	}
+
+	/**
+	 * Creates a pool whose clients share the given transport. Its connection
+	 * limits should allow for the calls of all accounts.
+	 */
+	public ClientPool(ClientFactory<C> factory, HttpTransport transport) {
+		if (factory == null) {
+			throw new NullPointerException("Must supply client factory");
+		}
+		if (transport == null) {
+			throw new NullPointerException("Must supply transport");
+		}
+		this.factory = factory;
+		this.transport = transport;
+	}
+
+	/**
+	 * Creates a client for an account and logs it in.
+	 *
+	 * @return the new client.
+	 * @throws AuthenticationException if authentication failed.
+	 */
+	public C addAccount(String username, String password)
+	throws AuthenticationException {
+		return addAccount(username, password, ClientLoginAccountType.HOSTED_OR_GOOGLE);
+	}
+
+	/**
+	 * Creates a client for an account and logs it in.
+	 *
+	 * @return the new client.
+	 * @throws AuthenticationException if authentication failed.
+	 */
+	public C addAccount(String username, String password,
+			ClientLoginAccountType accountType) throws AuthenticationException {
+		C client = factory.createClient();
+		synchronized (this) {
+			// the login goes through the shared transport and settings as well
+			configure(client.getGDataClient());
+		}
+		client.getGDataClient().setUserCredentials(username, password, accountType);
+		addClient(username, client);
+		return client;
+	}
+
+	/**
+	 * Adds a client already authenticated for an account, replacing the
+	 * client of the account, if any. The client is switched to the shared
+	 * transport and settings of the pool.
+	 */
+	public synchronized void addClient(String account, C client) {
+		configure(client.getGDataClient());
+		String key = getKey(account);
+		Member<C> member = new Member<C>(account, client);
+		Member<C> previous = accounts.put(key, member);
+		if (previous != null) {
+			members.set(members.indexOf(previous), member);
+		} else {
+			members.add(member);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Removes the client of an account. Calls in flight are completed.
+	 *
+	 * @return <code>true</code> if the account was part of the pool.
+	 */
+	public synchronized boolean removeAccount(String account) {
+		Member<C> member = accounts.remove(getKey(account));
+		if (member == null) {
+			return false;
+		}
+		members.remove(member);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Returns the accounts of the pool, in the order they were added.
+	 */
+	public synchronized List<String> getAccounts() {
+		List<String> result = new ArrayList<String>(members.size());
+		for (Member<C> member : members) {
+			result.add(member.account);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the client of an account, or <code>null</code>.
+	 */
+	public synchronized C getClient(String account) {
+		Member<C> member = accounts.get(getKey(account));
+		return (member != null) ? member.client : null;
+	}
+
+	/**
+	 * Makes a call with the client of the given account.
+	 *
+	 * @throws IllegalArgumentException if the account is not part of the
+	 *         pool.
+	 * @throws DeadlineExceededException if the deadline of the calling
+	 *         thread expired while waiting for the account.
+	 */
+	public <T> T execute(String account, Call<C, T> call)
+	throws IOException, ServiceException {
+		if (account == null) {
+			throw new NullPointerException("Must supply account");
+		}
+		return execute(acquire(getKey(account)), call);
+	}
+
+	/**
+	 * Makes a call with the client of the account with the fewest calls in
+	 * flight.
+	 *
+	 * @throws IllegalStateException if the pool has no accounts.
+	 * @throws DeadlineExceededException if the deadline of the calling
+	 *         thread expired while waiting for an account.
+	 */
+	public <T> T execute(Call<C, T> call) throws IOException, ServiceException {
+		return execute(acquire(null), call);
+	}
+
+	private <T> T execute(Member<C> member, Call<C, T> call)
+	throws IOException, ServiceException {
+		boolean failed = true;
+		try {
+			T result = call.call(member.client);
+			failed = false;
+			return result;
+		} finally {
+			release(member, failed);
+		}
+	}
+
+	/**
+	 * Sets the number of calls per account that may run at the same time.
+	 */
+	public synchronized void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight <= 0) {
+			throw new IllegalArgumentException("Limit must be positive");
+		}
+		this.maxInFlight = maxInFlight;
+		notifyAll();
+	}
+
+	public synchronized int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Sets the rate limiter shared by all clients, <code>null</code>
+	 * disabling rate limiting.
+	 */
+	public synchronized void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+		for (Member<C> member : members) {
+			member.client.getGDataClient().setRateLimiter(rateLimiter);
+		}
+	}
+
+	public synchronized RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * Sets the request scheduler shared by all clients, <code>null</code>
+	 * letting requests connect right away.
+	 */
+	public synchronized void setRequestScheduler(RequestScheduler scheduler) {
+		this.scheduler = scheduler;
+		for (Member<C> member : members) {
+			member.client.getGDataClient().setRequestScheduler(scheduler);
+		}
+	}
+
+	public synchronized RequestScheduler getRequestScheduler() {
+		return scheduler;
+	}
+
+	public HttpTransport getTransport() {
+		return transport;
+	}
+
+	public CircuitBreakerRegistry getCircuitBreakerRegistry() {
+		return circuitBreakers;
+	}
+
+	/**
+	 * Returns the number of calls currently running for an account.
+	 */
+	public synchronized int getInFlight(String account) {
+		Member<C> member = accounts.get(getKey(account));
+		return (member != null) ? member.inFlight : 0;
+	}
+
+	/**
+	 * Returns the number of calls made for an account.
+	 */
+	public synchronized long getCallCount(String account) {
+		Member<C> member = accounts.get(getKey(account));
+		return (member != null) ? member.calls : 0;
+	}
+
+	/**
+	 * Returns the number of calls made for an account that threw an
+	 * exception.
+	 */
+	public synchronized long getFailureCount(String account) {
+		Member<C> member = accounts.get(getKey(account));
+		return (member != null) ? member.failures : 0;
+	}
+
+	private void configure(ServiceDataClient client) {
+		client.setTransport(transport);
+		client.setCircuitBreakerRegistry(circuitBreakers);
+		client.setRateLimiter(rateLimiter);
+		client.setRequestScheduler(scheduler);
+	}
+
+	/**
+	 * Waits until the given account, or the least loaded one if
+	 * <code>null</code>, has a call to spare.
+	 */
+	private synchronized Member<C> acquire(String key)
+	throws InterruptedIOException {
+		Deadline deadline = Deadline.current();
+		try {
+			while (true) {
+				Member<C> member;
+				if (key != null) {
+					member = accounts.get(key);
+					if (member == null) {
+						throw new IllegalArgumentException("Account not in pool");
+					}
+				} else {
+					if (members.isEmpty()) {
+						throw new IllegalStateException("Pool has no accounts");
+					}
+					member = getLeastLoaded();
+				}
+				if (member.inFlight < maxInFlight) {
+					member.inFlight++;
+					member.calls++;
+					return member;
+				}
+				if (deadline == null) {
+					wait();
+				} else {
+					wait(deadline.getTimeout(0));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for an account");
+		}
+	}
+
+	/**
+	 * Returns the member with the fewest calls in flight, taking turns among
+	 * members with equally few.
+	 */
+	private Member<C> getLeastLoaded() {
+		int size = members.size();
+		int best = -1;
+		for (int i = 0; i < size; i++) {
+			int index = (next + i) % size;
+			if (best < 0 || members.get(index).inFlight < members.get(best).inFlight) {
+				best = index;
+			}
+		}
+		next = (best + 1) % size;
+		return members.get(best);
+	}
+
+	private synchronized void release(Member<C> member, boolean failed) {
+		member.inFlight--;
+		if (failed) {
+			member.failures++;
+		}
+		notifyAll();
+	}
+
+	private static String getKey(String account) {
+		return account.toLowerCase();
+	}
+}
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client;
+
+import java.io.File;
+
+/**
+ * Outcome of a media download into a file: the file written, its size and
+ * the time the transfer took.
+ */
+public class DownloadResult {
+
+	private final File file;
+	private final long bytes;
+	private final long elapsedMillis;
+
+	public DownloadResult(File file, long bytes, long elapsedMillis) {
+		this.file = file;
+		this.bytes = bytes;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the number of bytes written to the file.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the time (in milliseconds) the download took, from the first
+	 * request until the file was in place.
+	 */
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * Returns the average download rate in bytes per second.
+	 */
+	public double getBytesPerSecond() {
+		return bytes * 1000.0 / Math.max(elapsedMillis, 1);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d bytes in %d ms (%.1f KB/s)", file, bytes,
+				elapsedMillis, getBytesPerSecond() / 1024);
+	}
+}
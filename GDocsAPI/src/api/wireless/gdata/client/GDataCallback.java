@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client;
+
+/**
+ * Callback notified when an asynchronous GData operation completes.
+ * Callbacks run on the executor thread that performed the operation.
+ *
+ * @param <T> type of the operation result.
+ */
+public interface GDataCallback<T> {
+
+	/**
+	 * Called with the result of a successful operation.
+	 */
+	void onSuccess(T result);
+
+	/**
+	 * Called if the operation failed, typically with a
+	 * {@link api.wireless.gdata.util.ServiceException}, an
+	 * {@link java.io.IOException} or a
+	 * {@link api.wireless.gdata.parser.ParseException}.
+	 */
+	void onFailure(Throwable error);
+}
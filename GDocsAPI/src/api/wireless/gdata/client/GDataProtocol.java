@@ -111,6 +111,12 @@ public class GDataProtocol {
      * be in a request.
      */
     public static final String CACHE_CONTROL  = "Cache-Control";
+
+    /**
+     * The RETRY_AFTER header is used by the service to tell how long to wait
+     * before a failed request may be sent again.
+     */
+    public static final String RETRY_AFTER = "Retry-After";
   }
 
   /**
@@ -15,8 +15,12 @@
  ******************************************************************************/
 package api.wireless.gdata.client;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -25,7 +29,19 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import api.wireless.gdata.client.http.Deadline;
+import api.wireless.gdata.client.http.HttpTransport;
+import api.wireless.gdata.client.http.PooledHttpTransport;
+import api.wireless.gdata.client.http.RequestContext;
 import api.wireless.gdata.data.Entry;
 import api.wireless.gdata.data.Feed;
 import api.wireless.gdata.docs.data.DocumentEntry;
@@ -64,8 +80,15 @@ public abstract class GDataServiceClient {
 	
 	protected static final int FEED_COLLECTION_SIZE = 100;		
 
+	/** Default number of feed pages requested ahead while paging. */
+	public static final int DEFAULT_PREFETCH_WINDOW = 2;
+
 	private final ServiceDataClient gDataClient;
 	private final GDataParserFactory gDataParserFactory;	
+	private ExecutorService executor;
+	private boolean ownsExecutor;
+	private int prefetchWindow = DEFAULT_PREFETCH_WINDOW;
+	private int downloadSegments = RangedDownloader.DEFAULT_SEGMENTS;
 
 	public GDataServiceClient(ServiceDataClient gDataClient,
 			GDataParserFactory gDataParserFactory) {
@@ -91,6 +114,105 @@ public abstract class GDataServiceClient {
 		return gDataParserFactory;
 	}
 
+	/**
+	 * Sets the executor used by the asynchronous methods of this client. The
+	 * executor is not shut down by {@link #close()}.
+	 */
+	public synchronized void setExecutor(ExecutorService executor) {
+		if (ownsExecutor) {
+			this.executor.shutdown();
+			ownsExecutor = false;
+		}
+		this.executor = executor;
+	}
+
+	/**
+	 * Returns the executor used by the asynchronous methods of this client,
+	 * creating a default one on first use. The default executor has a daemon
+	 * thread for each connection a {@link PooledHttpTransport} allows in
+	 * total, or {@link AsyncGDataClient#DEFAULT_THREAD_COUNT} threads for
+	 * other transports.
+	 * @see AsyncGDataClient#newDefaultExecutor(int)
+	 */
+	public synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			int threads = AsyncGDataClient.DEFAULT_THREAD_COUNT;
+			HttpTransport transport = gDataClient.getTransport();
+			if (transport instanceof PooledHttpTransport) {
+				threads = ((PooledHttpTransport) transport).getMaxTotalConnections();
+			}
+			executor = AsyncGDataClient.newDefaultExecutor(threads);
+			ownsExecutor = true;
+		}
+		return executor;
+	}
+
+	/**
+	 * Shuts down the executor if it was created by this client. Calls already
+	 * submitted are completed; the data client is left open since it may be
+	 * shared.
+	 */
+	public synchronized void close() {
+		if (ownsExecutor) {
+			executor.shutdown();
+			executor = null;
+			ownsExecutor = false;
+		}
+	}
+
+	/**
+	 * Sets the number of feed pages {@link #getFeed(Class, URL, int)} requests
+	 * ahead of the page being parsed. A value of zero fetches pages one after
+	 * the other.
+	 */
+	public synchronized void setPrefetchWindow(int window) {
+		if (window < 0) {
+			throw new IllegalArgumentException("Window cannot be negative");
+		}
+		prefetchWindow = window;
+	}
+
+	public synchronized int getPrefetchWindow() {
+		return prefetchWindow;
+	}
+
+	/**
+	 * Sets the number of byte ranges of a media download fetched at the same
+	 * time. A value of one downloads media with a single request.
+	 */
+	public synchronized void setDownloadSegments(int segments) {
+		if (segments <= 0) {
+			throw new IllegalArgumentException("Segments must be positive");
+		}
+		downloadSegments = segments;
+	}
+
+	public synchronized int getDownloadSegments() {
+		return downloadSegments;
+	}
+
+	/**
+	 * Downloads media into a file, fetching byte ranges of it in parallel if
+	 * the service supports them.
+	 *
+	 * @param mediaUrl URL of the media.
+	 * @param ct content type of the media.
+	 * @param target file receiving the media, replaced once the download
+	 *        completed.
+	 * @return size of the media and time taken by the download.
+	 * @see RangedDownloader
+	 */
+	protected DownloadResult downloadMedia(URL mediaUrl, ContentType ct,
+			File target) throws IOException, ServiceException {
+		RangedDownloader downloader = new RangedDownloader(getGDataClient(),
+				getExecutor());
+		downloader.setSegments(getDownloadSegments());
+		long start = System.currentTimeMillis();
+		long bytes = downloader.download(mediaUrl, ct, target);
+		return new DownloadResult(target, bytes,
+				System.currentTimeMillis() - start);
+	}
+
 	/**
 	 * Returns the name of the service.  Used for authentication.
 	 * @return The name of the service.
@@ -135,14 +257,107 @@ public abstract class GDataServiceClient {
 		return gDataParserFactory.createParser(feedEntryClass, is);
 	}
 	
+	/**
+	 * Fetches a paged feed, following its <code>next</code> links until at
+	 * least <code>max_feed_size</code> entries have been read or the feed is
+	 * exhausted.
+	 *
+	 * <p>Unless prefetching is disabled, the next page is requested on the
+	 * executor while the current one is being parsed. If the pages are
+	 * addressed by <code>start-index</code> and the feed reports its total
+	 * size, up to {@link #getPrefetchWindow()} pages are requested in
+	 * parallel. Entries are always returned in feed order.
+	 *
+	 * <p>Pages are only requested ahead while the transport has connections
+	 * to spare, and are read into memory once fetched, so that pages waiting
+	 * to be parsed never hold a connection another page waits for.
+	 *
+	 * <p>All page requests, including those made in the background, are bound
+	 * by the {@link Deadline} attached to the calling thread, if any.
+	 *
+	 * @see #setPrefetchWindow(int)
+	 */
 	public <E extends Entry> Feed<E> getFeed(Class<E> entryClass, URL feedUrl, int max_feed_size) 
 		throws ServiceException, IOException, ParseException {
 		
+		int window = getPrefetchWindow();
+		if (window <= 0) {
+			return getFeedSequentially(entryClass, feedUrl, max_feed_size);
+		}
+
+		LinkedList<URL> upcoming = new LinkedList<URL>();
+		LinkedList<FeedPage> pending = new LinkedList<FeedPage>();
+		Feed<E> feed = null;
+		boolean indexed = false;
+		
+		try {
+			FeedPage page = new FeedPage(feedUrl);
+			while (page != null) {
+				Deadline.checkCurrent();
+				GDataParser<E> parser = gDataParserFactory.createParser(entryClass, page.getStream());
+				LinkedList<E> entries = new LinkedList<E>();
+				try {
+					Feed<E> current = parser.init();
+					if (feed == null) {
+						feed = current;
+						indexed = schedulePages(feed, max_feed_size, upcoming);
+					} else if (!indexed && current.getNext() != null) {
+						upcoming.add(new URL(current.getNext()));
+					}
+					// request the following pages while this one is parsed
+					int ahead = Math.min(window, getAvailableConnections(feedUrl));
+					while (pending.size() < ahead && !upcoming.isEmpty()) {
+						FeedPage next = new FeedPage(upcoming.removeFirst());
+						pending.add(next);
+						try {
+							getExecutor().execute(next.task);
+						} catch (RejectedExecutionException e) {
+							// fetched by this thread when its turn comes
+						}
+					}
+
+					E entry = parser.readNextEntry(null);
+					while (entry != null) {
+						entries.add(entry);
+						entry = parser.readNextEntry(null);
+					}
+				} finally {
+					parser.close();
+				}
+
+				if (feed.getEntries().isEmpty()) {
+					feed.setEntries(entries);
+				} else if (entries.isEmpty()) {
+					break;
+				} else {
+					feed.getEntries().addAll(entries);
+				}
+				if (feed.getEntries().size() >= max_feed_size) {
+					break;
+				}
+				page = pending.poll();
+				if (page == null && !upcoming.isEmpty()) {
+					page = new FeedPage(upcoming.removeFirst());
+				}
+			}
+		} finally {
+			for (FeedPage page : pending) {
+				page.discard();
+			}
+		}
+		
+		return feed;
+	}
+
+	private <E extends Entry> Feed<E> getFeedSequentially(Class<E> entryClass, URL feedUrl, 
+			int max_feed_size) throws ServiceException, IOException, ParseException {
+		
 		Feed<E> feed = getFeed(entryClass, feedUrl);
 		
 		String nextURL = feed.getNext();
 		int total_feed_size = feed.getEntries().size();
 		while ((total_feed_size < max_feed_size) && (nextURL != null)){
+			Deadline.checkCurrent();
 			// Get next portion
 			Feed<E> nextFeed = getFeed(entryClass, new URL(nextURL));
 			if (nextFeed.getEntries().size() == 0) break;
@@ -156,6 +371,140 @@ public abstract class GDataServiceClient {
 		
 		return feed;
 	}
+
+	/**
+	 * Works out which pages follow the first page of a feed. If the next page
+	 * is addressed by start-index and the feed reports its size, the URLs of
+	 * all remaining pages are added, otherwise only the next link is.
+	 *
+	 * @return <code>true</code> if all remaining pages have been scheduled.
+	 */
+	private static boolean schedulePages(Feed<?> feed, int maxFeedSize, 
+			LinkedList<URL> upcoming) throws MalformedURLException {
+		String next = feed.getNext();
+		if (next == null) {
+			return true;
+		}
+		
+		Matcher matcher = START_INDEX_PATTERN.matcher(next);
+		int pageSize = feed.getItemsPerPage();
+		if (!matcher.find() || pageSize <= 0 || feed.getTotalResults() <= 0) {
+			upcoming.add(new URL(next));
+			return false;
+		}
+		
+		int first = Math.max(feed.getStartIndex(), 1);
+		int last = Math.min(feed.getTotalResults(), first - 1 + maxFeedSize);
+		for (int index = first + pageSize; index <= last; index += pageSize) {
+			String url = next.substring(0, matcher.start(1)) + index 
+				+ next.substring(matcher.end(1));
+			upcoming.add(new URL(url));
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of connections to the host of a feed the transport
+	 * could hand out right now, unlimited if the transport does not tell.
+	 */
+	private int getAvailableConnections(URL feedUrl) {
+		HttpTransport transport = gDataClient.getTransport();
+		if (transport instanceof PooledHttpTransport) {
+			return ((PooledHttpTransport) transport).getAvailableConnections(
+					feedUrl.getHost());
+		}
+		return Integer.MAX_VALUE;
+	}
+
+	private static final Pattern START_INDEX_PATTERN = 
+		Pattern.compile("[?&]" + GDataProtocol.Query.START_INDEX + "=(\\d+)");
+
+	/**
+	 * A feed page whose stream may be fetched in the background. If nobody
+	 * picked the fetch up yet, the thread asking for the stream runs it itself
+	 * so paging never waits on a busy executor. Pages fetched in the
+	 * background are read into memory, releasing their connection.
+	 */
+	private class FeedPage implements Callable<InputStream> {
+		final URL url;
+		final FutureTask<InputStream> task =
+			new FutureTask<InputStream>(RequestContext.propagate(this));
+		private final Thread pagingThread = Thread.currentThread();
+		private boolean delivered;
+		private boolean discarded;
+
+		FeedPage(URL url) {
+			this.url = url;
+		}
+
+		public InputStream call() throws Exception {
+			synchronized (this) {
+				if (discarded) {
+					return null;
+				}
+			}
+			InputStream is = gDataClient.getFeedAsStream(url, null);
+			if (Thread.currentThread() != pagingThread) {
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				try {
+					StreamUtil.copy(is, body);
+				} finally {
+					is.close();
+				}
+				is = new ByteArrayInputStream(body.toByteArray());
+			}
+			synchronized (this) {
+				if (!discarded) {
+					delivered = true;
+					return is;
+				}
+			}
+			is.close();
+			return null;
+		}
+
+		InputStream getStream() throws ServiceException, IOException {
+			task.run();
+			try {
+				return task.get();
+			} catch (InterruptedException e) {
+				discard();
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted fetching " + url);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof ServiceException) {
+					throw (ServiceException) cause;
+				} else if (cause instanceof IOException) {
+					throw (IOException) cause;
+				} else if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				} else if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				IOException ioe = new IOException("Could not fetch " + url);
+				ioe.initCause(cause);
+				throw ioe;
+			}
+		}
+
+		/**
+		 * Gives up on this page, closing its stream if it has been fetched.
+		 */
+		void discard() {
+			synchronized (this) {
+				discarded = true;
+				if (!delivered) {
+					return;
+				}
+			}
+			try {
+				task.get().close();
+			} catch (Exception e) {
+				// nothing left to release
+			}
+		}
+	}
 	
 	public <E extends Entry> Feed<E> getFeed(Class<E> entryClass, URL feedUrl) 
 		throws ServiceException, IOException, ParseException {
@@ -185,7 +534,7 @@ public abstract class GDataServiceClient {
 		}
 		finally{
 			if (parser != null){				
-				//parser.close(); //TODO: API Error LocalCloseInputStream
+				parser.close();
 				parser = null;
 			}
 		}
@@ -321,6 +670,113 @@ public abstract class GDataServiceClient {
 		gDataClient.deleteEntry(editUri, eTag);
 	}
 
+	/**
+	 * Asynchronously fetches and parses a feed.
+	 * @see #getFeed(Class, URL)
+	 */
+	public <E extends Entry> Future<Feed<E>> getFeedAsync(Class<E> entryClass, 
+			URL feedUrl) {
+		return getFeedAsync(entryClass, feedUrl, null);
+	}
+
+	public <E extends Entry> Future<Feed<E>> getFeedAsync(final Class<E> entryClass, 
+			final URL feedUrl, GDataCallback<Feed<E>> callback) {
+		return AsyncGDataClient.submit(getExecutor(), new Callable<Feed<E>>() {
+			public Feed<E> call() throws Exception {
+				return getFeed(entryClass, feedUrl);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Asynchronously fetches and parses up to <code>maxFeedSize</code>
+	 * entries of a paged feed.
+	 * @see #getFeed(Class, URL, int)
+	 */
+	public <E extends Entry> Future<Feed<E>> getFeedAsync(Class<E> entryClass, 
+			URL feedUrl, int maxFeedSize) {
+		return getFeedAsync(entryClass, feedUrl, maxFeedSize, null);
+	}
+
+	public <E extends Entry> Future<Feed<E>> getFeedAsync(final Class<E> entryClass, 
+			final URL feedUrl, final int maxFeedSize, GDataCallback<Feed<E>> callback) {
+		return AsyncGDataClient.submit(getExecutor(), new Callable<Feed<E>>() {
+			public Feed<E> call() throws Exception {
+				return getFeed(entryClass, feedUrl, maxFeedSize);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Asynchronously fetches an existing entry.
+	 * @see #getEntry(Class, URL, String)
+	 */
+	public <E extends Entry> Future<E> getEntryAsync(Class<E> entryClass, 
+			URL url, String eTag) {
+		return getEntryAsync(entryClass, url, eTag, null);
+	}
+
+	public <E extends Entry> Future<E> getEntryAsync(final Class<E> entryClass, 
+			final URL url, final String eTag, GDataCallback<E> callback) {
+		return AsyncGDataClient.submit(getExecutor(), new Callable<E>() {
+			public E call() throws Exception {
+				return getEntry(entryClass, url, eTag);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Asynchronously creates a new entry.
+	 * @see #createEntry(URL, Entry)
+	 */
+	public Future<Entry> createEntryAsync(URL feedUrl, Entry entry) {
+		return createEntryAsync(feedUrl, entry, null);
+	}
+
+	public Future<Entry> createEntryAsync(final URL feedUrl, final Entry entry,
+			GDataCallback<Entry> callback) {
+		return AsyncGDataClient.submit(getExecutor(), new Callable<Entry>() {
+			public Entry call() throws Exception {
+				return createEntry(feedUrl, entry);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Asynchronously updates an existing entry.
+	 * @see #updateEntry(Entry, String)
+	 */
+	public Future<Entry> updateEntryAsync(Entry entry, String eTag) {
+		return updateEntryAsync(entry, eTag, null);
+	}
+
+	public Future<Entry> updateEntryAsync(final Entry entry, final String eTag,
+			GDataCallback<Entry> callback) {
+		return AsyncGDataClient.submit(getExecutor(), new Callable<Entry>() {
+			public Entry call() throws Exception {
+				return updateEntry(entry, eTag);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Asynchronously deletes an existing entry.
+	 * @see #deleteEntry(URL, String)
+	 */
+	public Future<Void> deleteEntryAsync(URL editUri, String eTag) {
+		return deleteEntryAsync(editUri, eTag, null);
+	}
+
+	public Future<Void> deleteEntryAsync(final URL editUri, final String eTag,
+			GDataCallback<Void> callback) {
+		return AsyncGDataClient.submit(getExecutor(), new Callable<Void>() {
+			public Void call() throws Exception {
+				deleteEntry(editUri, eTag);
+				return null;
+			}
+		}, callback);
+	}
+
 	protected <E extends Entry> E parseEntry(Class<E> entryClass, InputStream is) 
 	throws ParseException, IOException {
 		GDataParser<E> parser = null;
@@ -329,7 +785,7 @@ public abstract class GDataServiceClient {
 			return parser.parseStandaloneEntry();
 		} finally {
 			if (parser != null) {
-				//parser.close(); //TODO: API Error LocalCloseInputStream
+				parser.close();
 			}
 		}
 	}
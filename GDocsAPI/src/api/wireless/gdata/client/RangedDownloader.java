@@ -0,0 +1,453 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.util.Log;
+import api.wireless.gdata.client.http.RequestContext;
+import api.wireless.gdata.client.http.GDataRequest;
+import api.wireless.gdata.client.http.GDataRequest.RequestType;
+import api.wireless.gdata.util.ContentType;
+import api.wireless.gdata.util.ServiceException;
+import api.wireless.gdata.util.common.base.StreamUtil;
+
+/**
+ * Downloads media, such as document exports, into a file using several
+ * concurrent byte range requests.
+ *
+ * <p>The first request asks for the leading segment of the media only. If the
+ * service answers with a partial (206) response, its <code>Content-Range</code>
+ * header tells the size of the media. The file is then allocated in full and
+ * the remaining bytes are requested in up to {@link #getSegments()} - 1 ranges
+ * at the same time, each written to its position in the file while the
+ * leading segment is being read. If the service ignores the range and sends
+ * the whole media, it is simply streamed into the file.
+ *
+ * <p>Range requests are made without content encoding so that byte offsets
+ * refer to the media itself, and carry an <code>If-Range</code> header so
+ * that a change of the media during the download is detected. Media whose
+ * first response has no strong <code>ETag</code> to send there is downloaded
+ * again with a single request.
+ */
+public class RangedDownloader {
+
+	private static final String TAG = "GDataRangedDownloader";
+
+	/** Default number of ranges fetched at the same time. */
+	public static final int DEFAULT_SEGMENTS = 4;
+
+	/** Default minimum size of a range. */
+	public static final int DEFAULT_MIN_SEGMENT_SIZE = 256 * 1024;
+
+	private static final int HTTP_PARTIAL_CONTENT = 206;
+
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Service service;
+	private final Executor executor;
+	private int segments = DEFAULT_SEGMENTS;
+	private int minSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+
+	/**
+	 * @param service service creating the requests, providing authentication
+	 *        and transport.
+	 * @param executor executor fetching the ranges following the first one.
+	 */
+	public RangedDownloader(Service service, Executor executor) {
+		this.service = service;
+		this.executor = executor;
+	}
+
+	/**
+	 * Sets the maximum number of ranges fetched at the same time. A value of
+	 * one downloads the media with a single request.
+	 */
+	public void setSegments(int segments) {
+		if (segments <= 0) {
+			throw new IllegalArgumentException("Segments must be positive");
+		}
+		this.segments = segments;
+	}
+
+	public int getSegments() {
+		return segments;
+	}
+
+	/**
+	 * Sets the minimum number of bytes fetched by a single range request.
+	 * Media smaller than this size is downloaded with a single request.
+	 */
+	public void setMinSegmentSize(int minSegmentSize) {
+		if (minSegmentSize <= 0) {
+			throw new IllegalArgumentException("Segment size must be positive");
+		}
+		this.minSegmentSize = minSegmentSize;
+	}
+
+	public int getMinSegmentSize() {
+		return minSegmentSize;
+	}
+
+	/**
+	 * Downloads media into a file, replacing its content. The media is
+	 * written to a temporary file that replaces the target once the download
+	 * completed, so the target is left unchanged if the download fails.
+	 *
+	 * @param mediaUrl URL of the media.
+	 * @param contentType content type of the media.
+	 * @param target file receiving the media.
+	 * @return the number of bytes downloaded.
+	 */
+	public long download(URL mediaUrl, ContentType contentType, File target)
+	throws IOException, ServiceException {
+		File temp = StreamUtil.createTempFile(target);
+		boolean completed = false;
+		try {
+			RandomAccessFile file = new RandomAccessFile(temp, "rw");
+			long length;
+			try {
+				length = download(mediaUrl, contentType, file.getChannel());
+			} finally {
+				file.close();
+			}
+			StreamUtil.replaceFile(temp, target);
+			completed = true;
+			return length;
+		} finally {
+			if (!completed) {
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Downloads media into a file channel, replacing its content.
+	 *
+	 * @return the number of bytes downloaded.
+	 */
+	public long download(URL mediaUrl, ContentType contentType,
+			FileChannel target) throws IOException, ServiceException {
+		GDataRequest request = createRequest(mediaUrl, contentType);
+		if (segments > 1) {
+			request.setHeader("Range", range(0, minSegmentSize));
+		}
+		try {
+			request.execute();
+		} catch (ServiceException e) {
+			if (request.getConnection().getResponseCode() == HTTP_RANGE_NOT_SATISFIABLE) {
+				// empty media
+				target.truncate(0);
+				return 0;
+			}
+			throw e;
+		}
+
+		long length = -1;
+		if (request.getResponseCode() == HTTP_PARTIAL_CONTENT) {
+			length = getLength(request.getResponseHeader("Content-Range"));
+		}
+		if (length < 0) {
+			// range not supported, the whole media follows
+			return copyWhole(request, target);
+		}
+		String etag = request.getResponseHeader("ETag");
+		if (length > minSegmentSize && !isStrong(etag)) {
+			// without a validator a change of the media between the ranges
+			// would go unnoticed
+			request.abort();
+			return copyWhole(execute(createRequest(mediaUrl, contentType)), target);
+		}
+
+		target.truncate(length);
+		if (length > 0) {
+			// allocate the file up front, ranges are written out of order
+			target.write(ByteBuffer.allocate(1), length - 1);
+		}
+
+		long firstLength = Math.min(minSegmentSize, length);
+		AtomicBoolean aborted = new AtomicBoolean();
+		List<FutureTask<Long>> tasks = new ArrayList<FutureTask<Long>>();
+		long remaining = length - firstLength;
+		if (remaining > 0) {
+			long count = Math.min(segments - 1,
+					(remaining + minSegmentSize - 1) / minSegmentSize);
+			long size = (remaining + count - 1) / count;
+			for (long offset = firstLength; offset < length; offset += size) {
+				tasks.add(schedule(new Segment(mediaUrl, contentType, target,
+						offset, Math.min(size, length - offset), length, etag,
+						aborted)));
+			}
+		}
+
+		long received = 0;
+		Throwable failure = null;
+		try {
+			received = copy(request.getResponseStream(), target, 0, firstLength,
+					aborted);
+		} catch (IOException e) {
+			failure = e;
+			aborted.set(true);
+		}
+		for (FutureTask<Long> task : tasks) {
+			if (failure != null) {
+				task.cancel(false);
+				continue;
+			}
+			// fetch ranges the executor has not started yet on this thread
+			task.run();
+			try {
+				received += task.get().longValue();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure = new InterruptedIOException("Interrupted downloading "
+						+ mediaUrl);
+				aborted.set(true);
+			} catch (ExecutionException e) {
+				failure = e.getCause();
+				aborted.set(true);
+			}
+		}
+		if (failure != null) {
+			for (FutureTask<Long> task : tasks) {
+				await(task);
+			}
+			if (failure instanceof ServiceException) {
+				throw (ServiceException) failure;
+			} else if (failure instanceof IOException) {
+				throw (IOException) failure;
+			} else if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			}
+			throw (Error) failure;
+		}
+
+		if (received != length) {
+			throw new EOFException("Downloaded " + received + " of " + length
+					+ " bytes of " + mediaUrl);
+		}
+		return length;
+	}
+
+	/**
+	 * Streams a complete response into a file, replacing its content.
+	 *
+	 * @return the number of bytes copied.
+	 */
+	private static long copyWhole(GDataRequest request, FileChannel target)
+	throws IOException {
+		target.truncate(0);
+		target.position(0);
+		InputStream in = request.getResponseStream();
+		try {
+			return StreamUtil.copy(in, target);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static GDataRequest execute(GDataRequest request)
+	throws IOException, ServiceException {
+		request.execute();
+		return request;
+	}
+
+	/**
+	 * Returns <code>true</code> for an entity tag usable in an
+	 * <code>If-Range</code> header, which takes strong tags only.
+	 */
+	private static boolean isStrong(String etag) {
+		return etag != null && !etag.startsWith("W/");
+	}
+
+	/**
+	 * Hands a range to the executor.
+	 */
+	private FutureTask<Long> schedule(Segment segment) {
+		FutureTask<Long> task = new FutureTask<Long>(RequestContext.propagate(segment));
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			// fetched by the calling thread instead
+			Log.d(TAG, "Range request rejected by executor: " + e.getMessage());
+		}
+		return task;
+	}
+
+	private GDataRequest createRequest(URL mediaUrl, ContentType contentType)
+	throws IOException, ServiceException {
+		GDataRequest request = service.createRequest(RequestType.QUERY,
+				mediaUrl, contentType);
+		request.setHeader("Accept-Encoding", "identity");
+		return request;
+	}
+
+	/**
+	 * Waits for a range request to finish so that it no longer writes to the
+	 * file.
+	 */
+	private static void await(FutureTask<Long> task) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				task.get();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} catch (Exception e) {
+				break;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Copies at most <code>length</code> bytes of a response to the given
+	 * position of a file, closing the response. Stops once another range of
+	 * the download failed.
+	 *
+	 * @return the number of bytes copied.
+	 */
+	private static long copy(InputStream in, FileChannel target, long position,
+			long length, AtomicBoolean aborted) throws IOException {
+		// the stream fills a heap array either way, wrapping it saves a copy
+		byte[] bytes = new byte[BUFFER_SIZE];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		long count = 0;
+		try {
+			while (count < length) {
+				if (aborted.get()) {
+					throw new InterruptedIOException("Download aborted");
+				}
+				int n = in.read(bytes, 0, (int) Math.min(bytes.length, length - count));
+				if (n == -1) {
+					break;
+				}
+				buffer.clear();
+				buffer.limit(n);
+				while (buffer.hasRemaining()) {
+					target.write(buffer, position + count + buffer.position());
+				}
+				count += n;
+			}
+		} finally {
+			in.close();
+		}
+		return count;
+	}
+
+	private static String range(long offset, long length) {
+		return "bytes=" + offset + "-" + (offset + length - 1);
+	}
+
+	/**
+	 * Returns the complete length given by a <code>Content-Range</code>
+	 * header, or -1 if it is not known.
+	 */
+	private static long getLength(String contentRange) {
+		// bytes <first>-<last>/<length>
+		if (contentRange == null) {
+			return -1;
+		}
+		int slash = contentRange.lastIndexOf('/');
+		if (slash == -1) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(contentRange.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Byte range of the media, fetched by a request of its own.
+	 */
+	private class Segment implements Callable<Long> {
+		final URL url;
+		final ContentType contentType;
+		final FileChannel target;
+		final long offset;
+		final long length;
+		final long total;
+		final String etag;
+		final AtomicBoolean aborted;
+
+		Segment(URL url, ContentType contentType, FileChannel target,
+				long offset, long length, long total, String etag,
+				AtomicBoolean aborted) {
+			this.url = url;
+			this.contentType = contentType;
+			this.target = target;
+			this.offset = offset;
+			this.length = length;
+			this.total = total;
+			this.etag = etag;
+			this.aborted = aborted;
+		}
+
+		public Long call() throws IOException, ServiceException {
+			if (aborted.get()) {
+				throw new InterruptedIOException("Download aborted");
+			}
+			GDataRequest request = createRequest(url, contentType);
+			request.setHeader("Range", range(offset, length));
+			request.setHeader("If-Range", etag);
+			request.execute();
+			String contentRange = request.getResponseHeader("Content-Range");
+			if (request.getResponseCode() != HTTP_PARTIAL_CONTENT) {
+				request.abort();
+				throw new IOException("Media changed while downloading " + url);
+			}
+			if (contentRange == null
+					|| !contentRange.startsWith("bytes " + offset + "-")) {
+				request.abort();
+				throw new IOException("Unexpected range " + contentRange
+						+ " downloading " + url);
+			}
+			if (getLength(contentRange) != total) {
+				request.abort();
+				throw new IOException("Media changed while downloading " + url);
+			}
+			long count = copy(request.getResponseStream(), target, offset, length,
+					aborted);
+			if (count != length) {
+				throw new EOFException("Range of " + url + " truncated");
+			}
+			return Long.valueOf(count);
+		}
+	}
+}
@@ -0,0 +1,455 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+import api.wireless.gdata.client.http.GDataRequest;
+import api.wireless.gdata.client.http.GDataRequest.RequestType;
+import api.wireless.gdata.parser.ParseException;
+import api.wireless.gdata.serializer.GDataSerializer;
+import api.wireless.gdata.util.ContentType;
+import api.wireless.gdata.util.ServiceException;
+
+/**
+ * Uploads large media using the GData resumable upload protocol.
+ *
+ * <p>An upload session is created by posting the entry metadata to a
+ * <code>create-session</code> URL. The media is then sent to the session URL
+ * in chunks of {@link #getChunkSize()} bytes, each carrying a
+ * <code>Content-Range</code> header. The service confirms every chunk but the
+ * last one with a 308 (Resume Incomplete) response stating the bytes received
+ * so far. If a chunk fails because of a network error or a server error, the
+ * uploader asks the service how much data it has and resends from there, so
+ * only the failed chunk is transferred again.
+ *
+ * <p>The media is read from a {@link FileChannel} so any part of it can be
+ * sent again.
+ */
+public class ResumableUploader {
+
+	private static final String TAG = "GDataResumableUploader";
+
+	/** Chunk sizes must be a multiple of this size. */
+	public static final int CHUNK_GRANULARITY = 256 * 1024;
+
+	/** Default size of the chunks sent to the service. */
+	public static final int DEFAULT_CHUNK_SIZE = 2 * CHUNK_GRANULARITY;
+
+	/** Default number of attempts to resume after a failed chunk. */
+	public static final int DEFAULT_MAX_RETRIES = 5;
+
+	/** Default time (in milliseconds) before the first attempt to resume. */
+	public static final long DEFAULT_RETRY_DELAY = 1000;
+
+	private static final String UPLOAD_CONTENT_TYPE = "X-Upload-Content-Type";
+	private static final String UPLOAD_CONTENT_LENGTH = "X-Upload-Content-Length";
+
+	/**
+	 * Receives progress notifications of an upload.
+	 */
+	public interface ProgressListener {
+
+		/**
+		 * Called whenever the service confirmed receiving more data.
+		 *
+		 * @param bytesUploaded number of bytes the service has received.
+		 * @param totalBytes size of the upload.
+		 */
+		void onProgress(long bytesUploaded, long totalBytes);
+	}
+
+	private final Service service;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+	private long retryDelay = DEFAULT_RETRY_DELAY;
+	private ProgressListener progressListener;
+
+	/**
+	 * @param service service creating the upload requests, providing
+	 *        authentication and transport.
+	 */
+	public ResumableUploader(Service service) {
+		this.service = service;
+	}
+
+	/**
+	 * Sets the number of bytes sent per request. Must be a positive multiple
+	 * of {@link #CHUNK_GRANULARITY}.
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize <= 0 || chunkSize % CHUNK_GRANULARITY != 0) {
+			throw new IllegalArgumentException(
+					"Chunk size must be a positive multiple of " + CHUNK_GRANULARITY);
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Sets how many times in a row the upload is resumed after a failed chunk
+	 * before giving up.
+	 */
+	public void setMaxRetries(int maxRetries) {
+		if (maxRetries < 0) {
+			throw new IllegalArgumentException("Retries cannot be negative");
+		}
+		this.maxRetries = maxRetries;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) to wait before resuming a failed upload.
+	 * The delay doubles with every further failure of the same chunk.
+	 */
+	public void setRetryDelay(long retryDelay) {
+		if (retryDelay < 0) {
+			throw new IllegalArgumentException("Delay cannot be negative");
+		}
+		this.retryDelay = retryDelay;
+	}
+
+	public long getRetryDelay() {
+		return retryDelay;
+	}
+
+	public void setProgressListener(ProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+
+	public ProgressListener getProgressListener() {
+		return progressListener;
+	}
+
+	/**
+	 * Uploads a file.
+	 *
+	 * @see #upload(URL, String, GDataSerializer, FileChannel, String)
+	 */
+	public InputStream upload(URL createSessionUrl, String name, File file,
+			String contentType) throws IOException, ServiceException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return upload(createSessionUrl, name, null, in.getChannel(), contentType);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Creates an upload session and uploads the remaining content of a channel.
+	 *
+	 * @param createSessionUrl the resumable <code>create-session</code> URL of
+	 *        the feed.
+	 * @param name name of the new entry, sent as <code>Slug</code>.
+	 * @param entry metadata of the new entry, may be <code>null</code>.
+	 * @param content channel positioned at the start of the media. Its
+	 *        position is not changed.
+	 * @param contentType content type of the media.
+	 * @return stream of the entry created by the service.
+	 */
+	public InputStream upload(URL createSessionUrl, String name,
+			GDataSerializer entry, FileChannel content, String contentType)
+	throws IOException, ServiceException {
+		long start = content.position();
+		long length = content.size() - start;
+		URL sessionUrl = createSession(createSessionUrl, name, entry, contentType,
+				length);
+		return upload(sessionUrl, content, start, length, contentType, 0);
+	}
+
+	/**
+	 * Starts an upload session. The returned URL may be kept to resume the
+	 * upload later with {@link #resume(URL, FileChannel, String)}.
+	 *
+	 * @return the upload session URL.
+	 */
+	public URL createSession(URL createSessionUrl, String name,
+			GDataSerializer entry, String contentType, long length)
+	throws IOException, ServiceException {
+		GDataRequest request = service.createRequest(RequestType.INSERT,
+				createSessionUrl, ContentType.ATOM_ENTRY);
+		if (name != null) {
+			request.setHeader("Slug", name);
+		}
+		request.setHeader(UPLOAD_CONTENT_TYPE, contentType);
+		request.setHeader(UPLOAD_CONTENT_LENGTH, Long.toString(length));
+		request.setCompressionThreshold(-1);
+
+		try {
+			OutputStream os = request.getRequestStream();
+			if (entry != null) {
+				entry.serialize(os, GDataSerializer.FORMAT_CREATE);
+			}
+		} catch (ParseException e) {
+			request.abort();
+			throw new ServiceException("Unable to serialize entry", e);
+		} catch (IOException e) {
+			request.abort();
+			throw e;
+		}
+		request.execute();
+		String location = request.getResponseHeader("Location");
+		request.end();
+		if (location == null) {
+			throw new ServiceException("No upload session location returned");
+		}
+		return new URL(createSessionUrl, location);
+	}
+
+	/**
+	 * Resumes an interrupted upload, sending only the data the service has not
+	 * received yet.
+	 *
+	 * @param sessionUrl the upload session URL.
+	 * @param content channel positioned at the start of the media.
+	 * @param contentType content type of the media.
+	 * @return stream of the entry created by the service.
+	 */
+	public InputStream resume(URL sessionUrl, FileChannel content,
+			String contentType) throws IOException, ServiceException {
+		long start = content.position();
+		long length = content.size() - start;
+		Progress progress;
+		try {
+			progress = queryProgress(sessionUrl, length, contentType);
+		} catch (ServerErrorException e) {
+			throw e.getServiceException();
+		}
+		if (progress.response != null) {
+			return progress.response;
+		}
+		return upload(sessionUrl, content, start, length, contentType,
+				progress.offset);
+	}
+
+	private InputStream upload(URL sessionUrl, FileChannel content, long start,
+			long length, String contentType, long offset)
+	throws IOException, ServiceException {
+		byte[] buffer = new byte[(int) Math.min(chunkSize, Math.max(length, 1))];
+		int failures = 0;
+		while (true) {
+			try {
+				int len = (int) Math.min(chunkSize, length - offset);
+				read(content, start + offset, buffer, len);
+				Progress progress = sendChunk(sessionUrl, buffer, offset, len,
+						length, contentType);
+				if (progress.response != null) {
+					notifyProgress(length, length);
+					return progress.response;
+				}
+				if (progress.offset > offset) {
+					offset = progress.offset;
+					failures = 0;
+					notifyProgress(offset, length);
+					continue;
+				}
+				failures = retry(failures, new IOException("Upload chunk not accepted"));
+			} catch (IOException e) {
+				failures = retry(failures, e);
+			} catch (ServerErrorException e) {
+				failures = retry(failures, e.getServiceException());
+			}
+
+			// find out what made it to the service before sending more
+			Progress progress = tryQueryProgress(sessionUrl, length, contentType);
+			if (progress != null) {
+				if (progress.response != null) {
+					notifyProgress(length, length);
+					return progress.response;
+				}
+				offset = progress.offset;
+			}
+		}
+	}
+
+	/**
+	 * Asks the service for the bytes it received, returning <code>null</code>
+	 * if that failed. The next chunk sent then restarts at the last confirmed
+	 * offset.
+	 */
+	private Progress tryQueryProgress(URL sessionUrl, long length,
+			String contentType) throws IOException, ServiceException {
+		try {
+			return queryProgress(sessionUrl, length, contentType);
+		} catch (InterruptedIOException e) {
+			throw e;
+		} catch (IOException e) {
+			Log.d(TAG, "Could not query upload status: " + e.getMessage());
+		} catch (ServerErrorException e) {
+			Log.d(TAG, "Could not query upload status: " + e.getMessage());
+		}
+		return null;
+	}
+
+	private int retry(int failures, IOException e) throws IOException {
+		if (failures >= maxRetries) {
+			throw e;
+		}
+		pause(failures, e);
+		return failures + 1;
+	}
+
+	private int retry(int failures, ServiceException e) throws IOException,
+	ServiceException {
+		if (failures >= maxRetries) {
+			throw e;
+		}
+		pause(failures, e);
+		return failures + 1;
+	}
+
+	private void pause(int failures, Exception e) throws IOException {
+		long delay = retryDelay << Math.min(failures, 10);
+		Log.d(TAG, "Upload chunk failed, resuming in " + delay + "ms: "
+				+ e.getMessage());
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted resuming upload");
+		}
+	}
+
+	private Progress sendChunk(URL sessionUrl, byte[] buffer, long offset,
+			int len, long length, String contentType)
+	throws IOException, ServiceException, ServerErrorException {
+		GDataRequest request = service.createRequest(RequestType.UPDATE,
+				sessionUrl, new ContentType(contentType));
+		if (len > 0) {
+			request.setHeader("Content-Range", "bytes " + offset + "-"
+					+ (offset + len - 1) + "/" + length);
+		} else {
+			request.setHeader("Content-Range", "bytes */" + length);
+		}
+		request.setContentLength(len);
+		request.setCompressionThreshold(-1);
+		request.setResumeIncompleteAllowed(true);
+
+		try {
+			OutputStream os = request.getRequestStream();
+			if (len > 0) {
+				os.write(buffer, 0, len);
+			}
+		} catch (IOException e) {
+			request.abort();
+			throw e;
+		}
+		execute(request);
+		return getProgress(request);
+	}
+
+	/**
+	 * Asks the service how much of the upload it received.
+	 */
+	private Progress queryProgress(URL sessionUrl, long length,
+			String contentType)
+	throws IOException, ServiceException, ServerErrorException {
+		return sendChunk(sessionUrl, null, 0, 0, length, contentType);
+	}
+
+	/**
+	 * Executes a request, reporting server errors, that may be resumed after,
+	 * as {@link ServerErrorException}.
+	 */
+	private static void execute(GDataRequest request) throws IOException,
+	ServiceException, ServerErrorException {
+		try {
+			request.execute();
+		} catch (ServiceException e) {
+			if (request.getConnection().getResponseCode() >= 500) {
+				throw new ServerErrorException(e);
+			}
+			throw e;
+		}
+	}
+
+	private static Progress getProgress(GDataRequest request)
+	throws IOException {
+		Progress progress = new Progress();
+		if (request.getResponseCode() != GDataRequest.HTTP_RESUME_INCOMPLETE) {
+			progress.response = request.getResponseStream();
+			return progress;
+		}
+		String range = request.getResponseHeader("Range");
+		request.end();
+		if (range != null) {
+			// bytes=0-<last byte received>
+			int dash = range.lastIndexOf('-');
+			try {
+				progress.offset = Long.parseLong(range.substring(dash + 1).trim()) + 1;
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid upload range: " + range);
+			}
+		}
+		return progress;
+	}
+
+	private static void read(FileChannel content, long position, byte[] buffer,
+			int len) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(buffer, 0, len);
+		while (bb.hasRemaining()) {
+			if (content.read(bb, position + bb.position()) == -1) {
+				throw new EOFException("Upload content truncated");
+			}
+		}
+	}
+
+	private void notifyProgress(long uploaded, long total) {
+		if (progressListener != null) {
+			progressListener.onProgress(uploaded, total);
+		}
+	}
+
+	/**
+	 * Upload status reported by the service.
+	 */
+	private static class Progress {
+		/** Number of bytes received. */
+		long offset;
+		/** Response of the completed upload, if completed. */
+		InputStream response;
+	}
+
+	/**
+	 * Server error response after which the upload can be resumed.
+	 */
+	private static class ServerErrorException extends Exception {
+		ServerErrorException(ServiceException cause) {
+			super(cause.getMessage(), cause);
+		}
+
+		ServiceException getServiceException() {
+			return (ServiceException) getCause();
+		}
+	}
+}
@@ -15,8 +15,7 @@
  ******************************************************************************/
 package api.wireless.gdata.client;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -24,17 +23,30 @@ import java.net.URL;
 import java.util.HashMap;
 
 import android.util.Log;
-import api.wireless.gdata.BufferOutputStream;
 import api.wireless.gdata.client.TokenFactory.ClientLoginAccountType;
 import api.wireless.gdata.client.TokenFactory.UserToken;
+import api.wireless.gdata.client.http.AuthInterceptor;
+import api.wireless.gdata.client.http.CircuitBreakerRegistry;
+import api.wireless.gdata.client.http.CompressionStats;
 import api.wireless.gdata.client.http.GDataRequest;
+import api.wireless.gdata.client.http.HedgingPolicy;
+import api.wireless.gdata.client.http.HttpTransport;
+import api.wireless.gdata.client.http.RateLimiter;
+import api.wireless.gdata.client.http.RequestCoalescer;
+import api.wireless.gdata.client.http.RequestListener;
+import api.wireless.gdata.client.http.RequestPriority;
+import api.wireless.gdata.client.http.RequestScheduler;
+import api.wireless.gdata.client.http.ResponseCache;
+import api.wireless.gdata.client.http.RetryPolicy;
 import api.wireless.gdata.client.http.GDataRequest.GDataRequestFactory;
 import api.wireless.gdata.client.http.GDataRequest.RequestType;
 import api.wireless.gdata.parser.ParseException;
 import api.wireless.gdata.serializer.GDataSerializer;
 import api.wireless.gdata.util.AuthenticationException;
 import api.wireless.gdata.util.ContentType;
+import api.wireless.gdata.util.NotModifiedException;
 import api.wireless.gdata.util.ServiceException;
+import api.wireless.gdata.util.common.base.StreamUtil;
 
 public class ServiceDataClient extends Service implements GDataClient {
 	private static final String TAG = "ServiceDataClient";
@@ -51,6 +63,9 @@ public class ServiceDataClient extends Service implements GDataClient {
 	protected String authHost;
 	protected String protocol;
 	protected String host;
+	protected RequestCoalescer coalescer;
+	protected ResponseCache responseCache;
+	protected HedgingPolicy hedgingPolicy;
 	
 	public ServiceDataClient(String applicationName, String protocol, String host){
 		this(applicationName, protocol, host, new GDataRequestFactory());
@@ -65,8 +80,18 @@ public class ServiceDataClient extends Service implements GDataClient {
 	}	
 
 	private void initRequestFactory(String applicationName) {	
-		requestFactory.setHeader("User-Agent", applicationName + "(gzip)");
+		requestFactory.setHeader("User-Agent", applicationName + " (gzip)");
 		requestFactory.setHeader(GDataProtocol.Header.VERSION, SERVICE_VERSION); //       requestVersion.getVersionString()
+		requestFactory.setAuthInterceptor(new AuthInterceptor(
+				new AuthInterceptor.Authenticator() {
+			public UserToken authenticate(UserToken rejected)
+			throws AuthenticationException {
+				if (authTokenFactory == null) {
+					return null;
+				}
+				return authTokenFactory.refreshAuthToken(rejected);
+			}
+		}));
 	}
 	
 	public boolean getSSL(){
@@ -77,18 +102,195 @@ public class ServiceDataClient extends Service implements GDataClient {
 		requestFactory.setSsl(set);
 	}
 
+	/**
+	 * Sets the transport used for all requests of this client. Clients sharing
+	 * a transport also share its connection pool.
+	 */
+	public void setTransport(HttpTransport transport) {
+		requestFactory.setTransport(transport);
+		if (authTokenFactory != null) {
+			authTokenFactory.setTransport(transport);
+		}
+	}
+
+	public HttpTransport getTransport() {
+		return requestFactory.getTransport();
+	}
+
+	/**
+	 * Enables gzip compression of request data, such as entries and media
+	 * uploads, once it reaches the given size in bytes. A value of -1, the
+	 * default, disables compression.
+	 */
+	public void setRequestCompressionThreshold(int threshold) {
+		requestFactory.setRequestCompressionThreshold(threshold);
+	}
+
+	/**
+	 * Returns the compressed and uncompressed response sizes of the requests
+	 * made by this client.
+	 */
+	public CompressionStats getCompressionStats() {
+		return requestFactory.getCompressionStats();
+	}
+
+	/**
+	 * Sets the policy deciding when failed idempotent requests are sent again.
+	 * A value of <code>null</code> disables retries.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		requestFactory.setRetryPolicy(retryPolicy);
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return requestFactory.getRetryPolicy();
+	}
+
+	/**
+	 * Returns the per-host circuit breakers of this client, e.g. to monitor
+	 * their state, or <code>null</code> if disabled.
+	 */
+	public CircuitBreakerRegistry getCircuitBreakerRegistry() {
+		return requestFactory.getCircuitBreakerRegistry();
+	}
+
+	/**
+	 * Sets the per-host circuit breakers of this client. A value of
+	 * <code>null</code> disables them.
+	 */
+	public void setCircuitBreakerRegistry(CircuitBreakerRegistry registry) {
+		requestFactory.setCircuitBreakerRegistry(registry);
+		if (authTokenFactory != null) {
+			authTokenFactory.getRequestFactory().setCircuitBreakerRegistry(registry);
+		}
+	}
+
+	/**
+	 * Sets the rate limiter the requests of this client take their permits
+	 * from, counted against the service and account of the client. Clients
+	 * sharing a quota should share the limiter. A value of <code>null</code>
+	 * disables rate limiting.
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		requestFactory.setRateLimiter(rateLimiter);
+	}
+
+	public RateLimiter getRateLimiter() {
+		return requestFactory.getRateLimiter();
+	}
+
+	/**
+	 * Sets the scheduler the requests of this client wait for a slot from.
+	 * Clients competing for the same connections should share it. A value of
+	 * <code>null</code> lets requests connect right away.
+	 */
+	public void setRequestScheduler(RequestScheduler scheduler) {
+		requestFactory.setRequestScheduler(scheduler);
+		if (authTokenFactory != null) {
+			authTokenFactory.getRequestFactory().setRequestScheduler(scheduler);
+		}
+	}
+
+	public RequestScheduler getRequestScheduler() {
+		return requestFactory.getRequestScheduler();
+	}
+
+	/**
+	 * Adds a listener told about the lifecycle of the requests of this
+	 * client, such as a
+	 * {@link api.wireless.gdata.client.http.RequestMetrics}.
+	 */
+	public void addRequestListener(RequestListener listener) {
+		requestFactory.addRequestListener(listener);
+		if (authTokenFactory != null) {
+			authTokenFactory.getRequestFactory().addRequestListener(listener);
+		}
+	}
+
+	public void removeRequestListener(RequestListener listener) {
+		requestFactory.removeRequestListener(listener);
+		if (authTokenFactory != null) {
+			authTokenFactory.getRequestFactory().removeRequestListener(listener);
+		}
+	}
+
+	/**
+	 * Sets the priority of the requests of this client, unless the calling
+	 * thread sets one with {@link RequestPriority#setCurrent(RequestPriority)}.
+	 */
+	public void setPriority(RequestPriority priority) {
+		requestFactory.setPriority(priority);
+	}
+
+	public RequestPriority getPriority() {
+		return requestFactory.getPriority();
+	}
+
+	/**
+	 * Sets the interceptor renewing the auth token of this client when the
+	 * service rejects it. By default the client logs in again with the
+	 * credentials given to {@link #setUserCredentials(String, String)} and
+	 * sends the rejected request once more. A value of <code>null</code> lets
+	 * requests fail with an {@link AuthenticationException} instead.
+	 */
+	public void setAuthInterceptor(AuthInterceptor authInterceptor) {
+		requestFactory.setAuthInterceptor(authInterceptor);
+	}
+
+	public AuthInterceptor getAuthInterceptor() {
+		return requestFactory.getAuthInterceptor();
+	}
+
+	/**
+	 * Sets the coalescer letting concurrent identical feed and entry requests
+	 * of this client share one fetch. Responses are then read into memory
+	 * before they are handed out. Clients of the same account may share it.
+	 * A value of <code>null</code>, the default, sends every request on its
+	 * own.
+	 */
+	public void setRequestCoalescer(RequestCoalescer coalescer) {
+		this.coalescer = coalescer;
+	}
+
+	public RequestCoalescer getRequestCoalescer() {
+		return coalescer;
+	}
+
+	/**
+	 * Sets the cache feed and entry responses are kept in. Cached responses
+	 * are revalidated with the service and served again if unchanged. A value
+	 * of <code>null</code>, the default, disables caching.
+	 */
+	public void setResponseCache(ResponseCache responseCache) {
+		this.responseCache = responseCache;
+	}
+
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+
+	/**
+	 * Sets the policy sending a second copy of slow feed and entry queries.
+	 * A value of <code>null</code>, the default, disables hedging.
+	 */
+	public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+		this.hedgingPolicy = hedgingPolicy;
+	}
+
+	public HedgingPolicy getHedgingPolicy() {
+		return hedgingPolicy;
+	}
+
 	public void close() {
-		//Log.i(TAG, "Closing everything! Need to implement if needed.");
+		requestFactory.getTransport().shutdown();
 	}
 
 	public InputStream createEntry(URL feedUrl, GDataSerializer entry) 
 		throws ServiceException, IOException {
 
 		InputStream entryStream = null;
-		GDataRequest request = null;
+		GDataRequest request = createInsertRequest(feedUrl);
 		try {
-			request = createInsertRequest(feedUrl);						
-			
 			OutputStream os = request.getRequestStream();
 			entry.serialize(os, GDataSerializer.FORMAT_CREATE);
 			os.flush();
@@ -96,7 +298,12 @@ public class ServiceDataClient extends Service implements GDataClient {
 			request.execute();
 			entryStream = request.getResponseStream();					
 		} catch (ParseException e) {
+			request.abort();
 			throw new ServiceException("Unable to serialize entry", e);
+		} catch (IOException e) {
+			// the connection is held from the first byte of the entry on
+			request.abort();
+			throw e;
 		}
 		return entryStream;
 	}
@@ -111,23 +318,117 @@ public class ServiceDataClient extends Service implements GDataClient {
 	}
 
 	/**
-	 * Generates feed stream by request
+	 * Generates feed stream by request. Concurrent requests for the same feed
+	 * and ETag share one fetch if a request coalescer is set.
 	 * @param feedUrl Request URL
 	 * @param etag Entry identifier  
 	 * @throws ServiceException 
+	 * @see #setRequestCoalescer(RequestCoalescer)
 	 */
-	public InputStream getFeedAsStream(URL feedUrl, String etag)
+	public InputStream getFeedAsStream(final URL feedUrl, final String etag)
 	throws  IOException, ServiceException {
+		RequestCoalescer coalescer = this.coalescer;
+		if (coalescer == null) {
+			return fetchFeedAsStream(feedUrl, etag);
+		}
+		String key = getRequestKey(feedUrl) + "\n" + etag;
+		return coalescer.fetch(key, new RequestCoalescer.Fetcher() {
+			public InputStream fetch() throws IOException, ServiceException {
+				return fetchFeedAsStream(feedUrl, etag);
+			}
+		});
+	}
+
+	private InputStream fetchFeedAsStream(URL feedUrl, String etag)
+	throws  IOException, ServiceException {
+		ResponseCache cache = this.responseCache;
+		if (cache != null && etag == null) {
+			return fetchCachedFeedAsStream(cache, feedUrl);
+		}
+
+		GDataRequest request = executeFeedRequest(feedUrl, etag, null);
+		return request.getResponseStream();
+	}
+
+	/**
+	 * Fetches a feed, revalidating the cached response, if any, and serving
+	 * it if the service reports it unchanged. Responses carrying an ETag or a
+	 * modification date are cached.
+	 */
+	private InputStream fetchCachedFeedAsStream(ResponseCache cache, URL feedUrl)
+	throws IOException, ServiceException {
+		String key = getRequestKey(feedUrl);
+		ResponseCache.CachedResponse cached = cache.get(key);
 
-		InputStream feedStream = null;
 		GDataRequest request;
+		try {
+			if (cached != null) {
+				request = executeFeedRequest(feedUrl, cached.getEtag(),
+						cached.getLastModified());
+			} else {
+				request = executeFeedRequest(feedUrl, null, null);
+			}
+		} catch (NotModifiedException e) {
+			if (cached == null) {
+				throw e;
+			}
+			return cached.getStream();
+		}
 
-		request = createFeedRequest(feedUrl);
-		request.setEtag(etag);
+		String responseEtag = request.getResponseHeader(GDataProtocol.Header.ETAG);
+		String lastModified = request.getResponseHeader(
+				GDataProtocol.Header.LAST_MODIFIED);
+		if (responseEtag == null && lastModified == null) {
+			cache.remove(key);
+			return request.getResponseStream();
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		InputStream is = request.getResponseStream();
+		try {
+			StreamUtil.copy(is, body);
+		} finally {
+			is.close();
+		}
+		ResponseCache.CachedResponse response = new ResponseCache.CachedResponse(
+				responseEtag, lastModified, body.toByteArray());
+		cache.put(key, response);
+		return response.getStream();
+	}
+
+	/**
+	 * Executes a query for a feed, conditional on the given ETag and
+	 * modification date if not <code>null</code>. The query is hedged if a
+	 * hedging policy is set.
+	 */
+	private GDataRequest executeFeedRequest(final URL feedUrl, final String etag,
+			final String lastModified) throws IOException, ServiceException {
+		HedgingPolicy.RequestSource source = new HedgingPolicy.RequestSource() {
+			public GDataRequest newRequest() throws IOException, ServiceException {
+				GDataRequest request = createFeedRequest(feedUrl);
+				request.setEtag(etag);
+				if (lastModified != null) {
+					request.setHeader(GDataProtocol.Header.IF_MODIFIED_SINCE, lastModified);
+				}
+				return request;
+			}
+		};
+		HedgingPolicy hedging = this.hedgingPolicy;
+		if (hedging != null) {
+			return hedging.execute(source);
+		}
+		GDataRequest request = source.newRequest();
 		request.execute();
-		feedStream = request.getResponseStream();			
+		return request;
+	}
 
-		return feedStream;
+	/**
+	 * Returns a key identifying the response to a feed request of this
+	 * client, made of the URL, the SSL setting and the credentials.
+	 */
+	private String getRequestKey(URL feedUrl) {
+		UserToken authToken = requestFactory.getAuthToken();
+		return feedUrl + "\n" + getSSL() + "\n"
+			+ ((authToken != null) ? authToken.getAuthorizationHeader() : null);
 	}
 
 	public InputStream getMediaEntryAsStream(URL mediaEntryUrl, String etag, ContentType ct)
@@ -177,8 +478,8 @@ public class ServiceDataClient extends Service implements GDataClient {
 		}		
 
 		InputStream entryStream = null;
+		GDataRequest request = createUpdateRequest(editUri);
 		try {
-			GDataRequest request = createUpdateRequest(editUri);
 			request.setEtag(etag);	
 			
 			OutputStream os = request.getRequestStream();
@@ -187,7 +488,11 @@ public class ServiceDataClient extends Service implements GDataClient {
 			request.execute();
 			entryStream = request.getResponseStream();			
 		} catch (ParseException e) {
+			request.abort();
 			Log.e(TAG, e.getMessage(), e);
+		} catch (IOException e) {
+			request.abort();
+			throw e;
 		}
 		return entryStream;
 	}
@@ -202,29 +507,46 @@ public class ServiceDataClient extends Service implements GDataClient {
 		request = createRequest(RequestType.UPDATE,  editUri, contentType);
 		request.setEtag(eTag);			
 
-		// Copy input stream 
-		BufferedInputStream bis = new BufferedInputStream(mediaEntryInputStream);
-		BufferedOutputStream bos = new BufferedOutputStream(request.getRequestStream());
-
-		int byte_;
-		while ((byte_ = bis.read ()) != -1)
-			bos.write (byte_);
-		bos.flush();
-
-		request.execute();
-		entryStream = request.getResponseStream();
+		// Stream the media to the service without buffering it completely
+		request.setChunkedStreaming(true);
+		try {
+			StreamUtil.copy(mediaEntryInputStream, request.getRequestStream());
 
+			request.execute();
+			entryStream = request.getResponseStream();
+		} catch (IOException e) {
+			request.abort();
+			throw e;
+		}
 		
 		return entryStream;
 	}
 	
 	public void createTokenFactory(String serviceName) {
 		authTokenFactory = new TokenFactory(serviceName, applicationName);
+		configureTokenFactory();
+		updateRateLimitKey();
 	}
 	
 	public void createTokenFactory(String serviceName, ClientLoginAccountType accountType) {
 		authTokenFactory = new TokenFactory(serviceName, applicationName);
 		authTokenFactory.setAccountType(accountType);
+		configureTokenFactory();
+		updateRateLimitKey();
+	}
+
+	/**
+	 * Lets login requests share the transport, circuit breakers, scheduler
+	 * and listeners of the requests of this client.
+	 */
+	private void configureTokenFactory() {
+		GDataRequestFactory loginFactory = authTokenFactory.getRequestFactory();
+		loginFactory.setTransport(requestFactory.getTransport());
+		loginFactory.setCircuitBreakerRegistry(requestFactory.getCircuitBreakerRegistry());
+		loginFactory.setRequestScheduler(requestFactory.getRequestScheduler());
+		for (RequestListener listener : requestFactory.getRequestListeners()) {
+			loginFactory.addRequestListener(listener);
+		}
 	}
 	
 	
@@ -235,21 +557,30 @@ public class ServiceDataClient extends Service implements GDataClient {
 	public void setUserCredentials(String user, String pass) throws AuthenticationException {
 		authTokenFactory.setUserCredentials(user, pass);		
 		requestFactory.setAuthToken(authTokenFactory.getAuthToken());
+		updateRateLimitKey();
 	}
 	
 	public void setUserCredentials(String user, String pass, ClientLoginAccountType accountType) throws AuthenticationException {
 		authTokenFactory.setUserCredentials(user, pass, accountType);		
 		requestFactory.setAuthToken(authTokenFactory.getAuthToken());
+		updateRateLimitKey();
 	}
 	
 	public void setUserToken(String token){
 		authTokenFactory.setAuthToken(token);		
 		requestFactory.setAuthToken(authTokenFactory.getAuthToken());
+		updateRateLimitKey();
 	}
 	
 	public void setUserToken(HashMap<String,String> tokens){
 		authTokenFactory.setAuthTokens(tokens);		
 		requestFactory.setAuthToken(authTokenFactory.getAuthToken());
+		updateRateLimitKey();
+	}
+	
+	private void updateRateLimitKey() {
+		requestFactory.setRateLimitKey(authTokenFactory.getServiceName(),
+				authTokenFactory.getUserName());
 	}
 
 }
@@ -0,0 +1,629 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.util.Log;
+import api.wireless.gdata.client.TokenFactory.ClientLoginAccountType;
+import api.wireless.gdata.client.TokenFactory.UserToken;
+import api.wireless.gdata.util.AuthenticationException;
+import api.wireless.gdata.util.common.base.StreamUtil;
+
+/**
+ * Keeps the ClientLogin tokens of the accounts used by the process, so that
+ * clients authenticating the same account to the same service share one
+ * login instead of posting the credentials again.
+ *
+ * <p>Tokens are kept per account, service and account type. A cached token
+ * is only handed out to callers presenting the password it was obtained
+ * with. Concurrent logins for the same credentials are collapsed into a
+ * single request whose outcome every caller receives.
+ *
+ * <p>ClientLogin does not tell how long a token stays valid. Tokens are
+ * considered valid for {@link #getTokenLifetime()} and are obtained again
+ * in the background {@link #getRefreshMargin()} before they expire, so that
+ * clients created later do not have to wait for a login. Tokens already
+ * handed out are not updated; a request failing with an expired token has
+ * to authenticate again.
+ *
+ * <p>If a directory and a key are given with
+ * {@link #setStore(File, SecretKey)}, tokens are also written to disk,
+ * encrypted with AES, and survive restarts of the process. Passwords are
+ * never written, only a salted PBKDF2 hash used to check them.
+ *
+ * <p>One cache, {@link #getDefault()}, is shared by all token factories of
+ * the process unless they are given a cache of their own. A cache is
+ * thread-safe.
+ */
+public class TokenCache {
+
+	private static final String TAG = "GDataTokenCache";
+
+	/** Default time (in milliseconds) a token is considered valid. */
+	public static final long DEFAULT_TOKEN_LIFETIME = 24 * 60 * 60 * 1000L;
+
+	/** Default time (in milliseconds) before expiry a token is refreshed. */
+	public static final long DEFAULT_REFRESH_MARGIN = 60 * 60 * 1000L;
+
+	private static final String SUFFIX = ".token";
+	private static final int FORMAT_VERSION = 2;
+	private static final String CIPHER = "AES/CBC/PKCS5Padding";
+	private static final int IV_LENGTH = 16;
+	private static final int SALT_LENGTH = 16;
+	private static final int HASH_ITERATIONS = 4096;
+
+	private static final TokenCache DEFAULT = new TokenCache();
+
+	/**
+	 * Performs the actual login for a cache miss or a refresh.
+	 */
+	public interface Login {
+
+		/**
+		 * Returns the tokens of the ClientLogin response, as returned by
+		 * {@link TokenFactory#getAuthTokens}.
+		 */
+		HashMap<String, String> login() throws AuthenticationException;
+	}
+
+	private static class Entry {
+
+		final String key;
+		final byte[] salt;
+		final byte[] verifier;
+		final HashMap<String, String> tokens;
+		final long obtainedAt;
+
+		/** Not written to disk, set again when credentials are presented. */
+		Login login;
+		String password;
+		ScheduledFuture<?> refresh;
+
+		Entry(String key, byte[] salt, byte[] verifier,
+				HashMap<String, String> tokens, long obtainedAt) {
+			this.key = key;
+			this.salt = salt;
+			this.verifier = verifier;
+			this.tokens = tokens;
+			this.obtainedAt = obtainedAt;
+		}
+
+		/**
+		 * Returns <code>true</code> if the tokens were obtained with the
+		 * given password. Only the first check after reading the entry from
+		 * disk hashes the password.
+		 */
+		synchronized boolean checkPassword(String password) {
+			if (this.password != null) {
+				return this.password.equals(password);
+			}
+			if (MessageDigest.isEqual(verifier, hash(password, salt))) {
+				this.password = password;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private final Map<String, FutureTask<Entry>> logins =
+		new HashMap<String, FutureTask<Entry>>();
+
+	private volatile long tokenLifetime = DEFAULT_TOKEN_LIFETIME;
+	private volatile long refreshMargin = DEFAULT_REFRESH_MARGIN;
+	private volatile File directory;
+	private volatile SecretKey secretKey;
+
+	private ScheduledExecutorService refresher;
+	private long hits;
+	private long loginCount;
+
+	/**
+	 * Returns the cache shared by the whole process.
+	 */
+	public static TokenCache getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns the tokens of an account, logging in if none are cached for the
+	 * given credentials.
+	 *
+	 * @param username the name of the user (an email address).
+	 * @param password the password of the user.
+	 * @param serviceName the service the tokens are for.
+	 * @param accountType the account type logged in with.
+	 * @param login performs the login if needed.
+	 * @return a copy of the tokens.
+	 * @throws AuthenticationException if the login failed.
+	 */
+	public HashMap<String, String> getTokens(String username, String password,
+			String serviceName, ClientLoginAccountType accountType, Login login)
+	throws AuthenticationException {
+		String key = getKey(username, serviceName, accountType);
+		Entry entry = getEntry(key);
+		if (entry != null && entry.checkPassword(password)) {
+			synchronized (this) {
+				hits++;
+				if (entry.login == null) {
+					entry.login = login;
+					scheduleRefresh(entry);
+				}
+			}
+			return new HashMap<String, String>(entry.tokens);
+		}
+		return new HashMap<String, String>(login(key, password, login).tokens);
+	}
+
+	/**
+	 * Forgets the tokens of an account.
+	 */
+	public void invalidate(String username, String serviceName,
+			ClientLoginAccountType accountType) {
+		invalidate(username, serviceName, accountType, null);
+	}
+
+	/**
+	 * Forgets the tokens of an account after the service rejected them.
+	 * Tokens obtained since, e.g. by another client the same token was
+	 * rejected for, are kept.
+	 *
+	 * @param rejected the <code>Auth</code> token the service rejected, or
+	 *        <code>null</code> to forget the tokens in any case.
+	 */
+	public void invalidate(String username, String serviceName,
+			ClientLoginAccountType accountType, String rejected) {
+		String key = getKey(username, serviceName, accountType);
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				if (rejected != null && !rejected.equals(entry.tokens.get(UserToken.AUTH))) {
+					return;
+				}
+				entries.remove(key);
+				cancelRefresh(entry);
+			}
+		}
+		File dir = directory;
+		if (dir != null) {
+			getFile(dir, key).delete();
+		}
+	}
+
+	/**
+	 * Forgets all tokens, including those on disk.
+	 */
+	public void clear() {
+		synchronized (this) {
+			for (Entry entry : entries.values()) {
+				cancelRefresh(entry);
+			}
+			entries.clear();
+		}
+		File dir = directory;
+		if (dir != null) {
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					if (file.getName().endsWith(SUFFIX)) {
+						file.delete();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes the cache keep tokens on disk as well.
+	 *
+	 * @param directory directory the tokens are written to, created if
+	 *        needed, or <code>null</code> to keep tokens in memory only.
+	 * @param key the AES key the tokens are encrypted with.
+	 */
+	public void setStore(File directory, SecretKey key) {
+		if (directory != null) {
+			if (key == null) {
+				throw new IllegalArgumentException("Tokens cannot be stored unencrypted");
+			}
+			directory.mkdirs();
+		}
+		this.secretKey = key;
+		this.directory = directory;
+	}
+
+	public File getStoreDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) a token is considered valid after it
+	 * was obtained.
+	 */
+	public void setTokenLifetime(long lifetime) {
+		if (lifetime <= 0) {
+			throw new IllegalArgumentException("Lifetime must be positive");
+		}
+		tokenLifetime = lifetime;
+	}
+
+	public long getTokenLifetime() {
+		return tokenLifetime;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) before expiry at which a token is
+	 * obtained again in the background, 0 to disable refreshing.
+	 */
+	public void setRefreshMargin(long margin) {
+		if (margin < 0) {
+			throw new IllegalArgumentException("Margin cannot be negative");
+		}
+		refreshMargin = margin;
+	}
+
+	public long getRefreshMargin() {
+		return refreshMargin;
+	}
+
+	/**
+	 * Returns the number of requests answered with cached tokens.
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of logins performed, including refreshes.
+	 */
+	public synchronized long getLoginCount() {
+		return loginCount;
+	}
+
+	/**
+	 * Returns the valid entry for a key from memory or disk, or
+	 * <code>null</code>.
+	 */
+	private Entry getEntry(String key) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+		}
+		if (entry == null) {
+			File dir = directory;
+			SecretKey secret = secretKey;
+			if (dir == null || secret == null) {
+				return null;
+			}
+			entry = read(getFile(dir, key), secret, key);
+			if (entry == null) {
+				return null;
+			}
+			synchronized (this) {
+				if (!entries.containsKey(key)) {
+					entries.put(key, entry);
+				}
+			}
+		}
+		if (System.currentTimeMillis() - entry.obtainedAt >= tokenLifetime) {
+			synchronized (this) {
+				if (entries.get(key) == entry) {
+					entries.remove(key);
+					cancelRefresh(entry);
+				}
+			}
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Logs in, or waits for a login with the same credentials already under
+	 * way.
+	 */
+	private Entry login(final String key, final String password, final Login login)
+	throws AuthenticationException {
+		// kept in memory only
+		String flightKey = key + "\n" + password;
+		FutureTask<Entry> task;
+		boolean leader = false;
+		synchronized (this) {
+			task = logins.get(flightKey);
+			if (task == null) {
+				task = new FutureTask<Entry>(new Callable<Entry>() {
+					public Entry call() throws Exception {
+						HashMap<String, String> tokens = login.login();
+						byte[] salt = new byte[SALT_LENGTH];
+						new SecureRandom().nextBytes(salt);
+						Entry entry = new Entry(key, salt, hash(password, salt),
+								new HashMap<String, String>(tokens),
+								System.currentTimeMillis());
+						entry.login = login;
+						entry.password = password;
+						store(entry);
+						return entry;
+					}
+				});
+				logins.put(flightKey, task);
+				leader = true;
+			}
+		}
+		if (leader) {
+			try {
+				task.run();
+			} finally {
+				synchronized (this) {
+					logins.remove(flightKey);
+				}
+			}
+		}
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AuthenticationException("Interrupted while logging in");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof AuthenticationException) {
+				throw (AuthenticationException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			AuthenticationException ae = new AuthenticationException("Login failed");
+			ae.initCause(cause);
+			throw ae;
+		}
+	}
+
+	private void store(Entry entry) {
+		synchronized (this) {
+			loginCount++;
+			Entry previous = entries.put(entry.key, entry);
+			if (previous != null) {
+				cancelRefresh(previous);
+			}
+			scheduleRefresh(entry);
+		}
+		File dir = directory;
+		SecretKey secret = secretKey;
+		if (dir != null && secret != null) {
+			write(getFile(dir, entry.key), secret, entry);
+		}
+	}
+
+	private void scheduleRefresh(final Entry entry) {
+		long margin = refreshMargin;
+		if (margin == 0 || entry.login == null || entry.refresh != null) {
+			return;
+		}
+		if (refresher == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+					new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "GData-token-refresh");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			refresher = executor;
+		}
+		long delay = entry.obtainedAt + tokenLifetime - margin
+				- System.currentTimeMillis();
+		entry.refresh = refresher.schedule(new Runnable() {
+			public void run() {
+				refresh(entry);
+			}
+		}, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+	}
+
+	private void refresh(Entry entry) {
+		Login login;
+		String password;
+		synchronized (this) {
+			if (entries.get(entry.key) != entry) {
+				return;
+			}
+			login = entry.login;
+			password = entry.password;
+		}
+		try {
+			login(entry.key, password, login);
+		} catch (AuthenticationException e) {
+			// the current token stays in use until it expires
+			Log.w(TAG, "Could not refresh token: " + e.getMessage());
+		} catch (RuntimeException e) {
+			Log.w(TAG, "Could not refresh token", e);
+		}
+	}
+
+	private static void cancelRefresh(Entry entry) {
+		if (entry.refresh != null) {
+			entry.refresh.cancel(false);
+			entry.refresh = null;
+		}
+	}
+
+	private Entry read(File file, SecretKey secret, String key) {
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(file));
+			try {
+				byte[] iv = new byte[IV_LENGTH];
+				new DataInputStream(in).readFully(iv);
+				Cipher cipher = Cipher.getInstance(CIPHER);
+				cipher.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(iv));
+				DataInputStream data = new DataInputStream(
+						new CipherInputStream(in, cipher));
+				if (data.readInt() != FORMAT_VERSION || !key.equals(data.readUTF())) {
+					throw new IOException("Unknown format or wrong key");
+				}
+				byte[] salt = new byte[SALT_LENGTH];
+				data.readFully(salt);
+				byte[] verifier = new byte[data.readUnsignedByte()];
+				data.readFully(verifier);
+				long obtainedAt = data.readLong();
+				int count = data.readInt();
+				HashMap<String, String> tokens = new HashMap<String, String>();
+				for (int i = 0; i < count; i++) {
+					tokens.put(data.readUTF(), data.readUTF());
+				}
+				return new Entry(key, salt, verifier, tokens, obtainedAt);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Discarding unreadable " + file + ": " + e.getMessage());
+		} catch (GeneralSecurityException e) {
+			Log.w(TAG, "Discarding unreadable " + file + ": " + e.getMessage());
+		}
+		file.delete();
+		return null;
+	}
+
+	private void write(File file, SecretKey secret, Entry entry) {
+		File temp = null;
+		try {
+			byte[] iv = new byte[IV_LENGTH];
+			new SecureRandom().nextBytes(iv);
+			Cipher cipher = Cipher.getInstance(CIPHER);
+			cipher.init(Cipher.ENCRYPT_MODE, secret, new IvParameterSpec(iv));
+
+			temp = StreamUtil.createTempFile(file);
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+			try {
+				out.write(iv);
+				DataOutputStream data = new DataOutputStream(
+						new CipherOutputStream(out, cipher));
+				data.writeInt(FORMAT_VERSION);
+				data.writeUTF(entry.key);
+				data.write(entry.salt);
+				data.writeByte(entry.verifier.length);
+				data.write(entry.verifier);
+				data.writeLong(entry.obtainedAt);
+				data.writeInt(entry.tokens.size());
+				for (Map.Entry<String, String> token : entry.tokens.entrySet()) {
+					data.writeUTF(token.getKey());
+					data.writeUTF(token.getValue());
+				}
+				data.close();
+			} finally {
+				out.close();
+			}
+			StreamUtil.replaceFile(temp, file);
+		} catch (IOException e) {
+			Log.w(TAG, "Could not write " + file + ": " + e.getMessage());
+			if (temp != null) {
+				temp.delete();
+			}
+		} catch (GeneralSecurityException e) {
+			Log.w(TAG, "Could not encrypt token: " + e.getMessage());
+		}
+	}
+
+	private static String getKey(String username, String serviceName,
+			ClientLoginAccountType accountType) {
+		return accountType.getValue() + "/" + serviceName + "/"
+				+ username.toLowerCase();
+	}
+
+	private static File getFile(File directory, String key) {
+		return new File(directory, digest(key) + SUFFIX);
+	}
+
+	/**
+	 * Hashes a password with PBKDF2 (RFC 2898) using HMAC-SHA1, so that the
+	 * check value written to disk is costly to test guesses against. Not all
+	 * platforms offer PBKDF2 itself, so it is built on the HMAC.
+	 */
+	static byte[] hash(String password, byte[] salt) {
+		try {
+			byte[] secret = password.getBytes("UTF-8");
+			if (secret.length == 0) {
+				// the HMAC pads keys with zeros, so this is the same key
+				secret = new byte[1];
+			}
+			Mac mac = Mac.getInstance("HmacSHA1");
+			mac.init(new SecretKeySpec(secret, "HmacSHA1"));
+			// a single block of output, numbered 1
+			mac.update(salt);
+			byte[] u = mac.doFinal(new byte[] { 0, 0, 0, 1 });
+			byte[] result = u.clone();
+			for (int i = 1; i < HASH_ITERATIONS; i++) {
+				u = mac.doFinal(u);
+				for (int j = 0; j < result.length; j++) {
+					result[j] ^= u[j];
+				}
+			}
+			return result;
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String digest(String value) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(value.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+				hex.append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -15,35 +15,24 @@
  ******************************************************************************/
 package api.wireless.gdata.client;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.io.Reader;
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.StatusLine;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicHeader;
-import org.apache.http.message.BasicNameValuePair;
-
-
 import api.wireless.gdata.client.ClientAuthenticationExceptions.SessionExpiredException;
+import api.wireless.gdata.client.http.GDataRequest;
+import api.wireless.gdata.client.http.HttpTransport;
+import api.wireless.gdata.client.http.GDataRequest.GDataRequestFactory;
+import api.wireless.gdata.client.http.GDataRequest.RequestType;
 import api.wireless.gdata.util.AuthenticationException;
+import api.wireless.gdata.util.ContentType;
+import api.wireless.gdata.util.ServiceException;
 import api.wireless.gdata.util.common.base.CharEscapers;
-import api.wireless.gdata.util.common.base.StringUtil;
 
 
 public class TokenFactory {	
@@ -71,11 +60,24 @@ public class TokenFactory {
 	
 	private ClientLoginAccountType accountType;
 
+	// Cache the tokens are shared through, null to always log in.
+	private TokenCache tokenCache = TokenCache.getDefault();
+
+	// Creates the login requests, without auth token.
+	private final GDataRequestFactory requestFactory = new GDataRequestFactory();
+
+	// Timeouts of login requests, -1 if not set.
+	private int connectTimeout = -1;
+	private int readTimeout = -1;
+
 	/**
 	 * The path name of the Google login handler.
 	 */
 	public static final String GOOGLE_LOGIN_PATH = "/accounts/ClientLogin";
 
+	private static final ContentType FORM_URLENCODED =
+		new ContentType("application/x-www-form-urlencoded");
+
 
 	/**
 	 * The valid values for the "accountType" parameter in ClientLogin.	 
@@ -158,11 +160,49 @@ public class TokenFactory {
 		this.loginProtocol = "https";
 		this.domainName = "www.google.com";
 		this.accountType = ClientLoginAccountType.HOSTED_OR_GOOGLE;
+		// following a redirect would post the password again, possibly elsewhere
+		requestFactory.setMaxRedirects(0);
 	}
 	
-	protected BasicHeader[] headersToArray(ArrayList<BasicHeader> hdrs) {
-		BasicHeader[] h = new BasicHeader[hdrs.size()];		
-		return hdrs.toArray(h);
+	/**
+	 * Sets the transport login requests are sent through, usually the one of
+	 * the data requests so that they share its connection pool.
+	 */
+	public void setTransport(HttpTransport transport) {
+		requestFactory.setTransport(transport);
+	}
+
+	public HttpTransport getTransport() {
+		return requestFactory.getTransport();
+	}
+
+	/**
+	 * Returns the factory creating the login requests, e.g. to change their
+	 * retry policy or circuit breakers, or to read their compression
+	 * statistics.
+	 */
+	public GDataRequestFactory getRequestFactory() {
+		return requestFactory;
+	}
+
+	/**
+	 * Sets the connect timeout (in milliseconds) of login requests.
+	 */
+	public void setConnectTimeout(int timeout) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("Timeout cannot be negative");
+		}
+		connectTimeout = timeout;
+	}
+
+	/**
+	 * Sets the read timeout (in milliseconds) of login requests.
+	 */
+	public void setReadTimeout(int timeout) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("Timeout cannot be negative");
+		}
+		readTimeout = timeout;
 	}
 	
 	/**
@@ -177,8 +217,7 @@ public class TokenFactory {
 		this.username = username;
 		this.password = password;
 		this.accountType = ClientLoginAccountType.HOSTED_OR_GOOGLE;
-		HashMap<String,String> tokenPairs = getAuthTokens(username, password, serviceName, applicationName, accountType);				
-		setAuthTokens(tokenPairs);
+		setAuthTokens(login());
 	}
 	
 	public void setUserCredentials(String username,
@@ -188,8 +227,46 @@ public class TokenFactory {
 		this.username = username;
 		this.password = password;
 		this.accountType = accountType;		
-		HashMap<String,String> tokenPairs = getAuthTokens(username, password, serviceName, applicationName, accountType);
-		setAuthTokens(tokenPairs);
+		setAuthTokens(login());
+	}
+
+	/**
+	 * Sets the cache tokens are obtained through, so that the factories of a
+	 * process log in to an account only once. Defaults to
+	 * {@link TokenCache#getDefault()}.
+	 *
+	 * @param cache the cache, or <code>null</code> to log in every time
+	 *        credentials are set.
+	 */
+	public void setTokenCache(TokenCache cache) {
+		this.tokenCache = cache;
+	}
+
+	public TokenCache getTokenCache() {
+		return tokenCache;
+	}
+
+	/**
+	 * Returns the tokens for the current credentials, from the cache if
+	 * possible.
+	 */
+	private HashMap<String, String> login() throws AuthenticationException {
+		// refreshes must log in to this account even if the credentials change
+		final String username = this.username;
+		final String password = this.password;
+		final String serviceName = this.serviceName;
+		final String applicationName = this.applicationName;
+		final ClientLoginAccountType accountType = this.accountType;
+		if (tokenCache == null) {
+			return getAuthTokens(username, password, serviceName, applicationName, accountType);
+		}
+		return tokenCache.getTokens(username, password, serviceName, accountType,
+				new TokenCache.Login() {
+			public HashMap<String, String> login() throws AuthenticationException {
+				return getAuthTokens(username, password, serviceName,
+						applicationName, accountType);
+			}
+		});
 	}
 
 	/**
@@ -214,29 +291,15 @@ public class TokenFactory {
 			ClientLoginAccountType accountType)
 	throws AuthenticationException {
 
-		String postOutput = "";
+		String postOutput;
 		try {
-			ArrayList<BasicNameValuePair> params = new ArrayList<BasicNameValuePair>();						
-			params.add(new BasicNameValuePair("Email", username));
-			params.add(new BasicNameValuePair("Passwd", password));
-			params.add(new BasicNameValuePair("source", applicationName));
-			params.add(new BasicNameValuePair("service", serviceName));
-			params.add(new BasicNameValuePair("accountType", accountType.getValue()));
-			
-			UrlEncodedFormEntity entity = new UrlEncodedFormEntity(params);
-			ArrayList<BasicHeader> hdrs = new ArrayList<BasicHeader>();
-			hdrs.add(new BasicHeader("Content-type", "application/x-www-form-urlencoded"));
-			
-			Map<String, String> mParams = new HashMap<String, String>();
+			Map<String, String> mParams = new LinkedHashMap<String, String>();
 			mParams.put("Email", username);
 			mParams.put("Passwd", password);
 			mParams.put("source", applicationName);
 			mParams.put("service", serviceName);
 			mParams.put("accountType", accountType.getValue());
-			
-			
-			//URI url = new URI(loginProtocol + "://" + domainName + GOOGLE_LOGIN_PATH);
-			//postOutput = makePostRequest(url, headersToArray(hdrs), entity);			
+
 			URL url = new URL(loginProtocol + "://" + domainName + GOOGLE_LOGIN_PATH);
 			postOutput = makePostRequest(url, mParams);
 		} catch (IOException e) {
@@ -244,14 +307,9 @@ public class TokenFactory {
 				new AuthenticationException("Error connecting with login URI");
 			ae.initCause(e);
 			throw ae;
-		}/* catch (URISyntaxException e) {
-			AuthenticationException ae =
-				new AuthenticationException("Wrong authentication URI");
-			ae.initCause(e);
-			throw ae;
-		}*/
+		}
 		
-		HashMap<String,String> tokenPairs = StringUtil.string2Map(postOutput.trim(), "\n", "=", true);
+		HashMap<String,String> tokenPairs = parseResponse(postOutput);
 		String token = tokenPairs.get("Auth");
 		if (token == null) {
 			throw getAuthException(tokenPairs);
@@ -271,6 +329,10 @@ public class TokenFactory {
 		return tokenPairs.get("Auth");
 	}
 	
+	public String getServiceName(){
+		return serviceName;
+	}
+	
 	public void setAccountType(ClientLoginAccountType at){
 		this.accountType = at;
 	}
@@ -296,42 +358,6 @@ public class TokenFactory {
 		return res;
 	}
 	
-	protected String makePostRequest(URI url, Header[] headers, HttpEntity entity)
-	throws IOException {
-
-		// Initialize request
-		HttpPost method = new HttpPost(url);   
-		method.setHeaders(headers);					
-		method.setEntity(entity);
-		
-		DefaultHttpClient client = new DefaultHttpClient();			
-		HttpResponse res = client.execute(method);
-
-		StringBuilder outputBuilder = new StringBuilder(); 
-		InputStream inputStream = null;
-		try {
-			StatusLine sl = res.getStatusLine();
-			if (sl.getStatusCode() == HttpStatus.SC_OK) {
-				inputStream = res.getEntity().getContent();
-			}
-
-			String string;
-			if (inputStream != null) {
-				InputStreamReader reader = new InputStreamReader(inputStream);
-				BufferedReader buffer = new BufferedReader(reader);				
-				while ((string = buffer.readLine()) != null) {
-					outputBuilder.append(string + "\n");
-				}
-			}												
-		} finally {
-			if (inputStream != null) {
-				inputStream.close();
-			}
-		}
-
-		return outputBuilder.toString();		
-	}	
-	
 	/**
 	 * Makes a HTTP POST request to the provided {@code url} given the
 	 * provided {@code parameters}.  It returns the output from the POST
@@ -346,65 +372,81 @@ public class TokenFactory {
 	public String makePostRequest(URL url, Map<String, String> parameters)
 		throws IOException {
 
-		// Open connection		
-		HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-
-		// Set properties of the connection
-		urlConnection.setDoInput(true);
-		urlConnection.setDoOutput(true);
-		urlConnection.setUseCaches(false);
-		urlConnection.setRequestMethod("POST");
-		urlConnection.setRequestProperty("Content-Type","application/x-www-form-urlencoded");
-
 		// Form the POST parameters
-		StringBuilder content = new StringBuilder();
-		boolean first = true;
+		StringBuilder content = new StringBuilder(256);
 		for (Map.Entry<String, String> parameter : parameters.entrySet()) {
-			if (!first) {
-				content.append("&");
+			if (content.length() > 0) {
+				content.append('&');
 			}
-			content.append(
-					CharEscapers.uriEscaper().escape(parameter.getKey())).append("=");
+			content.append(CharEscapers.uriEscaper().escape(parameter.getKey()));
+			content.append('=');
 			content.append(CharEscapers.uriEscaper().escape(parameter.getValue()));
-			first = false;
 		}
+		byte[] body = content.toString().getBytes("UTF-8");
 
-		OutputStream outputStream = null;
+		GDataRequest request = requestFactory.getRequest(RequestType.INSERT, url,
+				FORM_URLENCODED);
+		if (connectTimeout >= 0) {
+			request.setConnectTimeout(connectTimeout);
+		}
+		if (readTimeout >= 0) {
+			request.setReadTimeout(readTimeout);
+		}
+		request.setContentLength(body.length);
 		try {
-			outputStream = urlConnection.getOutputStream();
-			outputStream.write(content.toString().getBytes("utf-8"));
-			outputStream.flush();
-		} finally {
-			if (outputStream != null) {
-				outputStream.close();
+			request.getRequestStream().write(body);
+		} catch (IOException e) {
+			request.abort();
+			throw e;
+		}
+		try {
+			request.execute();
+		} catch (ServiceException e) {
+			// error responses carry the reason, e.g. Error=BadAuthentication
+			if (e.getResponseBody() != null) {
+				return e.getResponseBody();
 			}
+			IOException ioe = new IOException("Login request failed: " + e.getMessage());
+			ioe.initCause(e);
+			throw ioe;
 		}
 
 		// Retrieve the output
-		InputStream inputStream = null;
-		StringBuilder outputBuilder = new StringBuilder();
+		InputStream inputStream = request.getResponseStream();
 		try {
-			int responseCode = urlConnection.getResponseCode();
-			if (responseCode == HttpURLConnection.HTTP_OK) {
-				inputStream = urlConnection.getInputStream();
-			} else {
-				inputStream = urlConnection.getErrorStream();
+			Reader reader = new InputStreamReader(inputStream, "UTF-8");
+			StringBuilder outputBuilder = new StringBuilder(512);
+			char[] buf = new char[512];
+			int len;
+			while ((len = reader.read(buf)) != -1) {
+				outputBuilder.append(buf, 0, len);
 			}
+			return outputBuilder.toString();
+		} finally {
+			inputStream.close();
+		}
+	}
 
-			String string;
-			if (inputStream != null) {
-				BufferedReader reader =
-					new BufferedReader(new InputStreamReader(inputStream));
-				while (null != (string = reader.readLine())) {
-					outputBuilder.append(string).append('\n');
-				}
+	/**
+	 * Parses the <code>name=value</code> lines of a ClientLogin response.
+	 */
+	static HashMap<String, String> parseResponse(String response) {
+		HashMap<String, String> pairs = new HashMap<String, String>(8);
+		int length = response.length();
+		int start = 0;
+		while (start < length) {
+			int end = response.indexOf('\n', start);
+			if (end < 0) {
+				end = length;
 			}
-		} finally {
-			if (inputStream != null) {
-				inputStream.close();
+			int separator = response.indexOf('=', start);
+			if (separator > start && separator < end) {
+				pairs.put(response.substring(start, separator).trim(),
+						response.substring(separator + 1, end).trim());
 			}
+			start = end + 1;
 		}
-		return outputBuilder.toString();
+		return pairs;
 	}
 	
 	protected AuthenticationException getAuthException(Map<String, String> pairs) {
@@ -442,11 +484,30 @@ public class TokenFactory {
 			SessionExpiredException sessionExpired)
 	throws SessionExpiredException, AuthenticationException {
 
-		if (username != null && password != null) {
-			String token = getAuthToken(username, password, serviceName, applicationName, accountType);
-			setAuthToken(token);
-		} else {
+		if (refreshAuthToken(authToken) == null) {
 			throw sessionExpired;
 		}
-	}	
+	}
+
+	/**
+	 * Obtains a new token after the service rejected the current one, logging
+	 * in again unless the shared cache already holds a newer token.
+	 *
+	 * @param rejected the token the service rejected.
+	 * @return the new token, or <code>null</code> if the factory was not
+	 *         given credentials.
+	 * @throws AuthenticationException if authentication failed.
+	 */
+	public UserToken refreshAuthToken(UserToken rejected)
+	throws AuthenticationException {
+		if (username == null || password == null) {
+			return null;
+		}
+		if (tokenCache != null) {
+			tokenCache.invalidate(username, serviceName, accountType,
+					(rejected != null) ? rejected.getValue() : null);
+		}
+		setAuthTokens(login());
+		return authToken;
+	}
 }
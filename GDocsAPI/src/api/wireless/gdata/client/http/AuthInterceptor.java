@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import api.wireless.gdata.client.TokenFactory.UserToken;
+import api.wireless.gdata.util.AuthenticationException;
+
+/**
+ * Holds the auth token of the requests of a
+ * {@link GDataRequest.GDataRequestFactory} and obtains a new one when the
+ * service rejects it.
+ *
+ * <p>A request answered with 401 (Unauthorized) asks the interceptor for a
+ * new token and is sent once more with it. Requests rejected concurrently
+ * with the same token cause a single refresh: the first one obtains the new
+ * token, the others wait for it and are sent again with it.
+ */
+public class AuthInterceptor {
+
+	/**
+	 * Obtains a new token, e.g. by logging in again.
+	 */
+	public interface Authenticator {
+
+		/**
+		 * Returns a token replacing one the service rejected, or
+		 * <code>null</code> if none can be obtained, e.g. because no
+		 * credentials are known.
+		 *
+		 * @throws AuthenticationException if logging in failed.
+		 */
+		UserToken authenticate(UserToken rejected) throws AuthenticationException;
+	}
+
+	private final Authenticator authenticator;
+	private volatile UserToken token;
+	private long refreshCount;
+
+	public AuthInterceptor(Authenticator authenticator) {
+		if (authenticator == null) {
+			throw new NullPointerException("Must supply authenticator");
+		}
+		this.authenticator = authenticator;
+	}
+
+	/**
+	 * Returns the token new requests are sent with.
+	 */
+	public UserToken getToken() {
+		return token;
+	}
+
+	public void setToken(UserToken token) {
+		this.token = token;
+	}
+
+	/**
+	 * Returns the token to send a rejected request with again. Obtains a new
+	 * one if the rejected token is still the current one, otherwise returns
+	 * the token another request obtained meanwhile.
+	 *
+	 * @param rejected the token the service rejected.
+	 * @return the new token, or <code>null</code> if none can be obtained.
+	 * @throws AuthenticationException if logging in failed.
+	 */
+	public synchronized UserToken refresh(UserToken rejected)
+	throws AuthenticationException {
+		if (token != rejected) {
+			return token;
+		}
+		UserToken fresh = authenticator.authenticate(rejected);
+		if (fresh != null) {
+			token = fresh;
+			refreshCount++;
+		}
+		return fresh;
+	}
+
+	/**
+	 * Returns the number of new tokens obtained.
+	 */
+	public synchronized long getRefreshCount() {
+		return refreshCount;
+	}
+}
@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import android.util.Log;
+
+/**
+ * Tracks the outcome of the recent requests to a single host and stops
+ * requests to it while it is failing.
+ *
+ * <p>While <em>closed</em>, the breaker records whether each of the last
+ * {@link CircuitBreakerRegistry#getWindowSize()} requests failed and whether
+ * it was slow. Once enough requests have been recorded and the failure rate
+ * or the slow request rate reaches its threshold, the breaker
+ * <em>opens</em>: requests to the host fail immediately with a
+ * {@link CircuitOpenException} instead of waiting for connect and read
+ * timeouts. After the open duration the breaker is <em>half-open</em> and
+ * lets a few trial requests through. If all of them succeed quickly it
+ * closes again, otherwise it opens for another period.
+ *
+ * <p>Breakers are created and configured by a {@link CircuitBreakerRegistry}.
+ */
+public class CircuitBreaker {
+
+	private static final String TAG = "GDataCircuitBreaker";
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private static final byte FAILED = 1;
+	private static final byte SLOW = 2;
+
+	private final CircuitBreakerRegistry registry;
+	private final String host;
+
+	private State state = State.CLOSED;
+	private long openedAt;
+
+	/** Outcomes of the last requests, a ring buffer. */
+	private byte[] outcomes;
+	private int next;
+	private int recorded;
+	private int failures;
+	private int slowCalls;
+
+	/** Trial requests let through and completed while half-open. */
+	private int trialsStarted;
+	private int trialsSucceeded;
+
+	CircuitBreaker(CircuitBreakerRegistry registry, String host) {
+		this.registry = registry;
+		this.host = host;
+		this.outcomes = new byte[registry.getWindowSize()];
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public synchronized State getState() {
+		updateState(System.currentTimeMillis());
+		return state;
+	}
+
+	/**
+	 * Returns the percentage of failed requests among the recorded ones.
+	 */
+	public synchronized float getFailureRate() {
+		return (recorded == 0) ? 0 : failures * 100f / recorded;
+	}
+
+	/**
+	 * Returns the percentage of slow requests among the recorded ones.
+	 */
+	public synchronized float getSlowCallRate() {
+		return (recorded == 0) ? 0 : slowCalls * 100f / recorded;
+	}
+
+	/**
+	 * Returns the number of request outcomes currently recorded.
+	 */
+	public synchronized int getRecordedCalls() {
+		return recorded;
+	}
+
+	/**
+	 * Asks for permission to send a request to the host. Every permitted
+	 * request must be reported with {@link #onSuccess(long)},
+	 * {@link #onError(long)} or {@link #onIgnored()}.
+	 *
+	 * @throws CircuitOpenException if the breaker is open.
+	 */
+	public void acquirePermission() throws CircuitOpenException {
+		if (!tryAcquirePermission()) {
+			throw new CircuitOpenException(host);
+		}
+	}
+
+	synchronized boolean tryAcquirePermission() {
+		updateState(System.currentTimeMillis());
+		switch (state) {
+		case CLOSED:
+			return true;
+		case HALF_OPEN:
+			if (trialsStarted < registry.getHalfOpenCalls()) {
+				trialsStarted++;
+				return true;
+			}
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Reports a request the host answered.
+	 *
+	 * @param duration time (in milliseconds) until the response arrived.
+	 */
+	public void onSuccess(long duration) {
+		record(false, duration);
+	}
+
+	/**
+	 * Reports a request that failed because of the host, e.g. a network error
+	 * or a server error response.
+	 *
+	 * @param duration time (in milliseconds) until the request failed.
+	 */
+	public void onError(long duration) {
+		record(true, duration);
+	}
+
+	/**
+	 * Reports a permitted request that was not completed for reasons
+	 * unrelated to the host.
+	 */
+	public synchronized void onIgnored() {
+		if (state == State.HALF_OPEN && trialsStarted > trialsSucceeded) {
+			trialsStarted--;
+		}
+	}
+
+	/**
+	 * Closes the breaker and forgets all recorded outcomes.
+	 */
+	public synchronized void reset() {
+		transitionTo(State.CLOSED, System.currentTimeMillis());
+	}
+
+	private synchronized void record(boolean failed, long duration) {
+		long now = System.currentTimeMillis();
+		boolean slow = duration >= registry.getSlowCallDuration();
+		switch (state) {
+		case HALF_OPEN:
+			if (failed || slow) {
+				transitionTo(State.OPEN, now);
+			} else if (++trialsSucceeded >= registry.getHalfOpenCalls()) {
+				transitionTo(State.CLOSED, now);
+			}
+			break;
+		case CLOSED:
+			add((byte) ((failed ? FAILED : 0) | (slow ? SLOW : 0)));
+			if (recorded >= registry.getMinimumCalls()
+					&& (getFailureRate() >= registry.getFailureRateThreshold()
+					|| getSlowCallRate() >= registry.getSlowCallRateThreshold())) {
+				transitionTo(State.OPEN, now);
+			}
+			break;
+		default:
+			// outcome of a request permitted before the breaker opened
+			break;
+		}
+	}
+
+	private void add(byte outcome) {
+		if (recorded == outcomes.length) {
+			byte evicted = outcomes[next];
+			if ((evicted & FAILED) != 0) {
+				failures--;
+			}
+			if ((evicted & SLOW) != 0) {
+				slowCalls--;
+			}
+		} else {
+			recorded++;
+		}
+		outcomes[next] = outcome;
+		next = (next + 1) % outcomes.length;
+		if ((outcome & FAILED) != 0) {
+			failures++;
+		}
+		if ((outcome & SLOW) != 0) {
+			slowCalls++;
+		}
+	}
+
+	private void updateState(long now) {
+		if (state == State.OPEN && now - openedAt >= registry.getOpenDuration()) {
+			transitionTo(State.HALF_OPEN, now);
+		}
+	}
+
+	private void transitionTo(State newState, long now) {
+		if (newState != state) {
+			Log.i(TAG, host + ": " + state + " -> " + newState + " (failures "
+					+ getFailureRate() + "%, slow " + getSlowCallRate() + "%)");
+		}
+		state = newState;
+		openedAt = now;
+		trialsStarted = 0;
+		trialsSucceeded = 0;
+		if (newState == State.CLOSED) {
+			outcomes = new byte[registry.getWindowSize()];
+			next = 0;
+			recorded = 0;
+			failures = 0;
+			slowCalls = 0;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return host + ": " + state + " (" + recorded + " calls, failures "
+				+ getFailureRate() + "%, slow " + getSlowCallRate() + "%)";
+	}
+}
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds the {@link CircuitBreaker}s of the hosts contacted by the requests of
+ * a {@link GDataRequest.GDataRequestFactory}, creating them on first use,
+ * together with the settings they share.
+ */
+public class CircuitBreakerRegistry {
+
+	/** Default percentage of failed requests opening a breaker. */
+	public static final float DEFAULT_FAILURE_RATE_THRESHOLD = 50;
+
+	/** Default percentage of slow requests opening a breaker. */
+	public static final float DEFAULT_SLOW_CALL_RATE_THRESHOLD = 80;
+
+	/** Default time (in milliseconds) from which a request counts as slow. */
+	public static final long DEFAULT_SLOW_CALL_DURATION = 10 * 1000L;
+
+	/** Default number of recent requests the rates are computed from. */
+	public static final int DEFAULT_WINDOW_SIZE = 20;
+
+	/** Default number of requests recorded before a breaker may open. */
+	public static final int DEFAULT_MINIMUM_CALLS = 10;
+
+	/** Default time (in milliseconds) a breaker stays open. */
+	public static final long DEFAULT_OPEN_DURATION = 30 * 1000L;
+
+	/** Default number of trial requests let through while half-open. */
+	public static final int DEFAULT_HALF_OPEN_CALLS = 3;
+
+	private final Map<String, CircuitBreaker> breakers =
+		new HashMap<String, CircuitBreaker>();
+
+	private volatile float failureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+	private volatile float slowCallRateThreshold = DEFAULT_SLOW_CALL_RATE_THRESHOLD;
+	private volatile long slowCallDuration = DEFAULT_SLOW_CALL_DURATION;
+	private volatile int windowSize = DEFAULT_WINDOW_SIZE;
+	private volatile int minimumCalls = DEFAULT_MINIMUM_CALLS;
+	private volatile long openDuration = DEFAULT_OPEN_DURATION;
+	private volatile int halfOpenCalls = DEFAULT_HALF_OPEN_CALLS;
+
+	/**
+	 * Returns the breaker of the host addressed by a URL.
+	 */
+	public CircuitBreaker getCircuitBreaker(URL url) {
+		String host = url.getHost();
+		if (url.getPort() != -1) {
+			host += ":" + url.getPort();
+		}
+		return getCircuitBreaker(host);
+	}
+
+	/**
+	 * Returns the breaker of a host, e.g. <code>docs.google.com</code>.
+	 */
+	public synchronized CircuitBreaker getCircuitBreaker(String host) {
+		CircuitBreaker breaker = breakers.get(host);
+		if (breaker == null) {
+			breaker = new CircuitBreaker(this, host);
+			breakers.put(host, breaker);
+		}
+		return breaker;
+	}
+
+	/**
+	 * Returns the breakers of all hosts contacted so far.
+	 */
+	public synchronized Collection<CircuitBreaker> getCircuitBreakers() {
+		return new ArrayList<CircuitBreaker>(breakers.values());
+	}
+
+	/**
+	 * Sets the percentage of failed requests at which a breaker opens.
+	 */
+	public void setFailureRateThreshold(float percent) {
+		checkPercentage(percent);
+		failureRateThreshold = percent;
+	}
+
+	public float getFailureRateThreshold() {
+		return failureRateThreshold;
+	}
+
+	/**
+	 * Sets the percentage of slow requests at which a breaker opens.
+	 */
+	public void setSlowCallRateThreshold(float percent) {
+		checkPercentage(percent);
+		slowCallRateThreshold = percent;
+	}
+
+	public float getSlowCallRateThreshold() {
+		return slowCallRateThreshold;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) from which a request counts as slow.
+	 */
+	public void setSlowCallDuration(long duration) {
+		if (duration <= 0) {
+			throw new IllegalArgumentException("Duration must be positive");
+		}
+		slowCallDuration = duration;
+	}
+
+	public long getSlowCallDuration() {
+		return slowCallDuration;
+	}
+
+	/**
+	 * Sets the number of recent requests the rates are computed from. Takes
+	 * effect once a breaker closes.
+	 */
+	public void setWindowSize(int size) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("Window size must be positive");
+		}
+		windowSize = size;
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Sets the number of requests that must be recorded before a breaker may
+	 * open.
+	 */
+	public void setMinimumCalls(int calls) {
+		if (calls <= 0) {
+			throw new IllegalArgumentException("Calls must be positive");
+		}
+		minimumCalls = calls;
+	}
+
+	public int getMinimumCalls() {
+		return minimumCalls;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) a breaker stays open before letting
+	 * trial requests through.
+	 */
+	public void setOpenDuration(long duration) {
+		if (duration < 0) {
+			throw new IllegalArgumentException("Duration cannot be negative");
+		}
+		openDuration = duration;
+	}
+
+	public long getOpenDuration() {
+		return openDuration;
+	}
+
+	/**
+	 * Sets the number of trial requests that must succeed for a half-open
+	 * breaker to close.
+	 */
+	public void setHalfOpenCalls(int calls) {
+		if (calls <= 0) {
+			throw new IllegalArgumentException("Calls must be positive");
+		}
+		halfOpenCalls = calls;
+	}
+
+	public int getHalfOpenCalls() {
+		return halfOpenCalls;
+	}
+
+	private static void checkPercentage(float percent) {
+		if (percent <= 0 || percent > 100) {
+			throw new IllegalArgumentException("Percentage must be in (0, 100]");
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import api.wireless.gdata.client.http.GDataRequest.RequestType;
+
+/**
+ * Counts the response bytes transferred over the wire and the bytes
+ * delivered to the client after decompression, per {@link RequestType}.
+ * Uncompressed responses count the same number of bytes on both sides.
+ * Only response data read by the client is counted.
+ */
+public class CompressionStats {
+
+	private final AtomicLong[] compressedBytes = newCounters();
+	private final AtomicLong[] uncompressedBytes = newCounters();
+	private final AtomicLong[] responses = newCounters();
+	private final AtomicLong[] compressedResponses = newCounters();
+
+	private static AtomicLong[] newCounters() {
+		AtomicLong[] counters = new AtomicLong[RequestType.values().length];
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = new AtomicLong();
+		}
+		return counters;
+	}
+
+	/**
+	 * Records a response.
+	 *
+	 * @param type type of the request.
+	 * @param compressed number of bytes read from the connection.
+	 * @param uncompressed number of bytes delivered to the client.
+	 * @param gzip <code>true</code> if the response was gzip encoded.
+	 */
+	public void record(RequestType type, long compressed, long uncompressed,
+			boolean gzip) {
+		int i = type.ordinal();
+		compressedBytes[i].addAndGet(compressed);
+		uncompressedBytes[i].addAndGet(uncompressed);
+		responses[i].incrementAndGet();
+		if (gzip) {
+			compressedResponses[i].incrementAndGet();
+		}
+	}
+
+	public long getCompressedBytes(RequestType type) {
+		return compressedBytes[type.ordinal()].get();
+	}
+
+	public long getUncompressedBytes(RequestType type) {
+		return uncompressedBytes[type.ordinal()].get();
+	}
+
+	public long getResponseCount(RequestType type) {
+		return responses[type.ordinal()].get();
+	}
+
+	/**
+	 * Returns the number of responses that were gzip encoded.
+	 */
+	public long getCompressedResponseCount(RequestType type) {
+		return compressedResponses[type.ordinal()].get();
+	}
+
+	/**
+	 * Returns the ratio of uncompressed to compressed bytes, or 1 if nothing
+	 * has been recorded yet.
+	 */
+	public double getCompressionRatio(RequestType type) {
+		long compressed = getCompressedBytes(type);
+		if (compressed == 0) {
+			return 1.0;
+		}
+		return (double) getUncompressedBytes(type) / compressed;
+	}
+
+	public void reset() {
+		for (int i = 0; i < responses.length; i++) {
+			compressedBytes[i].set(0);
+			uncompressedBytes[i].set(0);
+			responses[i].set(0);
+			compressedResponses[i].set(0);
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (RequestType type : RequestType.values()) {
+			if (getResponseCount(type) == 0) {
+				continue;
+			}
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(type).append(": ").append(getCompressedBytes(type))
+				.append('/').append(getUncompressedBytes(type)).append(" bytes");
+		}
+		return sb.toString();
+	}
+}
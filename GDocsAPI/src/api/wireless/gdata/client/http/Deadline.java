@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Limits the total time of an operation made of several requests, such as
+ * fetching all pages of a feed, and lets it be cancelled.
+ *
+ * <p>A deadline is attached to the thread running the operation. Requests
+ * created while it is attached derive their connect and read timeouts from
+ * the remaining time, do not wait or retry beyond it, and stop reading their
+ * response once it expired. Cancelling the deadline aborts the requests in
+ * flight. Either way the operation fails with a
+ * {@link DeadlineExceededException}.
+ *
+ * <pre>
+ * Deadline deadline = new Deadline(2000);
+ * Deadline previous = deadline.attach();
+ * try {
+ *     feed = client.getFeed(DocumentEntry.class, url, 500);
+ * } finally {
+ *     deadline.detach(previous);
+ * }
+ * </pre>
+ *
+ * <p>Work handed to other threads keeps the deadline of the thread that
+ * created it when wrapped with {@link #propagate(Callable)} or
+ * {@link RequestContext#propagate(Callable)}. A deadline created while
+ * another one is attached never outlives it.
+ */
+public class Deadline {
+
+	private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline>();
+
+	private final long expiresAt;
+	private final Deadline parent;
+	private volatile boolean cancelled;
+	private final List<GDataRequest> requests = new ArrayList<GDataRequest>();
+
+	/**
+	 * Creates a deadline expiring after the given time, or with the deadline
+	 * attached to the current thread if that one expires first.
+	 *
+	 * @param timeout time (in milliseconds) from now.
+	 */
+	public Deadline(long timeout) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("Timeout cannot be negative");
+		}
+		this.expiresAt = System.currentTimeMillis() + timeout;
+		this.parent = current();
+	}
+
+	/**
+	 * Returns the deadline attached to the current thread, or
+	 * <code>null</code>.
+	 */
+	public static Deadline current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Attaches this deadline to the current thread.
+	 *
+	 * @return the deadline attached before, to be passed to
+	 *         {@link #detach(Deadline)}.
+	 */
+	public Deadline attach() {
+		Deadline previous = CURRENT.get();
+		CURRENT.set(this);
+		return previous;
+	}
+
+	/**
+	 * Detaches this deadline from the current thread, attaching the given one
+	 * again.
+	 */
+	public void detach(Deadline previous) {
+		if (previous == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(previous);
+		}
+	}
+
+	/**
+	 * Returns the time (in milliseconds) left, zero once expired or
+	 * cancelled.
+	 */
+	public long getRemaining() {
+		if (isCancelled()) {
+			return 0;
+		}
+		long remaining = Math.max(0, expiresAt - System.currentTimeMillis());
+		return (parent != null) ? Math.min(remaining, parent.getRemaining()) : remaining;
+	}
+
+	public boolean isExpired() {
+		return getRemaining() == 0;
+	}
+
+	/**
+	 * Cancels the operation, aborting the requests in flight.
+	 */
+	public void cancel() {
+		GDataRequest[] inFlight;
+		synchronized (requests) {
+			cancelled = true;
+			inFlight = requests.toArray(new GDataRequest[requests.size()]);
+		}
+		for (GDataRequest request : inFlight) {
+			request.abort();
+		}
+	}
+
+	public boolean isCancelled() {
+		return cancelled || (parent != null && parent.isCancelled());
+	}
+
+	/**
+	 * Throws if this deadline expired or has been cancelled.
+	 */
+	public void check() throws DeadlineExceededException {
+		if (isCancelled()) {
+			throw new DeadlineExceededException("Operation cancelled");
+		}
+		if (isExpired()) {
+			throw new DeadlineExceededException("Deadline exceeded");
+		}
+	}
+
+	/**
+	 * Throws if the deadline attached to the current thread, if any, expired
+	 * or has been cancelled.
+	 */
+	public static void checkCurrent() throws DeadlineExceededException {
+		Deadline deadline = current();
+		if (deadline != null) {
+			deadline.check();
+		}
+	}
+
+	/**
+	 * Returns a timeout (in milliseconds) for a single network operation,
+	 * the remaining time unless the configured timeout is shorter.
+	 *
+	 * @param timeout the configured timeout, zero or less if unlimited.
+	 * @throws DeadlineExceededException if no time is left.
+	 */
+	public int getTimeout(int timeout) throws DeadlineExceededException {
+		check();
+		long remaining = Math.min(getRemaining(), Integer.MAX_VALUE);
+		// zero would mean no timeout at all
+		int limit = (int) Math.max(remaining, 1);
+		return (timeout > 0) ? Math.min(timeout, limit) : limit;
+	}
+
+	/**
+	 * Wraps a task so that it runs with the deadline of the current thread,
+	 * if any, attached.
+	 */
+	public static <T> Callable<T> propagate(final Callable<T> task) {
+		final Deadline deadline = current();
+		if (deadline == null) {
+			return task;
+		}
+		return new Callable<T>() {
+			public T call() throws Exception {
+				Deadline previous = deadline.attach();
+				try {
+					return task.call();
+				} finally {
+					deadline.detach(previous);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Registers a request aborted if this deadline or one it is bound by is
+	 * cancelled.
+	 */
+	void register(GDataRequest request) {
+		boolean abort;
+		synchronized (requests) {
+			requests.add(request);
+			abort = cancelled;
+		}
+		if (parent != null) {
+			parent.register(request);
+		}
+		if (abort) {
+			request.abort();
+		}
+	}
+
+	void unregister(GDataRequest request) {
+		synchronized (requests) {
+			requests.remove(request);
+		}
+		if (parent != null) {
+			parent.unregister(request);
+		}
+	}
+}
@@ -16,16 +16,24 @@
 package api.wireless.gdata.client.http;
 
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPOutputStream;
 
 import android.util.Log;
 import api.wireless.gdata.DateTime;
@@ -42,15 +50,19 @@ import api.wireless.gdata.util.NotAcceptableException;
 import api.wireless.gdata.util.NotImplementedException;
 import api.wireless.gdata.util.NotModifiedException;
 import api.wireless.gdata.util.PreconditionFailedException;
+import api.wireless.gdata.util.RedirectRequiredException;
 import api.wireless.gdata.util.ResourceNotFoundException;
 import api.wireless.gdata.util.ServiceException;
 import api.wireless.gdata.util.ServiceForbiddenException;
+import api.wireless.gdata.util.ServiceUnavailableException;
 import api.wireless.gdata.util.VersionConflictException;
 import api.wireless.gdata.util.common.base.StreamUtil;
 
 
 public class GDataRequest {
 
+	private static final String TAG = "GDataRequest";
+
 	public enum RequestType {
 		QUERY, INSERT, UPDATE, DELETE, BATCH
 	}
@@ -64,15 +76,74 @@ public class GDataRequest {
 		protected Map<String, String> privateHeaderMap
 		= new LinkedHashMap<String, String>();
 		protected boolean useSsl = false;
+		protected HttpTransport transport = new PooledHttpTransport();
+		protected int maxRedirects = DEFAULT_MAX_REDIRECTS;
+		protected CompressionStats compressionStats = new CompressionStats();
+		protected int compressionThreshold = -1;
+		protected RetryPolicy retryPolicy = new RetryPolicy();
+		protected CircuitBreakerRegistry circuitBreakers = new CircuitBreakerRegistry();
+		protected RateLimiter rateLimiter;
+		protected String serviceName;
+		protected String account;
+		protected RequestScheduler scheduler;
+		protected RequestPriority priority = RequestPriority.NORMAL;
+		protected AuthInterceptor authInterceptor;
+		protected List<RequestListener> listeners =
+			new CopyOnWriteArrayList<RequestListener>();
 
 		public void setAuthToken(TokenFactory.UserToken authToken) {
 			this.authToken = authToken;
+			if (authInterceptor != null) {
+				authInterceptor.setToken(authToken);
+			}
 		}
 		
 		public TokenFactory.UserToken getAuthToken() {
+			if (authInterceptor != null) {
+				return authInterceptor.getToken();
+			}
 			return this.authToken;
 		}
 
+		/**
+		 * Sets the interceptor renewing the auth token when the service
+		 * rejects it, <code>null</code> letting requests fail with an
+		 * {@link AuthenticationException} instead. The interceptor takes over
+		 * the current token.
+		 */
+		public void setAuthInterceptor(AuthInterceptor authInterceptor) {
+			if (authInterceptor != null && authToken != null) {
+				authInterceptor.setToken(authToken);
+			}
+			this.authInterceptor = authInterceptor;
+		}
+
+		/**
+		 * Adds a listener told about the lifecycle of every request created
+		 * from now on.
+		 */
+		public void addRequestListener(RequestListener listener) {
+			if (listener == null) {
+				throw new NullPointerException("Must supply listener");
+			}
+			listeners.add(listener);
+		}
+
+		public void removeRequestListener(RequestListener listener) {
+			listeners.remove(listener);
+		}
+
+		/**
+		 * Returns the listeners told about new requests.
+		 */
+		public List<RequestListener> getRequestListeners() {
+			return Collections.unmodifiableList(listeners);
+		}
+
+		public AuthInterceptor getAuthInterceptor() {
+			return this.authInterceptor;
+		}
+
 		public boolean getSsl() {
 			return this.useSsl;
 		}
@@ -81,6 +152,142 @@ public class GDataRequest {
 			this.useSsl = set;
 		}
 
+		/**
+		 * Sets the transport used to obtain connections for new requests.
+		 */
+		public void setTransport(HttpTransport transport) {
+			if (transport == null) {
+				throw new NullPointerException("Must supply transport");
+			}
+			this.transport = transport;
+		}
+
+		public HttpTransport getTransport() {
+			return this.transport;
+		}
+
+		/**
+		 * Sets the maximum number of redirects followed by new requests.
+		 */
+		public void setMaxRedirects(int maxRedirects) {
+			if (maxRedirects < 0) {
+				throw new IllegalArgumentException("Redirect limit cannot be negative");
+			}
+			this.maxRedirects = maxRedirects;
+		}
+
+		public int getMaxRedirects() {
+			return this.maxRedirects;
+		}
+
+		/**
+		 * Enables gzip compression of the request data of new requests once it
+		 * reaches the given size. The default of -1 disables compression.
+		 *
+		 * @see GDataRequest#setCompressionThreshold(int)
+		 */
+		public void setRequestCompressionThreshold(int threshold) {
+			if (threshold < -1) {
+				throw new IllegalArgumentException("Invalid compression threshold");
+			}
+			this.compressionThreshold = threshold;
+		}
+
+		public int getRequestCompressionThreshold() {
+			return this.compressionThreshold;
+		}
+
+		/**
+		 * Returns the response compression statistics of the requests created
+		 * by this factory.
+		 */
+		public CompressionStats getCompressionStats() {
+			return this.compressionStats;
+		}
+
+		/**
+		 * Sets the policy deciding when new requests that failed are sent
+		 * again, <code>null</code> disabling retries.
+		 */
+		public void setRetryPolicy(RetryPolicy retryPolicy) {
+			this.retryPolicy = retryPolicy;
+		}
+
+		public RetryPolicy getRetryPolicy() {
+			return this.retryPolicy;
+		}
+
+		/**
+		 * Sets the per-host circuit breakers consulted by new requests,
+		 * <code>null</code> disabling them.
+		 */
+		public void setCircuitBreakerRegistry(CircuitBreakerRegistry registry) {
+			this.circuitBreakers = registry;
+		}
+
+		public CircuitBreakerRegistry getCircuitBreakerRegistry() {
+			return this.circuitBreakers;
+		}
+
+		/**
+		 * Sets the rate limiter new requests take their permits from,
+		 * <code>null</code> disabling rate limiting.
+		 */
+		public void setRateLimiter(RateLimiter rateLimiter) {
+			this.rateLimiter = rateLimiter;
+		}
+
+		public RateLimiter getRateLimiter() {
+			return this.rateLimiter;
+		}
+
+		/**
+		 * Sets the service and account new requests are counted against by the
+		 * rate limiter.
+		 *
+		 * @param serviceName the name of the service, e.g. <code>writely</code>.
+		 * @param account the account requests are sent for, or
+		 *        <code>null</code> if unknown.
+		 */
+		public void setRateLimitKey(String serviceName, String account) {
+			this.serviceName = serviceName;
+			this.account = account;
+		}
+
+		/**
+		 * Sets the scheduler new requests wait for a slot from,
+		 * <code>null</code> letting them connect right away.
+		 */
+		public void setRequestScheduler(RequestScheduler scheduler) {
+			this.scheduler = scheduler;
+		}
+
+		public RequestScheduler getRequestScheduler() {
+			return this.scheduler;
+		}
+
+		/**
+		 * Sets the priority of new requests created by threads without a
+		 * priority of their own.
+		 *
+		 * @see RequestPriority#setCurrent(RequestPriority)
+		 */
+		public void setPriority(RequestPriority priority) {
+			if (priority == null) {
+				throw new NullPointerException("Must supply priority");
+			}
+			this.priority = priority;
+		}
+
+		public RequestPriority getPriority() {
+			return this.priority;
+		}
+
+		private RequestPriority getCurrentPriority() {
+			RequestPriority current = RequestPriority.current();
+			return (current != null) ? current : priority;
+		}
+
 		private void extendHeaderMap(Map<String, String> headerMap,
 				String header, String value) {
 			if (value == null) {
@@ -107,7 +314,18 @@ public class GDataRequest {
 				requestUrl = new URL(
 						requestUrl.toString().replaceFirst("http", "https"));
 			}
-			return new GDataRequest(type, requestUrl, contentType, authToken, headerMap, privateHeaderMap);
+			GDataRequest request = new GDataRequest(type, requestUrl, contentType,
+					getAuthToken(), headerMap, privateHeaderMap, transport);
+			request.setMaxRedirects(maxRedirects);
+			request.setCompressionStats(compressionStats);
+			request.setCompressionThreshold(compressionThreshold);
+			request.setRetryPolicy(retryPolicy);
+			request.setCircuitBreakerRegistry(circuitBreakers);
+			request.setRateLimiter(rateLimiter, serviceName, account);
+			request.setRequestScheduler(scheduler, getCurrentPriority());
+			request.setAuthInterceptor(authInterceptor);
+			request.setRequestListeners(listeners);
+			return request;
 		}
 		
 		@SuppressWarnings("unused")
@@ -123,12 +341,50 @@ public class GDataRequest {
 				requestUrl = new URL(
 						requestUrl.toString().replaceFirst("http", "https"));
 			}
-			return new GDataRequest(requestUrl, authToken);
+			GDataRequest request = new GDataRequest(requestUrl, getAuthToken(),
+					transport);
+			request.setMaxRedirects(maxRedirects);
+			request.setCompressionStats(compressionStats);
+			request.setRetryPolicy(retryPolicy);
+			request.setCircuitBreakerRegistry(circuitBreakers);
+			request.setRateLimiter(rateLimiter, serviceName, account);
+			request.setRequestScheduler(scheduler, getCurrentPriority());
+			request.setAuthInterceptor(authInterceptor);
+			request.setRequestListeners(listeners);
+			return request;
 		}
 
 	}
 
 
+	/**
+	 * Maximum number of unread response bytes discarded to keep a connection
+	 * alive when a request is ended early.
+	 */
+	private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+	/**
+	 * Maximum number of request body bytes kept to replay the request after a
+	 * redirect.
+	 */
+	private static final int MAX_REPLAY_BYTES = 64 * 1024;
+
+	/**
+	 * Maximum size of an error response body kept in the exception reporting
+	 * it.
+	 */
+	private static final int MAX_ERROR_BODY_BYTES = 8 * 1024;
+
+	/**
+	 * Default maximum number of redirects followed by a request.
+	 */
+	public static final int DEFAULT_MAX_REDIRECTS = 5;
+
+	/**
+	 * Transport providing the connection to the GData service.
+	 */
+	protected HttpTransport transport;
+
 	/**
 	 * Underlying HTTP connection to the GData service.
 	 */
@@ -151,6 +407,172 @@ public class GDataRequest {
 	 */
 	protected boolean executed = false;
 
+	/**
+	 * Set once the connection has been obtained from the transport.
+	 */
+	protected boolean connected = false;
+
+	/**
+	 * Set once the connection has been handed back to the transport.
+	 */
+	protected boolean released = false;
+
+	/**
+	 * Set once the body of an error response has been read completely.
+	 */
+	private boolean errorBodyRead;
+
+	/**
+	 * Response stream handed out to the client, if any.
+	 */
+	private ResponseInputStream responseStream;
+
+	/**
+	 * Request body stream handed out to the client, if any.
+	 */
+	private RequestOutputStream requestStream;
+
+	/**
+	 * HTTP method of the request, replayed when following redirects.
+	 */
+	protected String method = "GET";
+
+	/**
+	 * Headers set on the request, replayed when following redirects.
+	 */
+	protected Map<String, String> requestHeaders =
+		new LinkedHashMap<String, String>();
+
+	/**
+	 * Maximum number of redirects followed before the redirect response is
+	 * reported to the client.
+	 */
+	protected int maxRedirects = DEFAULT_MAX_REDIRECTS;
+
+	/**
+	 * Statistics the transferred response bytes are recorded in, if any.
+	 */
+	protected CompressionStats compressionStats;
+
+	/**
+	 * Size from which request data is gzip compressed, -1 if request data is
+	 * never compressed.
+	 */
+	protected int compressionThreshold = -1;
+
+	/**
+	 * Length of the request data if known in advance, -1 otherwise.
+	 */
+	protected long contentLength = -1;
+
+	/**
+	 * True if request data of unknown length is streamed using chunked
+	 * transfer encoding instead of being buffered completely.
+	 */
+	protected boolean chunkedStreaming = false;
+
+	/**
+	 * True if a 308 (Resume Incomplete) response of a resumable upload is
+	 * treated as success.
+	 */
+	protected boolean resumeIncompleteAllowed = false;
+
+	/**
+	 * Policy deciding whether a failed idempotent request is sent again, if
+	 * any.
+	 */
+	protected RetryPolicy retryPolicy;
+
+	/**
+	 * Circuit breakers of the hosts contacted, if any.
+	 */
+	protected CircuitBreakerRegistry circuitBreakers;
+
+	/**
+	 * Breaker of the host currently connected to, until the outcome of the
+	 * request has been reported to it.
+	 */
+	private CircuitBreaker circuitBreaker;
+
+	/**
+	 * Rate limiter every attempt to send the request takes a permit from, if
+	 * any, and the service and account the request is counted against.
+	 */
+	protected RateLimiter rateLimiter;
+	protected String rateLimitService;
+	protected String rateLimitAccount;
+
+	/**
+	 * Set once the current attempt holds a permit of the rate limiter.
+	 */
+	private boolean rateLimitAcquired;
+
+	/**
+	 * Deadline of the operation the request is part of, if any.
+	 */
+	protected Deadline deadline = Deadline.current();
+
+	/**
+	 * Scheduler the request waits for a slot from before connecting, if any,
+	 * and the priority it waits with.
+	 */
+	protected RequestScheduler scheduler;
+	protected RequestPriority priority = RequestPriority.NORMAL;
+
+	/**
+	 * True while the request holds a slot of the scheduler.
+	 */
+	private boolean scheduled;
+
+	/**
+	 * Time the current connection was requested.
+	 */
+	private long connectStart;
+
+	/**
+	 * Renews the auth token if the service rejects it.
+	 */
+	protected AuthInterceptor authInterceptor;
+
+	/**
+	 * The auth token the request is sent with, if any.
+	 */
+	private UserToken authToken;
+
+	/**
+	 * True once the request has been sent again with a renewed token.
+	 */
+	private boolean reauthenticated;
+
+	/**
+	 * True once the request has been redirected to another host, and its
+	 * credentials removed.
+	 */
+	private boolean credentialsRemoved;
+
+	/**
+	 * Listeners told about the lifecycle of the request, if any.
+	 */
+	protected List<RequestListener> listeners;
+
+	/**
+	 * Times the request started, its connection was established and its
+	 * response started, in nanoseconds, 0 if not yet.
+	 */
+	private long startTime;
+	private long connectedTime;
+	private long responseTime;
+
+	/**
+	 * Number of request data bytes sent over the wire.
+	 */
+	private long bytesSent;
+
+	/**
+	 * Whether the end of the request has been reported to the listeners.
+	 */
+	private boolean reported;
+
 
 	/**
 	 * True if the request type expects input from the client.
@@ -179,124 +601,843 @@ public class GDataRequest {
 
 	private String METHOD_OVERRIDE_PROPERTY = "true";
 
+	/**
+	 * HTTP 307 status code, not defined by {@link HttpURLConnection}.
+	 */
+	private static final int HTTP_TEMPORARY_REDIRECT = 307;
+
+	/**
+	 * HTTP 308 status code used by resumable uploads for a partially
+	 * received upload.
+	 */
+	public static final int HTTP_RESUME_INCOMPLETE = 308;
+
+	private static final String CONTENT_ENCODING = "Content-Encoding";
+
+	/**
+	 * Chunk size used when streaming request data of unknown length.
+	 */
+	private static final int CHUNK_SIZE = 8192;
+
+	/**
+	 * Content types never compressed when sent, as the data is compressed
+	 * already.
+	 */
+	private static final ContentType[] PRECOMPRESSED_TYPES = {
+		ContentType.ZIP, ContentType.PNG, ContentType.JPEG
+	};
+
+
+	/**
+	 * Protected default constructor for testing.
+	 */
+	protected GDataRequest() {
+	}
+
+	/**
+	 * Obtains a connection to the GData service.
+	 */
+	protected HttpURLConnection getRequestConnection(URL requestUrl)
+	throws IOException {
+
+		if (!requestUrl.getProtocol().startsWith("http")) {
+			throw new UnsupportedOperationException("Unsupported scheme:"
+					+ requestUrl.getProtocol());
+		}
+		HttpURLConnection uc = transport.openConnection(requestUrl);
+
+		// Should never cache GData requests/responses
+		uc.setUseCaches(false);
+
+		// Redirects are followed by execute(), keeping the request method
+		uc.setInstanceFollowRedirects(false);
+
+		return uc;
+	}
+
+	public OutputStream getRequestStream() throws IOException {
+	
+		if (!expectsInput) {
+			throw new IllegalStateException("Request doesn't accept input");
+		}
+		if (requestStream == null) {
+			int threshold = -1;
+			if (compressionThreshold >= 0
+					&& isCompressible(requestHeaders.get("Content-Type"))) {
+				threshold = compressionThreshold;
+			}
+			start();
+			try {
+				// the stream may connect right away
+				acquireRateLimit();
+				requestStream = new RequestOutputStream(threshold);
+			} catch (IOException e) {
+				reportFailure(e);
+				throw e;
+			}
+		}
+		return requestStream;
+	}
+	
+	/**
+	 * Returns <code>false</code> for content types that are compressed
+	 * already.
+	 */
+	private static boolean isCompressible(String contentType) {
+		if (contentType == null) {
+			return true;
+		}
+		try {
+			ContentType type = new ContentType(contentType);
+			for (ContentType compressed : PRECOMPRESSED_TYPES) {
+				if (type.match(compressed)) {
+					return false;
+				}
+			}
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	public InputStream getResponseStream() throws IOException {
+
+		if (!executed) {
+			throw new IllegalStateException(
+					"Must call execute() before attempting to read response");
+		}
+
+		if (!hasOutput) {
+			throw new IllegalStateException("Request doesn't have response data");
+		}
+
+		if (responseStream == null) {
+			InputStream is = httpConn.getInputStream();
+			if ("gzip".equalsIgnoreCase(httpConn.getContentEncoding())) {
+				is = new GzipInflaterInputStream(is);
+			}
+			responseStream = new ResponseInputStream(is);
+		}
+		return responseStream;
+	}
+	
+	public InputStream getErrorStream() throws IOException {
+		return httpConn.getErrorStream();
+	}
+
+	public HttpURLConnection getConnection() {
+		return httpConn;
+	}
+	
+	public ContentType getResponseContentType() {
+
+		if (!executed) {
+			throw new IllegalStateException(
+					"Must call execute() before attempting to read response");
+		}
+		String value = httpConn.getHeaderField("Content-Type");
+		if (value == null) {
+			return null;
+		}
+		return new ContentType(value);
+	}
+
+	public int getResponseCode() throws IOException {
+		if (!executed) {
+			throw new IllegalStateException(
+					"Must call execute() before attempting to read response");
+		}
+		return httpConn.getResponseCode();
+	}
+
+	public String getResponseHeader(String headerName) {
+		return httpConn.getHeaderField(headerName);
+	}
+
+	public DateTime getResponseDateHeader(String headerName) {
+		long dateValue = httpConn.getHeaderFieldDate(headerName, -1);
+		return (dateValue >= 0) ? new DateTime(dateValue) : null;
+	}	
+	
+	public void execute() throws IOException, ServiceException {
+		start();
+		try {
+			send();
+		} catch (IOException e) {
+			reportFailure(e);
+			throw e;
+		} catch (ServiceException e) {
+			reportFailure(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends the request until it succeeds, retrying it and following
+	 * redirects as needed.
+	 */
+	private void send() throws IOException, ServiceException {
+		if (retryPolicy != null) {
+			retryPolicy.recordRequest();
+		}
+		int retries = 0;
+		long delay = 0;
+		while (true) {
+			try {
+				if (deadline != null) {
+					deadline.check();
+				}
+				acquireRateLimit();
+				if (retries == 0) {
+					if (requestStream != null) {
+						requestStream.finish();
+					}
+					connect();
+				} else {
+					resend(httpConn.getURL());
+				}
+
+				int redirects = 0;
+				while (redirects < maxRedirects && followRedirect()) {
+					redirects++;
+				}
+
+				responseStarted();
+				checkResponse(); // will flush any request data
+				recordOutcome(null);
+				break;
+
+			} catch (ServiceException e) {
+				recordOutcome(e);
+				end();
+				if (e instanceof AuthenticationException
+						&& reauthenticate((AuthenticationException) e)) {
+					delay = 0;
+				} else {
+					delay = getRetryDelay(e, retries, delay);
+					if (delay < 0) {
+						throw e;
+					}
+				}
+			} catch (IOException e) {
+				IOException failure = checkDeadline(e);
+				recordOutcome(failure);
+				abort();
+				delay = getRetryDelay(failure, retries, delay);
+				if (delay < 0) {
+					throw failure;
+				}
+			}
+			retries++;
+			rateLimitAcquired = false;
+			Log.d(TAG, "Retrying " + method + " " + httpConn.getURL() + " in "
+					+ delay + "ms");
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted before retrying "
+						+ httpConn.getURL());
+			}
+		}
+
+		executed = true;
+
+		if (!hasOutput) {
+			end();
+		}
+	}
+
+	/**
+	 * Takes a permit of the rate limiter for the current attempt, unless it
+	 * holds one already. Called before connecting, so that a rejected request
+	 * never reaches the network.
+	 */
+	private void acquireRateLimit() throws IOException {
+		if (rateLimiter == null || rateLimitAcquired) {
+			return;
+		}
+		long maxWait = rateLimiter.getMaxWait();
+		if (deadline != null) {
+			maxWait = Math.min(maxWait, deadline.getRemaining());
+		}
+		rateLimiter.acquire(rateLimitService, rateLimitAccount, type, maxWait);
+		rateLimitAcquired = true;
+	}
+
+	/**
+	 * Returns the delay before sending a failed request again, or -1 if it
+	 * must not be retried because it is not idempotent, its data cannot be
+	 * sent again, or the retry policy says so.
+	 */
+	private long getRetryDelay(Exception failure, int retries, long delay) {
+		if (retryPolicy == null || !isIdempotent()) {
+			return -1;
+		}
+		if (expectsInput && (requestStream == null || !requestStream.isReplayable())) {
+			return -1;
+		}
+		delay = retryPolicy.getRetryDelay(failure, retries, delay);
+		if (deadline != null && delay >= deadline.getRemaining()) {
+			return -1;
+		}
+		return delay;
+	}
+
+	/**
+	 * Obtains a new auth token after the service rejected the request, once
+	 * per request. The service has not acted on a rejected request, so it may
+	 * be sent again whatever its type, provided its data can be replayed. If
+	 * not, the token is renewed for later requests all the same.
+	 *
+	 * @return <code>true</code> if the request should be sent again.
+	 * @throws AuthenticationException if logging in again failed.
+	 */
+	private boolean reauthenticate(AuthenticationException rejection)
+	throws AuthenticationException {
+		if (authInterceptor == null || authToken == null || reauthenticated
+				|| credentialsRemoved) {
+			return false;
+		}
+		reauthenticated = true;
+		UserToken token = authInterceptor.refresh(authToken);
+		if (token == null) {
+			return false;
+		}
+		authToken = token;
+		requestHeaders.put("Authorization", token.getAuthorizationHeader());
+		if (expectsInput && requestStream != null && !requestStream.isReplayable()) {
+			Log.w(TAG, "Renewed rejected token, but cannot send " + method + " "
+					+ httpConn.getURL() + " again: " + rejection.getMessage());
+			return false;
+		}
+		Log.d(TAG, "Renewed rejected token for " + method + " " + httpConn.getURL());
+		return true;
+	}
+
+	/**
+	 * Returns a {@link DeadlineExceededException} caused by a network error if
+	 * the deadline of the request has passed, since the error then most likely
+	 * results from the timeouts derived from it, or the error itself.
+	 */
+	private IOException checkDeadline(IOException e) {
+		if (deadline == null || e instanceof DeadlineExceededException) {
+			return e;
+		}
+		try {
+			deadline.check();
+			return e;
+		} catch (DeadlineExceededException dee) {
+			dee.initCause(e);
+			return dee;
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if sending the request more than once has the
+	 * same effect as sending it once: queries, deletes, and updates made
+	 * conditional on the entry version.
+	 */
+	protected boolean isIdempotent() {
+		if (type == null) {
+			return "GET".equals(method);
+		}
+		switch (type) {
+		case QUERY:
+		case DELETE:
+			return true;
+		case UPDATE:
+			return requestHeaders.containsKey(Header.IF_MATCH);
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Connects the request through its transport, applying the configured
+	 * timeouts. Does nothing if the request is already connected.
+	 */
+	protected void connect() throws IOException {
+		if (connected) {
+			return;
+		}
+
+		int connectTimeout = this.connectTimeout;
+		int readTimeout = this.readTimeout;
+		if (deadline != null) {
+			connectTimeout = deadline.getTimeout(connectTimeout);
+			readTimeout = deadline.getTimeout(readTimeout);
+		}
+
+		if (connectTimeout >= 0) {
+			httpConn.setConnectTimeout(connectTimeout);
+		}
+
+		if (readTimeout >= 0) {
+			httpConn.setReadTimeout(readTimeout);
+		}
+
+		acquireRateLimit();
+		if (scheduler != null && !scheduled) {
+			scheduler.acquire(priority, deadline);
+			synchronized (this) {
+				scheduled = true;
+			}
+		}
+		if (circuitBreakers != null) {
+			CircuitBreaker breaker = circuitBreakers.getCircuitBreaker(httpConn.getURL());
+			breaker.acquirePermission();
+			circuitBreaker = breaker;
+		}
+		connectStart = System.currentTimeMillis();
+		long connectTime = System.nanoTime();
+		try {
+			transport.connect(httpConn);
+		} catch (IOException e) {
+			IOException failure = checkDeadline(e);
+			recordOutcome(failure);
+			throw failure;
+		}
+		connected = true;
+		if (deadline != null) {
+			deadline.register(this);
+		}
+		connectedTime = System.nanoTime();
+		responseTime = 0;
+		if (hasListeners()) {
+			connectTime = connectedTime - connectTime;
+			for (RequestListener listener : listeners) {
+				try {
+					listener.requestConnected(this, connectTime);
+				} catch (RuntimeException e) {
+					Log.w(TAG, "Request listener failed", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Marks the start of the request, unless it started already.
+	 */
+	private void start() {
+		if (startTime != 0) {
+			return;
+		}
+		startTime = System.nanoTime();
+		if (hasListeners()) {
+			for (RequestListener listener : listeners) {
+				try {
+					listener.requestStarted(this);
+				} catch (RuntimeException e) {
+					Log.w(TAG, "Request listener failed", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits for the response on the current connection and marks its start,
+	 * unless done already.
+	 */
+	private void responseStarted() throws IOException {
+		if (responseTime != 0) {
+			return;
+		}
+		httpConn.getResponseCode();
+		responseTime = System.nanoTime();
+		if (hasListeners()) {
+			long waitTime = responseTime - connectedTime;
+			for (RequestListener listener : listeners) {
+				try {
+					listener.responseStarted(this, waitTime);
+				} catch (RuntimeException e) {
+					Log.w(TAG, "Request listener failed", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reports the successful end of the request to the listeners, unless its
+	 * end has been reported already.
+	 */
+	private void reportCompletion() {
+		if (!hasListeners() || !markReported()) {
+			return;
+		}
+		long now = System.nanoTime();
+		long received = getReceivedBytes();
+		for (RequestListener listener : listeners) {
+			try {
+				listener.bytesTransferred(this, bytesSent, received);
+				listener.requestCompleted(this, now - responseTime, now - startTime);
+			} catch (RuntimeException e) {
+				Log.w(TAG, "Request listener failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Reports the failure of the request to the listeners, unless its end
+	 * has been reported already.
+	 */
+	private void reportFailure(Exception failure) {
+		if (!hasListeners() || !markReported()) {
+			return;
+		}
+		long totalTime = System.nanoTime() - startTime;
+		long received = getReceivedBytes();
+		for (RequestListener listener : listeners) {
+			try {
+				listener.bytesTransferred(this, bytesSent, received);
+				listener.requestFailed(this, failure, totalTime);
+			} catch (RuntimeException e) {
+				Log.w(TAG, "Request listener failed", e);
+			}
+		}
+	}
+
+	private boolean hasListeners() {
+		return listeners != null && !listeners.isEmpty();
+	}
+
+	/**
+	 * Returns <code>true</code> the first time it is called. May be called by
+	 * another thread aborting the request.
+	 */
+	private synchronized boolean markReported() {
+		if (reported) {
+			return false;
+		}
+		reported = true;
+		return true;
+	}
+
+	/**
+	 * Reports the outcome of the request to the circuit breaker of the host,
+	 * if not done yet.
+	 *
+	 * @param failure the exception the request failed with, or
+	 *        <code>null</code> if the host answered successfully.
+	 */
+	private void recordOutcome(Exception failure) {
+		CircuitBreaker breaker = circuitBreaker;
+		if (breaker == null) {
+			return;
+		}
+		circuitBreaker = null;
+		long duration = System.currentTimeMillis() - connectStart;
+		if (failure == null) {
+			breaker.onSuccess(duration);
+		} else if (failure instanceof ServiceException) {
+			// client errors are answers of a healthy host
+			if (((ServiceException) failure).getHttpErrorCodeOverride() >= 500) {
+				breaker.onError(duration);
+			} else {
+				breaker.onSuccess(duration);
+			}
+		} else if (failure instanceof RateLimitExceededException
+				|| (failure instanceof InterruptedIOException
+						&& !(failure instanceof SocketTimeoutException))) {
+			// the request never reached the host
+			breaker.onIgnored();
+		} else {
+			breaker.onError(duration);
+		}
+	}
+
+	/**
+	 * Follows a redirect response, if any, by sending the request again to the
+	 * redirect location on a new connection. Unlike the platform redirect
+	 * handling, the request method and headers are kept, except for 303
+	 * responses which are followed with a GET. Request data is replayed if it
+	 * did not exceed {@link #MAX_REPLAY_BYTES}. Credentials are only sent to
+	 * the host they were meant for, and redirects from https to http are not
+	 * followed.
+	 *
+	 * @return <code>true</code> if a redirect has been followed.
+	 */
+	protected boolean followRedirect() throws IOException {
+		responseStarted();
+		int code = httpConn.getResponseCode();
+		if (!isRedirect(code)) {
+			return false;
+		}
+		String location = httpConn.getHeaderField("Location");
+		if (location == null) {
+			return false;
+		}
+
+		boolean seeOther = code == HttpURLConnection.HTTP_SEE_OTHER;
+		if (expectsInput && !seeOther) {
+			if (requestStream == null || !requestStream.isReplayable()) {
+				// leave it to checkResponse() to report the redirect
+				return false;
+			}
+		}
+		URL current = httpConn.getURL();
+		URL target = new URL(current, location);
+		if (!target.getProtocol().startsWith("http")) {
+			return false;
+		}
+		if ("https".equalsIgnoreCase(current.getProtocol())
+				&& !"https".equalsIgnoreCase(target.getProtocol())) {
+			// leave it to checkResponse() to report the redirect
+			return false;
+		}
+
+		recordOutcome(null);
+		end();
+		if (seeOther) {
+			// the redirect target is retrieved without request data from now on
+			method = "GET";
+			expectsInput = false;
+			requestStream = null;
+			Iterator<String> it = requestHeaders.keySet().iterator();
+			while (it.hasNext()) {
+				if (isEntityHeader(it.next())) {
+					it.remove();
+				}
+			}
+		}
+		if (!isSameHost(current, target)) {
+			Iterator<String> it = requestHeaders.keySet().iterator();
+			while (it.hasNext()) {
+				if (isCredentialHeader(it.next())) {
+					it.remove();
+				}
+			}
+			credentialsRemoved = true;
+		}
+		resend(target);
+		return true;
+	}
+
+	private static boolean isSameHost(URL a, URL b) {
+		return a.getHost().equalsIgnoreCase(b.getHost())
+				&& getEffectivePort(a) == getEffectivePort(b);
+	}
 
-	/**
-	 * Protected default constructor for testing.
-	 */
-	protected GDataRequest() {
+	private static int getEffectivePort(URL url) {
+		return (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
 	}
 
 	/**
-	 * Obtains a connection to the GData service.
+	 * Sends the request again on a new connection, with the same method and
+	 * headers, replaying the request data if any.
 	 */
-	protected HttpURLConnection getRequestConnection(URL requestUrl)
-	throws IOException {
+	private void resend(URL target) throws IOException {
+		byte[] body = null;
+		if (expectsInput && requestStream != null) {
+			body = requestStream.getReplayBuffer();
+		}
+		httpConn = getRequestConnection(target);
+		connected = false;
+		released = false;
+		errorBodyRead = false;
+		responseStream = null;
 
-		if (!requestUrl.getProtocol().startsWith("http")) {
-			throw new UnsupportedOperationException("Unsupported scheme:"
-					+ requestUrl.getProtocol());
+		httpConn.setRequestMethod(method);
+		for (Map.Entry<String, String> e : requestHeaders.entrySet()) {
+			httpConn.setRequestProperty(e.getKey(), e.getValue());
+		}
+		httpConn.setDoOutput(body != null);
+		if (body != null) {
+			httpConn.setFixedLengthStreamingMode(body.length);
 		}
-		HttpURLConnection uc = (HttpURLConnection) requestUrl.openConnection();
 
-		// Should never cache GData requests/responses
-		uc.setUseCaches(false);
+		connect();
+		if (body != null) {
+			OutputStream os = httpConn.getOutputStream();
+			os.write(body);
+			os.close();
+			bytesSent += body.length;
+		}
+	}
 
-		// Always follow redirects
-		uc.setInstanceFollowRedirects(true);
+	private static boolean isRedirect(int code) {
+		switch (code) {
+		case HttpURLConnection.HTTP_MOVED_PERM:
+		case HttpURLConnection.HTTP_MOVED_TEMP:
+		case HttpURLConnection.HTTP_SEE_OTHER:
+		case HTTP_TEMPORARY_REDIRECT:
+			return true;
+		default:
+			return false;
+		}
+	}
 
-		return uc;
+	private static boolean isCredentialHeader(String name) {
+		return "Authorization".equalsIgnoreCase(name)
+				|| "Cookie".equalsIgnoreCase(name);
 	}
 
-	public OutputStream getRequestStream() throws IOException {
-	
-		if (!expectsInput) {
-			throw new IllegalStateException("Request doesn't accept input");
-		}
-		return httpConn.getOutputStream();
+	private static boolean isEntityHeader(String name) {
+		return "Content-Type".equalsIgnoreCase(name)
+			|| "Content-Length".equalsIgnoreCase(name)
+			|| CONTENT_ENCODING.equalsIgnoreCase(name)
+			|| Header.METHOD_OVERRIDE.equalsIgnoreCase(name);
 	}
-	
-	public InputStream getResponseStream() throws IOException {
 
-		if (!executed) {
-			throw new IllegalStateException(
-					"Must call execute() before attempting to read response");
+	/**
+	 * Finishes the request and hands its connection back to the transport.
+	 * Unread response data is discarded so the connection can be kept alive.
+	 * Called automatically once the response stream has been read completely or
+	 * closed, and for requests without response data.
+	 */
+	public void end() {
+		releaseCircuitBreaker();
+		releaseSlot();
+		if (!connected || released) {
+			return;
 		}
+		released = true;
+		releaseDeadline();
+		recordCompressionStats();
+		if (executed) {
+			reportCompletion();
+		}
+		transport.releaseConnection(httpConn, drainResponse());
+	}
 
-		if (!hasOutput) {
-			throw new IllegalStateException("Request doesn't have response data");
+	/**
+	 * Returns the number of response bytes read from the wire.
+	 */
+	private long getReceivedBytes() {
+		if (responseStream == null) {
+			return 0;
 		}
+		InputStream is = responseStream.getWrappedStream();
+		if (is instanceof GzipInflaterInputStream) {
+			return ((GzipInflaterInputStream) is).getCompressedCount();
+		}
+		return responseStream.count;
+	}
 
-		InputStream responseStream = httpConn.getInputStream();
-		if ("gzip".equalsIgnoreCase(httpConn.getContentEncoding())) {
-			responseStream = new GZIPInputStream(responseStream);
+	private void recordCompressionStats() {
+		if (compressionStats == null || responseStream == null) {
+			return;
+		}
+		InputStream is = responseStream.getWrappedStream();
+		long delivered = responseStream.count;
+		if (is instanceof GzipInflaterInputStream) {
+			compressionStats.record(getStatsType(),
+					((GzipInflaterInputStream) is).getCompressedCount(), delivered, true);
+		} else {
+			compressionStats.record(getStatsType(), delivered, delivered, false);
 		}
-		return responseStream;
 	}
-	
-	public InputStream getErrorStream() throws IOException {
-		return httpConn.getErrorStream();
+
+	private RequestType getStatsType() {
+		// media downloads do not carry a request type
+		return (type != null) ? type : RequestType.QUERY;
 	}
 
-	public HttpURLConnection getConnection() {
-		return httpConn;
+	/**
+	 * Aborts the request, closing its connection instead of keeping it alive.
+	 */
+	public void abort() {
+		abort(null);
 	}
-	
-	public ContentType getResponseContentType() {
 
-		if (!executed) {
-			throw new IllegalStateException(
-					"Must call execute() before attempting to read response");
+	/**
+	 * Aborts the request, reporting it as failed for the given reason if it
+	 * had been executed.
+	 */
+	private void abort(IOException reason) {
+		releaseCircuitBreaker();
+		releaseSlot();
+		if (!connected || released) {
+			return;
 		}
-		String value = httpConn.getHeaderField("Content-Type");
-		if (value == null) {
-			return null;
+		released = true;
+		releaseDeadline();
+		if (executed && hasListeners()) {
+			reportFailure((reason != null) ? reason : new IOException("Request aborted"));
+		}
+		transport.releaseConnection(httpConn, false);
+		if (responseStream != null) {
+			// hands the inflater of a gzip response back to its pool
+			try {
+				responseStream.getWrappedStream().close();
+			} catch (IOException e) {
+				// ignore
+			}
 		}
-		return new ContentType(value);
 	}
 
-	public String getResponseHeader(String headerName) {
-		return httpConn.getHeaderField(headerName);
+	/**
+	 * Hands the slot of the request back to the scheduler. May be called by
+	 * another thread aborting the request.
+	 */
+	private synchronized void releaseSlot() {
+		if (scheduled) {
+			scheduled = false;
+			scheduler.release(priority);
+		}
 	}
 
-	public DateTime getResponseDateHeader(String headerName) {
-		long dateValue = httpConn.getHeaderFieldDate(headerName, -1);
-		return (dateValue >= 0) ? new DateTime(dateValue) : null;
-	}	
-	
-	public void execute() throws IOException, ServiceException {
-
-		if (connectTimeout >= 0) {
-			httpConn.setConnectTimeout(connectTimeout);
+	private void releaseDeadline() {
+		if (deadline != null) {
+			deadline.unregister(this);
 		}
+	}
 
-		if (readTimeout >= 0) {
-			httpConn.setReadTimeout(readTimeout);
+	/**
+	 * Hands back the permission of a request that ended without an outcome.
+	 */
+	private void releaseCircuitBreaker() {
+		if (circuitBreaker != null) {
+			circuitBreaker.onIgnored();
+			circuitBreaker = null;
 		}
+	}
 
-		// Set the http.strictPostRedirect property to prevent redirected
-		// POST/PUT/DELETE from being mapped to a GET. This
-		// system property was a hack to fix a jdk bug w/out changing back
-		// compat behavior. It's bogus that this is a system (and not a
-		// per-connection) property, so we just change it for the duration
-		// of the connection.
-		// See http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4023866
-		String httpStrictPostRedirect =
-			System.getProperty("http.strictPostRedirect");
+	/**
+	 * Discards unread response data.
+	 *
+	 * @return <code>true</code> if the response has been consumed completely.
+	 */
+	private boolean drainResponse() {
+		InputStream is = null;
 		try {
-			System.setProperty("http.strictPostRedirect", "true");
-			httpConn.connect();
-			
-			checkResponse(); // will flush any request data
-
-		} finally {						
-			if (httpStrictPostRedirect == null) {
-				System.clearProperty("http.strictPostRedirect");
+			if (responseStream != null) {
+				is = responseStream.getWrappedStream();
+				if (responseStream.eof) {
+					return true;
+				}
+			} else if (errorBodyRead) {
+				return true;
+			} else if (httpConn.getResponseCode() >= 400) {
+				is = httpConn.getErrorStream();
 			} else {
-				System.setProperty("http.strictPostRedirect", httpStrictPostRedirect);
+				is = httpConn.getInputStream();
+			}
+			if (is == null) {
+				return true;
 			}
-		}
 
-		executed = true;
+			byte[] buf = new byte[4096];
+			int total = 0;
+			int len;
+			while ((len = is.read(buf)) != -1) {
+				total += len;
+				if (total > MAX_DRAIN_BYTES) {
+					return false;
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
 	}
 
 	/**
@@ -306,11 +1447,65 @@ public class GDataRequest {
 	protected void checkResponse() throws IOException, ServiceException {
 
 		int code = httpConn.getResponseCode();
+		if (code == HTTP_RESUME_INCOMPLETE && resumeIncompleteAllowed) {
+			return;
+		}
 		if (code >= 300 || code < 0) {
-			handleErrorResponse();
+			try {
+				handleErrorResponse();
+			} catch (ServiceException e) {
+				if (code >= 400 && e.getResponseBody() == null) {
+					readErrorBody(e);
+				}
+				throw e;
+			}
 		}		
 	}
 
+	/**
+	 * Keeps the body of an error response in the exception reporting it,
+	 * unless it exceeds {@link #MAX_ERROR_BODY_BYTES}, in which case the
+	 * connection is not reused.
+	 */
+	private void readErrorBody(ServiceException e) {
+		InputStream is = httpConn.getErrorStream();
+		if (is == null) {
+			return;
+		}
+		try {
+			if ("gzip".equalsIgnoreCase(httpConn.getContentEncoding())) {
+				is = new GzipInflaterInputStream(is);
+			}
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buf = new byte[1024];
+			int len;
+			while ((len = is.read(buf)) != -1) {
+				body.write(buf, 0, len);
+				if (body.size() > MAX_ERROR_BODY_BYTES) {
+					return;
+				}
+			}
+			errorBodyRead = true;
+			String value = httpConn.getHeaderField("Content-Type");
+			ContentType contentType = (value != null)
+					? new ContentType(value) : ContentType.TEXT_PLAIN;
+			String charset = contentType.getCharset();
+			e.setResponse(contentType,
+					body.toString((charset != null) ? charset : "UTF-8"));
+		} catch (IOException ioe) {
+			// the exception is reported without body
+		} catch (IllegalArgumentException iae) {
+			// unparseable content type
+		} finally {
+			try {
+				// hands a gzip inflater back to its pool
+				is.close();
+			} catch (IOException ioe) {
+				// ignore
+			}
+		}
+	}
+
 	/**
 	 * Handles an error response received while executing a GData service request.
 	 * Throws a {@link ServiceException} or one of its subclasses, depending on
@@ -324,6 +1519,13 @@ public class GDataRequest {
 
 		switch (httpConn.getResponseCode()) {
 
+		case HttpURLConnection.HTTP_MOVED_PERM:
+		case HttpURLConnection.HTTP_MOVED_TEMP:
+		case HttpURLConnection.HTTP_SEE_OTHER:
+		case HTTP_TEMPORARY_REDIRECT:
+			throw new RedirectRequiredException(httpConn.getResponseCode(),
+					httpConn.getHeaderField("Location"));
+
 		case HttpURLConnection.HTTP_NOT_FOUND:
 			throw new ResourceNotFoundException(httpConn);
 
@@ -357,6 +1559,11 @@ public class GDataRequest {
 		case HttpURLConnection.HTTP_GONE:
 			throw new NoLongerAvailableException(httpConn);
 
+		case HttpURLConnection.HTTP_UNAVAILABLE:
+		case HttpURLConnection.HTTP_BAD_GATEWAY:
+		case HttpURLConnection.HTTP_GATEWAY_TIMEOUT:
+			throw new ServiceUnavailableException(httpConn);
+
 		default:
 			throw new ServiceException(httpConn);
 		}
@@ -421,15 +1628,172 @@ public class GDataRequest {
 
 	public void setMethod(String method) throws ProtocolException {
 		httpConn.setRequestMethod(method);
+		this.method = method;
 	}
 
 	public void setHeader(String name, String value) {
 		httpConn.setRequestProperty(name, value);
+		requestHeaders.put(name, value);
 	}
 
 
 	public void setPrivateHeader(String name, String value) {
 		httpConn.setRequestProperty(name, value);
+		requestHeaders.put(name, value);
+	}
+
+	/**
+	 * Sets the maximum number of redirects followed by this request. A value
+	 * of zero reports any redirect as a {@link RedirectRequiredException}.
+	 */
+	public void setMaxRedirects(int maxRedirects) {
+		if (maxRedirects < 0) {
+			throw new IllegalArgumentException("Redirect limit cannot be negative");
+		}
+		this.maxRedirects = maxRedirects;
+	}
+
+	/**
+	 * Enables gzip compression of request data of at least the given size.
+	 * A value of -1 disables compression. Has no effect on content types that
+	 * are compressed already, and must be called before
+	 * {@link #getRequestStream()}.
+	 */
+	public void setCompressionThreshold(int threshold) {
+		if (threshold < -1) {
+			throw new IllegalArgumentException("Invalid compression threshold");
+		}
+		compressionThreshold = threshold;
+	}
+
+	/**
+	 * Declares the exact length of the request data, which is then streamed to
+	 * the service instead of being buffered completely. Must be called before
+	 * {@link #getRequestStream()}.
+	 */
+	public void setContentLength(long length) {
+		if (length < 0) {
+			throw new IllegalArgumentException("Length cannot be negative");
+		}
+		contentLength = length;
+	}
+
+	/**
+	 * Streams request data of unknown length using chunked transfer encoding
+	 * instead of buffering it completely. Useful for large uploads, but the
+	 * request cannot be replayed after a redirect if more than 64KB were sent.
+	 * Must be called before {@link #getRequestStream()}.
+	 */
+	public void setChunkedStreaming(boolean chunked) {
+		chunkedStreaming = chunked;
+	}
+
+	/**
+	 * Treats a 308 (Resume Incomplete) response as success instead of an
+	 * error, as needed by the chunks of a resumable upload.
+	 */
+	public void setResumeIncompleteAllowed(boolean allowed) {
+		resumeIncompleteAllowed = allowed;
+	}
+
+	/**
+	 * Sets the policy deciding whether this request is sent again if it fails,
+	 * <code>null</code> disabling retries. Only idempotent requests are
+	 * retried.
+	 *
+	 * @see #isIdempotent()
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Sets the per-host circuit breakers consulted before connecting,
+	 * <code>null</code> disabling them.
+	 */
+	public void setCircuitBreakerRegistry(CircuitBreakerRegistry registry) {
+		this.circuitBreakers = registry;
+	}
+
+	/**
+	 * Sets the rate limiter consulted before every attempt to send this
+	 * request, <code>null</code> disabling rate limiting.
+	 *
+	 * @param rateLimiter the rate limiter.
+	 * @param serviceName the name of the service the request is sent to.
+	 * @param account the account the request is sent for, or
+	 *        <code>null</code>.
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter, String serviceName,
+			String account) {
+		this.rateLimiter = rateLimiter;
+		this.rateLimitService = serviceName;
+		this.rateLimitAccount = account;
+	}
+
+	/**
+	 * Sets the scheduler this request waits for a slot from before
+	 * connecting, <code>null</code> letting it connect right away.
+	 *
+	 * @param scheduler the scheduler.
+	 * @param priority the priority the request waits with.
+	 */
+	public void setRequestScheduler(RequestScheduler scheduler,
+			RequestPriority priority) {
+		this.scheduler = scheduler;
+		this.priority = priority;
+	}
+
+	/**
+	 * Sets the interceptor asked for a new auth token if the service rejects
+	 * the one the request is sent with. The request is then sent once more,
+	 * unless its data was too large to be kept for replaying. A value of
+	 * <code>null</code> lets a rejected request fail with an
+	 * {@link AuthenticationException}.
+	 */
+	public void setAuthInterceptor(AuthInterceptor authInterceptor) {
+		this.authInterceptor = authInterceptor;
+	}
+
+	/**
+	 * Sets the listeners told about the lifecycle of the request,
+	 * <code>null</code> for none. The list is not copied.
+	 */
+	public void setRequestListeners(List<RequestListener> listeners) {
+		this.listeners = listeners;
+	}
+
+	/**
+	 * Returns the type of the request, or <code>null</code> for media
+	 * downloads.
+	 */
+	public RequestType getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the URL the request was created for, before any redirects.
+	 */
+	public URL getUrl() {
+		return requestUrl;
+	}
+
+	/**
+	 * Sets the deadline of the operation this request is part of, replacing
+	 * the deadline attached to the thread that created the request. A value
+	 * of <code>null</code> lets the request run without a deadline.
+	 *
+	 * @see Deadline
+	 */
+	public void setDeadline(Deadline deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Sets the statistics the response bytes of this request are recorded in.
+	 */
+	public void setCompressionStats(CompressionStats compressionStats) {
+		this.compressionStats = compressionStats;
 	}
 
 	/**
@@ -441,14 +1805,17 @@ public class GDataRequest {
 	 * @param contentType the content type of request/response data.
 	 * @param headerMap a set of headers to be included in each request
 	 * @param privateHeaderMap a set of headers to be included in each request
+	 * @param transport transport providing the connection.
 	 * @throws IOException on error initializating service connection.
 	 */
 	protected GDataRequest(RequestType type, URL requestUrl,
 			ContentType contentType, UserToken authToken,
-			Map<String, String> headerMap, Map<String, String> privateHeaderMap)
+			Map<String, String> headerMap, Map<String, String> privateHeaderMap,
+			HttpTransport transport)
 	throws IOException {
 
 		this.type = type;
+		this.transport = transport;
 		this.requestUrl = requestUrl;
 		httpConn = getRequestConnection(requestUrl);
 
@@ -495,6 +1862,7 @@ public class GDataRequest {
 		if (authToken != null) {
 			String authHeader = authToken.getAuthorizationHeader();
 			setPrivateHeader("Authorization", authHeader);
+			this.authToken = authToken;
 		}
 
 		if (headerMap != null) {
@@ -517,20 +1885,251 @@ public class GDataRequest {
 		
 	}
 	
-	protected GDataRequest(URL requestUrl, UserToken authToken)
-		throws IOException {		
+	protected GDataRequest(URL requestUrl, UserToken authToken,
+			HttpTransport transport) throws IOException {		
 		
 		hasOutput = true;
+		this.transport = transport;
 		this.requestUrl = requestUrl;
 		
 		httpConn = getRequestConnection(requestUrl);
 		
 		setHeader("Accept", "*/*");
 		setHeader("Accept-Encoding", "gzip");
+
+		if (authToken != null) {
+			setPrivateHeader("Authorization", authToken.getAuthorizationHeader());
+			this.authToken = authToken;
+		}
 			
 		httpConn.setDoOutput(expectsInput);
 	}
 		
 
 
+	/**
+	 * Request body stream. Keeps a copy of the data sent, as long as it is small
+	 * enough, so that the request can be replayed after a redirect.
+	 *
+	 * <p>If request compression applies, data is held back until the
+	 * compression threshold is reached. Larger bodies are then gzip encoded
+	 * while they are written, smaller ones are sent as they are once the
+	 * request is executed.
+	 */
+	private class RequestOutputStream extends OutputStream {
+
+		private final int threshold;
+		private ByteArrayOutputStream pending;
+		private OutputStream out;
+		private ByteArrayOutputStream replayBuffer = new ByteArrayOutputStream();
+		private boolean finished;
+		private boolean sent;
+
+		/**
+		 * @param threshold body size from which data is compressed, or -1 if
+		 *        the body is never compressed.
+		 */
+		RequestOutputStream(int threshold) throws IOException {
+			this.threshold = threshold;
+			if (threshold > 0) {
+				pending = new ByteArrayOutputStream();
+			} else if (threshold == 0) {
+				open(true, -1);
+			} else {
+				open(false, contentLength);
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (finished) {
+				throw new IOException("Request stream closed");
+			}
+			if (pending != null) {
+				if (pending.size() + len < threshold) {
+					pending.write(b, off, len);
+					return;
+				}
+				open(true, -1);
+			}
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (out != null) {
+				out.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			finish();
+		}
+
+		/**
+		 * Completes the request body, sending any data held back.
+		 */
+		void finish() throws IOException {
+			if (finished) {
+				return;
+			}
+			if (out == null) {
+				open(false, pending.size());
+			}
+			finished = true;
+			out.close();
+			sent = true;
+		}
+
+		/**
+		 * Connects the request and starts sending its data.
+		 *
+		 * @param compress <code>true</code> to gzip the data.
+		 * @param length number of bytes sent, or -1 if not known.
+		 */
+		private void open(boolean compress, long length) throws IOException {
+			if (compress) {
+				setHeader(CONTENT_ENCODING, "gzip");
+			}
+			if (length >= 0 && length <= Integer.MAX_VALUE) {
+				httpConn.setFixedLengthStreamingMode((int) length);
+			} else if (chunkedStreaming || contentLength >= 0) {
+				httpConn.setChunkedStreamingMode(CHUNK_SIZE);
+			}
+			connect();
+			OutputStream wire = new FilterOutputStream(httpConn.getOutputStream()) {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					bytesSent += len;
+					record(b, off, len);
+				}
+			};
+			out = compress ? new GZIPOutputStream(wire, 4096) : wire;
+			if (pending != null) {
+				pending.writeTo(out);
+				pending = null;
+			}
+		}
+
+		private void record(byte[] b, int off, int len) {
+			if (replayBuffer == null) {
+				return;
+			}
+			if (replayBuffer.size() + len > MAX_REPLAY_BYTES) {
+				replayBuffer = null;
+			} else {
+				replayBuffer.write(b, off, len);
+			}
+		}
+
+		/**
+		 * Returns <code>true</code> if all data has been sent and kept.
+		 */
+		boolean isReplayable() {
+			return sent && replayBuffer != null;
+		}
+
+		byte[] getReplayBuffer() {
+			return replayBuffer.toByteArray();
+		}
+	}
+
+	/**
+	 * Response stream that ends the request once the response has been read
+	 * completely or the stream is closed.
+	 */
+	private class ResponseInputStream extends FilterInputStream {
+
+		boolean eof = false;
+
+		long count = 0;
+
+		ResponseInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (eof) {
+				// the connection has been released already
+				return -1;
+			}
+			checkDeadline();
+			int b;
+			try {
+				b = in.read();
+			} catch (IOException e) {
+				reportFailure(e);
+				throw e;
+			}
+			if (b == -1) {
+				finish();
+			} else {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (eof) {
+				// the connection has been released already
+				return -1;
+			}
+			checkDeadline();
+			int n;
+			try {
+				n = in.read(b, off, len);
+			} catch (IOException e) {
+				reportFailure(e);
+				throw e;
+			}
+			if (n == -1) {
+				finish();
+			} else {
+				count += n;
+			}
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			end();
+		}
+
+		/**
+		 * Stops reading once the deadline of the request has passed.
+		 */
+		private void checkDeadline() throws IOException {
+			if (deadline != null && !eof && deadline.isExpired()) {
+				try {
+					deadline.check();
+				} catch (DeadlineExceededException e) {
+					abort(e);
+					throw e;
+				}
+			}
+		}
+
+		InputStream getWrappedStream() {
+			return in;
+		}
+
+		private void finish() {
+			eof = true;
+			end();
+		}
+	}
 }
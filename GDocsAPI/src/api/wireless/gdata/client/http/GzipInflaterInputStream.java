@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Streaming gzip decoder for response bodies. Works like
+ * {@link java.util.zip.GZIPInputStream} but takes its {@link Inflater} from
+ * the {@link InflaterPool} and returns it once the stream is closed, and keeps
+ * track of the number of compressed bytes read.
+ */
+class GzipInflaterInputStream extends InputStream {
+
+	private static final int GZIP_MAGIC = 0x8b1f;
+
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private final InputStream in;
+	private final byte[] buf = new byte[4096];
+	private final CRC32 crc = new CRC32();
+	private Inflater inflater;
+	private int bufLen;
+	private long compressedCount;
+	private long uncompressedCount;
+	private boolean eof;
+
+	GzipInflaterInputStream(InputStream in) throws IOException {
+		this.in = in;
+		// an empty body, e.g. of a HEAD request, decodes to nothing
+		eof = !readHeader();
+		inflater = InflaterPool.acquire();
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len) throws IOException {
+		if (inflater == null) {
+			throw new IOException("Stream closed");
+		}
+		if (eof) {
+			return -1;
+		}
+		if (len == 0) {
+			return 0;
+		}
+		try {
+			while (true) {
+				int n = inflater.inflate(b, off, len);
+				if (n > 0) {
+					crc.update(b, off, n);
+					uncompressedCount += n;
+					return n;
+				}
+				if (inflater.finished()) {
+					readTrailer();
+					eof = true;
+					return -1;
+				}
+				if (inflater.needsDictionary()) {
+					throw new ZipException("Unexpected preset dictionary");
+				}
+				if (inflater.needsInput()) {
+					fill();
+				}
+			}
+		} catch (DataFormatException e) {
+			String message = e.getMessage();
+			throw new ZipException((message != null) ? message : "Invalid gzip data");
+		}
+	}
+
+	@Override
+	public synchronized int available() throws IOException {
+		return eof ? 0 : 1;
+	}
+
+	/**
+	 * Returns the inflater to the pool. May be called by another thread
+	 * aborting the request once its connection has been closed.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (inflater != null) {
+			InflaterPool.release(inflater);
+			inflater = null;
+		}
+		in.close();
+	}
+
+	/**
+	 * Returns the number of compressed bytes read from the underlying stream.
+	 */
+	long getCompressedCount() {
+		return compressedCount;
+	}
+
+	/**
+	 * Returns the number of uncompressed bytes returned by this stream.
+	 */
+	long getUncompressedCount() {
+		return uncompressedCount;
+	}
+
+	private void fill() throws IOException {
+		bufLen = in.read(buf, 0, buf.length);
+		if (bufLen == -1) {
+			throw new EOFException("Unexpected end of gzip stream");
+		}
+		compressedCount += bufLen;
+		inflater.setInput(buf, 0, bufLen);
+	}
+
+	/**
+	 * Reads the gzip header.
+	 *
+	 * @return <code>false</code> if the stream ended before the header.
+	 */
+	private boolean readHeader() throws IOException {
+		int b = in.read();
+		if (b == -1) {
+			return false;
+		}
+		compressedCount++;
+		if (((readUByte() << 8) | b) != GZIP_MAGIC) {
+			throw new ZipException("Not in gzip format");
+		}
+		if (readUByte() != 8) {
+			throw new ZipException("Unsupported compression method");
+		}
+		int flags = readUByte();
+		// modification time, extra flags and operating system
+		skipBytes(6);
+		if ((flags & FEXTRA) != 0) {
+			skipBytes(readUShort());
+		}
+		if ((flags & FNAME) != 0) {
+			while (readUByte() != 0) {
+			}
+		}
+		if ((flags & FCOMMENT) != 0) {
+			while (readUByte() != 0) {
+			}
+		}
+		if ((flags & FHCRC) != 0) {
+			skipBytes(2);
+		}
+		return true;
+	}
+
+	/**
+	 * Reads and checks the gzip trailer following the deflated data. The
+	 * trailer may partly be left in the input buffer.
+	 */
+	private void readTrailer() throws IOException {
+		byte[] trailer = new byte[8];
+		int remaining = Math.min(inflater.getRemaining(), trailer.length);
+		System.arraycopy(buf, bufLen - inflater.getRemaining(), trailer, 0, remaining);
+		for (int i = remaining; i < trailer.length; i++) {
+			trailer[i] = (byte) readUByte();
+		}
+		if (readInt(trailer, 0) != crc.getValue()
+				|| readInt(trailer, 4) != (uncompressedCount & 0xffffffffL)) {
+			throw new ZipException("Corrupt gzip trailer");
+		}
+	}
+
+	private static long readInt(byte[] b, int off) {
+		return (b[off] & 0xffL) | ((b[off + 1] & 0xffL) << 8)
+			| ((b[off + 2] & 0xffL) << 16) | ((b[off + 3] & 0xffL) << 24);
+	}
+
+	private int readUShort() throws IOException {
+		int b = readUByte();
+		return (readUByte() << 8) | b;
+	}
+
+	private int readUByte() throws IOException {
+		int b = in.read();
+		if (b == -1) {
+			throw new EOFException("Unexpected end of gzip stream");
+		}
+		compressedCount++;
+		return b;
+	}
+
+	private void skipBytes(int n) throws IOException {
+		while (n-- > 0) {
+			readUByte();
+		}
+	}
+}
@@ -0,0 +1,323 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+import api.wireless.gdata.util.ServiceException;
+
+/**
+ * Sends a second copy of a slow query and uses whichever copy is answered
+ * first ("hedged requests"), cutting the latency added by an occasional slow
+ * backend.
+ *
+ * <p>The policy records how long queries take until the response headers
+ * arrive. Once enough queries have been recorded, a query that has not been
+ * answered within the configured percentile of that latency is sent again,
+ * and the copy answered later is aborted. Hedges are limited by a
+ * {@link RetryBudget}, by default to five percent of the queries, so that a
+ * slow service is not flooded with copies.
+ *
+ * <p>A service error response counts as an answer and is reported right away;
+ * only network errors make the policy wait for the other copy.
+ *
+ * <p>A policy may be shared by many clients and is thread-safe.
+ */
+public class HedgingPolicy {
+
+	private static final String TAG = "GDataHedgingPolicy";
+
+	/** Default latency percentile after which a query is hedged. */
+	public static final float DEFAULT_PERCENTILE = 95;
+
+	/** Default minimum time (in milliseconds) before a query is hedged. */
+	public static final long DEFAULT_MIN_DELAY = 50;
+
+	/** Default fraction of queries that may be hedged. */
+	public static final double DEFAULT_HEDGE_RATIO = 0.05;
+
+	/** Number of recent latencies the percentile is computed from. */
+	private static final int WINDOW_SIZE = 100;
+
+	/** Number of latencies recorded before queries are hedged. */
+	private static final int MIN_SAMPLES = 20;
+
+	/**
+	 * Creates and executes one copy of a query.
+	 */
+	public interface RequestSource {
+		/**
+		 * Returns a new request, which must not have been executed yet.
+		 */
+		GDataRequest newRequest() throws IOException, ServiceException;
+	}
+
+	private final long[] latencies = new long[WINDOW_SIZE];
+	private int next;
+	private int recorded;
+	private long hedges;
+
+	private volatile float percentile = DEFAULT_PERCENTILE;
+	private volatile long minDelay = DEFAULT_MIN_DELAY;
+	private volatile RetryBudget budget = new RetryBudget(DEFAULT_HEDGE_RATIO, 0);
+	private ExecutorService executor;
+
+	/**
+	 * Sets the latency percentile after which a query is hedged.
+	 */
+	public void setPercentile(float percentile) {
+		if (percentile <= 0 || percentile >= 100) {
+			throw new IllegalArgumentException("Percentile must be in (0, 100)");
+		}
+		this.percentile = percentile;
+	}
+
+	public float getPercentile() {
+		return percentile;
+	}
+
+	/**
+	 * Sets the minimum time (in milliseconds) before a query is hedged.
+	 */
+	public void setMinDelay(long minDelay) {
+		if (minDelay < 0) {
+			throw new IllegalArgumentException("Delay cannot be negative");
+		}
+		this.minDelay = minDelay;
+	}
+
+	public long getMinDelay() {
+		return minDelay;
+	}
+
+	/**
+	 * Sets the budget every hedge needs to be covered by, <code>null</code>
+	 * allowing every slow query to be hedged.
+	 */
+	public void setBudget(RetryBudget budget) {
+		this.budget = budget;
+	}
+
+	public RetryBudget getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Sets the executor the copies of a query run on. By default a pool of
+	 * daemon threads is created on first use.
+	 */
+	public synchronized void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	public synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "GData-hedge-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Returns the time (in milliseconds) after which a query is hedged, or -1
+	 * if not enough queries have been recorded yet.
+	 */
+	public long getHedgeDelay() {
+		long[] sorted;
+		synchronized (this) {
+			if (recorded < MIN_SAMPLES) {
+				return -1;
+			}
+			sorted = new long[recorded];
+			System.arraycopy(latencies, 0, sorted, 0, recorded);
+		}
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+		return Math.max(minDelay, sorted[Math.max(index, 0)]);
+	}
+
+	/**
+	 * Records the time (in milliseconds) a query took until its response
+	 * headers arrived.
+	 */
+	public synchronized void recordLatency(long latency) {
+		latencies[next] = latency;
+		next = (next + 1) % latencies.length;
+		if (recorded < latencies.length) {
+			recorded++;
+		}
+	}
+
+	/**
+	 * Returns the number of queries hedged so far.
+	 */
+	public synchronized long getHedgeCount() {
+		return hedges;
+	}
+
+	/**
+	 * Executes a query, sending a second copy if it is slow.
+	 *
+	 * @param source creates the copies of the query.
+	 * @return the executed request answered first.
+	 */
+	public GDataRequest execute(RequestSource source)
+	throws IOException, ServiceException {
+		RetryBudget budget = this.budget;
+		if (budget != null) {
+			budget.recordRequest();
+		}
+		long delay = getHedgeDelay();
+		if (delay < 0) {
+			return new Attempt(source).call();
+		}
+
+		CompletionService<GDataRequest> completion =
+			new ExecutorCompletionService<GDataRequest>(getExecutor());
+		List<Attempt> attempts = new ArrayList<Attempt>(2);
+		GDataRequest winner = null;
+		try {
+			start(completion, attempts, new Attempt(source));
+			Future<GDataRequest> done = completion.poll(delay, TimeUnit.MILLISECONDS);
+			if (done == null && (budget == null || budget.tryAcquire())) {
+				synchronized (this) {
+					hedges++;
+				}
+				Log.d(TAG, "Hedging query after " + delay + "ms");
+				start(completion, attempts, new Attempt(source));
+			}
+
+			IOException failure = null;
+			for (int pending = attempts.size(); pending > 0; pending--) {
+				if (done == null) {
+					done = completion.take();
+				}
+				try {
+					winner = done.get();
+					return winner;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof ServiceException) {
+						throw (ServiceException) cause;
+					} else if (cause instanceof IOException) {
+						if (failure == null) {
+							failure = (IOException) cause;
+						}
+					} else if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					} else if (cause instanceof Error) {
+						throw (Error) cause;
+					} else {
+						IOException ioe = new IOException("Query failed");
+						ioe.initCause(cause);
+						throw ioe;
+					}
+				}
+				done = null;
+			}
+			throw failure;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for query");
+		} finally {
+			for (Attempt attempt : attempts) {
+				attempt.cancelUnless(winner);
+			}
+		}
+	}
+
+	private static void start(CompletionService<GDataRequest> completion,
+			List<Attempt> attempts, Attempt attempt) {
+		attempts.add(attempt);
+		completion.submit(RequestContext.propagate(attempt));
+	}
+
+	/**
+	 * One copy of a query.
+	 */
+	private class Attempt implements Callable<GDataRequest> {
+
+		private final RequestSource source;
+		private GDataRequest request;
+		private boolean cancelled;
+
+		Attempt(RequestSource source) {
+			this.source = source;
+		}
+
+		public GDataRequest call() throws IOException, ServiceException {
+			GDataRequest request = source.newRequest();
+			synchronized (this) {
+				if (cancelled) {
+					return null;
+				}
+				this.request = request;
+			}
+			long start = System.currentTimeMillis();
+			request.execute();
+			recordLatency(System.currentTimeMillis() - start);
+			synchronized (this) {
+				if (!cancelled) {
+					return request;
+				}
+			}
+			request.abort();
+			return null;
+		}
+
+		/**
+		 * Aborts this copy, whether still running or answered already,
+		 * unless it is the given request.
+		 */
+		void cancelUnless(GDataRequest winner) {
+			GDataRequest request;
+			synchronized (this) {
+				if (cancelled || (winner != null && this.request == winner)) {
+					return;
+				}
+				cancelled = true;
+				request = this.request;
+			}
+			if (request != null) {
+				// a copy losing the race is not worth retrying
+				request.setRetryPolicy(null);
+				request.abort();
+			}
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Transport used by {@link GDataRequest} to obtain HTTP connections to the
+ * GData service.  A transport decides how connections are opened, how many of
+ * them may be in use at once and what happens to the underlying socket once a
+ * request is finished.
+ *
+ * <p>Every connection returned by {@link #openConnection(URL)} goes through
+ * {@link #connect(HttpURLConnection)} before any data is exchanged and is
+ * handed back with {@link #releaseConnection(HttpURLConnection, boolean)} once
+ * the response has been consumed or the request failed.  Implementations must
+ * be thread-safe, a single transport is usually shared by all requests of a
+ * {@link GDataRequest.GDataRequestFactory}.
+ */
+public interface HttpTransport {
+
+	/**
+	 * Creates a new, not yet connected, connection for the given URL.
+	 *
+	 * @param url the request URL.
+	 * @return unconnected HTTP connection.
+	 * @throws IOException if the connection cannot be created.
+	 */
+	HttpURLConnection openConnection(URL url) throws IOException;
+
+	/**
+	 * Connects a connection previously returned by
+	 * {@link #openConnection(URL)}. Implementations may block here until
+	 * capacity for the target host is available.
+	 *
+	 * @param connection the connection to connect.
+	 * @throws IOException if the connection could not be established.
+	 */
+	void connect(HttpURLConnection connection) throws IOException;
+
+	/**
+	 * Returns a connection to the transport once the request is finished.
+	 *
+	 * @param connection the connection to release.
+	 * @param reusable <code>true</code> if the response has been consumed
+	 *        completely and the underlying socket may be kept alive for further
+	 *        requests, <code>false</code> if it must be closed.
+	 */
+	void releaseConnection(HttpURLConnection connection, boolean reusable);
+
+	/**
+	 * Closes all idle connections held by this transport, if any.
+	 */
+	void shutdown();
+}
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import java.util.LinkedList;
+import java.util.zip.Inflater;
+
+/**
+ * Pool of raw (<code>nowrap</code>) {@link Inflater} instances shared by the
+ * gzip response streams. Inflaters hold native buffers of a few dozen
+ * kilobytes, reusing them avoids allocating and finalizing one per response.
+ */
+public final class InflaterPool {
+
+	/** Maximum number of idle inflaters kept by the pool. */
+	private static final int MAX_POOLED = 8;
+
+	private static final LinkedList<Inflater> pool = new LinkedList<Inflater>();
+
+	private InflaterPool() {
+	}
+
+	/**
+	 * Returns an inflater from the pool, or a new one if the pool is empty.
+	 */
+	public static Inflater acquire() {
+		synchronized (pool) {
+			if (!pool.isEmpty()) {
+				return pool.removeFirst();
+			}
+		}
+		return new Inflater(true);
+	}
+
+	/**
+	 * Returns an inflater to the pool. Inflaters beyond the pool size are
+	 * released immediately.
+	 */
+	public static void release(Inflater inflater) {
+		inflater.reset();
+		synchronized (pool) {
+			if (pool.size() < MAX_POOLED) {
+				pool.addFirst(inflater);
+				return;
+			}
+		}
+		inflater.end();
+	}
+}
@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds with a bounded relative error, in
+ * the manner of an HDR histogram.
+ *
+ * <p>Values below 32 are counted exactly. Larger values fall into buckets
+ * of which there are 16 per power of two, so a percentile is reported at
+ * most 1/16 (6.25%) above the values it stands for. Values above
+ * {@link #MAX_VALUE}, about 19 hours, are counted as that value. The
+ * histogram takes about 4 KB whatever the number of values recorded.
+ *
+ * <p>Recording is lock-free. A {@link Snapshot} gives a consistent view of
+ * the values recorded up to when it was taken.
+ */
+public class LatencyHistogram {
+
+	/** Largest value told apart from larger ones, in microseconds. */
+	public static final long MAX_VALUE = (1L << 36) - 1;
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = getIndex(MAX_VALUE) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value.
+	 *
+	 * @param micros the latency in microseconds, negative values counting
+	 *        as 0.
+	 */
+	public void record(long micros) {
+		long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+		counts.incrementAndGet(getIndex(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+			// retry
+		}
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// retry
+		}
+	}
+
+	/**
+	 * Records a value given in nanoseconds.
+	 */
+	public void recordNanos(long nanos) {
+		record(nanos / 1000);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+			total += copy[i];
+		}
+		return new Snapshot(copy, total, sum.get(), min.get(), max.get());
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		min.set(Long.MAX_VALUE);
+		max.set(0);
+	}
+
+	/**
+	 * Returns the bucket of a value: the value itself below
+	 * 2 * {@link #SUB_BUCKETS}, above that 16 buckets per power of two.
+	 */
+	private static int getIndex(long value) {
+		int magnitude = 63 - Long.numberOfLeadingZeros(value | (2 * SUB_BUCKETS - 1));
+		int shift = magnitude - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	/**
+	 * Returns the largest value counted in a bucket.
+	 */
+	private static long getHighestValue(int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long subBucket = index - shift * SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	/**
+	 * The values of a histogram at one point in time.
+	 */
+	public static class Snapshot {
+
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long min;
+		private final long max;
+
+		Snapshot(long[] counts, long count, long sum, long min, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.min = (count > 0) ? min : 0;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Returns the smallest value recorded, or 0.
+		 */
+		public long getMin() {
+			return min;
+		}
+
+		/**
+		 * Returns the largest value recorded, or 0.
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * Returns the mean of the values recorded, or 0.
+		 */
+		public double getMean() {
+			return (count > 0) ? (double) sum / count : 0;
+		}
+
+		/**
+		 * Returns the value that the given percentage of the values recorded
+		 * are at or below, or 0 if none have been recorded.
+		 *
+		 * @param percentile the percentage, from 0 to 100.
+		 */
+		public long getValueAtPercentile(double percentile) {
+			if (percentile < 0 || percentile > 100) {
+				throw new IllegalArgumentException("Percentile out of range: "
+						+ percentile);
+			}
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.max(min, Math.min(getHighestValue(i), max));
+				}
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + " min=" + min + " p50="
+				+ getValueAtPercentile(50) + " p90=" + getValueAtPercentile(90)
+				+ " p99=" + getValueAtPercentile(99) + " max=" + max + " us";
+		}
+	}
+}
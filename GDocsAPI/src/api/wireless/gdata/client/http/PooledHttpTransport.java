@@ -0,0 +1,269 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Default {@link HttpTransport} bounding the number of connections in use per
+ * host.
+ *
+ * <p>Persistent (keep-alive) connections are left to the platform: its
+ * {@link HttpURLConnection} implementation returns a socket to its keep-alive
+ * cache once the response body has been read completely and the stream
+ * closed, which {@link GDataRequest} does before releasing a connection as
+ * reusable. The number and lifetime of idle sockets are governed by the
+ * platform, e.g. through the <code>http.maxConnections</code> system property.
+ * Connections released as not reusable are disconnected, closing their socket.
+ *
+ * <p>Besides the per-host limit, the total number of connections in use is
+ * capped as well. Requests fanned out in large numbers queue up (in arrival
+ * order) for one of the available sockets instead of opening a socket each,
+ * and fail with a {@link ConnectionPoolTimeoutException} if no connection
+ * becomes available within the connection request timeout.
+ */
+public class PooledHttpTransport implements HttpTransport {
+
+	/** Default maximum number of connections in use per host. */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 5;
+
+	/** Default maximum number of connections in use across all hosts. */
+	public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 20;
+
+	/** Default time (in milliseconds) to wait for a free connection. */
+	public static final long DEFAULT_CONNECTION_REQUEST_TIMEOUT = 60 * 1000L;
+
+	private final Map<String, HostPool> pools = new HashMap<String, HostPool>();
+
+	private final Map<HttpURLConnection, HostPool> leases =
+		new HashMap<HttpURLConnection, HostPool>();
+
+	private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+	private int maxTotalConnections = DEFAULT_MAX_TOTAL_CONNECTIONS;
+
+	private Semaphore totalPermits = new Semaphore(maxTotalConnections, true);
+
+	/**
+	 * Time (in milliseconds) to wait for a free connection, zero meaning wait
+	 * indefinitely.
+	 */
+	private long connectionRequestTimeout = DEFAULT_CONNECTION_REQUEST_TIMEOUT;
+
+	public PooledHttpTransport() {
+	}
+
+	public PooledHttpTransport(int maxConnectionsPerHost) {
+		setMaxConnectionsPerHost(maxConnectionsPerHost);
+	}
+
+	/**
+	 * Sets the maximum number of connections that may be in use for a single
+	 * host. Only affects hosts that have not been contacted yet.
+	 */
+	public synchronized void setMaxConnectionsPerHost(int max) {
+		if (max <= 0) {
+			throw new IllegalArgumentException("Pool size must be positive");
+		}
+		maxConnectionsPerHost = max;
+	}
+
+	public synchronized int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+	/**
+	 * Sets the maximum number of connections that may be in use across all
+	 * hosts. Must be called before the transport is used.
+	 */
+	public synchronized void setMaxTotalConnections(int max) {
+		if (max <= 0) {
+			throw new IllegalArgumentException("Pool size must be positive");
+		}
+		if (!leases.isEmpty()) {
+			throw new IllegalStateException("Transport already in use");
+		}
+		maxTotalConnections = max;
+		totalPermits = new Semaphore(max, true);
+	}
+
+	public synchronized int getMaxTotalConnections() {
+		return maxTotalConnections;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) a request waits for a free connection
+	 * before failing. A value of zero means wait indefinitely.
+	 */
+	public synchronized void setConnectionRequestTimeout(long timeout) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("Timeout cannot be negative");
+		}
+		connectionRequestTimeout = timeout;
+	}
+
+	public synchronized long getConnectionRequestTimeout() {
+		return connectionRequestTimeout;
+	}
+
+	/**
+	 * Returns the number of requests waiting for a connection to the given host.
+	 */
+	public synchronized int getPendingRequests(String host) {
+		HostPool pool = pools.get(host);
+		return (pool != null) ? pool.permits.getQueueLength() : 0;
+	}
+
+	/**
+	 * Returns the number of connections currently in use for the given host.
+	 */
+	public synchronized int getLeasedConnections(String host) {
+		HostPool pool = pools.get(host);
+		return (pool != null) ? pool.leased : 0;
+	}
+
+	/**
+	 * Returns the number of connections to the given host that could be
+	 * obtained right now without waiting.
+	 */
+	public synchronized int getAvailableConnections(String host) {
+		HostPool pool = pools.get(host);
+		int available = (pool != null)
+				? pool.permits.availablePermits() : maxConnectionsPerHost;
+		return Math.min(available, totalPermits.availablePermits());
+	}
+
+	public HttpURLConnection openConnection(URL url) throws IOException {
+		return (HttpURLConnection) url.openConnection();
+	}
+
+	public void connect(HttpURLConnection connection) throws IOException {
+		HostPool pool = getPool(connection.getURL());
+		Semaphore total;
+		long timeout;
+		synchronized (this) {
+			total = totalPermits;
+			timeout = connectionRequestTimeout;
+		}
+
+		long start = System.currentTimeMillis();
+		acquire(pool.permits, timeout, pool.host);
+		try {
+			long remaining = 0;
+			if (timeout > 0) {
+				remaining = Math.max(1, timeout - (System.currentTimeMillis() - start));
+			}
+			acquire(total, remaining, pool.host);
+		} catch (IOException e) {
+			pool.permits.release();
+			throw e;
+		}
+
+		synchronized (this) {
+			pool.leased++;
+			leases.put(connection, pool);
+		}
+
+		boolean connected = false;
+		try {
+			connection.connect();
+			connected = true;
+		} finally {
+			if (!connected) {
+				releaseConnection(connection, false);
+			}
+		}
+	}
+
+	public void releaseConnection(HttpURLConnection connection,
+			boolean reusable) {
+		HostPool pool;
+		Semaphore total;
+		synchronized (this) {
+			pool = leases.remove(connection);
+			total = totalPermits;
+		}
+		if (pool == null) {
+			// never connected or already released
+			return;
+		}
+
+		if (!reusable) {
+			connection.disconnect();
+		}
+
+		synchronized (this) {
+			pool.leased--;
+		}
+		total.release();
+		pool.permits.release();
+	}
+
+	public void shutdown() {
+		// idle sockets are held by the platform keep-alive cache
+	}
+
+	/**
+	 * Acquires a permit, waiting at most <code>timeout</code> milliseconds
+	 * (indefinitely if zero).
+	 */
+	private static void acquire(Semaphore permits, long timeout, String host)
+	throws IOException {
+		try {
+			if (timeout == 0) {
+				permits.acquire();
+			} else if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+				throw new ConnectionPoolTimeoutException(
+						"Timed out waiting for a connection to " + host);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for connection to "
+					+ host);
+		}
+	}
+
+	private synchronized HostPool getPool(URL url) {
+		String host = url.getHost();
+		HostPool pool = pools.get(host);
+		if (pool == null) {
+			pool = new HostPool(host, maxConnectionsPerHost);
+			pools.put(host, pool);
+		}
+		return pool;
+	}
+
+	/**
+	 * Connection accounting for a single host.
+	 */
+	private static class HostPool {
+		final String host;
+		final Semaphore permits;
+		int leased;
+
+		HostPool(String host, int maxConnections) {
+			this.host = host;
+			this.permits = new Semaphore(maxConnections, true);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request that would exceed the rate configured
+ * in a {@link RateLimiter} for its service, account and request type.
+ */
+public class RateLimitExceededException extends IOException {
+
+	private final String key;
+	private final long waitTime;
+
+	public RateLimitExceededException(String key, long waitTime) {
+		super("Rate limit exceeded for " + key + ", next request in "
+				+ waitTime + "ms");
+		this.key = key;
+		this.waitTime = waitTime;
+	}
+
+	/**
+	 * Returns the bucket the request was counted against, made of the service
+	 * name, account and request type.
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Returns the time (in milliseconds) until the request would have been
+	 * allowed.
+	 */
+	public long getWaitTime() {
+		return waitTime;
+	}
+}
@@ -0,0 +1,266 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+import api.wireless.gdata.client.http.GDataRequest.RequestType;
+
+/**
+ * Smooths the requests sent to the GData services so that bursts are spread
+ * out on the client instead of being throttled by the server.
+ *
+ * <p>Requests are counted in token buckets, one for every combination of
+ * service name (e.g. <code>writely</code> or <code>wise</code>), account and
+ * request type. A bucket holds up to the burst size of permits and is
+ * refilled at the configured rate; every request takes one permit. When a
+ * bucket is empty the request waits for its permit, or is rejected with a
+ * {@link RateLimitExceededException} if the wait would exceed the maximum
+ * wait time. A maximum wait of zero rejects requests immediately.
+ *
+ * <p>Rates are set for all request types or for a single type. A limiter is
+ * thread-safe and is meant to be shared by all clients whose requests count
+ * against the same quota.
+ */
+public class RateLimiter {
+
+	private static final String TAG = "GDataRateLimiter";
+
+	/** Default number of requests per second. */
+	public static final double DEFAULT_RATE = 5;
+
+	/** Default number of requests that may be sent at once. */
+	public static final int DEFAULT_BURST = 10;
+
+	/** Default time (in milliseconds) a request may wait for its permit. */
+	public static final long DEFAULT_MAX_WAIT = 30 * 1000L;
+
+	private Limit defaultLimit = new Limit(DEFAULT_RATE, DEFAULT_BURST);
+	private final Map<RequestType, Limit> limits =
+		new EnumMap<RequestType, Limit>(RequestType.class);
+	private final Map<String, Bucket> buckets = new HashMap<String, Bucket>();
+	private volatile long maxWait = DEFAULT_MAX_WAIT;
+
+	/**
+	 * Sets the rate of all request types without a rate of their own.
+	 *
+	 * @param permitsPerSecond number of requests per second.
+	 * @param burst number of requests that may be sent at once.
+	 */
+	public synchronized void setRate(double permitsPerSecond, int burst) {
+		defaultLimit = new Limit(permitsPerSecond, burst);
+	}
+
+	/**
+	 * Sets the rate of one request type.
+	 *
+	 * @param type the request type.
+	 * @param permitsPerSecond number of requests per second.
+	 * @param burst number of requests that may be sent at once.
+	 */
+	public synchronized void setRate(RequestType type, double permitsPerSecond,
+			int burst) {
+		limits.put(type, new Limit(permitsPerSecond, burst));
+	}
+
+	/**
+	 * Returns the number of requests per second of a request type.
+	 */
+	public synchronized double getRate(RequestType type) {
+		return getLimit(type).rate;
+	}
+
+	/**
+	 * Returns the number of requests of a request type that may be sent at
+	 * once.
+	 */
+	public synchronized int getBurst(RequestType type) {
+		return (int) getLimit(type).burst;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) a request may wait for its permit before
+	 * it is rejected, zero rejecting requests that cannot be sent right away.
+	 */
+	public void setMaxWait(long maxWait) {
+		if (maxWait < 0) {
+			throw new IllegalArgumentException("Wait time cannot be negative");
+		}
+		this.maxWait = maxWait;
+	}
+
+	public long getMaxWait() {
+		return maxWait;
+	}
+
+	/**
+	 * Takes a permit for a request, waiting up to the maximum wait time for
+	 * it.
+	 *
+	 * @param serviceName the name of the service, e.g. <code>writely</code>.
+	 * @param account the account the request is sent for, or
+	 *        <code>null</code>.
+	 * @param type the request type, <code>null</code> counting as a query.
+	 * @throws RateLimitExceededException if the request would have to wait
+	 *         longer than the maximum wait time.
+	 * @throws InterruptedIOException if interrupted while waiting.
+	 */
+	public void acquire(String serviceName, String account, RequestType type)
+	throws RateLimitExceededException, InterruptedIOException {
+		acquire(serviceName, account, type, maxWait);
+	}
+
+	/**
+	 * Takes a permit for a request, waiting up to the given time for it.
+	 *
+	 * @see #acquire(String, String, RequestType)
+	 */
+	public void acquire(String serviceName, String account, RequestType type,
+			long maxWait) throws RateLimitExceededException, InterruptedIOException {
+		String key = getKey(serviceName, account, type);
+		long wait = reserve(key, type, maxWait);
+		if (wait > maxWait) {
+			throw new RateLimitExceededException(key, wait);
+		}
+		if (wait > 0) {
+			Log.d(TAG, "Delaying request for " + key + " by " + wait + "ms");
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for "
+						+ key);
+			}
+		}
+	}
+
+	/**
+	 * Takes a permit for a request if one is available right away.
+	 *
+	 * @return <code>false</code> if the request must not be sent yet.
+	 */
+	public boolean tryAcquire(String serviceName, String account,
+			RequestType type) {
+		return reserve(getKey(serviceName, account, type), type, 0) == 0;
+	}
+
+	/**
+	 * Returns the number of requests that may be sent right away.
+	 */
+	public int getAvailablePermits(String serviceName, String account,
+			RequestType type) {
+		Limit limit;
+		Bucket bucket;
+		synchronized (this) {
+			limit = getLimit(type);
+			bucket = getBucket(getKey(serviceName, account, type), limit);
+		}
+		return (int) Math.max(0, bucket.getPermits(limit,
+				System.currentTimeMillis()));
+	}
+
+	/**
+	 * Reserves a permit, unless it would only become available after the
+	 * maximum wait time.
+	 *
+	 * @return the time (in milliseconds) until the permit is available.
+	 */
+	private long reserve(String key, RequestType type, long maxWait) {
+		Limit limit;
+		Bucket bucket;
+		synchronized (this) {
+			limit = getLimit(type);
+			bucket = getBucket(key, limit);
+		}
+		return bucket.reserve(limit, System.currentTimeMillis(), maxWait);
+	}
+
+	private Limit getLimit(RequestType type) {
+		Limit limit = limits.get((type != null) ? type : RequestType.QUERY);
+		return (limit != null) ? limit : defaultLimit;
+	}
+
+	private Bucket getBucket(String key, Limit limit) {
+		Bucket bucket = buckets.get(key);
+		if (bucket == null) {
+			bucket = new Bucket(limit.burst, System.currentTimeMillis());
+			buckets.put(key, bucket);
+		}
+		return bucket;
+	}
+
+	private static String getKey(String serviceName, String account,
+			RequestType type) {
+		return serviceName + "/" + ((account != null) ? account : "") + "/"
+				+ ((type != null) ? type : RequestType.QUERY);
+	}
+
+	private static class Limit {
+
+		final double rate;
+		final double burst;
+
+		Limit(double rate, int burst) {
+			if (rate <= 0) {
+				throw new IllegalArgumentException("Rate must be positive");
+			}
+			if (burst <= 0) {
+				throw new IllegalArgumentException("Burst must be positive");
+			}
+			this.rate = rate;
+			this.burst = burst;
+		}
+	}
+
+	private static class Bucket {
+
+		/** Permits left, negative if permits have been reserved ahead. */
+		private double permits;
+		private long lastRefill;
+
+		Bucket(double permits, long now) {
+			this.permits = permits;
+			this.lastRefill = now;
+		}
+
+		synchronized double getPermits(Limit limit, long now) {
+			refill(limit, now);
+			return permits;
+		}
+
+		synchronized long reserve(Limit limit, long now, long maxWait) {
+			refill(limit, now);
+			long wait = (permits >= 1) ? 0
+					: (long) Math.ceil((1 - permits) * 1000 / limit.rate);
+			if (wait <= maxWait) {
+				permits--;
+			}
+			return wait;
+		}
+
+		private void refill(Limit limit, long now) {
+			if (now > lastRefill) {
+				permits += (now - lastRefill) * limit.rate / 1000;
+				lastRefill = now;
+			}
+			permits = Math.min(limit.burst, permits);
+		}
+	}
+}
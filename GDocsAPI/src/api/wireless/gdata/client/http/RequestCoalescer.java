@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import api.wireless.gdata.util.ServiceException;
+import api.wireless.gdata.util.common.base.StreamUtil;
+
+/**
+ * Lets concurrent identical requests share a single fetch ("single flight").
+ *
+ * <p>The first caller asking for a key fetches the response and reads it into
+ * memory. Callers asking for the same key while that fetch is in flight wait
+ * for it instead of sending a request of their own. Every caller receives its
+ * own stream over the shared response data, so each one parses its own
+ * objects and may modify them freely. Nothing is kept once the fetch
+ * completed: later callers fetch again.
+ *
+ * <p>Failures are shared as well, every waiting caller receiving the exception
+ * of the fetch, except when the fetch ran out of time: its deadline is the
+ * one of the caller that fetched, so waiting callers then fetch again. A
+ * caller with a {@link Deadline} stops waiting once it expires or is
+ * cancelled.
+ */
+public class RequestCoalescer {
+
+	/**
+	 * Fetches the response shared by the callers of a key.
+	 */
+	public interface Fetcher {
+		InputStream fetch() throws IOException, ServiceException;
+	}
+
+	/**
+	 * Time (in milliseconds) between checks for the cancellation of the
+	 * deadline of a waiting caller.
+	 */
+	private static final long CANCEL_CHECK_INTERVAL = 100;
+
+	private final Map<String, FutureTask<byte[]>> flights =
+		new HashMap<String, FutureTask<byte[]>>();
+	private long requests;
+	private long coalesced;
+
+	/**
+	 * Returns the response for a key, fetching it unless a fetch for the same
+	 * key is already in flight.
+	 *
+	 * @param key identifies the response, e.g. the URL, ETag and credentials
+	 *        of the request. Keys are never logged or reported.
+	 * @param fetcher fetches the response if needed.
+	 * @return a stream over the response, which is owned by the caller.
+	 */
+	public InputStream fetch(String key, final Fetcher fetcher)
+	throws IOException, ServiceException {
+		boolean counted = false;
+		while (true) {
+			FutureTask<byte[]> flight;
+			boolean leader = false;
+			synchronized (this) {
+				if (!counted) {
+					requests++;
+				}
+				flight = flights.get(key);
+				if (flight == null) {
+					flight = new FutureTask<byte[]>(new Callable<byte[]>() {
+						public byte[] call() throws Exception {
+							InputStream is = fetcher.fetch();
+							try {
+								ByteArrayOutputStream out = new ByteArrayOutputStream();
+								StreamUtil.copy(is, out);
+								return out.toByteArray();
+							} finally {
+								is.close();
+							}
+						}
+					});
+					flights.put(key, flight);
+					leader = true;
+				} else if (!counted) {
+					coalesced++;
+				}
+				counted = true;
+			}
+
+			if (leader) {
+				try {
+					flight.run();
+				} finally {
+					synchronized (this) {
+						flights.remove(key);
+					}
+				}
+				return new ByteArrayInputStream(getResult(flight, null));
+			}
+			try {
+				return new ByteArrayInputStream(getResult(flight, Deadline.current()));
+			} catch (DeadlineExceededException e) {
+				// fails if out of time, otherwise the deadline of the leader ran out
+				Deadline.checkCurrent();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of fetches asked for.
+	 */
+	public synchronized long getRequestCount() {
+		return requests;
+	}
+
+	/**
+	 * Returns the number of fetches that were answered by a fetch already in
+	 * flight.
+	 */
+	public synchronized long getCoalescedCount() {
+		return coalesced;
+	}
+
+	private static byte[] getResult(FutureTask<byte[]> flight, Deadline deadline)
+	throws IOException, ServiceException {
+		try {
+			if (deadline == null) {
+				return flight.get();
+			}
+			while (true) {
+				long timeout = Math.min(deadline.getTimeout(0), CANCEL_CHECK_INTERVAL);
+				try {
+					return flight.get(timeout, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					// checks the deadline again
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for response");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ServiceException) {
+				throw (ServiceException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			IOException ioe = new IOException("Could not fetch response");
+			ioe.initCause(cause);
+			throw ioe;
+		}
+	}
+}
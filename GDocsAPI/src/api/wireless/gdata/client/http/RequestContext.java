@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Carries the request settings of the current thread, its {@link Deadline}
+ * and {@link RequestPriority}, into work handed to other threads.
+ */
+public final class RequestContext {
+
+	private RequestContext() {
+	}
+
+	/**
+	 * Wraps a task so that it runs with the deadline and priority of the
+	 * current thread.
+	 */
+	public static <T> Callable<T> propagate(Callable<T> task) {
+		return RequestPriority.propagate(Deadline.propagate(task));
+	}
+}
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+/**
+ * Observes the requests of a {@link GDataRequest.GDataRequestFactory}, e.g.
+ * to collect latency metrics such as {@link RequestMetrics}.
+ *
+ * <p>A request reports its start once, then connected and first byte for
+ * every connection it makes, including retries and redirects. It ends with
+ * either completed or failed, preceded by the bytes it transferred. Durations
+ * are in nanoseconds.
+ *
+ * <p>Listeners are called on the thread running the request and must not
+ * block. Exceptions thrown by a listener are logged and ignored.
+ */
+public interface RequestListener {
+
+	/**
+	 * Called when the request starts, before waiting for rate limits or a
+	 * connection.
+	 */
+	void requestStarted(GDataRequest request);
+
+	/**
+	 * Called when a connection to the host has been established.
+	 *
+	 * @param connectTime time taken to obtain the connection.
+	 */
+	void requestConnected(GDataRequest request, long connectTime);
+
+	/**
+	 * Called when the status line of a response has been received.
+	 *
+	 * @param waitTime time from being connected to the response, which
+	 *        includes sending the request data and the server processing it.
+	 */
+	void responseStarted(GDataRequest request, long waitTime);
+
+	/**
+	 * Called before the request completes or fails.
+	 *
+	 * @param sent number of request data bytes sent over the wire.
+	 * @param received number of response bytes read from the wire.
+	 */
+	void bytesTransferred(GDataRequest request, long sent, long received);
+
+	/**
+	 * Called when the response has been read or closed.
+	 *
+	 * @param readTime time from the response to its end, spent reading and
+	 *        parsing the response data.
+	 * @param totalTime time from the start of the request to its end.
+	 */
+	void requestCompleted(GDataRequest request, long readTime, long totalTime);
+
+	/**
+	 * Called when the request fails for good, after all retries, or is
+	 * aborted while its response is read.
+	 *
+	 * @param failure the reason of the failure.
+	 * @param totalTime time from the start of the request to its failure.
+	 */
+	void requestFailed(GDataRequest request, Exception failure, long totalTime);
+}
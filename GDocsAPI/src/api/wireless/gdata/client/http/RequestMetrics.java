@@ -0,0 +1,500 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import api.wireless.gdata.client.http.GDataRequest.RequestType;
+
+/**
+ * Collects latency histograms and counters of requests per
+ * {@link RequestType}, per host and per URL template.
+ *
+ * <p>Each request is timed in four phases: connect, the time to obtain a
+ * connection; wait, from being connected to the response, covering the
+ * upload and the server; read, from the response to its end, covering the
+ * download and parsing; and total, from the start of the request, including
+ * rate limits, queueing and retries, to its end. Latencies of failed
+ * requests are left out of the total and read histograms, which are meant
+ * for setting objectives; failures are counted instead.
+ *
+ * <p>URL templates group requests for different resources of the same kind.
+ * A path matches a template registered with {@link #addUrlTemplate(String)}
+ * if it starts with the segments of the template, where a segment in braces
+ * stands for any segment. The longest matching template wins. Paths matching
+ * no template have segments that look like identifiers, containing a digit
+ * or longer than {@link #MAX_NAME_LENGTH} characters, replaced with
+ * <code>{id}</code>. At most {@link #DEFAULT_MAX_URLS} templates are told
+ * apart, further ones are counted as {@link #OTHER_URL}.
+ *
+ * <pre>
+ * RequestMetrics metrics = new RequestMetrics();
+ * metrics.addUrlTemplate("/feeds/cells/{key}/{ws}");
+ * client.addRequestListener(metrics);
+ * ...
+ * metrics.export(writer);
+ * </pre>
+ *
+ * Media downloads carry no request type and are counted as queries.
+ */
+public class RequestMetrics implements RequestListener {
+
+	/** Default number of URL templates told apart. */
+	public static final int DEFAULT_MAX_URLS = 100;
+
+	/** Template of the requests beyond the number of templates told apart. */
+	public static final String OTHER_URL = "{other}";
+
+	/** Longest path segment not taken for an identifier. */
+	public static final int MAX_NAME_LENGTH = 24;
+
+	private static final String ID_SEGMENT = "{id}";
+
+	/**
+	 * Latencies and counters of one group of requests.
+	 */
+	public static class Stats {
+
+		private final LatencyHistogram connect = new LatencyHistogram();
+		private final LatencyHistogram wait = new LatencyHistogram();
+		private final LatencyHistogram read = new LatencyHistogram();
+		private final LatencyHistogram total = new LatencyHistogram();
+		private final AtomicLong requests = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicLong bytesSent = new AtomicLong();
+		private final AtomicLong bytesReceived = new AtomicLong();
+
+		public LatencyHistogram getConnectLatency() {
+			return connect;
+		}
+
+		public LatencyHistogram getWaitLatency() {
+			return wait;
+		}
+
+		public LatencyHistogram getReadLatency() {
+			return read;
+		}
+
+		public LatencyHistogram getTotalLatency() {
+			return total;
+		}
+
+		/**
+		 * Returns the number of requests started.
+		 */
+		public long getRequestCount() {
+			return requests.get();
+		}
+
+		public long getFailureCount() {
+			return failures.get();
+		}
+
+		public long getBytesSent() {
+			return bytesSent.get();
+		}
+
+		public long getBytesReceived() {
+			return bytesReceived.get();
+		}
+
+		void reset() {
+			connect.reset();
+			wait.reset();
+			read.reset();
+			total.reset();
+			requests.set(0);
+			failures.set(0);
+			bytesSent.set(0);
+			bytesReceived.set(0);
+		}
+	}
+
+	/**
+	 * The latencies and counters of one group of requests at one point in
+	 * time. Latencies are in microseconds.
+	 */
+	public static class Snapshot {
+
+		private final String dimension;
+		private final String name;
+		private final long requests;
+		private final long failures;
+		private final long bytesSent;
+		private final long bytesReceived;
+		private final LatencyHistogram.Snapshot connect;
+		private final LatencyHistogram.Snapshot wait;
+		private final LatencyHistogram.Snapshot read;
+		private final LatencyHistogram.Snapshot total;
+
+		Snapshot(String dimension, String name, Stats stats) {
+			this.dimension = dimension;
+			this.name = name;
+			requests = stats.getRequestCount();
+			failures = stats.getFailureCount();
+			bytesSent = stats.getBytesSent();
+			bytesReceived = stats.getBytesReceived();
+			connect = stats.connect.snapshot();
+			wait = stats.wait.snapshot();
+			read = stats.read.snapshot();
+			total = stats.total.snapshot();
+		}
+
+		/**
+		 * Returns what requests are grouped by: <code>type</code>,
+		 * <code>host</code> or <code>url</code>.
+		 */
+		public String getDimension() {
+			return dimension;
+		}
+
+		/**
+		 * Returns the request type, host or URL template of the group.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		public long getRequestCount() {
+			return requests;
+		}
+
+		public long getFailureCount() {
+			return failures;
+		}
+
+		public long getBytesSent() {
+			return bytesSent;
+		}
+
+		public long getBytesReceived() {
+			return bytesReceived;
+		}
+
+		public LatencyHistogram.Snapshot getConnectLatency() {
+			return connect;
+		}
+
+		public LatencyHistogram.Snapshot getWaitLatency() {
+			return wait;
+		}
+
+		public LatencyHistogram.Snapshot getReadLatency() {
+			return read;
+		}
+
+		public LatencyHistogram.Snapshot getTotalLatency() {
+			return total;
+		}
+	}
+
+	/**
+	 * A registered URL template, split into segments.
+	 */
+	private static class UrlTemplate {
+
+		final String template;
+		final String[] segments;
+
+		UrlTemplate(String template) {
+			this.template = template;
+			this.segments = split(template);
+		}
+
+		boolean matches(String[] path) {
+			if (path.length < segments.length) {
+				return false;
+			}
+			for (int i = 0; i < segments.length; i++) {
+				String segment = segments[i];
+				if (!isVariable(segment) && !segment.equals(path[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private final Stats[] types = new Stats[RequestType.values().length];
+	private final Map<String, Stats> hosts = new ConcurrentHashMap<String, Stats>();
+	private final Map<String, Stats> urls = new ConcurrentHashMap<String, Stats>();
+	private final List<UrlTemplate> templates = new CopyOnWriteArrayList<UrlTemplate>();
+	private final int maxUrls;
+
+	public RequestMetrics() {
+		this(DEFAULT_MAX_URLS);
+	}
+
+	/**
+	 * @param maxUrls number of URL templates told apart.
+	 */
+	public RequestMetrics(int maxUrls) {
+		if (maxUrls <= 0) {
+			throw new IllegalArgumentException("Limit must be positive");
+		}
+		this.maxUrls = maxUrls;
+		for (int i = 0; i < types.length; i++) {
+			types[i] = new Stats();
+		}
+	}
+
+	/**
+	 * Registers a URL template such as <code>/feeds/cells/{key}/{ws}</code>.
+	 */
+	public synchronized void addUrlTemplate(String template) {
+		if (!template.startsWith("/")) {
+			throw new IllegalArgumentException("Template must start with /: "
+					+ template);
+		}
+		UrlTemplate added = new UrlTemplate(template);
+		int i = 0;
+		while (i < templates.size()
+				&& templates.get(i).segments.length >= added.segments.length) {
+			i++;
+		}
+		templates.add(i, added);
+	}
+
+	/**
+	 * Returns the template the given URL is counted under.
+	 */
+	public String getUrlTemplate(URL url) {
+		String[] path = split(url.getPath());
+		for (UrlTemplate template : templates) {
+			if (template.matches(path)) {
+				return template.template;
+			}
+		}
+		StringBuilder sb = new StringBuilder(url.getPath().length() + 8);
+		for (String segment : path) {
+			sb.append('/');
+			sb.append(isIdentifier(segment) ? ID_SEGMENT : segment);
+		}
+		if (sb.length() == 0) {
+			sb.append('/');
+		}
+		return sb.toString();
+	}
+
+	public Stats getTypeStats(RequestType type) {
+		return types[type.ordinal()];
+	}
+
+	/**
+	 * Returns the stats of the requests to a host, or <code>null</code>.
+	 *
+	 * @param host the host name, followed by a colon and the port unless it
+	 *        is the default one.
+	 */
+	public Stats getHostStats(String host) {
+		return hosts.get(host);
+	}
+
+	/**
+	 * Returns the stats of the requests counted under a URL template, or
+	 * <code>null</code>.
+	 */
+	public Stats getUrlStats(String template) {
+		return urls.get(template);
+	}
+
+	/**
+	 * Returns the stats of all groups with requests, by type, host and URL
+	 * template.
+	 */
+	public List<Snapshot> snapshot() {
+		List<Snapshot> snapshots = new ArrayList<Snapshot>();
+		for (RequestType type : RequestType.values()) {
+			Stats stats = types[type.ordinal()];
+			if (stats.getRequestCount() > 0) {
+				snapshots.add(new Snapshot("type", type.toString(), stats));
+			}
+		}
+		for (Map.Entry<String, Stats> e : hosts.entrySet()) {
+			snapshots.add(new Snapshot("host", e.getKey(), e.getValue()));
+		}
+		for (Map.Entry<String, Stats> e : urls.entrySet()) {
+			snapshots.add(new Snapshot("url", e.getKey(), e.getValue()));
+		}
+		return snapshots;
+	}
+
+	/**
+	 * Writes the stats of all groups with requests, one line per group and
+	 * phase, for example:
+	 *
+	 * <pre>
+	 * type=QUERY phase=total requests=12 failures=1 sent=0 received=48213 count=11 min=8123 mean=20417 p50=17407 p90=34815 p99=51199 p999=51199 max=50210
+	 * </pre>
+	 *
+	 * Latencies are in microseconds. Counters of the group are repeated on
+	 * each of its lines.
+	 */
+	public void export(Appendable out) throws IOException {
+		for (Snapshot snapshot : snapshot()) {
+			export(out, snapshot, "connect", snapshot.getConnectLatency());
+			export(out, snapshot, "wait", snapshot.getWaitLatency());
+			export(out, snapshot, "read", snapshot.getReadLatency());
+			export(out, snapshot, "total", snapshot.getTotalLatency());
+		}
+	}
+
+	private static void export(Appendable out, Snapshot snapshot, String phase,
+			LatencyHistogram.Snapshot latency) throws IOException {
+		out.append(snapshot.getDimension()).append('=').append(snapshot.getName())
+			.append(" phase=").append(phase)
+			.append(" requests=").append(String.valueOf(snapshot.getRequestCount()))
+			.append(" failures=").append(String.valueOf(snapshot.getFailureCount()))
+			.append(" sent=").append(String.valueOf(snapshot.getBytesSent()))
+			.append(" received=").append(String.valueOf(snapshot.getBytesReceived()))
+			.append(" count=").append(String.valueOf(latency.getCount()))
+			.append(" min=").append(String.valueOf(latency.getMin()))
+			.append(" mean=").append(String.valueOf(Math.round(latency.getMean())))
+			.append(" p50=").append(String.valueOf(latency.getValueAtPercentile(50)))
+			.append(" p90=").append(String.valueOf(latency.getValueAtPercentile(90)))
+			.append(" p99=").append(String.valueOf(latency.getValueAtPercentile(99)))
+			.append(" p999=").append(String.valueOf(latency.getValueAtPercentile(99.9)))
+			.append(" max=").append(String.valueOf(latency.getMax()))
+			.append('\n');
+	}
+
+	public void reset() {
+		for (Stats stats : types) {
+			stats.reset();
+		}
+		hosts.clear();
+		urls.clear();
+	}
+
+	public void requestStarted(GDataRequest request) {
+		for (Stats stats : getStats(request)) {
+			stats.requests.incrementAndGet();
+		}
+	}
+
+	public void requestConnected(GDataRequest request, long connectTime) {
+		for (Stats stats : getStats(request)) {
+			stats.connect.recordNanos(connectTime);
+		}
+	}
+
+	public void responseStarted(GDataRequest request, long waitTime) {
+		for (Stats stats : getStats(request)) {
+			stats.wait.recordNanos(waitTime);
+		}
+	}
+
+	public void bytesTransferred(GDataRequest request, long sent, long received) {
+		for (Stats stats : getStats(request)) {
+			stats.bytesSent.addAndGet(sent);
+			stats.bytesReceived.addAndGet(received);
+		}
+	}
+
+	public void requestCompleted(GDataRequest request, long readTime,
+			long totalTime) {
+		for (Stats stats : getStats(request)) {
+			stats.read.recordNanos(readTime);
+			stats.total.recordNanos(totalTime);
+		}
+	}
+
+	public void requestFailed(GDataRequest request, Exception failure,
+			long totalTime) {
+		for (Stats stats : getStats(request)) {
+			stats.failures.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the stats of the type, host and URL template of a request.
+	 */
+	private Stats[] getStats(GDataRequest request) {
+		RequestType type = request.getType();
+		URL url = request.getUrl();
+		String host = (url.getPort() >= 0)
+				? url.getHost() + ':' + url.getPort() : url.getHost();
+		return new Stats[] {
+			types[(type != null) ? type.ordinal() : RequestType.QUERY.ordinal()],
+			getOrCreate(hosts, host, Integer.MAX_VALUE),
+			getOrCreate(urls, getUrlTemplate(url), maxUrls)
+		};
+	}
+
+	private static Stats getOrCreate(Map<String, Stats> map, String key,
+			int limit) {
+		Stats stats = map.get(key);
+		if (stats != null) {
+			return stats;
+		}
+		synchronized (map) {
+			stats = map.get(key);
+			if (stats == null) {
+				if (map.size() >= limit) {
+					key = OTHER_URL;
+					stats = map.get(key);
+				}
+				if (stats == null) {
+					stats = new Stats();
+					map.put(key, stats);
+				}
+			}
+			return stats;
+		}
+	}
+
+	private static String[] split(String path) {
+		List<String> segments = new ArrayList<String>();
+		int start = 0;
+		int length = path.length();
+		while (start < length) {
+			int end = path.indexOf('/', start);
+			if (end < 0) {
+				end = length;
+			}
+			if (end > start) {
+				segments.add(path.substring(start, end));
+			}
+			start = end + 1;
+		}
+		return segments.toArray(new String[segments.size()]);
+	}
+
+	private static boolean isVariable(String segment) {
+		return segment.length() > 1 && segment.charAt(0) == '{'
+			&& segment.charAt(segment.length() - 1) == '}';
+	}
+
+	private static boolean isIdentifier(String segment) {
+		if (segment.length() > MAX_NAME_LENGTH) {
+			return true;
+		}
+		for (int i = 0; i < segment.length(); i++) {
+			if (Character.isDigit(segment.charAt(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Priority classes of requests, used by a {@link RequestScheduler} to let
+ * user-facing requests overtake background traffic.
+ *
+ * <p>Requests take the priority of their client unless a priority is set for
+ * the current thread, which tags all requests of a single call:
+ *
+ * <pre>
+ * RequestPriority previous = RequestPriority.setCurrent(RequestPriority.BULK);
+ * try {
+ *     docsClient.downloadDocumentMedia(resourceId, ct, file);
+ * } finally {
+ *     RequestPriority.setCurrent(previous);
+ * }
+ * </pre>
+ */
+public enum RequestPriority {
+
+	/** Requests a user is waiting for. */
+	INTERACTIVE,
+
+	/** Requests without special needs. */
+	NORMAL,
+
+	/** Large or batch transfers nobody is waiting for. */
+	BULK;
+
+	private static final ThreadLocal<RequestPriority> CURRENT =
+		new ThreadLocal<RequestPriority>();
+
+	/**
+	 * Returns the priority set for the current thread, or <code>null</code>.
+	 */
+	public static RequestPriority current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Sets the priority of the requests created by the current thread,
+	 * <code>null</code> restoring the priority of their client.
+	 *
+	 * @return the priority set before.
+	 */
+	public static RequestPriority setCurrent(RequestPriority priority) {
+		RequestPriority previous = CURRENT.get();
+		if (priority == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(priority);
+		}
+		return previous;
+	}
+
+	/**
+	 * Wraps a task so that it runs with the priority of the current thread,
+	 * if any.
+	 */
+	public static <T> Callable<T> propagate(final Callable<T> task) {
+		final RequestPriority priority = current();
+		if (priority == null) {
+			return task;
+		}
+		return new Callable<T>() {
+			public T call() throws Exception {
+				RequestPriority previous = setCurrent(priority);
+				try {
+					return task.call();
+				} finally {
+					setCurrent(previous);
+				}
+			}
+		};
+	}
+}
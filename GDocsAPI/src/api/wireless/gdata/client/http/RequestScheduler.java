@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Limits the number of requests in flight and decides which waiting request
+ * goes next, so that background traffic cannot starve user-facing requests.
+ *
+ * <p>Every request holds a slot from the moment it connects until its
+ * response has been consumed. Besides the total number of slots, each
+ * {@link RequestPriority} may be limited to fewer slots of its own, by
+ * default keeping {@link RequestPriority#BULK} transfers from taking them
+ * all. When a slot frees up, the waiting classes share it by weighted fair
+ * queuing: over time each class is served in proportion to its weight, and
+ * requests of the same class are served in arrival order. A class that has
+ * been idle does not save up a share.
+ *
+ * <p>Since a slot is only handed back once the response has been read or
+ * closed, code keeping responses open while it waits for further requests
+ * should not be given fewer slots than responses it keeps open.
+ *
+ * <p>Requests wait for a slot no longer than their {@link Deadline}. A
+ * scheduler is thread-safe and is meant to be shared by all clients whose
+ * requests compete for the same connections.
+ */
+public class RequestScheduler {
+
+	/** Default number of requests in flight. */
+	public static final int DEFAULT_MAX_CONCURRENT =
+		PooledHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+	/** Default number of bulk requests in flight. */
+	public static final int DEFAULT_MAX_CONCURRENT_BULK = 2;
+
+	private final Map<RequestPriority, PriorityClass> classes =
+		new EnumMap<RequestPriority, PriorityClass>(RequestPriority.class);
+	private int maxConcurrent;
+	private int running;
+	/** Start tag of the request served last. */
+	private double virtualTime;
+
+	public RequestScheduler() {
+		this(DEFAULT_MAX_CONCURRENT);
+	}
+
+	/**
+	 * @param maxConcurrent number of requests in flight.
+	 */
+	public RequestScheduler(int maxConcurrent) {
+		setMaxConcurrent(maxConcurrent);
+		classes.put(RequestPriority.INTERACTIVE, new PriorityClass(8));
+		classes.put(RequestPriority.NORMAL, new PriorityClass(4));
+		classes.put(RequestPriority.BULK, new PriorityClass(1));
+		classes.get(RequestPriority.BULK).maxConcurrent = DEFAULT_MAX_CONCURRENT_BULK;
+	}
+
+	/**
+	 * Sets the number of requests in flight.
+	 */
+	public synchronized void setMaxConcurrent(int max) {
+		if (max <= 0) {
+			throw new IllegalArgumentException("Limit must be positive");
+		}
+		maxConcurrent = max;
+		dispatch();
+	}
+
+	public synchronized int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	/**
+	 * Sets the number of requests of a priority class in flight.
+	 */
+	public synchronized void setMaxConcurrent(RequestPriority priority, int max) {
+		if (max <= 0) {
+			throw new IllegalArgumentException("Limit must be positive");
+		}
+		classes.get(priority).maxConcurrent = max;
+		dispatch();
+	}
+
+	public synchronized int getMaxConcurrent(RequestPriority priority) {
+		return Math.min(classes.get(priority).maxConcurrent, maxConcurrent);
+	}
+
+	/**
+	 * Sets the share of the slots a priority class receives relative to the
+	 * other classes while they are all waiting.
+	 */
+	public synchronized void setWeight(RequestPriority priority, int weight) {
+		if (weight <= 0) {
+			throw new IllegalArgumentException("Weight must be positive");
+		}
+		classes.get(priority).weight = weight;
+	}
+
+	public synchronized int getWeight(RequestPriority priority) {
+		return classes.get(priority).weight;
+	}
+
+	/**
+	 * Returns the number of requests of a priority class in flight.
+	 */
+	public synchronized int getRunning(RequestPriority priority) {
+		return classes.get(priority).running;
+	}
+
+	/**
+	 * Returns the number of requests of a priority class waiting for a slot.
+	 */
+	public synchronized int getQueued(RequestPriority priority) {
+		return classes.get(priority).queue.size();
+	}
+
+	/**
+	 * Waits for a slot. Every slot acquired must be handed back with
+	 * {@link #release(RequestPriority)}.
+	 *
+	 * @param priority the priority of the request.
+	 * @param deadline limits the wait, or <code>null</code>.
+	 * @throws DeadlineExceededException if the deadline expired first.
+	 * @throws InterruptedIOException if interrupted while waiting.
+	 */
+	public synchronized void acquire(RequestPriority priority, Deadline deadline)
+	throws InterruptedIOException {
+		PriorityClass pc = classes.get(priority);
+		Waiter waiter = new Waiter();
+		if (pc.queue.isEmpty()) {
+			// an idle class starts at the current virtual time
+			pc.virtualTime = Math.max(pc.virtualTime, virtualTime);
+		}
+		pc.queue.add(waiter);
+		dispatch();
+		try {
+			while (!waiter.granted) {
+				if (deadline == null) {
+					wait();
+				} else {
+					wait(deadline.getTimeout(0));
+				}
+			}
+		} catch (InterruptedException e) {
+			cancel(pc, waiter);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a request slot");
+		} catch (DeadlineExceededException e) {
+			cancel(pc, waiter);
+			throw e;
+		}
+	}
+
+	/**
+	 * Hands back a slot.
+	 */
+	public synchronized void release(RequestPriority priority) {
+		classes.get(priority).running--;
+		running--;
+		dispatch();
+	}
+
+	private void cancel(PriorityClass pc, Waiter waiter) {
+		if (waiter.granted) {
+			pc.running--;
+			running--;
+			dispatch();
+		} else {
+			pc.queue.remove(waiter);
+		}
+	}
+
+	/**
+	 * Hands free slots to the waiting requests, picking the class with the
+	 * lowest start tag each time.
+	 */
+	private void dispatch() {
+		boolean granted = false;
+		while (running < maxConcurrent) {
+			PriorityClass next = null;
+			for (PriorityClass pc : classes.values()) {
+				if (!pc.queue.isEmpty() && pc.running < pc.maxConcurrent
+						&& (next == null || pc.virtualTime < next.virtualTime)) {
+					next = pc;
+				}
+			}
+			if (next == null) {
+				break;
+			}
+			virtualTime = next.virtualTime;
+			next.virtualTime += 1.0 / next.weight;
+			next.running++;
+			running++;
+			next.queue.removeFirst().granted = true;
+			granted = true;
+		}
+		if (granted) {
+			notifyAll();
+		}
+	}
+
+	private static class PriorityClass {
+
+		final LinkedList<Waiter> queue = new LinkedList<Waiter>();
+		int weight;
+		int maxConcurrent = Integer.MAX_VALUE;
+		int running;
+		double virtualTime;
+
+		PriorityClass(int weight) {
+			this.weight = weight;
+		}
+	}
+
+	private static class Waiter {
+		boolean granted;
+	}
+}
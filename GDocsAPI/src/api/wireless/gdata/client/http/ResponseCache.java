@@ -0,0 +1,409 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.util.Log;
+import api.wireless.gdata.util.common.base.StreamUtil;
+
+/**
+ * Keeps the bodies of feed and entry responses together with their
+ * <code>ETag</code> and <code>Last-Modified</code> headers, so that a request
+ * for unchanged data can be revalidated with <code>If-None-Match</code> or
+ * <code>If-Modified-Since</code> and answered from the cache when the service
+ * responds with 304 (Not Modified).
+ *
+ * <p>Responses are kept in memory up to the memory capacity, the least
+ * recently used ones being evicted first. If a directory is given, every
+ * response is also written to disk, up to the disk capacity, and responses
+ * evicted from memory are read back from there. Files on disk are named
+ * after a digest of the key; keys themselves, which may contain credentials,
+ * are never written.
+ *
+ * <p>A cache is thread-safe and may be shared by clients.
+ */
+public class ResponseCache {
+
+	private static final String TAG = "GDataResponseCache";
+
+	/** Default number of bytes kept in memory. */
+	public static final long DEFAULT_MEMORY_CAPACITY = 1024 * 1024;
+
+	/** Default number of bytes kept on disk. */
+	public static final long DEFAULT_DISK_CAPACITY = 16 * 1024 * 1024;
+
+	private static final String SUFFIX = ".cache";
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * A cached response.
+	 */
+	public static class CachedResponse {
+
+		private final String etag;
+		private final String lastModified;
+		private final byte[] body;
+
+		/**
+		 * @param etag the <code>ETag</code> header of the response, or
+		 *        <code>null</code>.
+		 * @param lastModified the <code>Last-Modified</code> header of the
+		 *        response, or <code>null</code>.
+		 * @param body the response data.
+		 */
+		public CachedResponse(String etag, String lastModified, byte[] body) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.body = body;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		public String getLastModified() {
+			return lastModified;
+		}
+
+		public int getLength() {
+			return body.length;
+		}
+
+		/**
+		 * Returns a new stream over the response data.
+		 */
+		public InputStream getStream() {
+			return new ByteArrayInputStream(body);
+		}
+	}
+
+	private final long memoryCapacity;
+	private final File directory;
+	private final long diskCapacity;
+
+	private final LinkedHashMap<String, CachedResponse> memory =
+		new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+	private long memorySize;
+	private long diskSize;
+	private long hits;
+	private long misses;
+
+	/**
+	 * Creates a cache keeping up to {@link #DEFAULT_MEMORY_CAPACITY} bytes in
+	 * memory only.
+	 */
+	public ResponseCache() {
+		this(DEFAULT_MEMORY_CAPACITY, null, 0);
+	}
+
+	/**
+	 * Creates a cache keeping up to the given number of bytes in memory only.
+	 */
+	public ResponseCache(long memoryCapacity) {
+		this(memoryCapacity, null, 0);
+	}
+
+	/**
+	 * Creates a cache that also keeps responses on disk.
+	 *
+	 * @param memoryCapacity number of bytes kept in memory.
+	 * @param directory directory the responses are written to, created if
+	 *        needed, or <code>null</code> to keep responses in memory only.
+	 * @param diskCapacity number of bytes kept on disk.
+	 */
+	public ResponseCache(long memoryCapacity, File directory, long diskCapacity) {
+		if (memoryCapacity < 0 || diskCapacity < 0) {
+			throw new IllegalArgumentException("Capacity cannot be negative");
+		}
+		this.memoryCapacity = memoryCapacity;
+		this.directory = directory;
+		this.diskCapacity = diskCapacity;
+		if (directory != null) {
+			directory.mkdirs();
+			for (File file : listFiles()) {
+				diskSize += file.length();
+			}
+		}
+	}
+
+	/**
+	 * Returns the cached response for a key, or <code>null</code>.
+	 */
+	public CachedResponse get(String key) {
+		synchronized (this) {
+			CachedResponse response = memory.get(key);
+			if (response != null) {
+				hits++;
+				return response;
+			}
+		}
+		CachedResponse response = (directory != null) ? read(key) : null;
+		synchronized (this) {
+			if (response == null) {
+				misses++;
+			} else {
+				hits++;
+				putInMemory(key, response);
+			}
+		}
+		return response;
+	}
+
+	/**
+	 * Stores a response, replacing the one cached for the key, if any.
+	 */
+	public void put(String key, CachedResponse response) {
+		synchronized (this) {
+			putInMemory(key, response);
+		}
+		if (directory != null) {
+			write(key, response);
+		}
+	}
+
+	/**
+	 * Removes the response cached for a key, if any.
+	 */
+	public void remove(String key) {
+		synchronized (this) {
+			CachedResponse response = memory.remove(key);
+			if (response != null) {
+				memorySize -= response.getLength();
+			}
+		}
+		if (directory != null) {
+			deleteFile(getFile(key));
+		}
+	}
+
+	/**
+	 * Removes all cached responses.
+	 */
+	public void clear() {
+		synchronized (this) {
+			memory.clear();
+			memorySize = 0;
+		}
+		if (directory != null) {
+			for (File file : listFiles()) {
+				deleteFile(file);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of bytes currently kept in memory.
+	 */
+	public synchronized long getMemorySize() {
+		return memorySize;
+	}
+
+	/**
+	 * Returns the number of bytes currently kept on disk.
+	 */
+	public synchronized long getDiskSize() {
+		return diskSize;
+	}
+
+	/**
+	 * Returns the number of lookups that found a response.
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of lookups that found nothing.
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	private void putInMemory(String key, CachedResponse response) {
+		CachedResponse previous = memory.remove(key);
+		if (previous != null) {
+			memorySize -= previous.getLength();
+		}
+		if (response.getLength() > memoryCapacity) {
+			return;
+		}
+		memory.put(key, response);
+		memorySize += response.getLength();
+		Iterator<CachedResponse> it = memory.values().iterator();
+		while (memorySize > memoryCapacity && it.hasNext()) {
+			memorySize -= it.next().getLength();
+			it.remove();
+		}
+	}
+
+	private CachedResponse read(String key) {
+		File file = getFile(key);
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				if (in.readInt() != FORMAT_VERSION) {
+					throw new IOException("Unknown format");
+				}
+				String etag = readString(in);
+				String lastModified = readString(in);
+				byte[] body = new byte[in.readInt()];
+				in.readFully(body);
+				file.setLastModified(System.currentTimeMillis());
+				return new CachedResponse(etag, lastModified, body);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Discarding unreadable " + file + ": " + e.getMessage());
+			deleteFile(file);
+			return null;
+		}
+	}
+
+	private void write(String key, CachedResponse response) {
+		File file = getFile(key);
+		File temp = null;
+		try {
+			temp = StreamUtil.createTempFile(file);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temp)));
+			try {
+				out.writeInt(FORMAT_VERSION);
+				writeString(out, response.getEtag());
+				writeString(out, response.getLastModified());
+				out.writeInt(response.body.length);
+				out.write(response.body);
+			} finally {
+				out.close();
+			}
+			long previous = file.length();
+			StreamUtil.replaceFile(temp, file);
+			synchronized (this) {
+				diskSize += file.length() - previous;
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Could not write " + file + ": " + e.getMessage());
+			if (temp != null) {
+				temp.delete();
+			}
+			return;
+		}
+		trimDisk(file);
+	}
+
+	/**
+	 * Deletes the least recently used files, except the one just written,
+	 * until the disk tier fits its capacity.
+	 */
+	private void trimDisk(File written) {
+		synchronized (this) {
+			if (diskSize <= diskCapacity) {
+				return;
+			}
+		}
+		File[] files = listFiles();
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+			}
+		});
+		for (File file : files) {
+			synchronized (this) {
+				if (diskSize <= diskCapacity) {
+					return;
+				}
+			}
+			if (!file.equals(written)) {
+				deleteFile(file);
+			}
+		}
+	}
+
+	private void deleteFile(File file) {
+		long length = file.length();
+		if (file.delete()) {
+			synchronized (this) {
+				diskSize -= length;
+			}
+		}
+	}
+
+	private File[] listFiles() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+		int count = 0;
+		for (File file : files) {
+			if (file.getName().endsWith(SUFFIX)) {
+				files[count++] = file;
+			}
+		}
+		File[] result = new File[count];
+		System.arraycopy(files, 0, result, 0, count);
+		return result;
+	}
+
+	private File getFile(String key) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(key.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder(hash.length * 2 + SUFFIX.length());
+			for (byte b : hash) {
+				name.append(Character.forDigit((b >> 4) & 0xf, 16));
+				name.append(Character.forDigit(b & 0xf, 16));
+			}
+			return new File(directory, name.append(SUFFIX).toString());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeString(DataOutputStream out, String s)
+	throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			out.writeUTF(s);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+/**
+ * Limits the number of retries relative to the number of requests, so that
+ * retries cannot multiply the load on a service that is failing already.
+ *
+ * <p>Every request deposits a fraction of a retry into the budget and every
+ * retry withdraws a whole one. Besides that, a minimum number of retries per
+ * second is always allowed, so that clients sending few requests can still
+ * retry. The balance is capped at ten seconds worth of the minimum rate,
+ * retries cannot be saved up for a later storm.
+ *
+ * <p>One budget, {@link #getDefault()}, is shared by all retry policies of
+ * the process unless they are given a budget of their own.
+ */
+public class RetryBudget {
+
+	/** Default fraction of requests that may be retried. */
+	public static final double DEFAULT_RETRY_RATIO = 0.1;
+
+	/** Default number of retries per second allowed regardless of traffic. */
+	public static final int DEFAULT_MIN_RETRIES_PER_SECOND = 10;
+
+	private static final int CAPACITY_SECONDS = 10;
+
+	private static final RetryBudget DEFAULT = new RetryBudget();
+
+	private final double retryRatio;
+	private final double minRetriesPerMilli;
+	private final double capacity;
+	private double balance;
+	private long lastRefill;
+
+	public RetryBudget() {
+		this(DEFAULT_RETRY_RATIO, DEFAULT_MIN_RETRIES_PER_SECOND);
+	}
+
+	/**
+	 * @param retryRatio fraction of requests that may be retried, between 0
+	 *        and 1.
+	 * @param minRetriesPerSecond number of retries per second allowed
+	 *        regardless of the number of requests.
+	 */
+	public RetryBudget(double retryRatio, int minRetriesPerSecond) {
+		if (retryRatio < 0 || retryRatio > 1) {
+			throw new IllegalArgumentException("Retry ratio must be between 0 and 1");
+		}
+		if (minRetriesPerSecond < 0) {
+			throw new IllegalArgumentException("Retry rate cannot be negative");
+		}
+		this.retryRatio = retryRatio;
+		this.minRetriesPerMilli = minRetriesPerSecond / 1000.0;
+		this.capacity = Math.max(minRetriesPerSecond, 1) * CAPACITY_SECONDS;
+		this.balance = minRetriesPerSecond;
+		this.lastRefill = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the budget shared by the whole process.
+	 */
+	public static RetryBudget getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Records a request, making a fraction of a retry available.
+	 */
+	public synchronized void recordRequest() {
+		refill();
+		balance = Math.min(capacity, balance + retryRatio);
+	}
+
+	/**
+	 * Withdraws one retry from the budget.
+	 *
+	 * @return <code>false</code> if the budget is exhausted and the request
+	 *         must not be retried.
+	 */
+	public synchronized boolean tryAcquire() {
+		refill();
+		if (balance < 1) {
+			return false;
+		}
+		balance--;
+		return true;
+	}
+
+	/**
+	 * Returns the number of retries currently available.
+	 */
+	public synchronized int getAvailableRetries() {
+		refill();
+		return (int) balance;
+	}
+
+	private void refill() {
+		long now = System.currentTimeMillis();
+		if (now > lastRefill) {
+			balance = Math.min(capacity,
+					balance + (now - lastRefill) * minRetriesPerMilli);
+		}
+		lastRefill = now;
+	}
+}
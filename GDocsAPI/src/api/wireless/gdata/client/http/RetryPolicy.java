@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright 2009 Art Wild
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package api.wireless.gdata.client.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import api.wireless.gdata.client.GDataProtocol.Header;
+import api.wireless.gdata.util.ServiceException;
+import api.wireless.gdata.util.ServiceUnavailableException;
+
+/**
+ * Decides whether and when a failed idempotent request is sent again.
+ *
+ * <p>The number of retries is configured per exception class, the setting of
+ * the closest superclass applying to exceptions without a setting of their
+ * own. By default network errors and {@link ServiceUnavailableException}s
+ * (503 and gateway errors) are retried up to {@link #DEFAULT_MAX_RETRIES}
+ * times, while all other service errors, interrupted requests and requests
+ * stopped by an open circuit breaker or a rate limiter are not.
+ *
+ * <p>Delays between attempts grow randomly ("decorrelated jitter"): each
+ * delay is chosen between the base delay and three times the previous delay,
+ * up to the maximum delay, which keeps clients that failed at the same time
+ * from retrying in lockstep. A <code>Retry-After</code> header sent by the
+ * service sets the minimum delay; if it asks for more than the maximum delay
+ * the request is not retried. Every retry also needs to be covered by the
+ * {@link RetryBudget}.
+ *
+ * <p>A policy may be shared by many requests and is thread-safe.
+ */
+public class RetryPolicy {
+
+	/** Default number of retries of a request failing with a transient error. */
+	public static final int DEFAULT_MAX_RETRIES = 3;
+
+	/** Default minimum delay (in milliseconds) before a retry. */
+	public static final long DEFAULT_BASE_DELAY = 250;
+
+	/** Default maximum delay (in milliseconds) before a retry. */
+	public static final long DEFAULT_MAX_DELAY = 20 * 1000L;
+
+	private static final String RETRY_AFTER_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+	private final Map<Class<?>, Integer> maxRetries = new HashMap<Class<?>, Integer>();
+
+	private final Random random = new Random();
+
+	private long baseDelay = DEFAULT_BASE_DELAY;
+
+	private long maxDelay = DEFAULT_MAX_DELAY;
+
+	private RetryBudget retryBudget = RetryBudget.getDefault();
+
+	public RetryPolicy() {
+		setMaxRetries(IOException.class, DEFAULT_MAX_RETRIES);
+		setMaxRetries(InterruptedIOException.class, 0);
+		setMaxRetries(SocketTimeoutException.class, DEFAULT_MAX_RETRIES);
+		setMaxRetries(ConnectionPoolTimeoutException.class, 0);
+		setMaxRetries(CircuitOpenException.class, 0);
+		setMaxRetries(RateLimitExceededException.class, 0);
+		setMaxRetries(ServiceUnavailableException.class, DEFAULT_MAX_RETRIES);
+	}
+
+	/**
+	 * Sets the number of retries of requests failing with the given exception
+	 * class or one of its subclasses without a setting of their own. A value
+	 * of zero disables retries.
+	 */
+	public synchronized void setMaxRetries(Class<? extends Exception> type,
+			int retries) {
+		if (retries < 0) {
+			throw new IllegalArgumentException("Retries cannot be negative");
+		}
+		maxRetries.put(type, Integer.valueOf(retries));
+	}
+
+	/**
+	 * Returns the number of retries of requests failing with the given
+	 * exception class.
+	 */
+	public synchronized int getMaxRetries(Class<? extends Exception> type) {
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			Integer retries = maxRetries.get(c);
+			if (retries != null) {
+				return retries.intValue();
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Sets the minimum delay (in milliseconds) before a retry.
+	 */
+	public synchronized void setBaseDelay(long delay) {
+		if (delay < 0) {
+			throw new IllegalArgumentException("Delay cannot be negative");
+		}
+		baseDelay = delay;
+	}
+
+	public synchronized long getBaseDelay() {
+		return baseDelay;
+	}
+
+	/**
+	 * Sets the maximum delay (in milliseconds) before a retry.
+	 */
+	public synchronized void setMaxDelay(long delay) {
+		if (delay < 0) {
+			throw new IllegalArgumentException("Delay cannot be negative");
+		}
+		maxDelay = delay;
+	}
+
+	public synchronized long getMaxDelay() {
+		return maxDelay;
+	}
+
+	/**
+	 * Sets the budget retries are taken from, <code>null</code> allowing any
+	 * number of retries.
+	 */
+	public synchronized void setRetryBudget(RetryBudget budget) {
+		retryBudget = budget;
+	}
+
+	public synchronized RetryBudget getRetryBudget() {
+		return retryBudget;
+	}
+
+	/**
+	 * Records the first attempt of a request in the retry budget.
+	 */
+	public void recordRequest() {
+		RetryBudget budget = getRetryBudget();
+		if (budget != null) {
+			budget.recordRequest();
+		}
+	}
+
+	/**
+	 * Returns the time to wait before retrying a failed request.
+	 *
+	 * @param failure the exception the last attempt failed with.
+	 * @param retries the number of retries made so far.
+	 * @param previousDelay the delay before the last retry, zero for the
+	 *        first retry.
+	 * @return the delay in milliseconds, or -1 if the request must not be
+	 *         retried.
+	 */
+	public long getRetryDelay(Exception failure, int retries,
+			long previousDelay) {
+		if (retries >= getMaxRetries(failure.getClass())) {
+			return -1;
+		}
+
+		long base;
+		long max;
+		synchronized (this) {
+			base = baseDelay;
+			max = maxDelay;
+		}
+		long minDelay = 0;
+		if (failure instanceof ServiceException) {
+			minDelay = getRetryAfter((ServiceException) failure);
+			if (minDelay > max) {
+				return -1;
+			}
+		}
+
+		RetryBudget budget = getRetryBudget();
+		if (budget != null && !budget.tryAcquire()) {
+			return -1;
+		}
+
+		long upper = Math.min(max, Math.max(previousDelay, base) * 3);
+		long delay = base;
+		if (upper > base) {
+			delay += (long) (nextRandom() * (upper - base));
+		}
+		return Math.max(delay, minDelay);
+	}
+
+	private synchronized double nextRandom() {
+		return random.nextDouble();
+	}
+
+	/**
+	 * Returns the delay requested by a <code>Retry-After</code> header of the
+	 * error response, or zero.
+	 */
+	static long getRetryAfter(ServiceException e) {
+		Map<String, List<String>> headers = e.getHttpHeaders();
+		if (headers == null) {
+			return 0;
+		}
+		String value = null;
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			if (Header.RETRY_AFTER.equalsIgnoreCase(header.getKey())
+					&& !header.getValue().isEmpty()) {
+				value = header.getValue().get(0);
+			}
+		}
+		if (value == null) {
+			return 0;
+		}
+		value = value.trim();
+		try {
+			return Math.max(0, Long.parseLong(value) * 1000);
+		} catch (NumberFormatException nfe) {
+			// not a number of seconds but a date
+		}
+		try {
+			SimpleDateFormat format = new SimpleDateFormat(RETRY_AFTER_DATE_FORMAT,
+					Locale.US);
+			return Math.max(0, format.parse(value).getTime()
+					- System.currentTimeMillis());
+		} catch (ParseException pe) {
+			return 0;
+		}
+	}
+}
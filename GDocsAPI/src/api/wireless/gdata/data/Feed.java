@@ -25,6 +25,8 @@ import java.util.List;
  */
 public class Feed<E extends Entry> {
     private int startIndex;
+    private int totalResults;
+    private int itemsPerPage;
     private String title;
     private String id;
     private String lastUpdated;
@@ -64,6 +66,30 @@ public class Feed<E extends Entry> {
         this.startIndex = startIndex;
     }
 
+    /**
+     * @return total number of results matching the feed query, or 0 if the
+     * server did not report it
+     */
+    public int getTotalResults() {
+        return totalResults;
+    }
+
+    public void setTotalResults(int totalResults) {
+        this.totalResults = totalResults;
+    }
+
+    /**
+     * @return number of entries per page of the feed, or 0 if the server did
+     * not report it
+     */
+    public int getItemsPerPage() {
+        return itemsPerPage;
+    }
+
+    public void setItemsPerPage(int itemsPerPage) {
+        this.itemsPerPage = itemsPerPage;
+    }
+
     /**
      * @return the category
      */
@@ -15,6 +15,8 @@
  ******************************************************************************/
 package api.wireless.gdata.docs.client;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -22,15 +24,17 @@ import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
-import org.apache.http.entity.FileEntity;
 
 import android.util.Log;
+import api.wireless.gdata.client.DownloadResult;
 import api.wireless.gdata.client.GDataParserFactory;
 import api.wireless.gdata.client.GDataServiceClient;
+import api.wireless.gdata.client.ResumableUploader;
 import api.wireless.gdata.client.TokenFactory.ClientLoginAccountType;
 import api.wireless.gdata.client.http.GDataRequest;
 import api.wireless.gdata.client.http.GDataRequest.RequestType;
@@ -60,6 +64,8 @@ public class DocsClient extends GDataServiceClient {
 	
 	/** The name of the service by the protocol. */
 	private static final String SERVICE = "writely";
+
+	private static final String URL_UPLOAD_SESSION = "/upload/create-session";
 	
 	private int feedCollectionSize = FEED_COLLECTION_SIZE;
 	
@@ -282,6 +288,16 @@ public class DocsClient extends GDataServiceClient {
 		return parseEntry((new DocumentEntry()).getClass(), is);
 	}
 
+	/**
+	 * Uploads the remaining content of a file channel as a new entry.
+	 * @see DocsGDataClient#createCompleteEntry(URL, String, FileChannel, String)
+	 */
+	public DocumentEntry createFileEntry(URL feedUrl, String name, FileChannel channel, String contentType)
+	throws ParseException, IOException, ServiceException {		
+		InputStream is = ((DocsGDataClient) getGDataClient()).createCompleteEntry(feedUrl, name, channel, contentType);
+		return parseEntry(DocumentEntry.class, is);
+	}
+
 	/**
 	 * Create new document without content
 	 * @param docEntry document entry
@@ -328,6 +344,61 @@ public class DocsClient extends GDataServiceClient {
 		return (DocumentEntry) createFileEntry(url, name, inputStream, contentType);
 	}
 
+	/**
+	 * Uploads a file of any type to server (only works for Premier Accounts).
+	 * The file is streamed with its length known in advance.
+	 * @param name document name
+	 * @param file file to upload
+	 * @param contentType content type
+	 * @return DocumentEntry object representing file
+	 * @throws ParseException
+	 * @throws IOException
+	 * @throws ServiceException
+	 */
+	public DocumentEntry createFileDocument(String name, File file, String contentType) 
+	throws ParseException, IOException, ServiceException {		
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return createFileDocument(name, in.getChannel(), contentType);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Uploads the remaining content of a file channel as a file of any type
+	 * (only works for Premier Accounts).
+	 * @see #createFileDocument(String, File, String)
+	 */
+	public DocumentEntry createFileDocument(String name, FileChannel channel, String contentType) 
+	throws ParseException, IOException, ServiceException {		
+		String[] parameters = new String[] {"convert=false"};
+		URL url = buildUrl(URL_DEFAULT + URL_DOCLIST_FEED,parameters);
+		return createFileEntry(url, name, channel, contentType);
+	}
+
+	/**
+	 * Uploads a large file of any type (only works for Premier Accounts)
+	 * using the resumable upload protocol, so that a network failure only
+	 * requires the interrupted part to be sent again.
+	 * @param name document name
+	 * @param file file to upload
+	 * @param contentType content type
+	 * @param listener receives upload progress, may be <code>null</code>
+	 * @return DocumentEntry object representing file
+	 * @throws ParseException
+	 * @throws IOException
+	 * @throws ServiceException
+	 */
+	public DocumentEntry uploadFileDocument(String name, File file, String contentType,
+			ResumableUploader.ProgressListener listener) 
+	throws ParseException, IOException, ServiceException {		
+		String[] parameters = new String[] {"convert=false"};
+		URL url = buildUrl(URL_UPLOAD_SESSION + URL_DEFAULT + URL_DOCLIST_FEED, parameters);
+		InputStream is = ((DocsGDataClient) getGDataClient()).createResumableEntry(url, name, file, contentType, listener);
+		return parseEntry(DocumentEntry.class, is);
+	}
+
 	public DocumentEntry createDocumentInFolder(DocumentEntry docEntry,
 			InputStream inputStream, String contentType, String folderUid)
 	throws ParseException, IOException, ServiceException {		
@@ -435,9 +506,10 @@ public class DocsClient extends GDataServiceClient {
 		}		
 
 		InputStream entryStream = null;
+		GDataRequest request = null;
 		try {
 			URL fldurl = new URL(url);
-			GDataRequest request = getGDataClient().createRequest(RequestType.BATCH, fldurl);			
+			request = getGDataClient().createRequest(RequestType.BATCH, fldurl);			
 			
 			OutputStream os = request.getRequestStream();
 			serializer.serialize(os, GDataSerializer.FORMAT_UPDATE);
@@ -448,7 +520,13 @@ public class DocsClient extends GDataServiceClient {
 		} catch (ServiceException e) {   
 			Log.e(TAG, e.getMessage(), e);			
 		} catch (ParseException e) {
+			request.abort();
 			Log.e(TAG, e.getMessage(), e);
+		} catch (IOException e) {
+			if (request != null) {
+				request.abort();
+			}
+			throw e;
 		}
         
         return (DocumentEntry) parseEntry(doc.getClass(), entryStream);		
@@ -460,9 +538,21 @@ public class DocsClient extends GDataServiceClient {
 	        throw new ParseException("No document found.");
 	    }	    
 	    
-        String[] parameters = {"docID=" + getResourceIdSuffix(resourceId), "exportFormat=" + ContentType.getFileExtension(ct)};
-        URL url = buildUrl(URL_DOWNLOAD + "/documents" + URL_CATEGORY_EXPORT, parameters);	    
-	    return ((DocsGDataClient)getGDataClient()).getMediaEntryAsStream(url, ct);
+	    return ((DocsGDataClient)getGDataClient()).getMediaEntryAsStream(getExportUrl("/documents", resourceId, ct), ct);
+	}
+	
+	/**
+	 * Exports a document into a file, downloading parts of it in parallel.
+	 * The file is only replaced once the whole export has been received.
+	 * @return size of the export and time taken by the download.
+	 * @see #setDownloadSegments(int)
+	 */
+	public DownloadResult downloadDocumentMedia(String resourceId, ContentType ct, File file)
+	throws IOException, ServiceException, ParseException {
+	    if (StringUtil.isEmpty(resourceId)) {
+	        throw new ParseException("No document found.");
+	    }
+	    return downloadMedia(getExportUrl("/documents", resourceId, ct), ct, file);
 	}
 	
 
@@ -487,11 +577,28 @@ public class DocsClient extends GDataServiceClient {
         if (StringUtil.isEmpty(resourceId)) {
             throw new ParseException("No document found.");
         }
-        
-        String[] parameters = {"docID=" + getResourceIdSuffix(resourceId), "exportFormat=" + ContentType.getFileExtension(ct)};        	    
-        URL url = buildUrl(URL_DOWNLOAD + "/presentations" + URL_CATEGORY_EXPORT, parameters);
 
-	    return ((DocsGDataClient)getGDataClient()).getMediaEntryAsStream(url, ct);        
+	    return ((DocsGDataClient)getGDataClient()).getMediaEntryAsStream(getExportUrl("/presentations", resourceId, ct), ct);        
+	}
+	
+	/**
+	 * Exports a presentation into a file, downloading parts of it in parallel.
+	 * The file is only replaced once the whole export has been received.
+	 * @return size of the export and time taken by the download.
+	 * @see #setDownloadSegments(int)
+	 */
+	public DownloadResult downloadPresentationMedia(String resourceId, ContentType ct, File file)
+	throws IOException, ServiceException, ParseException {
+	    if (StringUtil.isEmpty(resourceId)) {
+	        throw new ParseException("No document found.");
+	    }
+	    return downloadMedia(getExportUrl("/presentations", resourceId, ct), ct, file);
+	}
+	
+	private URL getExportUrl(String category, String resourceId, ContentType ct)
+	throws MalformedURLException, ServiceException {
+        String[] parameters = {"docID=" + getResourceIdSuffix(resourceId), "exportFormat=" + ContentType.getFileExtension(ct)};
+        return buildUrl(URL_DOWNLOAD + category + URL_CATEGORY_EXPORT, parameters);
 	}
 	
 	public DocumentEntry OCRDocument(DocumentEntry doc, InputStream inputStream, String contentType)
@@ -15,12 +15,19 @@
  ******************************************************************************/
 package api.wireless.gdata.docs.client;
 
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
+import api.wireless.gdata.client.ResumableUploader;
 import api.wireless.gdata.client.ServiceDataClient;
 import api.wireless.gdata.client.http.GDataRequest;
 import api.wireless.gdata.client.http.GDataRequest.GDataRequestFactory;
@@ -29,6 +36,7 @@ import api.wireless.gdata.parser.ParseException;
 import api.wireless.gdata.serializer.GDataSerializer;
 import api.wireless.gdata.util.ContentType;
 import api.wireless.gdata.util.ServiceException;
+import api.wireless.gdata.util.common.base.StreamUtil;
 
 
 public class DocsGDataClient extends ServiceDataClient  {			
@@ -51,8 +59,10 @@ public class DocsGDataClient extends ServiceDataClient  {
 		try {
 			request = createInsertRequest(feedUrl);
 			request.setHeader("Content-Type", "multipart/related; boundary=" + boundary);
+			request.setChunkedStreaming(true);
 	        
-	        DataOutputStream dstream = new DataOutputStream(request.getRequestStream());
+	        DataOutputStream dstream = new DataOutputStream(
+	        		new BufferedOutputStream(request.getRequestStream(), 8192));
 	        
 	        dstream.writeBytes("--" + boundary+"\r\n");
 	        
@@ -63,17 +73,20 @@ public class DocsGDataClient extends ServiceDataClient  {
 	        
 	        // Put body
 	        dstream.writeBytes("Content-Type: "+contentType+"\r\n\r\n");                                    
-			byte buf[]=new byte[1024];
-			int len;
-			while((len=content.read(buf))>0)
-				dstream.write(buf,0,len);			
+			StreamUtil.copy(content, dstream);
 			dstream.writeBytes("\r\n\r\n--" + boundary + "--");
 			dstream.flush();			
 	
 			request.execute();
 			entryStream = request.getResponseStream();			
 		} catch (ParseException e) {
+			request.abort();
 			throw new ServiceException("Unable to serialize entry", e);
+		} catch (IOException e) {
+			if (request != null) {
+				request.abort();
+			}
+			throw e;
 		}
 		return entryStream;
 	}
@@ -87,20 +100,100 @@ public class DocsGDataClient extends ServiceDataClient  {
 		request = createInsertRequest(feedUrl);
 		request.setHeader("Content-Type", contentType);
 		request.setHeader("Slug", name);
+		request.setChunkedStreaming(true);
 
-		DataOutputStream dstream = new DataOutputStream(request.getRequestStream());	        	        
-
-		byte buf[]=new byte[1024];
-		int len;
-		while((len=content.read(buf))>0)
-			dstream.write(buf,0,len);			
-		dstream.flush();			
+		try {
+			StreamUtil.copy(content, request.getRequestStream());
 
-		request.execute();
-		entryStream = request.getResponseStream();			
+			request.execute();
+			entryStream = request.getResponseStream();			
+		} catch (IOException e) {
+			request.abort();
+			throw e;
+		}
 
 		return entryStream;
 	}
+
+	/**
+	 * Uploads the remaining content of a file channel as a new entry. The
+	 * upload length is taken from the channel, so the data is streamed with a
+	 * fixed length instead of being buffered in memory. The upload fails if
+	 * the file shrinks meanwhile.
+	 *
+	 * @param feedUrl The feed where the entry should be created.
+	 * @param name Name of the new entry.
+	 * @param content Channel positioned at the start of the content. Its
+	 * position is not changed.
+	 * @param contentType Content type of the content.
+	 */
+	public InputStream createCompleteEntry(URL feedUrl, String name, FileChannel content, String contentType) 
+	throws ServiceException, IOException {
+	
+		GDataRequest request = createInsertRequest(feedUrl);
+		request.setHeader("Content-Type", contentType);
+		request.setHeader("Slug", name);
+
+		long position = content.position();
+		long size = content.size();
+		request.setContentLength(size - position);
+
+		try {
+			// the connection only offers a stream, so the data still passes
+			// through a buffer on its way to the socket
+			WritableByteChannel target = Channels.newChannel(request.getRequestStream());
+			while (position < size) {
+				long n = content.transferTo(position, size - position, target);
+				if (n == 0) {
+					// nothing left past the position, the file shrank
+					throw new IOException("Content truncated at " + position
+							+ " of " + size + " bytes");
+				}
+				position += n;
+			}
+
+			request.execute();
+			return request.getResponseStream();
+		} catch (IOException e) {
+			request.abort();
+			throw e;
+		}
+	}
+
+	/**
+	 * Uploads a file as a new entry.
+	 *
+	 * @see #createCompleteEntry(URL, String, FileChannel, String)
+	 */
+	public InputStream createCompleteEntry(URL feedUrl, String name, File file, String contentType) 
+	throws ServiceException, IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return createCompleteEntry(feedUrl, name, in.getChannel(), contentType);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Uploads a file as a new entry using the resumable upload protocol. The
+	 * file is sent in chunks, and a chunk that fails is sent again without
+	 * restarting the whole upload.
+	 *
+	 * @param createSessionUrl the resumable create-session URL of the feed.
+	 * @param name Name of the new entry.
+	 * @param file File to upload.
+	 * @param contentType Content type of the file.
+	 * @param listener Receives upload progress, may be <code>null</code>.
+	 * @see ResumableUploader
+	 */
+	public InputStream createResumableEntry(URL createSessionUrl, String name, File file, 
+			String contentType, ResumableUploader.ProgressListener listener) 
+	throws ServiceException, IOException {
+		ResumableUploader uploader = new ResumableUploader(this);
+		uploader.setProgressListener(listener);
+		return uploader.upload(createSessionUrl, name, file, contentType);
+	}
 	
 	/**
 	 * Load entry media content stream by request
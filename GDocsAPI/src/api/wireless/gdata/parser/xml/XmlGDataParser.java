@@ -200,6 +200,12 @@ public class XmlGDataParser  implements GDataParser {
 				if ("startIndex".equals(name)) {
 					feed.setStartIndex(StringUtil.parseInt(
 							XmlUtil.extractChildText(parser), 0));
+				} else if ("totalResults".equals(name)) {
+					feed.setTotalResults(StringUtil.parseInt(
+							XmlUtil.extractChildText(parser), 0));
+				} else if ("itemsPerPage".equals(name)) {
+					feed.setItemsPerPage(StringUtil.parseInt(
+							XmlUtil.extractChildText(parser), 0));
 				} else if ("title".equals(name)) {
 					feed.setTitle(XmlUtil.extractChildText(parser));
 				} else if ("id".equals(name)) {
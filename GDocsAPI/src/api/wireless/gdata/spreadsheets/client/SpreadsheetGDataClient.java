@@ -15,6 +15,7 @@
  ******************************************************************************/
 package api.wireless.gdata.spreadsheets.client;
 
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -31,6 +32,7 @@ import api.wireless.gdata.parser.ParseException;
 import api.wireless.gdata.serializer.GDataSerializer;
 import api.wireless.gdata.util.ContentType;
 import api.wireless.gdata.util.ServiceException;
+import api.wireless.gdata.util.common.base.StreamUtil;
 
 
 public class SpreadsheetGDataClient extends ServiceDataClient  {		
@@ -57,8 +59,10 @@ public class SpreadsheetGDataClient extends ServiceDataClient  {
 			URL url = new URL(feedUrl);
 			request = createInsertRequest(url);
 			request.setHeader("Content-Type", "multipart/form-data; boundary=" + boundary);
+			request.setChunkedStreaming(true);
 	
-	        DataOutputStream dstream = new DataOutputStream(request.getRequestStream());
+	        DataOutputStream dstream = new DataOutputStream(
+	        		new BufferedOutputStream(request.getRequestStream(), 8192));
 	        dstream.writeBytes("--" + boundary + "\r\n");
 	        
 	        // Put header
@@ -68,17 +72,20 @@ public class SpreadsheetGDataClient extends ServiceDataClient  {
 	        
 	        // Put body
 	        dstream.writeBytes("Content-Type: "+contentType);                                    
-			byte buf[]=new byte[1024];
-			int len;
-			while((len=content.read(buf))>0)
-				dstream.write(buf,0,len);			
+			StreamUtil.copy(content, dstream);
 			dstream.writeBytes("--" + boundary + "\r\n"); 			
 			dstream.flush();
 	
 			request.execute();
 			entryStream = request.getResponseStream();		
 		} catch (ParseException e) {
+			request.abort();
 			throw new ServiceException("Unable to parse entry", e);
+		} catch (IOException e) {
+			if (request != null) {
+				request.abort();
+			}
+			throw e;
 		}
 		return entryStream;
 	}
@@ -16,6 +16,7 @@
 package api.wireless.gdata.spreadsheets.client;
 
 import android.net.Uri;
+import api.wireless.gdata.client.DownloadResult;
 import api.wireless.gdata.client.GDataParserFactory;
 import api.wireless.gdata.client.GDataServiceClient;
 import api.wireless.gdata.client.HttpException;
@@ -35,8 +36,10 @@ import api.wireless.gdata.util.ContentType;
 import api.wireless.gdata.util.ServiceException;
 import api.wireless.gdata.util.common.base.StringUtil;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.HashMap;
 
@@ -210,6 +213,25 @@ public class SpreadsheetsClient extends GDataServiceClient {
 	        throw new ServiceException("No document found.");
 	    }	    
 	    
+	    return ((SpreadsheetGDataClient)getGDataClient()).getMediaEntryAsStream(getExportUrl(resourceId, ct), ct);
+	}
+
+	/**
+	 * Exports a spreadsheet into a file, downloading parts of it in parallel.
+	 * The file is only replaced once the whole export has been received.
+	 * @return size of the export and time taken by the download.
+	 * @see #setDownloadSegments(int)
+	 */
+	public DownloadResult downloadMediaEntry(String resourceId, ContentType ct, File file)
+	throws IOException, ServiceException, ParseException {
+	    if (StringUtil.isEmpty(resourceId)) {
+	        throw new ServiceException("No document found.");
+	    }
+	    return downloadMedia(getExportUrl(resourceId, ct), ct, file);
+	}
+
+	private URL getExportUrl(String resourceId, ContentType ct)
+	throws MalformedURLException, ServiceException {
 	    HashMap<String, String> parameters = new HashMap<String, String>();	    
 	    parameters.put("exportFormat", ContentType.getFileExtension(ct));
 	    parameters.put("key", Uri.encode(resourceId));
@@ -219,9 +241,7 @@ public class SpreadsheetsClient extends GDataServiceClient {
 	      parameters.put("gid", "0"); // download only the first sheet
 	    }
 
-	    URL url = buildUrl(SPREADSHEETS_HOST, URL_DOWNLOAD + URL_SPREADSHEETS + URL_CATEGORY_EXPORT, parameters);
-	    
-	    return ((SpreadsheetGDataClient)getGDataClient()).getMediaEntryAsStream(url, ct);
+	    return buildUrl(SPREADSHEETS_HOST, URL_DOWNLOAD + URL_SPREADSHEETS + URL_CATEGORY_EXPORT, parameters);
 	}
 
 	public InputStream getMediaEntryAsHTML(String resourceId)
@@ -124,6 +124,16 @@ public class ServiceException extends Exception {
 
 	public ServiceException(HttpURLConnection httpConn) throws IOException {
 		super(nullsafe(httpConn.getResponseMessage()));
+		httpErrorCodeOverride = httpConn.getResponseCode();
+
+		// Keep the response headers, e.g. Location or Retry-After
+		httpHeaders = new HashMap<String, List<String>>();
+		for (Map.Entry<String, List<String>> header
+				: httpConn.getHeaderFields().entrySet()) {
+			if (header.getKey() != null) {
+				httpHeaders.put(header.getKey(), header.getValue());
+			}
+		}
 
 		// Clean up after failed parse
 		errorElement = new ErrorElement();
@@ -171,7 +181,7 @@ public class ServiceException extends Exception {
 			throw new NullPointerException("Null response body");
 		}
 		responseContentType = contentType;
-		//setResponseBody(body);
+		responseBody = body;
 	}
 
 	/** Generate error message in XML format. */
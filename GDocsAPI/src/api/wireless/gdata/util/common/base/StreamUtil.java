@@ -18,12 +18,14 @@ package api.wireless.gdata.util.common.base;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import android.util.Log;
 
@@ -32,6 +34,9 @@ import android.util.Log;
  */
 public final class StreamUtil {
 	
+	/** Size of the buffer used to copy into file channels. */
+	private static final int CHANNEL_BUFFER_SIZE = 64 * 1024;
+
 	private StreamUtil(){
 	}
 	
@@ -74,23 +79,112 @@ public final class StreamUtil {
     	return output; 
     }
 
-	public static void saveToFile(InputStream in, String fileName){
-		File textFile = new File(fileName);
-		FileOutputStream fos = null;
+	/**
+	 * Copies all remaining data of an input stream to an output stream. Neither
+	 * stream is closed.
+	 *
+	 * @return the number of bytes copied.
+	 */
+	public static long copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buf = new byte[8192];
+		long total = 0;
+		int len;
+		while ((len = in.read(buf)) != -1) {
+			out.write(buf, 0, len);
+			total += len;
+		}
+		return total;
+	}
+
+	/**
+	 * Copies all remaining data of an input stream to the current position of
+	 * a file channel. The stream can only fill a heap array, which is wrapped
+	 * for the channel as is rather than copied again into a direct buffer.
+	 * Neither stream nor channel is closed.
+	 *
+	 * @return the number of bytes copied.
+	 */
+	public static long copy(InputStream in, FileChannel out) throws IOException {
+		byte[] buf = new byte[CHANNEL_BUFFER_SIZE];
+		ByteBuffer wrapped = ByteBuffer.wrap(buf);
+		long total = 0;
+		int len;
+		while ((len = in.read(buf)) != -1) {
+			wrapped.clear();
+			wrapped.limit(len);
+			while (wrapped.hasRemaining()) {
+				out.write(wrapped);
+			}
+			total += len;
+		}
+		return total;
+	}
+
+	/**
+	 * Saves the data of an input stream to a file.
+	 *
+	 * @see #saveToFile(InputStream, File)
+	 */
+	public static long saveToFile(InputStream in, String fileName)
+	throws IOException {
+		return saveToFile(in, new File(fileName));
+	}
+
+	/**
+	 * Saves all data of an input stream to a file and closes the stream. The
+	 * data is written to a temporary file next to the target first, which
+	 * then replaces the target. If saving fails, the target is left unchanged
+	 * and no partial file remains.
+	 *
+	 * @return the number of bytes saved.
+	 */
+	public static long saveToFile(InputStream in, File file) throws IOException {
+		File temp = createTempFile(file);
+		boolean saved = false;
 		try {
-			fos = new FileOutputStream(textFile);
-			byte buf[]=new byte[1024];
-			int len;
-			while((len=in.read(buf))>0)
-				fos.write(buf,0,len);
-			fos.close();	
-			//in.reset();
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}		
+			FileOutputStream fos = new FileOutputStream(temp);
+			long total;
+			try {
+				total = copy(in, fos.getChannel());
+			} finally {
+				fos.close();
+			}
+			replaceFile(temp, file);
+			saved = true;
+			return total;
+		} finally {
+			in.close();
+			if (!saved) {
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Creates an empty temporary file in the directory of the given file, so
+	 * that it can be renamed to that file later.
+	 */
+	public static File createTempFile(File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		String prefix = file.getName();
+		if (prefix.length() < 3) {
+			prefix = prefix + "___";
+		}
+		return File.createTempFile(prefix, ".part", dir);
+	}
+
+	/**
+	 * Renames a file, replacing the target file. The rename itself is atomic
+	 * on POSIX file systems.
+	 */
+	public static void replaceFile(File source, File target) throws IOException {
+		if (source.renameTo(target)) {
+			return;
+		}
+		// some file systems don't rename over an existing file
+		if (target.exists() && target.delete() && source.renameTo(target)) {
+			return;
+		}
+		throw new IOException("Unable to rename " + source + " to " + target);
 	}
 }
@@ -1,5 +1,19 @@
 package api.wireless;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 public class TestUtils {
 	
 	public int findDifference(String actual, String expected) {
@@ -25,4 +39,376 @@ public class TestUtils {
 		}
 		return buffer.toString();
 	}
+
+	/**
+	 * Returns a URL on a local port nobody listens on.
+	 */
+	public static URL getRefusingUrl(String path) throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return new URL("http://127.0.0.1:" + socket.getLocalPort() + path);
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Minimal HTTP/1.1 server answering requests with a {@link Handler}, each
+	 * connection on its own thread. Connections are closed after every
+	 * response unless keep-alive is enabled.
+	 */
+	public static class TestServer {
+
+		/**
+		 * Answers a request by filling in the response, which is sent once the
+		 * handler returns. Exceptions drop the connection without response.
+		 */
+		public interface Handler {
+
+			void handle(Request request, Response response) throws Exception;
+		}
+
+		public static class Request {
+
+			private final String method;
+			private final String path;
+			private final Map<String, String> headers;
+			private final byte[] body;
+			private final int number;
+			private final boolean truncated;
+
+			Request(String method, String path, Map<String, String> headers,
+					byte[] body, int number, boolean truncated) {
+				this.method = method;
+				this.path = path;
+				this.headers = headers;
+				this.body = body;
+				this.number = number;
+				this.truncated = truncated;
+			}
+
+			public String getMethod() {
+				return method;
+			}
+
+			/**
+			 * Returns the path of the request, including the query.
+			 */
+			public String getPath() {
+				return path;
+			}
+
+			/**
+			 * Returns the value of a header, or <code>null</code>.
+			 */
+			public String getHeader(String name) {
+				return headers.get(name.toLowerCase());
+			}
+
+			/**
+			 * Returns the body, with any chunked transfer encoding removed.
+			 */
+			public byte[] getBody() {
+				return body;
+			}
+
+			public String getBodyAsString() throws UnsupportedEncodingException {
+				return new String(body, "UTF-8");
+			}
+
+			/**
+			 * Returns the number of the request, counted from 1 across all
+			 * connections.
+			 */
+			public int getNumber() {
+				return number;
+			}
+
+			/**
+			 * Returns <code>true</code> if only part of the body was read, after
+			 * which the connection is reset.
+			 * @see TestServer#truncateRequest(int, int)
+			 */
+			public boolean isTruncated() {
+				return truncated;
+			}
+		}
+
+		public static class Response {
+
+			private int status = 200;
+			private final Map<String, String> headers = new LinkedHashMap<String, String>();
+			private byte[] body = new byte[0];
+			private boolean disconnect;
+
+			public void setStatus(int status) {
+				this.status = status;
+			}
+
+			public void setHeader(String name, String value) {
+				headers.put(name, value);
+			}
+
+			public void setBody(byte[] body) {
+				this.body = body;
+			}
+
+			public void setBody(String body) throws UnsupportedEncodingException {
+				this.body = body.getBytes("UTF-8");
+			}
+
+			/**
+			 * Drops the connection instead of answering.
+			 */
+			public void disconnect() {
+				disconnect = true;
+			}
+		}
+
+		private final ServerSocket socket;
+		private final Handler handler;
+		private final List<Socket> open = new ArrayList<Socket>();
+		private final Map<Integer, Integer> truncations = new HashMap<Integer, Integer>();
+		private volatile boolean keepAlive;
+		private int requests;
+		private int connections;
+		private Request lastRequest;
+
+		public TestServer(Handler handler) throws IOException {
+			this.handler = handler;
+			socket = new ServerSocket(0);
+			Thread acceptor = new Thread("TestServer-" + getPort()) {
+				public void run() {
+					accept();
+				}
+			};
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		public int getPort() {
+			return socket.getLocalPort();
+		}
+
+		public URL getUrl(String path) throws IOException {
+			return getUrl("127.0.0.1", path);
+		}
+
+		/**
+		 * Returns a URL of the server under another host name, such as
+		 * <code>localhost</code>.
+		 */
+		public URL getUrl(String host, String path) throws IOException {
+			return new URL("http://" + host + ":" + getPort() + path);
+		}
+
+		/**
+		 * Keeps connections open after responses, letting clients reuse them.
+		 */
+		public void setKeepAlive(boolean keepAlive) {
+			this.keepAlive = keepAlive;
+		}
+
+		public synchronized int getRequestCount() {
+			return requests;
+		}
+
+		public synchronized int getConnectionCount() {
+			return connections;
+		}
+
+		/**
+		 * Returns the number of connections currently open.
+		 */
+		public synchronized int getOpenConnectionCount() {
+			return open.size();
+		}
+
+		public synchronized Request getLastRequest() {
+			return lastRequest;
+		}
+
+		/**
+		 * Reads at most <code>length</code> bytes of the body of the request
+		 * with the given number, hands them to the handler and then resets the
+		 * connection, like a network failure in the middle of an upload.
+		 */
+		public synchronized void truncateRequest(int number, int length) {
+			truncations.put(Integer.valueOf(number), Integer.valueOf(length));
+		}
+
+		/**
+		 * Stops accepting connections and closes the open ones.
+		 */
+		public void close() throws IOException {
+			socket.close();
+			List<Socket> sockets;
+			synchronized (this) {
+				sockets = new ArrayList<Socket>(open);
+			}
+			for (Socket s : sockets) {
+				s.close();
+			}
+		}
+
+		private void accept() {
+			while (true) {
+				final Socket s;
+				try {
+					s = socket.accept();
+				} catch (IOException e) {
+					return;
+				}
+				synchronized (this) {
+					connections++;
+					open.add(s);
+				}
+				Thread thread = new Thread() {
+					public void run() {
+						try {
+							serve(s);
+						} catch (Exception e) {
+							// connection dropped
+						} finally {
+							synchronized (TestServer.this) {
+								open.remove(s);
+							}
+							try {
+								s.close();
+							} catch (IOException e) {
+								// ignore
+							}
+						}
+					}
+				};
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		private void serve(Socket s) throws Exception {
+			InputStream in = s.getInputStream();
+			OutputStream out = s.getOutputStream();
+			do {
+				String requestLine = readLine(in);
+				if (requestLine.length() == 0) {
+					return;
+				}
+				Map<String, String> headers = new HashMap<String, String>();
+				String line;
+				while ((line = readLine(in)).length() > 0) {
+					int colon = line.indexOf(':');
+					headers.put(line.substring(0, colon).trim().toLowerCase(),
+							line.substring(colon + 1).trim());
+				}
+				int number;
+				Integer limit;
+				synchronized (this) {
+					number = ++requests;
+					limit = truncations.get(Integer.valueOf(number));
+				}
+				int maxLength = (limit != null) ? limit.intValue() : Integer.MAX_VALUE;
+				byte[] body = readBody(in, headers, maxLength);
+				String[] parts = requestLine.split(" ");
+				Request request = new Request(parts[0], parts[1], headers, body, number,
+						limit != null);
+				synchronized (this) {
+					lastRequest = request;
+				}
+				Response response = new Response();
+				handler.handle(request, response);
+				if (limit != null) {
+					// sends a reset instead of closing the connection in order
+					s.setSoLinger(true, 0);
+					return;
+				}
+				if (response.disconnect) {
+					return;
+				}
+				write(out, response);
+			} while (keepAlive);
+		}
+
+		private void write(OutputStream out, Response response) throws IOException {
+			StringBuilder head = new StringBuilder();
+			head.append("HTTP/1.1 ").append(response.status).append(' ')
+				.append(getReason(response.status)).append("\r\n");
+			for (Map.Entry<String, String> e : response.headers.entrySet()) {
+				head.append(e.getKey()).append(": ").append(e.getValue()).append("\r\n");
+			}
+			if (!response.headers.containsKey("Content-Length")) {
+				head.append("Content-Length: ").append(response.body.length).append("\r\n");
+			}
+			if (!keepAlive) {
+				head.append("Connection: close\r\n");
+			}
+			head.append("\r\n");
+			out.write(head.toString().getBytes("US-ASCII"));
+			out.write(response.body);
+			out.flush();
+		}
+
+		/**
+		 * Reads the body of a request, stopping after <code>maxLength</code>
+		 * bytes.
+		 */
+		private static byte[] readBody(InputStream in, Map<String, String> headers,
+				int maxLength) throws IOException {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+				int size;
+				while ((size = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+					if (body.size() + size > maxLength) {
+						copy(in, body, maxLength - body.size());
+						return body.toByteArray();
+					}
+					copy(in, body, size);
+					readLine(in);
+				}
+				readLine(in);
+			} else if (headers.containsKey("content-length")) {
+				copy(in, body, Math.min(maxLength,
+						Integer.parseInt(headers.get("content-length"))));
+			}
+			return body.toByteArray();
+		}
+
+		private static void copy(InputStream in, ByteArrayOutputStream out, int length)
+		throws IOException {
+			byte[] buf = new byte[4096];
+			while (length > 0) {
+				int n = in.read(buf, 0, Math.min(buf.length, length));
+				if (n == -1) {
+					throw new IOException("Unexpected end of request");
+				}
+				out.write(buf, 0, n);
+				length -= n;
+			}
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int c;
+			while ((c = in.read()) != -1 && c != '\n') {
+				if (c != '\r') {
+					sb.append((char) c);
+				}
+			}
+			return sb.toString();
+		}
+
+		private static String getReason(int status) {
+			switch (status) {
+			case 200: return "OK";
+			case 201: return "Created";
+			case 206: return "Partial Content";
+			case 304: return "Not Modified";
+			case 401: return "Unauthorized";
+			case 403: return "Forbidden";
+			case 404: return "Not Found";
+			case 503: return "Service Unavailable";
+			default: return "Status";
+			}
+		}
+	}
 }
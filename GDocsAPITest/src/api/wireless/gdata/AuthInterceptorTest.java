@@ -0,0 +1,170 @@
+package api.wireless.gdata;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import api.wireless.TestUtils.TestServer;
+import api.wireless.gdata.client.TokenFactory.UserToken;
+import api.wireless.gdata.client.http.AuthInterceptor;
+import api.wireless.gdata.client.http.GDataRequest;
+import api.wireless.gdata.client.http.GDataRequest.GDataRequestFactory;
+import api.wireless.gdata.client.http.GDataRequest.RequestType;
+import api.wireless.gdata.util.AuthenticationException;
+import api.wireless.gdata.util.ContentType;
+import api.wireless.gdata.util.common.base.StreamUtil;
+import junit.framework.TestCase;
+
+public class AuthInterceptorTest extends TestCase {
+
+	private AuthHandler handler;
+	private TestServer server;
+	private AtomicInteger refreshes;
+
+	protected void setUp() throws Exception {
+		handler = new AuthHandler();
+		server = new TestServer(handler);
+		refreshes = new AtomicInteger();
+	}
+
+	protected void tearDown() throws Exception {
+		server.close();
+	}
+
+	public void testRejectedQueryReplayedWithNewToken() throws Exception {
+		GDataRequestFactory factory = newFactory(new RefreshingAuthenticator());
+		GDataRequest request = factory.getRequest(RequestType.QUERY,
+				server.getUrl("/feed"), ContentType.ATOM);
+		request.execute();
+		assertEquals("ok", StreamUtil.convertStreamToString(
+				request.getResponseStream()).trim());
+		assertEquals(2, server.getRequestCount());
+		assertEquals(1, refreshes.get());
+		assertEquals("fresh", factory.getAuthToken().getValue());
+	}
+
+	public void testRejectedInsertReplaysData() throws Exception {
+		GDataRequestFactory factory = newFactory(new RefreshingAuthenticator());
+		GDataRequest request = factory.getRequest(RequestType.INSERT,
+				server.getUrl("/feed"), ContentType.ATOM);
+		request.getRequestStream().write("<entry/>".getBytes("UTF-8"));
+		request.execute();
+		request.getResponseStream().close();
+		assertEquals(2, server.getRequestCount());
+		assertEquals("<entry/>", handler.lastBody);
+	}
+
+	public void testMediaRequestUsesRefreshedToken() throws Exception {
+		GDataRequestFactory factory = newFactory(new RefreshingAuthenticator());
+		GDataRequest request = factory.getRequest(RequestType.QUERY,
+				server.getUrl("/feed"), ContentType.ATOM);
+		request.execute();
+		request.getResponseStream().close();
+		assertEquals(1, refreshes.get());
+
+		GDataRequest media = factory.getRequest(server.getUrl("/media"), false);
+		media.execute();
+		assertEquals("ok", StreamUtil.convertStreamToString(
+				media.getResponseStream()).trim());
+		assertEquals(3, server.getRequestCount());
+		assertEquals(1, refreshes.get());
+	}
+
+	public void testRejectedMediaRequestReplayedWithNewToken() throws Exception {
+		GDataRequestFactory factory = newFactory(new RefreshingAuthenticator());
+		GDataRequest media = factory.getRequest(server.getUrl("/media"), false);
+		media.execute();
+		media.getResponseStream().close();
+		assertEquals(2, server.getRequestCount());
+		assertEquals(1, refreshes.get());
+	}
+
+	public void testConcurrentRejectionsRefreshOnce() throws Exception {
+		final GDataRequestFactory factory = newFactory(new RefreshingAuthenticator());
+		final AtomicInteger succeeded = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		final GDataRequest[] requests = new GDataRequest[threads.length];
+		for (int i = 0; i < threads.length; i++) {
+			// all requests are created with the stale token
+			requests[i] = factory.getRequest(RequestType.QUERY, server.getUrl("/feed"),
+					ContentType.ATOM);
+		}
+		for (int i = 0; i < threads.length; i++) {
+			final GDataRequest request = requests[i];
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						request.execute();
+						request.getResponseStream().close();
+						succeeded.incrementAndGet();
+					} catch (Exception e) {
+						// counted as missing success
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(threads.length, succeeded.get());
+		assertEquals(1, refreshes.get());
+	}
+
+	public void testFailsWithoutNewToken() throws Exception {
+		GDataRequestFactory factory = newFactory(new AuthInterceptor.Authenticator() {
+			public UserToken authenticate(UserToken rejected) {
+				return null;
+			}
+		});
+		GDataRequest request = factory.getRequest(RequestType.QUERY,
+				server.getUrl("/feed"), ContentType.ATOM);
+		try {
+			request.execute();
+			fail("Request should have been rejected");
+		} catch (AuthenticationException e) {
+			// expected
+		}
+		assertEquals(1, server.getRequestCount());
+	}
+
+	private static GDataRequestFactory newFactory(AuthInterceptor.Authenticator authenticator) {
+		GDataRequestFactory factory = new GDataRequestFactory();
+		factory.setRetryPolicy(null);
+		factory.setAuthToken(new UserToken("stale"));
+		factory.setAuthInterceptor(new AuthInterceptor(authenticator));
+		return factory;
+	}
+
+	private class RefreshingAuthenticator implements AuthInterceptor.Authenticator {
+
+		public UserToken authenticate(UserToken rejected) {
+			refreshes.incrementAndGet();
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return new UserToken("fresh");
+		}
+	}
+
+	/**
+	 * Answers 401 (Unauthorized) unless the request carries the fresh token.
+	 */
+	private static class AuthHandler implements TestServer.Handler {
+
+		volatile String lastBody;
+
+		public void handle(TestServer.Request request, TestServer.Response response)
+		throws Exception {
+			String authorization = request.getHeader("authorization");
+			if (authorization != null && authorization.endsWith("auth=fresh")) {
+				lastBody = request.getBodyAsString();
+			} else {
+				response.setStatus(401);
+				response.setHeader("WWW-Authenticate", "GoogleLogin "
+						+ "realm=\"https://www.google.com/accounts/ClientLogin\"");
+			}
+			response.setBody("ok");
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package api.wireless.gdata;
+
+import java.io.IOException;
+import java.net.URL;
+
+import api.wireless.TestUtils;
+import api.wireless.gdata.client.http.CircuitBreaker;
+import api.wireless.gdata.client.http.CircuitBreakerRegistry;
+import api.wireless.gdata.client.http.CircuitOpenException;
+import api.wireless.gdata.client.http.GDataRequest;
+import api.wireless.gdata.client.http.GDataRequest.GDataRequestFactory;
+import api.wireless.gdata.client.http.GDataRequest.RequestType;
+import api.wireless.gdata.util.ContentType;
+import junit.framework.TestCase;
+
+public class CircuitBreakerTest extends TestCase {
+
+	private CircuitBreakerRegistry registry;
+
+	protected void setUp() throws Exception {
+		registry = new CircuitBreakerRegistry();
+		registry.setWindowSize(4);
+		registry.setMinimumCalls(4);
+		registry.setHalfOpenCalls(2);
+		registry.setOpenDuration(50);
+	}
+
+	public void testOpensOnFailureRate() throws Exception {
+		CircuitBreaker breaker = registry.getCircuitBreaker("docs.google.com");
+		breaker.onSuccess(10);
+		breaker.onSuccess(10);
+		breaker.onError(10);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		breaker.onError(10);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		try {
+			breaker.acquirePermission();
+			fail("Open breaker should reject requests");
+		} catch (CircuitOpenException e) {
+			assertEquals("docs.google.com", e.getHost());
+		}
+	}
+
+	public void testOpensOnSlowCallRate() {
+		registry.setSlowCallDuration(100);
+		registry.setSlowCallRateThreshold(75);
+		CircuitBreaker breaker = registry.getCircuitBreaker("docs.google.com");
+		breaker.onSuccess(10);
+		breaker.onSuccess(500);
+		breaker.onSuccess(500);
+		breaker.onSuccess(500);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	public void testHalfOpenClosesAfterTrialRequests() throws Exception {
+		CircuitBreaker breaker = registry.getCircuitBreaker("docs.google.com");
+		for (int i = 0; i < 4; i++) {
+			breaker.onError(10);
+		}
+		Thread.sleep(60);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		breaker.acquirePermission();
+		breaker.acquirePermission();
+		try {
+			breaker.acquirePermission();
+			fail("Only two trial requests are allowed");
+		} catch (CircuitOpenException e) {
+			// expected
+		}
+		breaker.onSuccess(10);
+		breaker.onSuccess(10);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(0, breaker.getRecordedCalls());
+	}
+
+	public void testHalfOpenReopensOnFailure() throws Exception {
+		CircuitBreaker breaker = registry.getCircuitBreaker("docs.google.com");
+		for (int i = 0; i < 4; i++) {
+			breaker.onError(10);
+		}
+		Thread.sleep(60);
+		breaker.acquirePermission();
+		breaker.onError(10);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	public void testRequestsFailFastOnceHostIsDown() throws Exception {
+		URL url = TestUtils.getRefusingUrl("/feed");
+
+		GDataRequestFactory factory = new GDataRequestFactory();
+		factory.setRetryPolicy(null);
+		factory.setCircuitBreakerRegistry(registry);
+		for (int i = 0; i < 4; i++) {
+			GDataRequest request = factory.getRequest(RequestType.QUERY, url,
+					ContentType.ATOM);
+			try {
+				request.execute();
+				fail("Connection should have been refused");
+			} catch (CircuitOpenException e) {
+				fail("Breaker opened too early");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+		assertEquals(CircuitBreaker.State.OPEN,
+				registry.getCircuitBreaker(url).getState());
+
+		GDataRequest request = factory.getRequest(RequestType.QUERY, url,
+				ContentType.ATOM);
+		try {
+			request.execute();
+			fail("Request should have been rejected");
+		} catch (CircuitOpenException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package api.wireless.gdata;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import api.wireless.gdata.client.ClientPool;
+import api.wireless.gdata.client.TokenFactory;
+import api.wireless.gdata.client.http.Deadline;
+import api.wireless.gdata.client.http.DeadlineExceededException;
+import api.wireless.gdata.client.http.HttpTransport;
+import api.wireless.gdata.client.http.PooledHttpTransport;
+import api.wireless.gdata.docs.client.DocsClient;
+import api.wireless.gdata.docs.client.DocsGDataClient;
+import api.wireless.gdata.util.AuthenticationException;
+import api.wireless.gdata.util.ServiceException;
+import junit.framework.TestCase;
+
+public class ClientPoolTest extends TestCase {
+
+	private ClientPool<DocsClient> pool;
+	private DocsClient first;
+	private DocsClient second;
+
+	protected void setUp() throws Exception {
+		pool = new ClientPool<DocsClient>(new ClientPool.ClientFactory<DocsClient>() {
+			public DocsClient createClient() {
+				return newClient();
+			}
+		});
+		first = newClient();
+		second = newClient();
+		pool.addClient("first@example.com", first);
+		pool.addClient("second@example.com", second);
+	}
+
+	public void testCallsGoToLeastLoadedAccount() throws Exception {
+		pool.setMaxInFlight(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(2);
+		final DocsClient[] used = new DocsClient[2];
+		Thread[] threads = new Thread[2];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						pool.execute(new ClientPool.Call<DocsClient, Object>() {
+							public Object call(DocsClient client) {
+								used[index] = client;
+								started.countDown();
+								try {
+									release.await();
+								} catch (InterruptedException e) {
+									Thread.currentThread().interrupt();
+								}
+								return null;
+							}
+						});
+					} catch (Exception e) {
+						// leaves used[index] unset
+					}
+				}
+			};
+			threads[i].start();
+		}
+		started.await();
+		assertNotSame(used[0], used[1]);
+		assertEquals(1, pool.getInFlight("first@example.com"));
+		assertEquals(1, pool.getInFlight("SECOND@example.com"));
+
+		// both accounts are busy, a third call has to wait
+		Deadline deadline = new Deadline(50);
+		Deadline previous = deadline.attach();
+		try {
+			pool.execute(new ClientPool.Call<DocsClient, Object>() {
+				public Object call(DocsClient client) {
+					return null;
+				}
+			});
+			fail("No account should have been available");
+		} catch (DeadlineExceededException e) {
+			// expected
+		} finally {
+			deadline.detach(previous);
+		}
+
+		release.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, pool.getInFlight("first@example.com"));
+	}
+
+	public void testAffinityAndFailureCounts() throws Exception {
+		DocsClient used = pool.execute("second@example.com",
+				new ClientPool.Call<DocsClient, DocsClient>() {
+			public DocsClient call(DocsClient client) {
+				return client;
+			}
+		});
+		assertSame(second, used);
+		try {
+			pool.execute("second@example.com", new ClientPool.Call<DocsClient, Object>() {
+				public Object call(DocsClient client) throws IOException, ServiceException {
+					throw new ServiceException("failed");
+				}
+			});
+			fail("Call should have failed");
+		} catch (ServiceException e) {
+			// expected
+		}
+		assertEquals(2, pool.getCallCount("second@example.com"));
+		assertEquals(1, pool.getFailureCount("second@example.com"));
+		assertEquals(0, pool.getCallCount("first@example.com"));
+
+		assertTrue(pool.removeAccount("second@example.com"));
+		try {
+			pool.execute("second@example.com", new ClientPool.Call<DocsClient, Object>() {
+				public Object call(DocsClient client) {
+					return null;
+				}
+			});
+			fail("Removed account should be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testLoginUsesPoolTransport() throws Exception {
+		final List<URL> opened = new ArrayList<URL>();
+		HttpTransport transport = new PooledHttpTransport() {
+			public HttpURLConnection openConnection(URL url) throws IOException {
+				synchronized (opened) {
+					opened.add(url);
+				}
+				throw new IOException("offline");
+			}
+		};
+		ClientPool<DocsClient> pool = new ClientPool<DocsClient>(
+				new ClientPool.ClientFactory<DocsClient>() {
+			public DocsClient createClient() {
+				DocsGDataClient dataClient = new DocsGDataClient("test", "http", "127.0.0.1");
+				dataClient.setRetryPolicy(null);
+				dataClient.createTokenFactory("writely");
+				return new DocsClient(dataClient, null);
+			}
+		}, transport);
+		try {
+			pool.addAccount("user@example.com", "secret");
+			fail("Login should have failed");
+		} catch (AuthenticationException e) {
+			// expected
+		}
+		assertEquals(1, opened.size());
+		assertTrue(opened.get(0).getPath().endsWith(TokenFactory.GOOGLE_LOGIN_PATH));
+	}
+
+	private static DocsClient newClient() {
+		return new DocsClient(new DocsGDataClient("test", "http", "127.0.0.1"), null);
+	}
+}
@@ -0,0 +1,124 @@
+package api.wireless.gdata;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import api.wireless.TestUtils.TestServer;
+import api.wireless.gdata.client.ServiceDataClient;
+import api.wireless.gdata.client.http.Deadline;
+import api.wireless.gdata.client.http.DeadlineExceededException;
+import junit.framework.TestCase;
+
+public class DeadlineTest extends TestCase {
+
+	public void testNestedDeadlineBoundByOuter() throws Exception {
+		Deadline outer = new Deadline(100);
+		Deadline previous = outer.attach();
+		try {
+			Deadline inner = new Deadline(10000);
+			assertTrue(inner.getRemaining() <= 100);
+			assertTrue(inner.getTimeout(5000) <= 100);
+			assertEquals(10, inner.getTimeout(10));
+
+			outer.cancel();
+			assertTrue(inner.isCancelled());
+			try {
+				inner.check();
+				fail("Cancelled deadline should fail checks");
+			} catch (DeadlineExceededException e) {
+				// expected
+			}
+		} finally {
+			outer.detach(previous);
+		}
+		assertNull(Deadline.current());
+	}
+
+	public void testPropagatedToOtherThreads() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Callable<Deadline> task = new Callable<Deadline>() {
+				public Deadline call() {
+					return Deadline.current();
+				}
+			};
+			Deadline deadline = new Deadline(1000);
+			Deadline previous = deadline.attach();
+			try {
+				assertSame(deadline, executor.submit(Deadline.propagate(task)).get());
+			} finally {
+				deadline.detach(previous);
+			}
+			assertNull(executor.submit(task).get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testSlowResponseStoppedAtDeadline() throws Exception {
+		TestServer server = startHangingServer();
+		try {
+			ServiceDataClient client = new ServiceDataClient("test", "http", "127.0.0.1");
+			Deadline deadline = new Deadline(300);
+			Deadline previous = deadline.attach();
+			long start = System.currentTimeMillis();
+			try {
+				client.getFeedAsStream(server.getUrl("/feed"), null);
+				fail("Request should have exceeded its deadline");
+			} catch (DeadlineExceededException e) {
+				// expected
+			} finally {
+				deadline.detach(previous);
+			}
+			assertTrue(System.currentTimeMillis() - start < 2000);
+			assertEquals(1, server.getRequestCount());
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testCancelAbortsRequestInFlight() throws Exception {
+		TestServer server = startHangingServer();
+		try {
+			ServiceDataClient client = new ServiceDataClient("test", "http", "127.0.0.1");
+			final Deadline deadline = new Deadline(60000);
+			new Thread() {
+				public void run() {
+					try {
+						Thread.sleep(300);
+					} catch (InterruptedException e) {
+						return;
+					}
+					deadline.cancel();
+				}
+			}.start();
+			Deadline previous = deadline.attach();
+			long start = System.currentTimeMillis();
+			try {
+				client.getFeedAsStream(server.getUrl("/feed"), null);
+				fail("Request should have been cancelled");
+			} catch (DeadlineExceededException e) {
+				// expected
+			} finally {
+				deadline.detach(previous);
+			}
+			assertTrue(System.currentTimeMillis() - start < 2000);
+		} finally {
+			server.close();
+		}
+	}
+
+	/**
+	 * Reads requests but answers them only after ten seconds.
+	 */
+	private static TestServer startHangingServer() throws IOException {
+		return new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Request request, TestServer.Response response)
+			throws Exception {
+				Thread.sleep(10000);
+			}
+		});
+	}
+}
@@ -0,0 +1,254 @@
+package api.wireless.gdata;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import api.wireless.TestUtils.TestServer;
+import api.wireless.gdata.client.http.PooledHttpTransport;
+import api.wireless.gdata.docs.client.DocsGDataClient;
+import api.wireless.gdata.util.ContentType;
+import junit.framework.TestCase;
+
+public class DocsGDataClientTest extends TestCase {
+
+	private static final int LENGTH = 100 * 1024;
+
+	private TestServer server;
+	private DocsGDataClient client;
+	private File file;
+	private byte[] content;
+
+	protected void setUp() throws Exception {
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Request request, TestServer.Response response)
+			throws Exception {
+				response.setStatus(201);
+				response.setBody("ok");
+			}
+		});
+		client = new DocsGDataClient("test", "http", "127.0.0.1");
+		client.setRetryPolicy(null);
+
+		content = new byte[LENGTH];
+		for (int i = 0; i < LENGTH; i++) {
+			content[i] = (byte) i;
+		}
+		file = File.createTempFile("upload", ".bin");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		server.close();
+		file.delete();
+	}
+
+	public void testFileUploadedWithFixedLength() throws Exception {
+		InputStream response = client.createCompleteEntry(server.getUrl("/feed"),
+				"report.pdf", file, "application/pdf");
+		response.close();
+
+		TestServer.Request received = server.getLastRequest();
+		assertEquals("POST", received.getMethod());
+		assertEquals(String.valueOf(LENGTH), received.getHeader("content-length"));
+		assertNull(received.getHeader("transfer-encoding"));
+		assertEquals("application/pdf", received.getHeader("content-type"));
+		assertEquals("report.pdf", received.getHeader("slug"));
+		assertTrue(Arrays.equals(content, received.getBody()));
+	}
+
+	public void testChannelUploadedFromItsPosition() throws Exception {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			channel.position(1000);
+			client.createCompleteEntry(server.getUrl("/feed"), "report.pdf", channel,
+					"application/pdf").close();
+			assertEquals(1000, channel.position());
+		} finally {
+			in.close();
+		}
+
+		TestServer.Request received = server.getLastRequest();
+		assertEquals(String.valueOf(LENGTH - 1000), received.getHeader("content-length"));
+		byte[] expected = new byte[LENGTH - 1000];
+		System.arraycopy(content, 1000, expected, 0, expected.length);
+		assertTrue(Arrays.equals(expected, received.getBody()));
+	}
+
+	public void testShrunkChannelFails() throws Exception {
+		PooledHttpTransport transport = new PooledHttpTransport(1);
+		transport.setConnectionRequestTimeout(500);
+		client.setTransport(transport);
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = new ShrinkingChannel(in.getChannel(), LENGTH + 1000);
+			client.createCompleteEntry(server.getUrl("/feed"), "report.pdf", channel,
+					"application/pdf");
+			fail("Upload of truncated content should have failed");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("Content truncated"));
+		} finally {
+			in.close();
+		}
+		assertEquals(0, transport.getLeasedConnections("127.0.0.1"));
+	}
+
+	public void testFailingSourceReleasesConnection() throws Exception {
+		PooledHttpTransport transport = new PooledHttpTransport(1);
+		transport.setConnectionRequestTimeout(500);
+		client.setTransport(transport);
+		for (int i = 0; i < 2; i++) {
+			try {
+				client.createCompleteEntry(server.getUrl("/feed"), "report.pdf",
+						new FailingInputStream(10000), "application/pdf");
+				fail("Upload should have failed");
+			} catch (IOException e) {
+				assertEquals("disk error", e.getMessage());
+			}
+			try {
+				client.updateMediaEntry(server.getUrl("/media"), null,
+						new FailingInputStream(10000), ContentType.ZIP);
+				fail("Upload should have failed");
+			} catch (IOException e) {
+				assertEquals("disk error", e.getMessage());
+			}
+		}
+		assertEquals(0, transport.getLeasedConnections("127.0.0.1"));
+		client.createCompleteEntry(server.getUrl("/feed"), "report.pdf", file,
+				"application/pdf").close();
+	}
+
+	public void testEmptyChannelUploaded() throws Exception {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			channel.position(LENGTH);
+			client.createCompleteEntry(server.getUrl("/feed"), "empty.txt", channel,
+					"text/plain").close();
+		} finally {
+			in.close();
+		}
+
+		TestServer.Request received = server.getLastRequest();
+		assertEquals("0", received.getHeader("content-length"));
+		assertEquals(0, received.getBody().length);
+	}
+
+	/**
+	 * Returns some data, then fails like a broken disk.
+	 */
+	private static class FailingInputStream extends InputStream {
+
+		private int remaining;
+
+		FailingInputStream(int length) {
+			remaining = length;
+		}
+
+		public int read() throws IOException {
+			if (remaining-- <= 0) {
+				throw new IOException("disk error");
+			}
+			return 'x';
+		}
+	}
+
+	/**
+	 * Channel of a file that shrank after its size was taken: it still
+	 * reports the old size.
+	 */
+	private static class ShrinkingChannel extends FileChannel {
+
+		private final FileChannel channel;
+		private final long size;
+
+		ShrinkingChannel(FileChannel channel, long size) {
+			this.channel = channel;
+			this.size = size;
+		}
+
+		public long size() {
+			return size;
+		}
+
+		public long transferTo(long position, long count, WritableByteChannel target)
+		throws IOException {
+			return channel.transferTo(position, count, target);
+		}
+
+		public long position() throws IOException {
+			return channel.position();
+		}
+
+		public FileChannel position(long newPosition) throws IOException {
+			channel.position(newPosition);
+			return this;
+		}
+
+		public int read(ByteBuffer dst) throws IOException {
+			return channel.read(dst);
+		}
+
+		public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+			return channel.read(dsts, offset, length);
+		}
+
+		public int read(ByteBuffer dst, long position) throws IOException {
+			return channel.read(dst, position);
+		}
+
+		public int write(ByteBuffer src) {
+			throw new UnsupportedOperationException();
+		}
+
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			throw new UnsupportedOperationException();
+		}
+
+		public int write(ByteBuffer src, long position) {
+			throw new UnsupportedOperationException();
+		}
+
+		public FileChannel truncate(long size) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void force(boolean metaData) {
+		}
+
+		public long transferFrom(ReadableByteChannel src, long position, long count) {
+			throw new UnsupportedOperationException();
+		}
+
+		public MappedByteBuffer map(MapMode mode, long position, long size) {
+			throw new UnsupportedOperationException();
+		}
+
+		public FileLock lock(long position, long size, boolean shared) {
+			throw new UnsupportedOperationException();
+		}
+
+		public FileLock tryLock(long position, long size, boolean shared) {
+			throw new UnsupportedOperationException();
+		}
+
+		protected void implCloseChannel() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -1,16 +1,31 @@
 package api.wireless.gdata;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 
+import api.wireless.TestUtils.TestServer;
 import api.wireless.gdata.client.AbstructParserFactory;
 import api.wireless.gdata.client.GDataProtocol;
+import api.wireless.gdata.client.ServiceDataClient;
+import api.wireless.gdata.client.TokenFactory.UserToken;
 import api.wireless.gdata.client.http.GDataRequest;
 import api.wireless.gdata.client.http.GDataRequest.GDataRequestFactory;
+import api.wireless.gdata.client.http.InflaterPool;
+import api.wireless.gdata.client.http.PooledHttpTransport;
 import api.wireless.gdata.spreadsheets.parser.xml.XmlSpreadsheetsGDataParserFactory;
 import api.wireless.gdata.util.ContentType;
+import api.wireless.gdata.util.RedirectRequiredException;
+import api.wireless.gdata.util.ResourceNotFoundException;
 import junit.framework.TestCase;
 
 public class GDataRequestTest extends TestCase {
@@ -43,4 +58,538 @@ public class GDataRequestTest extends TestCase {
 		assertEquals("*", property);
 	}
 
+	public void testRequestUsesFactoryTransport() throws MalformedURLException, IOException {
+		final URL[] opened = new URL[1];
+		GDataRequestFactory requestFactory = new GDataRequestFactory();
+		requestFactory.setTransport(new PooledHttpTransport() {
+			public HttpURLConnection openConnection(URL url) throws IOException {
+				opened[0] = url;
+				return super.openConnection(url);
+			}
+		});
+		URL url = new URL("http://www.google.com");
+		GDataRequest request =
+			requestFactory.getRequest(GDataRequest.RequestType.QUERY, url, ContentType.ATOM);
+		
+		assertEquals(url, opened[0]);
+		assertSame(url, request.getConnection().getURL());
+		
+		// ending a request that never connected must not touch the pool
+		request.end();
+		assertEquals(0, ((PooledHttpTransport) requestFactory.getTransport())
+				.getLeasedConnections("www.google.com"));
+	}
+
+	public void testRedirectToSameHostKeepsCredentials() throws Exception {
+		TestServer server = startRedirectingServer(null);
+		try {
+			GDataRequest request = newCredentialedRequest(new GDataRequestFactory(),
+					server.getUrl("/old"));
+			request.execute();
+			request.getResponseStream().close();
+
+			TestServer.Request redirected = server.getLastRequest();
+			assertEquals("/new", redirected.getPath());
+			assertEquals("GoogleLogin auth=token", redirected.getHeader("authorization"));
+			assertEquals("session=1", redirected.getHeader("cookie"));
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testRedirectToOtherHostDropsCredentials() throws Exception {
+		TestServer target = startRedirectingServer(null);
+		TestServer server = startRedirectingServer(target.getUrl("/new"));
+		try {
+			GDataRequest request = newCredentialedRequest(new GDataRequestFactory(),
+					server.getUrl("/old"));
+			request.execute();
+			request.getResponseStream().close();
+
+			assertNotNull(server.getLastRequest().getHeader("authorization"));
+			TestServer.Request redirected = target.getLastRequest();
+			assertEquals("/new", redirected.getPath());
+			assertNull(redirected.getHeader("authorization"));
+			assertNull(redirected.getHeader("cookie"));
+		} finally {
+			server.close();
+			target.close();
+		}
+	}
+
+	public void testRedirectFromHttpsToHttpRefused() throws Exception {
+		TestServer target = startRedirectingServer(null);
+		final URL location = target.getUrl("/new");
+		try {
+			GDataRequestFactory factory = new GDataRequestFactory();
+			factory.setTransport(new PooledHttpTransport() {
+				public HttpURLConnection openConnection(URL url) throws IOException {
+					if ("https".equals(url.getProtocol())) {
+						return new RedirectConnection(url, location);
+					}
+					return super.openConnection(url);
+				}
+			});
+			GDataRequest request = newCredentialedRequest(factory,
+					new URL("https://docs.google.com/feed"));
+			try {
+				request.execute();
+				fail("Redirect to http should not be followed");
+			} catch (RedirectRequiredException e) {
+				assertEquals(location.toString(), e.getRedirectLocation());
+			}
+			assertEquals(0, target.getRequestCount());
+		} finally {
+			target.close();
+		}
+	}
+
+	public void testGzipErrorBodyReleasesInflater() throws Exception {
+		assertErrorBodyReleasesInflater("Error=NotFound");
+	}
+
+	public void testLargeGzipErrorBodyReleasesInflater() throws Exception {
+		StringBuilder body = new StringBuilder();
+		Random random = new Random(1);
+		while (body.length() < 16 * 1024) {
+			body.append(Long.toString(random.nextLong(), 36));
+		}
+		assertErrorBodyReleasesInflater(body.toString());
+	}
+
+	public void testEmptyGzipBody() throws Exception {
+		TestServer server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Request request, TestServer.Response response)
+			throws Exception {
+				response.setHeader("Content-Encoding", "gzip");
+			}
+		});
+		try {
+			GDataRequestFactory factory = new GDataRequestFactory();
+			factory.setRetryPolicy(null);
+			GDataRequest request = factory.getRequest(GDataRequest.RequestType.QUERY,
+					server.getUrl("/feed"), ContentType.ATOM);
+			request.execute();
+			InputStream in = request.getResponseStream();
+			assertEquals(-1, in.read());
+			in.close();
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testReadAfterEndOfResponse() throws Exception {
+		TestServer server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Request request, TestServer.Response response)
+			throws Exception {
+				response.setBody("<feed/>");
+			}
+		});
+		try {
+			GDataRequestFactory factory = new GDataRequestFactory();
+			factory.setRetryPolicy(null);
+			GDataRequest request = factory.getRequest(GDataRequest.RequestType.QUERY,
+					server.getUrl("/feed"), ContentType.ATOM);
+			request.execute();
+			InputStream in = request.getResponseStream();
+			byte[] buffer = new byte[64];
+			assertEquals(7, in.read(buffer));
+			assertEquals(-1, in.read(buffer));
+			assertEquals(-1, in.read(buffer));
+			assertEquals(-1, in.read());
+			in.close();
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testAbortReleasesInflater() throws Exception {
+		final byte[] body = new byte[256 * 1024];
+		new Random(1).nextBytes(body);
+		TestServer server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Request request, TestServer.Response response)
+			throws Exception {
+				ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+				GZIPOutputStream out = new GZIPOutputStream(gzipped);
+				out.write(body);
+				out.close();
+				response.setHeader("Content-Encoding", "gzip");
+				response.setBody(gzipped.toByteArray());
+			}
+		});
+		try {
+			GDataRequestFactory factory = new GDataRequestFactory();
+			factory.setRetryPolicy(null);
+			GDataRequest request = factory.getRequest(GDataRequest.RequestType.QUERY,
+					server.getUrl("/feed"), ContentType.ATOM);
+			// the request takes the inflater released last
+			Inflater inflater = InflaterPool.acquire();
+			InflaterPool.release(inflater);
+			request.execute();
+			InputStream in = request.getResponseStream();
+			assertEquals(body[0] & 0xff, in.read());
+			request.abort();
+			Inflater reused = InflaterPool.acquire();
+			InflaterPool.release(reused);
+			assertSame(inflater, reused);
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testRequestBelowCompressionThresholdSentAsIs() throws Exception {
+		TestServer server = startEchoServer();
+		try {
+			byte[] body = newTextBody(100);
+			GDataRequest request = newInsertRequest(server, ContentType.ATOM);
+			request.setCompressionThreshold(1024);
+			send(request, body, 10);
+
+			TestServer.Request received = server.getLastRequest();
+			assertNull(received.getHeader("content-encoding"));
+			assertEquals("100", received.getHeader("content-length"));
+			assertEquals(new String(body, "UTF-8"), received.getBodyAsString());
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testRequestAboveCompressionThresholdCompressed() throws Exception {
+		TestServer server = startEchoServer();
+		try {
+			byte[] body = newTextBody(8 * 1024);
+			GDataRequest request = newInsertRequest(server, ContentType.ATOM);
+			request.setCompressionThreshold(1024);
+			send(request, body, 100);
+
+			TestServer.Request received = server.getLastRequest();
+			assertEquals("gzip", received.getHeader("content-encoding"));
+			assertTrue(received.getBody().length < body.length);
+			assertEquals(new String(body, "UTF-8"), gunzip(received.getBody()));
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testCompressedRequestOfKnownLengthChunked() throws Exception {
+		TestServer server = startEchoServer();
+		try {
+			byte[] body = newTextBody(8 * 1024);
+			GDataRequest request = newInsertRequest(server, ContentType.ATOM);
+			request.setCompressionThreshold(1024);
+			// the declared length no longer holds once compressed
+			request.setContentLength(body.length);
+			send(request, body, 1000);
+
+			TestServer.Request received = server.getLastRequest();
+			assertEquals("gzip", received.getHeader("content-encoding"));
+			assertEquals("chunked", received.getHeader("transfer-encoding"));
+			assertNull(received.getHeader("content-length"));
+			assertEquals(new String(body, "UTF-8"), gunzip(received.getBody()));
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testPrecompressedRequestNotCompressed() throws Exception {
+		TestServer server = startEchoServer();
+		try {
+			byte[] body = newTextBody(8 * 1024);
+			GDataRequest request = newInsertRequest(server, ContentType.ZIP);
+			request.setCompressionThreshold(0);
+			send(request, body, 1000);
+
+			TestServer.Request received = server.getLastRequest();
+			assertNull(received.getHeader("content-encoding"));
+			assertEquals(new String(body, "UTF-8"), received.getBodyAsString());
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testFactoryCompressionThreshold() throws Exception {
+		TestServer server = startEchoServer();
+		try {
+			GDataRequestFactory factory = new GDataRequestFactory();
+			factory.setRetryPolicy(null);
+			factory.setRequestCompressionThreshold(0);
+			GDataRequest request = factory.getRequest(GDataRequest.RequestType.INSERT,
+					server.getUrl("/feed"), ContentType.ATOM);
+			byte[] body = newTextBody(10);
+			send(request, body, 10);
+
+			TestServer.Request received = server.getLastRequest();
+			assertEquals("gzip", received.getHeader("content-encoding"));
+			assertEquals(new String(body, "UTF-8"), gunzip(received.getBody()));
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testRequestBufferedByDefault() throws Exception {
+		TestServer server = startEchoServer();
+		try {
+			byte[] body = newTextBody(10 * 1024);
+			send(newInsertRequest(server, ContentType.ATOM), body, 1000);
+
+			TestServer.Request received = server.getLastRequest();
+			assertEquals(String.valueOf(body.length), received.getHeader("content-length"));
+			assertNull(received.getHeader("transfer-encoding"));
+			assertEquals(new String(body, "UTF-8"), received.getBodyAsString());
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testRequestOfKnownLengthStreamed() throws Exception {
+		TestServer server = startEchoServer();
+		try {
+			byte[] body = newTextBody(10 * 1024);
+			GDataRequest request = newInsertRequest(server, ContentType.ATOM);
+			request.setContentLength(body.length);
+			send(request, body, 1000);
+
+			TestServer.Request received = server.getLastRequest();
+			assertEquals(String.valueOf(body.length), received.getHeader("content-length"));
+			assertNull(received.getHeader("transfer-encoding"));
+			assertEquals(new String(body, "UTF-8"), received.getBodyAsString());
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testRequestStreamedChunked() throws Exception {
+		TestServer server = startEchoServer();
+		try {
+			byte[] body = newTextBody(100 * 1024);
+			GDataRequest request = newInsertRequest(server, ContentType.ATOM);
+			request.setChunkedStreaming(true);
+			send(request, body, 1000);
+
+			TestServer.Request received = server.getLastRequest();
+			assertEquals("chunked", received.getHeader("transfer-encoding"));
+			assertNull(received.getHeader("content-length"));
+			assertEquals(new String(body, "UTF-8"), received.getBodyAsString());
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testSmallChunkedRequestReplayedAfterRedirect() throws Exception {
+		TestServer server = startRedirectingServer(null);
+		try {
+			byte[] body = newTextBody(1024);
+			GDataRequestFactory factory = new GDataRequestFactory();
+			factory.setRetryPolicy(null);
+			GDataRequest request = factory.getRequest(GDataRequest.RequestType.INSERT,
+					server.getUrl("/old"), ContentType.ATOM);
+			request.setChunkedStreaming(true);
+			send(request, body, 100);
+
+			TestServer.Request redirected = server.getLastRequest();
+			assertEquals("/new", redirected.getPath());
+			assertEquals("POST", redirected.getMethod());
+			assertEquals(new String(body, "UTF-8"), redirected.getBodyAsString());
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testLargeChunkedRequestNotReplayed() throws Exception {
+		TestServer server = startRedirectingServer(null);
+		try {
+			byte[] body = newTextBody(100 * 1024);
+			GDataRequestFactory factory = new GDataRequestFactory();
+			factory.setRetryPolicy(null);
+			GDataRequest request = factory.getRequest(GDataRequest.RequestType.INSERT,
+					server.getUrl("/old"), ContentType.ATOM);
+			request.setChunkedStreaming(true);
+			try {
+				send(request, body, 1000);
+				fail("Request data is too large to be replayed");
+			} catch (RedirectRequiredException e) {
+				// expected
+			}
+			assertEquals(1, server.getRequestCount());
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testMediaUpdateStreamedChunked() throws Exception {
+		TestServer server = startEchoServer();
+		try {
+			byte[] body = newTextBody(100 * 1024);
+			ServiceDataClient client = new ServiceDataClient("test", "http", "127.0.0.1");
+			client.setRetryPolicy(null);
+			client.updateMediaEntry(server.getUrl("/media"), null,
+					new ByteArrayInputStream(body), ContentType.ZIP).close();
+
+			TestServer.Request received = server.getLastRequest();
+			assertEquals("PUT", received.getMethod());
+			assertEquals("chunked", received.getHeader("transfer-encoding"));
+			assertEquals(new String(body, "UTF-8"), received.getBodyAsString());
+		} finally {
+			server.close();
+		}
+	}
+
+	private static void assertErrorBodyReleasesInflater(final String body)
+	throws Exception {
+		TestServer server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Request request, TestServer.Response response)
+			throws Exception {
+				ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+				GZIPOutputStream out = new GZIPOutputStream(gzipped);
+				out.write(body.getBytes("UTF-8"));
+				out.close();
+				response.setStatus(HttpURLConnection.HTTP_NOT_FOUND);
+				response.setHeader("Content-Type", "text/plain");
+				response.setHeader("Content-Encoding", "gzip");
+				response.setBody(gzipped.toByteArray());
+			}
+		});
+		try {
+			GDataRequestFactory factory = new GDataRequestFactory();
+			factory.setRetryPolicy(null);
+			GDataRequest request = factory.getRequest(GDataRequest.RequestType.QUERY,
+					server.getUrl("/feed"), ContentType.ATOM);
+			// the request takes the inflater released last
+			Inflater inflater = InflaterPool.acquire();
+			InflaterPool.release(inflater);
+			try {
+				request.execute();
+				fail("Request should have failed");
+			} catch (ResourceNotFoundException e) {
+				if (body.length() < 1024) {
+					assertEquals(body, e.getResponseBody());
+				} else {
+					assertNull(e.getResponseBody());
+				}
+			}
+			Inflater reused = InflaterPool.acquire();
+			InflaterPool.release(reused);
+			assertSame(inflater, reused);
+		} finally {
+			server.close();
+		}
+	}
+
+	private static TestServer startEchoServer() throws IOException {
+		return new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Request request, TestServer.Response response)
+			throws Exception {
+				response.setBody("ok");
+			}
+		});
+	}
+
+	private static GDataRequest newInsertRequest(TestServer server,
+			ContentType contentType) throws IOException {
+		GDataRequestFactory factory = new GDataRequestFactory();
+		factory.setRetryPolicy(null);
+		return factory.getRequest(GDataRequest.RequestType.INSERT,
+				server.getUrl("/feed"), contentType);
+	}
+
+	/**
+	 * Returns a compressible body of the given length.
+	 */
+	private static byte[] newTextBody(int length) {
+		byte[] body = new byte[length];
+		for (int i = 0; i < length; i++) {
+			body[i] = (byte) ('a' + (i % 7));
+		}
+		return body;
+	}
+
+	/**
+	 * Writes a body in pieces of the given size and executes the request.
+	 */
+	private static void send(GDataRequest request, byte[] body, int pieceSize)
+	throws Exception {
+		OutputStream out = request.getRequestStream();
+		for (int off = 0; off < body.length; off += pieceSize) {
+			out.write(body, off, Math.min(pieceSize, body.length - off));
+		}
+		request.execute();
+		request.getResponseStream().close();
+	}
+
+	private static String gunzip(byte[] data) throws IOException {
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		int len;
+		while ((len = in.read(buf)) != -1) {
+			out.write(buf, 0, len);
+		}
+		return new String(out.toByteArray(), "UTF-8");
+	}
+
+	private static GDataRequest newCredentialedRequest(GDataRequestFactory factory,
+			URL url) throws IOException {
+		factory.setRetryPolicy(null);
+		factory.setAuthToken(new UserToken("token"));
+		GDataRequest request =
+			factory.getRequest(GDataRequest.RequestType.QUERY, url, ContentType.ATOM);
+		request.setHeader("Cookie", "session=1");
+		return request;
+	}
+
+	/**
+	 * Redirects requests for /old to the given location, or to /new on the same
+	 * server, and answers all other requests.
+	 */
+	private static TestServer startRedirectingServer(final URL location)
+	throws IOException {
+		return new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Request request, TestServer.Response response)
+			throws Exception {
+				if (request.getPath().equals("/old")) {
+					response.setStatus(HttpURLConnection.HTTP_MOVED_TEMP);
+					response.setHeader("Location",
+							(location != null) ? location.toString() : "/new");
+				} else {
+					response.setBody("ok");
+				}
+			}
+		});
+	}
+
+	/**
+	 * Answers a redirect to the given location without any network access.
+	 */
+	private static class RedirectConnection extends HttpURLConnection {
+
+		private final URL location;
+
+		RedirectConnection(URL url, URL location) {
+			super(url);
+			this.location = location;
+		}
+
+		public void connect() {
+			connected = true;
+		}
+
+		public void disconnect() {
+		}
+
+		public boolean usingProxy() {
+			return false;
+		}
+
+		public int getResponseCode() {
+			return HTTP_MOVED_TEMP;
+		}
+
+		public String getHeaderField(String name) {
+			return "Location".equalsIgnoreCase(name) ? location.toString() : null;
+		}
+
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+	}
 }
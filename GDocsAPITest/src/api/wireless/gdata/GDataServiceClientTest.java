@@ -0,0 +1,356 @@
+package api.wireless.gdata;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import api.wireless.TestUtils.TestServer;
+import api.wireless.gdata.client.GDataCallback;
+import api.wireless.gdata.client.GDataParserFactory;
+import api.wireless.gdata.client.GDataServiceClient;
+import api.wireless.gdata.client.ServiceDataClient;
+import api.wireless.gdata.client.http.PooledHttpTransport;
+import api.wireless.gdata.data.Entry;
+import api.wireless.gdata.data.Feed;
+import api.wireless.gdata.parser.GDataParser;
+import api.wireless.gdata.parser.ParseException;
+import api.wireless.gdata.serializer.GDataSerializer;
+import api.wireless.gdata.util.ServiceException;
+import junit.framework.TestCase;
+
+public class GDataServiceClientTest extends TestCase {
+
+	private static final int TOTAL = 7;
+	private static final int PAGE_SIZE = 2;
+
+	private TestServer server;
+	private ServiceDataClient dataClient;
+	private PooledHttpTransport transport;
+	private TestClient client;
+	private volatile long parseDelay;
+	private volatile int maxLeased;
+
+	protected void setUp() throws Exception {
+		server = new TestServer(new PageHandler());
+		dataClient = new ServiceDataClient("test", "http", "127.0.0.1");
+		dataClient.setRetryPolicy(null);
+		transport = new PooledHttpTransport();
+		transport.setConnectionRequestTimeout(2000);
+		dataClient.setTransport(transport);
+		client = new TestClient(dataClient);
+	}
+
+	protected void tearDown() throws Exception {
+		client.close();
+		server.close();
+	}
+
+	public void testPagesReturnedInFeedOrder() throws Exception {
+		Feed<Entry> feed = client.getFeed(Entry.class, getFeedUrl(), 100);
+		assertEquals("[e1, e2, e3, e4, e5, e6, e7]", getIds(feed));
+		assertEquals(4, server.getRequestCount());
+	}
+
+	public void testFollowsNextLinksWithoutTotal() throws Exception {
+		URL url = server.getUrl("/feed?start-index=1&max-results=2&total=no");
+		Feed<Entry> feed = client.getFeed(Entry.class, url, 100);
+		assertEquals("[e1, e2, e3, e4, e5, e6, e7]", getIds(feed));
+	}
+
+	public void testStopsAtMaxFeedSize() throws Exception {
+		Feed<Entry> feed = client.getFeed(Entry.class, getFeedUrl(), 3);
+		assertEquals("[e1, e2, e3, e4]", getIds(feed));
+	}
+
+	public void testNoPrefetchWithoutSpareConnection() throws Exception {
+		transport = new PooledHttpTransport(1);
+		transport.setConnectionRequestTimeout(2000);
+		dataClient.setTransport(transport);
+		ThreadPoolExecutor executor = newExecutor(2);
+		client.setExecutor(executor);
+		try {
+			Feed<Entry> feed = client.getFeed(Entry.class, getFeedUrl(), 100);
+			assertEquals("[e1, e2, e3, e4, e5, e6, e7]", getIds(feed));
+			// all pages were fetched by the paging thread
+			assertEquals(0, executor.getTaskCount());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testPrefetchedPagesReleaseConnections() throws Exception {
+		parseDelay = 500;
+		Feed<Entry> feed = client.getFeed(Entry.class, getFeedUrl(), 100);
+		assertEquals("[e1, e2, e3, e4, e5, e6, e7]", getIds(feed));
+		// only the page being parsed held a connection
+		assertEquals(1, maxLeased);
+	}
+
+	public void testConcurrentPagingOnSingleThread() throws Exception {
+		ExecutorService executor = newExecutor(1);
+		client.setExecutor(executor);
+		try {
+			List<Future<Feed<Entry>>> futures = new ArrayList<Future<Feed<Entry>>>();
+			for (int i = 0; i < 3; i++) {
+				futures.add(executor.submit(new Callable<Feed<Entry>>() {
+					public Feed<Entry> call() throws Exception {
+						return client.getFeed(Entry.class, getFeedUrl(), 100);
+					}
+				}));
+			}
+			for (Future<Feed<Entry>> future : futures) {
+				assertEquals("[e1, e2, e3, e4, e5, e6, e7]",
+						getIds(future.get(10, TimeUnit.SECONDS)));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testFeedFuture() throws Exception {
+		Future<Feed<Entry>> future = client.getFeedAsync(Entry.class, getFeedUrl(), 100);
+		assertEquals("[e1, e2, e3, e4, e5, e6, e7]",
+				getIds(future.get(10, TimeUnit.SECONDS)));
+	}
+
+	public void testFeedFutureFailure() throws Exception {
+		Future<Feed<Entry>> future =
+			client.getFeedAsync(Entry.class, server.getUrl("/missing"), 100);
+		try {
+			future.get(10, TimeUnit.SECONDS);
+			fail("Missing feed should have failed");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ServiceException);
+		}
+	}
+
+	public void testCallbacks() throws Exception {
+		RecordingCallback success = new RecordingCallback();
+		client.getFeedAsync(Entry.class, getFeedUrl(), 100, success);
+		assertTrue(success.done.await(10, TimeUnit.SECONDS));
+		assertEquals("[e1, e2, e3, e4, e5, e6, e7]", getIds(success.result));
+		assertNull(success.error);
+
+		RecordingCallback failure = new RecordingCallback();
+		client.getFeedAsync(Entry.class, server.getUrl("/missing"), 100, failure);
+		assertTrue(failure.done.await(10, TimeUnit.SECONDS));
+		assertNull(failure.result);
+		assertTrue(failure.error instanceof ServiceException);
+	}
+
+	public void testDefaultExecutorSizedFromTransport() throws Exception {
+		transport.setMaxTotalConnections(3);
+		ThreadPoolExecutor executor = (ThreadPoolExecutor) client.getExecutor();
+		assertEquals(3, executor.getMaximumPoolSize());
+		Future<Boolean> daemon = executor.submit(new Callable<Boolean>() {
+			public Boolean call() {
+				return Thread.currentThread().isDaemon();
+			}
+		});
+		assertTrue(daemon.get(10, TimeUnit.SECONDS));
+	}
+
+	public void testCloseShutsDownDefaultExecutor() {
+		ExecutorService executor = client.getExecutor();
+		client.close();
+		assertTrue(executor.isShutdown());
+	}
+
+	public void testCloseLeavesSuppliedExecutor() {
+		ExecutorService executor = newExecutor(1);
+		try {
+			client.setExecutor(executor);
+			client.close();
+			assertFalse(executor.isShutdown());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private URL getFeedUrl() throws IOException {
+		return server.getUrl("/feed?start-index=1&max-results=" + PAGE_SIZE);
+	}
+
+	private static ThreadPoolExecutor newExecutor(int threads) {
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>());
+	}
+
+	private static String getIds(Feed<Entry> feed) {
+		List<String> ids = new ArrayList<String>();
+		for (Entry entry : feed.getEntries()) {
+			ids.add(entry.getId());
+		}
+		return ids.toString();
+	}
+
+	private static class RecordingCallback implements GDataCallback<Feed<Entry>> {
+
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile Feed<Entry> result;
+		volatile Throwable error;
+
+		public void onSuccess(Feed<Entry> result) {
+			this.result = result;
+			done.countDown();
+		}
+
+		public void onFailure(Throwable error) {
+			this.error = error;
+			done.countDown();
+		}
+	}
+
+	private class TestClient extends GDataServiceClient {
+
+		TestClient(ServiceDataClient dataClient) {
+			super(dataClient, new PageParserFactory());
+		}
+
+		public String getServiceName() {
+			return "test";
+		}
+	}
+
+	/**
+	 * Called by the parser on the first entry of the feed, once the following
+	 * pages have been requested.
+	 */
+	private void firstEntryRead() {
+		try {
+			Thread.sleep(parseDelay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		maxLeased = Math.max(maxLeased, transport.getLeasedConnections("127.0.0.1"));
+	}
+
+	private class PageParserFactory implements GDataParserFactory {
+
+		@SuppressWarnings("unchecked")
+		public <E extends Entry> GDataParser<E> createParser(Class<E> entryClass,
+				InputStream is) {
+			return (GDataParser<E>) new PageParser(is);
+		}
+
+		public <E extends Entry> GDataParser<E> createParser(InputStream is) {
+			throw new UnsupportedOperationException();
+		}
+
+		public <E extends Entry> GDataSerializer createSerializer(E entry) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Parses the pages of {@link PageHandler}: a line with the start index,
+	 * total results, page size and next link of the page, followed by one
+	 * entry id per line.
+	 */
+	private class PageParser implements GDataParser<Entry> {
+
+		private final BufferedReader reader;
+
+		PageParser(InputStream is) {
+			try {
+				reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+			} catch (IOException e) {
+				throw new IllegalStateException(e.toString());
+			}
+		}
+
+		public Feed<Entry> init() throws ParseException {
+			try {
+				String[] header = reader.readLine().split(" ");
+				Feed<Entry> feed = new Feed<Entry>();
+				feed.setStartIndex(Integer.parseInt(header[0]));
+				feed.setTotalResults(Integer.parseInt(header[1]));
+				feed.setItemsPerPage(Integer.parseInt(header[2]));
+				if (!header[3].equals("-")) {
+					feed.setNext(header[3]);
+				}
+				return feed;
+			} catch (IOException e) {
+				throw new ParseException(e.toString());
+			}
+		}
+
+		public Entry parseStandaloneEntry() {
+			throw new UnsupportedOperationException();
+		}
+
+		public boolean hasMoreData() {
+			return true;
+		}
+
+		public Entry readNextEntry(Entry entry) throws IOException {
+			String line = reader.readLine();
+			if (line == null || line.length() == 0) {
+				return null;
+			}
+			if (line.equals("e1")) {
+				firstEntryRead();
+			}
+			entry = new Entry();
+			entry.setId(line);
+			return entry;
+		}
+
+		public void close() {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Serves the pages of a feed of {@link #TOTAL} entries, addressed by
+	 * start-index. The total is left out if the query asks for it.
+	 */
+	private static class PageHandler implements TestServer.Handler {
+
+		private static final Pattern START_INDEX =
+			Pattern.compile("start-index=(\\d+)&max-results=(\\d+)");
+
+		public void handle(TestServer.Request request, TestServer.Response response)
+		throws Exception {
+			Matcher matcher = START_INDEX.matcher(request.getPath());
+			if (!matcher.find()) {
+				response.setStatus(404);
+				return;
+			}
+			int start = Integer.parseInt(matcher.group(1));
+			int size = Integer.parseInt(matcher.group(2));
+			boolean total = request.getPath().indexOf("total=no") < 0;
+			String next = "-";
+			if (start + size <= TOTAL) {
+				next = "http://" + request.getHeader("host") + "/feed?start-index="
+						+ (start + size) + "&max-results=" + size
+						+ (total ? "" : "&total=no");
+			}
+			StringBuilder body = new StringBuilder();
+			body.append(start).append(' ').append(total ? TOTAL : 0).append(' ')
+				.append(size).append(' ').append(next).append('\n');
+			for (int i = start; i < start + size && i <= TOTAL; i++) {
+				body.append('e').append(i).append('\n');
+			}
+			response.setBody(body.toString());
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package api.wireless.gdata;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import api.wireless.TestUtils.TestServer;
+import api.wireless.gdata.client.ServiceDataClient;
+import api.wireless.gdata.client.http.HedgingPolicy;
+import api.wireless.gdata.client.http.RetryBudget;
+import api.wireless.gdata.util.common.base.StreamUtil;
+import junit.framework.TestCase;
+
+public class HedgingPolicyTest extends TestCase {
+
+	public void testHedgeDelayFollowsPercentile() {
+		HedgingPolicy policy = new HedgingPolicy();
+		policy.setMinDelay(0);
+		for (int i = 1; i < 20; i++) {
+			policy.recordLatency(i);
+		}
+		assertEquals(-1, policy.getHedgeDelay());
+		for (int i = 20; i <= 100; i++) {
+			policy.recordLatency(i);
+		}
+		assertEquals(95, policy.getHedgeDelay());
+		policy.setPercentile(50);
+		assertEquals(50, policy.getHedgeDelay());
+		policy.setMinDelay(70);
+		assertEquals(70, policy.getHedgeDelay());
+	}
+
+	public void testSlowQueryIsHedged() throws Exception {
+		TestServer server = startSlowFirstServer();
+		try {
+			HedgingPolicy policy = newPolicy();
+			policy.setBudget(null);
+			ServiceDataClient client = newClient(policy);
+
+			long start = System.currentTimeMillis();
+			InputStream is = client.getFeedAsStream(server.getUrl("/feed"), null);
+			assertEquals("<feed/>", StreamUtil.convertStreamToString(is).trim());
+			assertTrue(System.currentTimeMillis() - start < 1500);
+			assertEquals(1, policy.getHedgeCount());
+			assertEquals(2, server.getRequestCount());
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testBudgetLimitsHedges() throws Exception {
+		TestServer server = startSlowFirstServer();
+		try {
+			HedgingPolicy policy = newPolicy();
+			policy.setBudget(new RetryBudget(0, 0));
+			ServiceDataClient client = newClient(policy);
+
+			InputStream is = client.getFeedAsStream(server.getUrl("/feed"), null);
+			assertEquals("<feed/>", StreamUtil.convertStreamToString(is).trim());
+			assertEquals(0, policy.getHedgeCount());
+			assertEquals(1, server.getRequestCount());
+		} finally {
+			server.close();
+		}
+	}
+
+	private static HedgingPolicy newPolicy() {
+		HedgingPolicy policy = new HedgingPolicy();
+		policy.setMinDelay(100);
+		for (int i = 0; i < 20; i++) {
+			policy.recordLatency(10);
+		}
+		return policy;
+	}
+
+	private static ServiceDataClient newClient(HedgingPolicy policy) {
+		ServiceDataClient client = new ServiceDataClient("test", "http", "127.0.0.1");
+		client.setHedgingPolicy(policy);
+		return client;
+	}
+
+	/**
+	 * Answers the first request after three seconds and all others right away.
+	 */
+	private static TestServer startSlowFirstServer() throws IOException {
+		return new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Request request, TestServer.Response response)
+			throws Exception {
+				if (request.getNumber() == 1) {
+					Thread.sleep(3000);
+				}
+				response.setBody("<feed/>");
+			}
+		});
+	}
+}
@@ -0,0 +1,212 @@
+package api.wireless.gdata;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import api.wireless.TestUtils;
+import api.wireless.TestUtils.TestServer;
+import api.wireless.gdata.client.http.ConnectionPoolTimeoutException;
+import api.wireless.gdata.client.http.PooledHttpTransport;
+import junit.framework.TestCase;
+
+public class PooledHttpTransportTest extends TestCase {
+
+	private TestServer server;
+	private PooledHttpTransport transport;
+
+	protected void setUp() throws Exception {
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Request request, TestServer.Response response)
+			throws Exception {
+				// large responses exceed what the platform drains to keep a socket
+				response.setBody(request.getPath().equals("/large")
+						? new byte[2 * 1024 * 1024] : "ok".getBytes("UTF-8"));
+			}
+		});
+		transport = new PooledHttpTransport(2);
+		transport.setConnectionRequestTimeout(200);
+	}
+
+	protected void tearDown() throws Exception {
+		server.close();
+	}
+
+	public void testDefaultRequestTimeoutIsFinite() {
+		assertEquals(PooledHttpTransport.DEFAULT_CONNECTION_REQUEST_TIMEOUT,
+				new PooledHttpTransport().getConnectionRequestTimeout());
+		assertTrue(PooledHttpTransport.DEFAULT_CONNECTION_REQUEST_TIMEOUT > 0);
+	}
+
+	public void testPerHostLimit() throws Exception {
+		HttpURLConnection first = connect(server.getUrl("/feed"));
+		HttpURLConnection second = connect(server.getUrl("/feed"));
+		assertEquals(2, transport.getLeasedConnections("127.0.0.1"));
+
+		long start = System.currentTimeMillis();
+		try {
+			connect(server.getUrl("/feed"));
+			fail("Host limit should have been enforced");
+		} catch (ConnectionPoolTimeoutException e) {
+			// expected
+		}
+		assertTrue(System.currentTimeMillis() - start >= 150);
+		assertEquals(2, transport.getLeasedConnections("127.0.0.1"));
+
+		transport.releaseConnection(first, false);
+		HttpURLConnection third = connect(server.getUrl("/feed"));
+		transport.releaseConnection(second, false);
+		transport.releaseConnection(third, false);
+		assertEquals(0, transport.getLeasedConnections("127.0.0.1"));
+	}
+
+	public void testTotalLimit() throws Exception {
+		transport.setMaxTotalConnections(1);
+		HttpURLConnection first = connect(server.getUrl("/feed"));
+		try {
+			connect(server.getUrl("localhost", "/feed"));
+			fail("Total limit should have been enforced");
+		} catch (ConnectionPoolTimeoutException e) {
+			// expected
+		}
+		// the host permit taken before timing out is handed back
+		assertEquals(0, transport.getLeasedConnections("localhost"));
+		transport.releaseConnection(first, false);
+		transport.releaseConnection(connect(server.getUrl("localhost", "/feed")), false);
+	}
+
+	public void testConnectionOfOtherHostReleasedToWaitingRequest() throws Exception {
+		transport.setMaxTotalConnections(1);
+		transport.setConnectionRequestTimeout(5000);
+		final HttpURLConnection first = connect(server.getUrl("/feed"));
+		releaseLater(first, 200);
+		HttpURLConnection second = connect(server.getUrl("localhost", "/feed"));
+		assertEquals(0, transport.getLeasedConnections("127.0.0.1"));
+		assertEquals(1, transport.getLeasedConnections("localhost"));
+		transport.releaseConnection(second, false);
+	}
+
+	public void testPendingRequestsCounted() throws Exception {
+		transport = new PooledHttpTransport(1);
+		transport.setConnectionRequestTimeout(5000);
+		HttpURLConnection first = connect(server.getUrl("/feed"));
+		final HttpURLConnection[] second = new HttpURLConnection[1];
+		Thread waiting = new Thread() {
+			public void run() {
+				try {
+					second[0] = connect(server.getUrl("/feed"));
+				} catch (IOException e) {
+					// left null
+				}
+			}
+		};
+		waiting.start();
+		long end = System.currentTimeMillis() + 2000;
+		while (transport.getPendingRequests("127.0.0.1") == 0
+				&& System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, transport.getPendingRequests("127.0.0.1"));
+
+		transport.releaseConnection(first, false);
+		waiting.join(5000);
+		assertNotNull(second[0]);
+		assertEquals(0, transport.getPendingRequests("127.0.0.1"));
+		transport.releaseConnection(second[0], false);
+	}
+
+	public void testFailedConnectHandsBackPermits() throws Exception {
+		transport.setMaxTotalConnections(1);
+		try {
+			connect(TestUtils.getRefusingUrl("/feed"));
+			fail("Connection should have been refused");
+		} catch (IOException e) {
+			// expected
+		}
+		HttpURLConnection connection = connect(server.getUrl("/feed"));
+		transport.releaseConnection(connection, false);
+	}
+
+	public void testTotalLimitFixedOnceInUse() throws Exception {
+		HttpURLConnection connection = connect(server.getUrl("/feed"));
+		try {
+			transport.setMaxTotalConnections(5);
+			fail("Limit should not change while connections are in use");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		transport.releaseConnection(connection, false);
+		transport.setMaxTotalConnections(5);
+		assertEquals(5, transport.getMaxTotalConnections());
+	}
+
+	public void testWaitingRequestGetsReleasedConnection() throws Exception {
+		transport.setConnectionRequestTimeout(5000);
+		HttpURLConnection first = connect(server.getUrl("/feed"));
+		HttpURLConnection second = connect(server.getUrl("/feed"));
+		releaseLater(first, 200);
+		HttpURLConnection third = connect(server.getUrl("/feed"));
+		assertEquals(2, transport.getLeasedConnections("127.0.0.1"));
+		transport.releaseConnection(second, false);
+		transport.releaseConnection(third, false);
+	}
+
+	public void testReusableConnectionKeptAliveByPlatform() throws Exception {
+		server.setKeepAlive(true);
+		fetch(true);
+		fetch(true);
+		assertEquals(1, server.getConnectionCount());
+	}
+
+	public void testConnectionNotReusableIsClosed() throws Exception {
+		server.setKeepAlive(true);
+		HttpURLConnection connection = connect(server.getUrl("/large"));
+		assertEquals(0, connection.getInputStream().read());
+		transport.releaseConnection(connection, false);
+		fetch(true);
+		assertEquals(2, server.getConnectionCount());
+		// the server sees the socket of the unread response closed
+		long end = System.currentTimeMillis() + 2000;
+		while (server.getOpenConnectionCount() > 1
+				&& System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, server.getOpenConnectionCount());
+	}
+
+	private HttpURLConnection connect(URL url) throws IOException {
+		HttpURLConnection connection = transport.openConnection(url);
+		transport.connect(connection);
+		return connection;
+	}
+
+	/**
+	 * Releases a connection from another thread after the given delay.
+	 */
+	private void releaseLater(final HttpURLConnection connection, final long delay) {
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					return;
+				}
+				transport.releaseConnection(connection, false);
+			}
+		}.start();
+	}
+
+	/**
+	 * Reads a whole response and releases its connection.
+	 */
+	private void fetch(boolean reusable) throws IOException {
+		HttpURLConnection connection = connect(server.getUrl("/feed"));
+		InputStream in = connection.getInputStream();
+		while (in.read() != -1) {
+			// read the whole response
+		}
+		in.close();
+		transport.releaseConnection(connection, reusable);
+	}
+}
@@ -0,0 +1,192 @@
+package api.wireless.gdata;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import api.wireless.TestUtils.TestServer;
+import api.wireless.gdata.client.RangedDownloader;
+import api.wireless.gdata.client.ServiceDataClient;
+import api.wireless.gdata.util.ContentType;
+import junit.framework.TestCase;
+
+public class RangedDownloaderTest extends TestCase {
+
+	private static final int MEDIA_SIZE = 3 * RangedDownloader.DEFAULT_MIN_SEGMENT_SIZE + 1000;
+
+	private MediaHandler handler;
+	private TestServer server;
+	private ExecutorService executor;
+	private File file;
+	private byte[] content;
+
+	protected void setUp() throws Exception {
+		content = new byte[MEDIA_SIZE];
+		new Random(42).nextBytes(content);
+		file = File.createTempFile("download", ".bin");
+		handler = new MediaHandler(content);
+		server = new TestServer(handler);
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	protected void tearDown() throws Exception {
+		executor.shutdown();
+		server.close();
+		file.delete();
+	}
+
+	public void testDownloadFetchesRangesInParallel() throws Exception {
+		RangedDownloader downloader = newDownloader();
+		long length = downloader.download(server.getUrl("/export"),
+				ContentType.TEXT_PLAIN, file);
+
+		assertEquals(MEDIA_SIZE, length);
+		assertTrue(Arrays.equals(content, readFile()));
+		assertEquals(RangedDownloader.DEFAULT_SEGMENTS, handler.rangeRequests);
+		assertEquals(0, handler.fullRequests);
+	}
+
+	public void testDownloadFallsBackToSingleRequest() throws Exception {
+		handler.acceptRanges = false;
+		RangedDownloader downloader = newDownloader();
+		long length = downloader.download(server.getUrl("/export"),
+				ContentType.TEXT_PLAIN, file);
+
+		assertEquals(MEDIA_SIZE, length);
+		assertTrue(Arrays.equals(content, readFile()));
+		assertEquals(1, handler.fullRequests);
+	}
+
+	public void testFailedDownloadKeepsPreviousFile() throws Exception {
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[] {1, 2, 3});
+		out.close();
+		handler.changeEtag = true;
+		RangedDownloader downloader = newDownloader();
+		try {
+			downloader.download(server.getUrl("/export"), ContentType.TEXT_PLAIN,
+					file);
+			fail("Download should have failed");
+		} catch (IOException e) {
+			// expected
+		}
+		assertTrue(Arrays.equals(new byte[] {1, 2, 3}, readFile()));
+		String[] leftovers = file.getParentFile().list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(file.getName()) && name.endsWith(".part");
+			}
+		});
+		assertEquals(0, leftovers.length);
+	}
+
+	public void testDownloadWithoutEtagUsesSingleRequest() throws Exception {
+		handler.etag = null;
+		assertSingleRequestDownload();
+	}
+
+	public void testDownloadWithWeakEtagUsesSingleRequest() throws Exception {
+		handler.etag = "W/\"v1\"";
+		assertSingleRequestDownload();
+	}
+
+	public void testRangeOfOtherLengthFails() throws Exception {
+		handler.changeLength = true;
+		RangedDownloader downloader = newDownloader();
+		try {
+			downloader.download(server.getUrl("/export"), ContentType.TEXT_PLAIN,
+					file);
+			fail("Download should have failed");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("Media changed"));
+		}
+	}
+
+	private void assertSingleRequestDownload() throws Exception {
+		RangedDownloader downloader = newDownloader();
+		long length = downloader.download(server.getUrl("/export"),
+				ContentType.TEXT_PLAIN, file);
+
+		assertEquals(MEDIA_SIZE, length);
+		assertTrue(Arrays.equals(content, readFile()));
+		// only the first range was requested before falling back
+		assertEquals(1, handler.rangeRequests);
+		assertEquals(1, handler.fullRequests);
+	}
+
+	private RangedDownloader newDownloader() {
+		ServiceDataClient client = new ServiceDataClient("test", "http", "127.0.0.1");
+		return new RangedDownloader(client, executor);
+	}
+
+	private byte[] readFile() throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int off = 0;
+			while (off < data.length) {
+				off += in.read(data, off, data.length - off);
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	/**
+	 * Serves a single media resource, answering range requests with partial
+	 * responses unless disabled.
+	 */
+	private static class MediaHandler implements TestServer.Handler {
+
+		final byte[] content;
+		volatile boolean acceptRanges = true;
+		volatile boolean changeEtag;
+		volatile boolean changeLength;
+		volatile String etag = "\"v1\"";
+		int rangeRequests;
+		int fullRequests;
+
+		MediaHandler(byte[] content) {
+			this.content = content;
+		}
+
+		public void handle(TestServer.Request request, TestServer.Response response) {
+			String range = request.getHeader("range");
+			String ifRange = request.getHeader("if-range");
+			boolean stale = changeEtag && ifRange != null;
+			if (!acceptRanges || range == null || stale) {
+				synchronized (this) {
+					fullRequests++;
+				}
+				response.setHeader("ETag", "\"v2\"");
+				response.setBody(content);
+				return;
+			}
+
+			synchronized (this) {
+				rangeRequests++;
+			}
+			int dash = range.indexOf('-');
+			int first = Integer.parseInt(range.substring(6, dash));
+			int last = Math.min(Integer.parseInt(range.substring(dash + 1)),
+					content.length - 1);
+			byte[] part = new byte[last - first + 1];
+			System.arraycopy(content, first, part, 0, part.length);
+			// a length changed since the first range without a new tag
+			int length = (changeLength && first > 0) ? content.length + 1 : content.length;
+			response.setStatus(206);
+			if (etag != null) {
+				response.setHeader("ETag", etag);
+			}
+			response.setHeader("Content-Range", "bytes " + first + "-" + last + "/"
+					+ length);
+			response.setBody(part);
+		}
+	}
+}
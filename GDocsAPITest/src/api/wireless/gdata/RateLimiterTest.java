@@ -0,0 +1,127 @@
+package api.wireless.gdata;
+
+import java.io.IOException;
+import java.net.URL;
+
+import api.wireless.TestUtils;
+import api.wireless.TestUtils.TestServer;
+import api.wireless.gdata.client.http.CircuitBreaker;
+import api.wireless.gdata.client.http.CircuitBreakerRegistry;
+import api.wireless.gdata.client.http.GDataRequest;
+import api.wireless.gdata.client.http.RateLimitExceededException;
+import api.wireless.gdata.client.http.RateLimiter;
+import api.wireless.gdata.client.http.GDataRequest.GDataRequestFactory;
+import api.wireless.gdata.client.http.GDataRequest.RequestType;
+import api.wireless.gdata.util.ContentType;
+import junit.framework.TestCase;
+
+public class RateLimiterTest extends TestCase {
+
+	private RateLimiter limiter;
+
+	protected void setUp() throws Exception {
+		limiter = new RateLimiter();
+		limiter.setRate(1, 2);
+		limiter.setMaxWait(0);
+	}
+
+	public void testBurstThenReject() throws Exception {
+		assertTrue(limiter.tryAcquire("writely", "a@example.com", RequestType.QUERY));
+		assertTrue(limiter.tryAcquire("writely", "a@example.com", RequestType.QUERY));
+		assertFalse(limiter.tryAcquire("writely", "a@example.com", RequestType.QUERY));
+		try {
+			limiter.acquire("writely", "a@example.com", RequestType.QUERY);
+			fail("Empty bucket should reject requests");
+		} catch (RateLimitExceededException e) {
+			assertEquals("writely/a@example.com/QUERY", e.getKey());
+			assertTrue(e.getWaitTime() > 0 && e.getWaitTime() <= 1000);
+		}
+	}
+
+	public void testBucketsAreSeparate() {
+		limiter.setRate(RequestType.INSERT, 1, 1);
+		assertTrue(limiter.tryAcquire("writely", "a@example.com", RequestType.INSERT));
+		assertFalse(limiter.tryAcquire("writely", "a@example.com", RequestType.INSERT));
+		assertTrue(limiter.tryAcquire("writely", "a@example.com", RequestType.QUERY));
+		assertTrue(limiter.tryAcquire("writely", "b@example.com", RequestType.INSERT));
+		assertTrue(limiter.tryAcquire("wise", "a@example.com", RequestType.INSERT));
+		assertEquals(2, limiter.getAvailablePermits("wise", "a@example.com",
+				RequestType.QUERY));
+	}
+
+	public void testWaitsForPermit() throws Exception {
+		limiter.setRate(20, 1);
+		limiter.acquire("wise", null, RequestType.UPDATE, 1000);
+		long start = System.currentTimeMillis();
+		limiter.acquire("wise", null, RequestType.UPDATE, 1000);
+		assertTrue(System.currentTimeMillis() - start >= 40);
+	}
+
+	public void testRequestsRejectedOnceRateExceeded() throws Exception {
+		URL url = TestUtils.getRefusingUrl("/feed");
+
+		GDataRequestFactory factory = new GDataRequestFactory();
+		factory.setRetryPolicy(null);
+		factory.setRateLimiter(limiter);
+		factory.setRateLimitKey("writely", "a@example.com");
+		for (int i = 0; i < 2; i++) {
+			GDataRequest request = factory.getRequest(RequestType.QUERY, url,
+					ContentType.ATOM);
+			try {
+				request.execute();
+				fail("Connection should have been refused");
+			} catch (RateLimitExceededException e) {
+				fail("Request rejected too early");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+
+		GDataRequest request = factory.getRequest(RequestType.QUERY, url,
+				ContentType.ATOM);
+		try {
+			request.execute();
+			fail("Request should have been rejected");
+		} catch (RateLimitExceededException e) {
+			// expected
+		}
+	}
+
+	public void testRejectedUploadNeverConnects() throws Exception {
+		TestServer server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Request request, TestServer.Response response) {
+			}
+		});
+		try {
+			CircuitBreakerRegistry breakers = new CircuitBreakerRegistry();
+			breakers.setMinimumCalls(1);
+			GDataRequestFactory factory = new GDataRequestFactory();
+			factory.setRetryPolicy(null);
+			factory.setCircuitBreakerRegistry(breakers);
+			factory.setRateLimiter(limiter);
+			factory.setRateLimitKey("writely", "a@example.com");
+			assertTrue(limiter.tryAcquire("writely", "a@example.com", RequestType.INSERT));
+			assertTrue(limiter.tryAcquire("writely", "a@example.com", RequestType.INSERT));
+
+			URL url = server.getUrl("/feed");
+			for (int i = 0; i < 3; i++) {
+				GDataRequest request = factory.getRequest(RequestType.INSERT, url,
+						ContentType.ATOM);
+				request.setContentLength(4);
+				try {
+					request.getRequestStream().write("body".getBytes());
+					fail("Request should have been rejected");
+				} catch (RateLimitExceededException e) {
+					request.abort();
+				}
+			}
+			assertEquals(0, server.getConnectionCount());
+			// the rejections are no failures of the host
+			CircuitBreaker breaker = breakers.getCircuitBreaker(url);
+			assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+			assertEquals(0, breaker.getRecordedCalls());
+		} finally {
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package api.wireless.gdata;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+
+import api.wireless.TestUtils.TestServer;
+import api.wireless.gdata.client.ServiceDataClient;
+import api.wireless.gdata.client.http.Deadline;
+import api.wireless.gdata.client.http.DeadlineExceededException;
+import api.wireless.gdata.client.http.RequestCoalescer;
+import api.wireless.gdata.util.ServiceException;
+import api.wireless.gdata.util.common.base.StreamUtil;
+import junit.framework.TestCase;
+
+public class RequestCoalescerTest extends TestCase {
+
+	public void testConcurrentCallersShareFetch() throws Exception {
+		final RequestCoalescer coalescer = new RequestCoalescer();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final int[] fetches = new int[1];
+		final RequestCoalescer.Fetcher fetcher = new RequestCoalescer.Fetcher() {
+			public InputStream fetch() throws IOException {
+				synchronized (fetches) {
+					fetches[0]++;
+				}
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted");
+				}
+				return StreamUtil.convertStringToStream("<feed/>");
+			}
+		};
+
+		final String[] results = new String[3];
+		Thread[] threads = new Thread[results.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						results[index] = read(coalescer.fetch("feed", fetcher));
+					} catch (Exception e) {
+						results[index] = e.toString();
+					}
+				}
+			};
+		}
+		threads[0].start();
+		started.await();
+		for (int i = 1; i < threads.length; i++) {
+			threads[i].start();
+		}
+		while (coalescer.getRequestCount() < threads.length) {
+			Thread.sleep(5);
+		}
+		release.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(1, fetches[0]);
+		assertEquals(2, coalescer.getCoalescedCount());
+		for (String result : results) {
+			assertEquals("<feed/>", result);
+		}
+
+		// nothing is kept once the fetch completed
+		coalescer.fetch("feed", fetcher).close();
+		assertEquals(2, fetches[0]);
+	}
+
+	public void testFailureIsShared() throws Exception {
+		RequestCoalescer coalescer = new RequestCoalescer();
+		try {
+			coalescer.fetch("feed", new RequestCoalescer.Fetcher() {
+				public InputStream fetch() throws ServiceException {
+					throw new ServiceException("gone");
+				}
+			});
+			fail("Fetch should have failed");
+		} catch (ServiceException e) {
+			assertEquals("gone", e.getMessage());
+		}
+	}
+
+	public void testFollowerFetchesAgainAfterLeaderDeadline() throws Exception {
+		final RequestCoalescer coalescer = new RequestCoalescer();
+		final int[] fetches = new int[1];
+		final RequestCoalescer.Fetcher fetcher = new RequestCoalescer.Fetcher() {
+			public InputStream fetch() throws IOException {
+				synchronized (fetches) {
+					if (fetches[0]++ > 0) {
+						return StreamUtil.convertStringToStream("<feed/>");
+					}
+				}
+				// the leader runs out of time once the follower waits
+				while (coalescer.getCoalescedCount() < 1) {
+					try {
+						Thread.sleep(5);
+					} catch (InterruptedException e) {
+						throw new IOException("interrupted");
+					}
+				}
+				throw new DeadlineExceededException("Deadline exceeded");
+			}
+		};
+		final Exception[] failure = new Exception[1];
+		Thread leader = new Thread() {
+			public void run() {
+				try {
+					coalescer.fetch("feed", fetcher).close();
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		};
+		leader.start();
+		while (coalescer.getRequestCount() < 1) {
+			Thread.sleep(5);
+		}
+
+		assertEquals("<feed/>", read(coalescer.fetch("feed", fetcher)));
+		leader.join();
+		assertTrue(failure[0] instanceof DeadlineExceededException);
+		assertEquals(2, fetches[0]);
+		assertEquals(2, coalescer.getRequestCount());
+	}
+
+	public void testFollowerStopsAtOwnDeadline() throws Exception {
+		final RequestCoalescer coalescer = new RequestCoalescer();
+		final CountDownLatch release = new CountDownLatch(1);
+		final RequestCoalescer.Fetcher fetcher = new RequestCoalescer.Fetcher() {
+			public InputStream fetch() throws IOException {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted");
+				}
+				return StreamUtil.convertStringToStream("<feed/>");
+			}
+		};
+		Thread leader = new Thread() {
+			public void run() {
+				try {
+					coalescer.fetch("feed", fetcher).close();
+				} catch (Exception e) {
+					// not checked
+				}
+			}
+		};
+		leader.start();
+		try {
+			while (coalescer.getRequestCount() < 1) {
+				Thread.sleep(5);
+			}
+			assertFollowerStopped(coalescer, fetcher, new Deadline(200));
+
+			final Deadline cancelled = new Deadline(60000);
+			new Thread() {
+				public void run() {
+					try {
+						Thread.sleep(200);
+					} catch (InterruptedException e) {
+						return;
+					}
+					cancelled.cancel();
+				}
+			}.start();
+			assertFollowerStopped(coalescer, fetcher, cancelled);
+		} finally {
+			release.countDown();
+			leader.join();
+		}
+	}
+
+	private static void assertFollowerStopped(RequestCoalescer coalescer,
+			RequestCoalescer.Fetcher fetcher, Deadline deadline) throws Exception {
+		Deadline previous = deadline.attach();
+		long start = System.currentTimeMillis();
+		try {
+			coalescer.fetch("feed", fetcher);
+			fail("Follower should have stopped waiting");
+		} catch (DeadlineExceededException e) {
+			// expected
+		} finally {
+			deadline.detach(previous);
+		}
+		assertTrue(System.currentTimeMillis() - start < 1000);
+	}
+
+	public void testClientCoalescesFeedRequests() throws Exception {
+		TestServer server = startSlowServer();
+		try {
+			final ServiceDataClient client = new ServiceDataClient("test", "http",
+					"127.0.0.1");
+			assertNull(client.getRequestCoalescer());
+			client.setRequestCoalescer(new RequestCoalescer());
+			final URL url = server.getUrl("/feed");
+			final String[] results = new String[4];
+			Thread[] threads = new Thread[results.length];
+			for (int i = 0; i < threads.length; i++) {
+				final int index = i;
+				threads[i] = new Thread() {
+					public void run() {
+						try {
+							results[index] = read(client.getFeedAsStream(url, null));
+						} catch (Exception e) {
+							results[index] = e.toString();
+						}
+					}
+				};
+				threads[i].start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			for (String result : results) {
+				assertEquals("<feed/>", result);
+			}
+			assertEquals(results.length, server.getRequestCount()
+					+ client.getRequestCoalescer().getCoalescedCount());
+			assertTrue(server.getRequestCount() < results.length);
+		} finally {
+			server.close();
+		}
+	}
+
+	private static String read(InputStream is) throws IOException {
+		try {
+			StringBuilder sb = new StringBuilder();
+			int c;
+			while ((c = is.read()) != -1) {
+				sb.append((char) c);
+			}
+			return sb.toString();
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Starts a server answering every request with a small feed after a
+	 * delay.
+	 */
+	private static TestServer startSlowServer() throws IOException {
+		return new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Request request, TestServer.Response response)
+			throws Exception {
+				Thread.sleep(300);
+				response.setHeader("Content-Type", "application/atom+xml");
+				response.setBody("<feed/>");
+			}
+		});
+	}
+}
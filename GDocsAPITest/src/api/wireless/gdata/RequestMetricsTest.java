@@ -0,0 +1,148 @@
+package api.wireless.gdata;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import api.wireless.TestUtils.TestServer;
+import api.wireless.gdata.client.http.GDataRequest;
+import api.wireless.gdata.client.http.LatencyHistogram;
+import api.wireless.gdata.client.http.RequestListener;
+import api.wireless.gdata.client.http.RequestMetrics;
+import api.wireless.gdata.client.http.GDataRequest.GDataRequestFactory;
+import api.wireless.gdata.client.http.GDataRequest.RequestType;
+import api.wireless.gdata.util.ContentType;
+import api.wireless.gdata.util.ResourceNotFoundException;
+import junit.framework.TestCase;
+
+public class RequestMetricsTest extends TestCase {
+
+	private TestServer server;
+	private GDataRequestFactory factory;
+	private RequestMetrics metrics;
+	private List<String> events;
+
+	protected void setUp() throws Exception {
+		server = new TestServer(new MetricsHandler());
+		metrics = new RequestMetrics();
+		metrics.addUrlTemplate("/feeds/cells/{key}/{ws}");
+		events = new CopyOnWriteArrayList<String>();
+		factory = new GDataRequestFactory();
+		factory.setRetryPolicy(null);
+		factory.addRequestListener(metrics);
+		factory.addRequestListener(new RecordingListener());
+	}
+
+	protected void tearDown() throws Exception {
+		server.close();
+	}
+
+	public void testCompletedRequestIsTimed() throws Exception {
+		GDataRequest request = factory.getRequest(RequestType.QUERY,
+				server.getUrl("/feeds/cells/key1/od6/private/full"), ContentType.ATOM);
+		request.execute();
+		InputStream in = request.getResponseStream();
+		while (in.read() != -1) {
+			// read the whole response
+		}
+		in.close();
+
+		assertEquals("[started, connected, response, bytes 0/5, completed]",
+				events.toString());
+		RequestMetrics.Stats stats = metrics.getTypeStats(RequestType.QUERY);
+		assertEquals(1, stats.getRequestCount());
+		assertEquals(0, stats.getFailureCount());
+		assertEquals(1, stats.getTotalLatency().getCount());
+		assertEquals(1, stats.getConnectLatency().getCount());
+		assertEquals(5, stats.getBytesReceived());
+		assertNotNull(metrics.getHostStats("127.0.0.1:" + server.getPort()));
+		assertEquals(1, metrics.getUrlStats("/feeds/cells/{key}/{ws}").getRequestCount());
+
+		StringBuilder export = new StringBuilder();
+		metrics.export(export);
+		assertTrue(export.toString().indexOf("type=QUERY phase=total requests=1") >= 0);
+	}
+
+	public void testFailedRequestIsCounted() throws Exception {
+		GDataRequest request = factory.getRequest(RequestType.QUERY,
+				server.getUrl("/missing"), ContentType.ATOM);
+		try {
+			request.execute();
+			fail("Request should have failed");
+		} catch (ResourceNotFoundException e) {
+			// expected
+		}
+		assertEquals("failed", events.get(events.size() - 1));
+		RequestMetrics.Stats stats = metrics.getTypeStats(RequestType.QUERY);
+		assertEquals(1, stats.getFailureCount());
+		assertEquals(0, stats.getTotalLatency().getCount());
+	}
+
+	public void testDefaultUrlTemplates() throws Exception {
+		assertEquals("/feeds/documents/private/full/{id}", metrics.getUrlTemplate(
+				new URL("http://docs.google.com/feeds/documents/private/full/document%3A12")));
+		assertEquals("/feeds/cells/{key}/{ws}", metrics.getUrlTemplate(
+				new URL("http://spreadsheets.google.com/feeds/cells/abc/od6/private/full")));
+	}
+
+	public void testHistogramPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 10000; i++) {
+			histogram.record(i);
+		}
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(10000, snapshot.getCount());
+		assertEquals(1, snapshot.getMin());
+		assertEquals(10000, snapshot.getMax());
+		assertTrue(Math.abs(snapshot.getMean() - 5000.5) < 0.001);
+		assertTrue(Math.abs(snapshot.getValueAtPercentile(50) - 5000) <= 5000 / 16);
+		assertTrue(Math.abs(snapshot.getValueAtPercentile(99) - 9900) <= 9900 / 16);
+		assertEquals(10000, snapshot.getValueAtPercentile(100));
+		assertEquals(0, new LatencyHistogram().snapshot().getValueAtPercentile(50));
+	}
+
+	private class RecordingListener implements RequestListener {
+
+		public void requestStarted(GDataRequest request) {
+			events.add("started");
+		}
+
+		public void requestConnected(GDataRequest request, long connectTime) {
+			events.add("connected");
+		}
+
+		public void responseStarted(GDataRequest request, long waitTime) {
+			events.add("response");
+		}
+
+		public void bytesTransferred(GDataRequest request, long sent, long received) {
+			events.add("bytes " + sent + "/" + received);
+		}
+
+		public void requestCompleted(GDataRequest request, long readTime,
+				long totalTime) {
+			events.add("completed");
+		}
+
+		public void requestFailed(GDataRequest request, Exception failure,
+				long totalTime) {
+			events.add("failed");
+		}
+	}
+
+	/**
+	 * Answers with "hello", or 404 (Not Found) for /missing.
+	 */
+	private static class MetricsHandler implements TestServer.Handler {
+
+		public void handle(TestServer.Request request, TestServer.Response response)
+		throws Exception {
+			if (request.getPath().startsWith("/missing")) {
+				response.setStatus(404);
+			}
+			response.setHeader("Content-Type", "text/plain");
+			response.setBody("hello");
+		}
+	}
+}
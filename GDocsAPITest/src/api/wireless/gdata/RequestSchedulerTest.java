@@ -0,0 +1,115 @@
+package api.wireless.gdata;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import api.wireless.TestUtils;
+import api.wireless.gdata.client.http.Deadline;
+import api.wireless.gdata.client.http.DeadlineExceededException;
+import api.wireless.gdata.client.http.GDataRequest;
+import api.wireless.gdata.client.http.RequestPriority;
+import api.wireless.gdata.client.http.RequestScheduler;
+import api.wireless.gdata.client.http.GDataRequest.GDataRequestFactory;
+import api.wireless.gdata.client.http.GDataRequest.RequestType;
+import api.wireless.gdata.util.ContentType;
+import junit.framework.TestCase;
+
+public class RequestSchedulerTest extends TestCase {
+
+	public void testClassLimit() throws Exception {
+		RequestScheduler scheduler = new RequestScheduler(3);
+		scheduler.setMaxConcurrent(RequestPriority.BULK, 1);
+		scheduler.acquire(RequestPriority.BULK, null);
+		Thread waiter = startWaiter(scheduler, RequestPriority.BULK, null);
+		while (scheduler.getQueued(RequestPriority.BULK) == 0) {
+			Thread.sleep(5);
+		}
+		scheduler.acquire(RequestPriority.NORMAL, null);
+		assertEquals(1, scheduler.getRunning(RequestPriority.BULK));
+		assertEquals(1, scheduler.getQueued(RequestPriority.BULK));
+
+		scheduler.release(RequestPriority.BULK);
+		waiter.join(1000);
+		assertFalse(waiter.isAlive());
+	}
+
+	public void testWeightedFairQueuing() throws Exception {
+		RequestScheduler scheduler = new RequestScheduler(1);
+		scheduler.acquire(RequestPriority.NORMAL, null);
+
+		List<RequestPriority> order = new ArrayList<RequestPriority>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			threads.add(startWaiter(scheduler, RequestPriority.BULK, order));
+		}
+		for (int i = 0; i < 4; i++) {
+			threads.add(startWaiter(scheduler, RequestPriority.INTERACTIVE, order));
+		}
+		while (scheduler.getQueued(RequestPriority.BULK) < 4
+				|| scheduler.getQueued(RequestPriority.INTERACTIVE) < 4) {
+			Thread.sleep(5);
+		}
+
+		scheduler.release(RequestPriority.NORMAL);
+		for (Thread thread : threads) {
+			thread.join(1000);
+		}
+		// a bulk request gets its share, the rest waits for the interactive ones
+		RequestPriority i = RequestPriority.INTERACTIVE;
+		RequestPriority b = RequestPriority.BULK;
+		assertEquals(Arrays.asList(i, b, i, i, i, b, b, b), order);
+	}
+
+	public void testRequestWaitsNoLongerThanDeadline() throws Exception {
+		URL url = TestUtils.getRefusingUrl("/feed");
+
+		RequestScheduler scheduler = new RequestScheduler(1);
+		scheduler.acquire(RequestPriority.INTERACTIVE, null);
+		GDataRequestFactory factory = new GDataRequestFactory();
+		factory.setRequestScheduler(scheduler);
+
+		RequestPriority previousPriority = RequestPriority.setCurrent(RequestPriority.BULK);
+		Deadline deadline = new Deadline(200);
+		Deadline previous = deadline.attach();
+		try {
+			GDataRequest request = factory.getRequest(RequestType.QUERY, url,
+					ContentType.ATOM);
+			request.execute();
+			fail("Request should not have got a slot");
+		} catch (DeadlineExceededException e) {
+			// expected
+		} finally {
+			deadline.detach(previous);
+			RequestPriority.setCurrent(previousPriority);
+		}
+		assertEquals(0, scheduler.getQueued(RequestPriority.BULK));
+		assertEquals(0, scheduler.getRunning(RequestPriority.BULK));
+	}
+
+	/**
+	 * Starts a thread that records its priority once it got a slot and
+	 * releases it right away.
+	 */
+	private static Thread startWaiter(final RequestScheduler scheduler,
+			final RequestPriority priority, final List<RequestPriority> order) {
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					scheduler.acquire(priority, null);
+					if (order != null) {
+						synchronized (order) {
+							order.add(priority);
+						}
+					}
+					scheduler.release(priority);
+				} catch (Exception e) {
+					// recorded as missing
+				}
+			}
+		};
+		thread.start();
+		return thread;
+	}
+}
@@ -0,0 +1,128 @@
+package api.wireless.gdata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+import api.wireless.TestUtils.TestServer;
+import api.wireless.gdata.client.ServiceDataClient;
+import api.wireless.gdata.client.http.ResponseCache;
+import api.wireless.gdata.client.http.ResponseCache.CachedResponse;
+import junit.framework.TestCase;
+
+public class ResponseCacheTest extends TestCase {
+
+	private File dir;
+
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("cache", "");
+		dir.delete();
+	}
+
+	protected void tearDown() throws Exception {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	public void testMemoryTierEvictsLeastRecentlyUsed() {
+		ResponseCache cache = new ResponseCache(10);
+		cache.put("a", new CachedResponse("\"1\"", null, new byte[4]));
+		cache.put("b", new CachedResponse("\"2\"", null, new byte[4]));
+		assertNotNull(cache.get("a"));
+		cache.put("c", new CachedResponse("\"3\"", null, new byte[4]));
+		assertNotNull(cache.get("a"));
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("c"));
+		assertEquals(8, cache.getMemorySize());
+
+		cache.put("d", new CachedResponse("\"4\"", null, new byte[11]));
+		assertNull(cache.get("d"));
+		assertEquals(8, cache.getMemorySize());
+	}
+
+	public void testDiskTierOutlivesMemory() throws Exception {
+		ResponseCache cache = new ResponseCache(0, dir, 1000);
+		cache.put("feed", new CachedResponse("\"1\"", "Mon, 01 Jun 2009 10:00:00 GMT",
+				"<feed/>".getBytes("UTF-8")));
+		assertEquals(0, cache.getMemorySize());
+
+		ResponseCache reopened = new ResponseCache(0, dir, 1000);
+		assertEquals(cache.getDiskSize(), reopened.getDiskSize());
+		CachedResponse response = reopened.get("feed");
+		assertEquals("\"1\"", response.getEtag());
+		assertEquals("Mon, 01 Jun 2009 10:00:00 GMT", response.getLastModified());
+		assertEquals("<feed/>", read(response.getStream()));
+		assertNull(reopened.get("other"));
+	}
+
+	public void testDiskTierStaysWithinCapacity() throws Exception {
+		ResponseCache cache = new ResponseCache(0, dir, 250);
+		for (int i = 0; i < 5; i++) {
+			cache.put("feed" + i, new CachedResponse(null, null, new byte[100]));
+		}
+		assertTrue(cache.getDiskSize() <= 250);
+		assertTrue(dir.listFiles().length <= 2);
+		assertNotNull(cache.get("feed4"));
+	}
+
+	public void testUnchangedFeedServedFromCache() throws Exception {
+		EtagHandler handler = new EtagHandler();
+		TestServer server = new TestServer(handler);
+		try {
+			ServiceDataClient client = new ServiceDataClient("test", "http", "127.0.0.1");
+			client.setResponseCache(new ResponseCache());
+			URL url = server.getUrl("/feed");
+			assertEquals("<feed>1</feed>", read(client.getFeedAsStream(url, null)));
+			assertEquals("<feed>1</feed>", read(client.getFeedAsStream(url, null)));
+			assertEquals(1, handler.notModified);
+
+			handler.version++;
+			assertEquals("<feed>2</feed>", read(client.getFeedAsStream(url, null)));
+			assertEquals(3, server.getRequestCount());
+			assertEquals(2, client.getResponseCache().getHitCount());
+		} finally {
+			server.close();
+		}
+	}
+
+	private static String read(InputStream is) throws IOException {
+		try {
+			StringBuilder sb = new StringBuilder();
+			int c;
+			while ((c = is.read()) != -1) {
+				sb.append((char) c);
+			}
+			return sb.toString();
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Serves a feed tagged with its version, answering 304 (Not Modified) to
+	 * requests for the current version.
+	 */
+	private static class EtagHandler implements TestServer.Handler {
+
+		volatile int version = 1;
+		volatile int notModified;
+
+		public void handle(TestServer.Request request, TestServer.Response response)
+		throws Exception {
+			String etag = "\"" + version + "\"";
+			response.setHeader("ETag", etag);
+			if (etag.equals(request.getHeader("if-none-match"))) {
+				notModified++;
+				response.setStatus(304);
+			} else {
+				response.setBody("<feed>" + version + "</feed>");
+			}
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package api.wireless.gdata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import api.wireless.TestUtils.TestServer;
+import api.wireless.gdata.client.ResumableUploader;
+import api.wireless.gdata.client.ServiceDataClient;
+import api.wireless.gdata.client.http.PooledHttpTransport;
+import api.wireless.gdata.util.common.base.StreamUtil;
+import junit.framework.TestCase;
+
+public class ResumableUploaderTest extends TestCase {
+
+	private static final int FILE_SIZE = 5 * ResumableUploader.CHUNK_GRANULARITY + 1000;
+
+	private static final int HALF_CHUNK = ResumableUploader.CHUNK_GRANULARITY / 2;
+
+	private UploadHandler handler;
+	private TestServer server;
+	private PooledHttpTransport transport;
+	private File file;
+	private byte[] content;
+
+	protected void setUp() throws Exception {
+		content = new byte[FILE_SIZE];
+		new Random(42).nextBytes(content);
+		file = File.createTempFile("upload", ".bin");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(content);
+		out.close();
+
+		handler = new UploadHandler();
+		server = new TestServer(handler);
+		transport = new PooledHttpTransport();
+	}
+
+	protected void tearDown() throws Exception {
+		server.close();
+		file.delete();
+	}
+
+	public void testUploadResumesAfterReset() throws Exception {
+		// reset the connection in the middle of the second chunk; the first
+		// request opens the session
+		server.truncateRequest(3, HALF_CHUNK);
+
+		ResumableUploader uploader = createUploader();
+		uploader.setChunkSize(ResumableUploader.CHUNK_GRANULARITY);
+		uploader.setRetryDelay(0);
+		final List<Long> progress = new ArrayList<Long>();
+		uploader.setProgressListener(new ResumableUploader.ProgressListener() {
+			public void onProgress(long bytesUploaded, long totalBytes) {
+				assertEquals(FILE_SIZE, totalBytes);
+				progress.add(Long.valueOf(bytesUploaded));
+			}
+		});
+
+		InputStream response = uploader.upload(server.getUrl("/session"), "test.bin",
+				file, "application/octet-stream");
+		assertEquals("<entry/>", StreamUtil.convertStreamToString(response).trim());
+		response.close();
+
+		assertTrue(Arrays.equals(content, handler.received.toByteArray()));
+		assertEquals(1, handler.resets);
+		assertEquals("test.bin", handler.slug);
+		assertEquals(String.valueOf(FILE_SIZE), handler.uploadLength);
+		// the upload went on from the offset the server confirmed after the reset
+		assertTrue(handler.chunkStarts.contains(Long.valueOf(
+				ResumableUploader.CHUNK_GRANULARITY + HALF_CHUNK)));
+		assertTrue(handler.bytesSent < FILE_SIZE + ResumableUploader.CHUNK_GRANULARITY);
+		for (int i = 1; i < progress.size(); i++) {
+			assertTrue(progress.get(i).longValue() > progress.get(i - 1).longValue());
+		}
+		assertEquals(FILE_SIZE, progress.get(progress.size() - 1).longValue());
+		assertEquals(0, transport.getLeasedConnections("127.0.0.1"));
+	}
+
+	public void testUploadGivesUpAfterMaxRetries() throws Exception {
+		// reset every chunk and status request after the session before any
+		// data arrives
+		for (int i = 2; i < 30; i++) {
+			server.truncateRequest(i, 0);
+		}
+
+		ResumableUploader uploader = createUploader();
+		uploader.setRetryDelay(0);
+		uploader.setMaxRetries(2);
+		try {
+			uploader.upload(server.getUrl("/session"), "test.bin", file,
+					"application/octet-stream");
+			fail("Upload should have failed");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(0, transport.getLeasedConnections("127.0.0.1"));
+	}
+
+	private ResumableUploader createUploader() {
+		ServiceDataClient client = new ServiceDataClient("test", "http", "127.0.0.1");
+		client.setTransport(transport);
+		return new ResumableUploader(client);
+	}
+
+	/**
+	 * Minimal stand-in for the resumable upload service. Like the real one,
+	 * it keeps the part of a chunk it received before the connection broke.
+	 */
+	private static class UploadHandler implements TestServer.Handler {
+
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		final List<Long> chunkStarts = new ArrayList<Long>();
+		String slug;
+		String uploadLength;
+		long bytesSent;
+		int resets;
+
+		public void handle(TestServer.Request request, TestServer.Response response)
+		throws Exception {
+			if (request.getMethod().equals("POST") && request.getPath().equals("/session")) {
+				slug = request.getHeader("slug");
+				uploadLength = request.getHeader("x-upload-content-length");
+				response.setHeader("Location", "/upload/1");
+				return;
+			}
+
+			String range = request.getHeader("content-range");
+			if (range.startsWith("bytes */") && !request.isTruncated()) {
+				resumeIncomplete(response);
+				return;
+			}
+			byte[] body = request.getBody();
+			if (range.startsWith("bytes */")) {
+				resets++;
+				return;
+			}
+			int start = Integer.parseInt(range.substring(6, range.indexOf('-')));
+			assertEquals(received.size(), start);
+			chunkStarts.add(Long.valueOf(start));
+			received.write(body, 0, body.length);
+			bytesSent += body.length;
+			if (request.isTruncated()) {
+				// the connection is reset once the handler returns
+				resets++;
+				return;
+			}
+			if (received.size() == FILE_SIZE) {
+				response.setStatus(201);
+				response.setBody("<entry/>");
+			} else {
+				resumeIncomplete(response);
+			}
+		}
+
+		private void resumeIncomplete(TestServer.Response response) {
+			response.setStatus(308);
+			if (received.size() > 0) {
+				response.setHeader("Range", "bytes=0-" + (received.size() - 1));
+			}
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package api.wireless.gdata;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+
+import api.wireless.TestUtils.TestServer;
+import api.wireless.gdata.client.http.GDataRequest;
+import api.wireless.gdata.client.http.RetryBudget;
+import api.wireless.gdata.client.http.RetryPolicy;
+import api.wireless.gdata.client.http.GDataRequest.GDataRequestFactory;
+import api.wireless.gdata.client.http.GDataRequest.RequestType;
+import api.wireless.gdata.util.ContentType;
+import api.wireless.gdata.util.ResourceNotFoundException;
+import api.wireless.gdata.util.ServiceUnavailableException;
+import api.wireless.gdata.util.common.base.StreamUtil;
+import junit.framework.TestCase;
+
+public class RetryPolicyTest extends TestCase {
+
+	public void testMaxRetriesFollowClassHierarchy() {
+		RetryPolicy policy = new RetryPolicy();
+		assertEquals(RetryPolicy.DEFAULT_MAX_RETRIES, policy.getMaxRetries(IOException.class));
+		assertEquals(0, policy.getMaxRetries(InterruptedIOException.class));
+		assertEquals(RetryPolicy.DEFAULT_MAX_RETRIES,
+				policy.getMaxRetries(SocketTimeoutException.class));
+		assertEquals(0, policy.getMaxRetries(ResourceNotFoundException.class));
+
+		policy.setMaxRetries(ServiceUnavailableException.class, 7);
+		assertEquals(7, policy.getMaxRetries(ServiceUnavailableException.class));
+	}
+
+	public void testDelaysStayWithinBounds() {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setRetryBudget(null);
+		policy.setBaseDelay(100);
+		policy.setMaxDelay(1000);
+		long delay = 0;
+		for (int i = 0; i < 3; i++) {
+			delay = policy.getRetryDelay(new IOException(), i, delay);
+			assertTrue(delay >= 100 && delay <= 1000);
+		}
+		assertEquals(-1, policy.getRetryDelay(new IOException(), 3, delay));
+	}
+
+	public void testRetryAfterSetsMinimumDelay() {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setRetryBudget(null);
+		policy.setBaseDelay(0);
+
+		ServiceUnavailableException e = new ServiceUnavailableException("busy");
+		e.getHttpHeaders().put("Retry-After", Collections.singletonList("2"));
+		assertTrue(policy.getRetryDelay(e, 0, 0) >= 2000);
+
+		e.getHttpHeaders().put("Retry-After", Collections.singletonList("3600"));
+		assertEquals(-1, policy.getRetryDelay(e, 0, 0));
+	}
+
+	public void testBudgetLimitsRetries() {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setRetryBudget(new RetryBudget(0.5, 0));
+		policy.setBaseDelay(0);
+		assertEquals(-1, policy.getRetryDelay(new IOException(), 0, 0));
+
+		policy.recordRequest();
+		policy.recordRequest();
+		assertTrue(policy.getRetryDelay(new IOException(), 0, 0) >= 0);
+		assertEquals(-1, policy.getRetryDelay(new IOException(), 0, 0));
+	}
+
+	public void testQueryRetriedAfterServiceUnavailable() throws Exception {
+		TestServer server = startFlakyServer(2);
+		try {
+			GDataRequest request = newFactory().getRequest(RequestType.QUERY,
+					server.getUrl("/feed"), ContentType.ATOM);
+			request.execute();
+			assertEquals("ok", StreamUtil.convertStreamToString(
+					request.getResponseStream()).trim());
+			assertEquals(3, server.getRequestCount());
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testInsertNotRetried() throws Exception {
+		TestServer server = startFlakyServer(1);
+		try {
+			GDataRequest request = newFactory().getRequest(RequestType.INSERT,
+					server.getUrl("/feed"), ContentType.ATOM);
+			request.getRequestStream().write("<entry/>".getBytes("UTF-8"));
+			try {
+				request.execute();
+				fail("Insert should have failed");
+			} catch (ServiceUnavailableException e) {
+				assertEquals(503, e.getHttpErrorCodeOverride());
+			}
+			assertEquals(1, server.getRequestCount());
+		} finally {
+			server.close();
+		}
+	}
+
+	private static GDataRequestFactory newFactory() {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setRetryBudget(null);
+		policy.setBaseDelay(0);
+		GDataRequestFactory factory = new GDataRequestFactory();
+		factory.setRetryPolicy(policy);
+		return factory;
+	}
+
+	/**
+	 * Starts a server answering the first requests with 503 (Service
+	 * Unavailable).
+	 */
+	private static TestServer startFlakyServer(final int failures) throws IOException {
+		return new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Request request, TestServer.Response response)
+			throws Exception {
+				if (request.getNumber() <= failures) {
+					response.setStatus(503);
+					response.setHeader("Retry-After", "0");
+				}
+				response.setBody("ok");
+			}
+		});
+	}
+}
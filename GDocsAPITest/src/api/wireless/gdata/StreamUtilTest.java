@@ -0,0 +1,163 @@
+package api.wireless.gdata;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import api.wireless.gdata.util.common.base.StreamUtil;
+import junit.framework.TestCase;
+
+public class StreamUtilTest extends TestCase {
+
+	private File dir;
+
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("streams", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	protected void tearDown() throws Exception {
+		delete(dir);
+	}
+
+	public void testSaveToFile() throws Exception {
+		byte[] content = new byte[200 * 1024 + 17];
+		new Random(3).nextBytes(content);
+		File file = new File(dir, "saved.bin");
+		write(file, "old".getBytes());
+
+		assertEquals(content.length, StreamUtil.saveToFile(
+				new ByteArrayInputStream(content), file));
+		assertTrue(Arrays.equals(content, read(file)));
+		assertEquals(1, dir.list().length);
+	}
+
+	public void testFailedSaveLeavesTargetUnchanged() throws Exception {
+		File file = new File(dir, "saved.bin");
+		write(file, "old".getBytes());
+		FailingInputStream in = new FailingInputStream(100 * 1024);
+		try {
+			StreamUtil.saveToFile(in, file);
+			fail("Saving should have failed");
+		} catch (IOException e) {
+			assertEquals("connection reset", e.getMessage());
+		}
+		assertTrue(in.closed);
+		assertEquals("old", new String(read(file)));
+		// the partial file has been removed
+		assertEquals(1, dir.list().length);
+	}
+
+	public void testFailedSaveCreatesNoFile() throws Exception {
+		File file = new File(dir, "saved.bin");
+		try {
+			StreamUtil.saveToFile(new FailingInputStream(10), file);
+			fail("Saving should have failed");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(0, dir.list().length);
+	}
+
+	public void testCreateTempFile() throws Exception {
+		File temp = StreamUtil.createTempFile(new File(dir, "a"));
+		assertTrue(temp.exists());
+		assertEquals(0, temp.length());
+		assertEquals(dir.getAbsoluteFile(), temp.getParentFile());
+		assertTrue(temp.getName().startsWith("a"));
+		assertTrue(temp.getName().endsWith(".part"));
+	}
+
+	public void testReplaceFile() throws Exception {
+		File source = new File(dir, "source");
+		File target = new File(dir, "target");
+		write(source, "new".getBytes());
+		write(target, "old".getBytes());
+
+		StreamUtil.replaceFile(source, target);
+		assertFalse(source.exists());
+		assertEquals("new", new String(read(target)));
+	}
+
+	public void testFailedReplaceKeepsFiles() throws Exception {
+		File source = new File(dir, "source");
+		File target = new File(dir, "target");
+		write(source, "new".getBytes());
+		// a directory that is not empty can't be replaced
+		target.mkdir();
+		File child = new File(target, "child");
+		write(child, "old".getBytes());
+
+		try {
+			StreamUtil.replaceFile(source, target);
+			fail("Replacing should have failed");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals("new", new String(read(source)));
+		assertEquals("old", new String(read(child)));
+	}
+
+	private static void write(File file, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static byte[] read(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int offset = 0;
+			while (offset < data.length) {
+				offset += in.read(data, offset, data.length - offset);
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Stream failing after a number of bytes, like a broken download.
+	 */
+	private static class FailingInputStream extends InputStream {
+
+		private int remaining;
+		boolean closed;
+
+		FailingInputStream(int length) {
+			remaining = length;
+		}
+
+		public int read() throws IOException {
+			if (remaining-- <= 0) {
+				throw new IOException("connection reset");
+			}
+			return 'x';
+		}
+
+		public void close() {
+			closed = true;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package api.wireless.gdata;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import api.wireless.gdata.client.TokenCache;
+import api.wireless.gdata.client.TokenFactory;
+import api.wireless.gdata.client.TokenFactory.ClientLoginAccountType;
+import api.wireless.gdata.util.AuthenticationException;
+import junit.framework.TestCase;
+
+public class TokenCacheTest extends TestCase {
+
+	private static final ClientLoginAccountType TYPE =
+		ClientLoginAccountType.HOSTED_OR_GOOGLE;
+
+	public void testFactoriesShareLogin() throws Exception {
+		TokenCache cache = new TokenCache();
+		AtomicInteger logins = new AtomicInteger();
+		CountingFactory first = new CountingFactory(cache, logins);
+		CountingFactory second = new CountingFactory(cache, logins);
+
+		first.setUserCredentials("user@example.com", "secret");
+		second.setUserCredentials("User@example.com", "secret");
+		assertEquals(1, logins.get());
+		assertEquals(first.getAuthToken().getValue(), second.getAuthToken().getValue());
+
+		// a different password must not be answered from the cache
+		second.setUserCredentials("user@example.com", "other");
+		assertEquals(2, logins.get());
+	}
+
+	public void testConcurrentLoginsCollapse() throws Exception {
+		TokenCache cache = new TokenCache();
+		final AtomicInteger logins = new AtomicInteger();
+		final TokenCache.Login login = new TokenCache.Login() {
+			public HashMap<String, String> login() throws AuthenticationException {
+				logins.incrementAndGet();
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					throw new AuthenticationException("interrupted");
+				}
+				return tokens("auth");
+			}
+		};
+		final TokenCache shared = cache;
+		final List<String> results = new ArrayList<String>();
+		Thread[] threads = new Thread[5];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						String token = shared.getTokens("user@example.com", "secret",
+								"writely", TYPE, login).get("Auth");
+						synchronized (results) {
+							results.add(token);
+						}
+					} catch (AuthenticationException e) {
+						// counted as missing result
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(1, logins.get());
+		assertEquals(5, results.size());
+	}
+
+	public void testTokensSurviveRestart() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"),
+				"tokencache-" + System.nanoTime());
+		SecretKeySpec key = new SecretKeySpec(new byte[16], "AES");
+		AtomicInteger logins = new AtomicInteger();
+		try {
+			TokenCache cache = new TokenCache();
+			cache.setStore(dir, key);
+			cache.getTokens("user@example.com", "secret", "writely", TYPE,
+					new CountingLogin(logins));
+
+			TokenCache restarted = new TokenCache();
+			restarted.setStore(dir, key);
+			assertEquals("auth1", restarted.getTokens("user@example.com", "secret",
+					"writely", TYPE, new CountingLogin(logins)).get("Auth"));
+			assertEquals(1, logins.get());
+
+			// the password is checked against the hash on disk
+			TokenCache checked = new TokenCache();
+			checked.setStore(dir, key);
+			assertEquals("auth2", checked.getTokens("user@example.com", "guess",
+					"writely", TYPE, new CountingLogin(logins)).get("Auth"));
+
+			byte[] wrong = new byte[16];
+			wrong[0] = 1;
+			TokenCache rekeyed = new TokenCache();
+			rekeyed.setStore(dir, new SecretKeySpec(wrong, "AES"));
+			rekeyed.getTokens("user@example.com", "secret", "writely", TYPE,
+					new CountingLogin(logins));
+			assertEquals(3, logins.get());
+		} finally {
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			dir.delete();
+		}
+	}
+
+	public void testTokensRefreshedBeforeExpiry() throws Exception {
+		TokenCache cache = new TokenCache();
+		cache.setTokenLifetime(1000);
+		cache.setRefreshMargin(900);
+		AtomicInteger logins = new AtomicInteger();
+		cache.getTokens("user@example.com", "secret", "writely", TYPE,
+				new CountingLogin(logins));
+		Thread.sleep(300);
+		assertTrue(logins.get() >= 2);
+		String token = cache.getTokens("user@example.com", "secret", "writely",
+				TYPE, new CountingLogin(logins)).get("Auth");
+		assertFalse("auth1".equals(token));
+		assertEquals(1, cache.getHitCount());
+	}
+
+	public void testRefreshKeepsAccount() throws Exception {
+		TokenCache cache = new TokenCache();
+		cache.setTokenLifetime(1000);
+		cache.setRefreshMargin(900);
+		AtomicInteger logins = new AtomicInteger();
+		CountingFactory factory = new CountingFactory(cache, logins);
+		factory.setUserCredentials("first@example.com", "secret");
+		factory.setUserCredentials("second@example.com", "other");
+		Thread.sleep(300);
+		assertTrue(logins.get() >= 4);
+
+		String token = cache.getTokens("first@example.com", "secret", "writely",
+				TYPE, new CountingLogin(logins)).get("Auth");
+		assertTrue(token, token.startsWith("first@example.com:"));
+		token = cache.getTokens("second@example.com", "other", "writely",
+				TYPE, new CountingLogin(logins)).get("Auth");
+		assertTrue(token, token.startsWith("second@example.com:"));
+	}
+
+	private static HashMap<String, String> tokens(String auth) {
+		HashMap<String, String> tokens = new HashMap<String, String>();
+		tokens.put("Auth", auth);
+		return tokens;
+	}
+
+	private static class CountingLogin implements TokenCache.Login {
+
+		private final AtomicInteger logins;
+
+		CountingLogin(AtomicInteger logins) {
+			this.logins = logins;
+		}
+
+		public HashMap<String, String> login() {
+			return tokens("auth" + logins.incrementAndGet());
+		}
+	}
+
+	/**
+	 * Answers logins without contacting the service.
+	 */
+	private static class CountingFactory extends TokenFactory {
+
+		private final AtomicInteger logins;
+
+		CountingFactory(TokenCache cache, AtomicInteger logins) {
+			super("writely", "test");
+			this.logins = logins;
+			setTokenCache(cache);
+		}
+
+		public HashMap<String, String> getAuthTokens(String username,
+				String password, String serviceName, String applicationName,
+				ClientLoginAccountType accountType) {
+			return tokens(username + ":" + password + ":" + logins.incrementAndGet());
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package api.wireless.gdata;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import api.wireless.TestUtils.TestServer;
+import api.wireless.gdata.client.ServiceDataClient;
+import api.wireless.gdata.client.TokenFactory;
+import api.wireless.gdata.client.http.PooledHttpTransport;
+import api.wireless.gdata.client.http.RequestMetrics;
+import api.wireless.gdata.client.http.RequestScheduler;
+import api.wireless.gdata.client.http.GDataRequest.GDataRequestFactory;
+import api.wireless.gdata.client.http.GDataRequest.RequestType;
+import junit.framework.TestCase;
+
+public class TokenFactoryTest extends TestCase {
+
+	private TestServer server;
+	private TokenFactory factory;
+
+	protected void setUp() throws Exception {
+		server = new TestServer(new LoginHandler());
+		factory = new TokenFactory("writely", "test");
+		factory.getRequestFactory().setRetryPolicy(null);
+	}
+
+	protected void tearDown() throws Exception {
+		server.close();
+	}
+
+	public void testPostsFormThroughTransport() throws Exception {
+		CountingTransport transport = new CountingTransport();
+		factory.setTransport(transport);
+		String response = factory.makePostRequest(server.getUrl(TokenFactory.GOOGLE_LOGIN_PATH), params("good"));
+		assertTrue(response.indexOf("Auth=token") >= 0);
+		assertEquals(1, transport.connections.get());
+		TestServer.Request request = server.getLastRequest();
+		assertEquals("Email=user%40example.com&Passwd=good&service=writely",
+				request.getBodyAsString());
+		assertEquals("application/x-www-form-urlencoded",
+				request.getHeader("content-type"));
+		assertNull(request.getHeader("authorization"));
+	}
+
+	public void testReturnsErrorBody() throws Exception {
+		String response = factory.makePostRequest(server.getUrl(TokenFactory.GOOGLE_LOGIN_PATH), params("bad"));
+		assertEquals("Error=BadAuthentication", response.trim());
+	}
+
+	public void testDoesNotFollowRedirects() throws Exception {
+		try {
+			factory.makePostRequest(server.getUrl("/moved"), params("good"));
+			fail("Redirected login should fail");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(1, server.getRequestCount());
+	}
+
+	public void testClientSharesRequestSettings() throws Exception {
+		ServiceDataClient client = new ServiceDataClient("test", "http", "127.0.0.1");
+		RequestMetrics metrics = new RequestMetrics();
+		client.addRequestListener(metrics);
+		client.setRequestScheduler(new RequestScheduler());
+		client.createTokenFactory("writely");
+		GDataRequestFactory login = client.getTokenFactory().getRequestFactory();
+		assertSame(client.getTransport(), login.getTransport());
+		assertSame(client.getCircuitBreakerRegistry(), login.getCircuitBreakerRegistry());
+		assertSame(client.getRequestScheduler(), login.getRequestScheduler());
+
+		RequestScheduler scheduler = new RequestScheduler();
+		client.setRequestScheduler(scheduler);
+		assertSame(scheduler, login.getRequestScheduler());
+
+		login.setRetryPolicy(null);
+		client.getTokenFactory().makePostRequest(
+				server.getUrl(TokenFactory.GOOGLE_LOGIN_PATH), params("good"));
+		assertEquals(1, metrics.getTypeStats(RequestType.INSERT).getRequestCount());
+	}
+
+	private static Map<String, String> params(String password) {
+		Map<String, String> params = new LinkedHashMap<String, String>();
+		params.put("Email", "user@example.com");
+		params.put("Passwd", password);
+		params.put("service", "writely");
+		return params;
+	}
+
+	private static class CountingTransport extends PooledHttpTransport {
+
+		final AtomicInteger connections = new AtomicInteger();
+
+		public HttpURLConnection openConnection(URL url) throws IOException {
+			connections.incrementAndGet();
+			return super.openConnection(url);
+		}
+	}
+
+	/**
+	 * Answers like ClientLogin, accepting the password "good" only, and
+	 * redirects /moved to the login path.
+	 */
+	private static class LoginHandler implements TestServer.Handler {
+
+		public void handle(TestServer.Request request, TestServer.Response response)
+		throws Exception {
+			if (request.getPath().equals("/moved")) {
+				response.setStatus(307);
+				response.setHeader("Location", TokenFactory.GOOGLE_LOGIN_PATH);
+				return;
+			}
+			response.setHeader("Content-Type", "text/plain");
+			if (request.getBodyAsString().indexOf("Passwd=good") >= 0) {
+				response.setBody("SID=sid\nLSID=lsid\nAuth=token\n");
+			} else {
+				response.setStatus(403);
+				response.setBody("Error=BadAuthentication\n");
+			}
+		}
+	}
+}